@@ -0,0 +1,41 @@
+package com.example.diary.controller;
+
+import com.example.diary.model.User;
+import com.example.diary.service.AnalyticsCache;
+import com.example.diary.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/cache")
+@CrossOrigin(origins = "*")
+public class CacheController {
+
+    @Autowired
+    private AnalyticsCache analyticsCache;
+
+    @Autowired
+    private UserService userService;
+
+    /**
+     * Метрики кэша аналитики текущего пользователя: попадания/промахи по эндпоинтам, число записей и сбросов.
+     * Счётчики других пользователей не отдаются.
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<?> getStats() {
+        return ResponseEntity.ok(analyticsCache.stats(getAuthenticatedUser().getId()));
+    }
+
+    private User getAuthenticatedUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()) {
+            throw new RuntimeException("Пользователь не авторизован");
+        }
+        String username = authentication.getName();
+        return userService.findByUsername(username)
+                .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
+    }
+}
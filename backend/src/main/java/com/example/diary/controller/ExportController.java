@@ -0,0 +1,129 @@
+package com.example.diary.controller;
+
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.User;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.service.UserService;
+import com.example.diary.service.exports.ExportFormat;
+import com.example.diary.service.exports.ExportService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Выгрузка журналов в CSV/XLSX. Тело пишется потоком по мере чтения из БД;
+ * без X-Portfolio-ID выгружаются все портфели пользователя.
+ */
+@RestController
+@RequestMapping("/export")
+@CrossOrigin(origins = "*")
+public class ExportController {
+
+    @Autowired
+    private ExportService exportService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private PortfolioRepository portfolioRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @FunctionalInterface
+    private interface Export {
+        void write(User user, Long portfolioId, ExportFormat format, OutputStream out) throws IOException;
+    }
+
+    @GetMapping("/trades")
+    public ResponseEntity<StreamingResponseBody> exportTrades(@RequestParam(required = false) String format,
+                                          @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        return export("trades", format, portfolioId, exportService::exportTrades);
+    }
+
+    @GetMapping("/closures")
+    public ResponseEntity<StreamingResponseBody> exportClosures(@RequestParam(required = false) String format,
+                                            @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        return export("closures", format, portfolioId, exportService::exportClosures);
+    }
+
+    @GetMapping("/spot-transactions")
+    public ResponseEntity<StreamingResponseBody> exportSpotTransactions(@RequestParam(required = false) String format,
+                                                    @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        return export("spot-transactions", format, portfolioId, exportService::exportSpotTransactions);
+    }
+
+    private ResponseEntity<StreamingResponseBody> export(String name, String format, Long portfolioId, Export export) {
+        ExportFormat exportFormat;
+        try {
+            exportFormat = ExportFormat.resolve(format);
+        } catch (IllegalArgumentException e) {
+            return error(e.getMessage());
+        }
+        // пользователь и портфель проверяются до начала потока: после первых байт статус уже не поменять
+        User user;
+        try {
+            user = getAuthenticatedUser();
+            if (portfolioId != null) {
+                getPortfolioForUser(portfolioId, user);
+            }
+        } catch (RuntimeException e) {
+            return error(e.getMessage());
+        }
+
+        String fileName = name + (portfolioId != null ? "-" + portfolioId : "") + "-" + LocalDate.now()
+                + "." + exportFormat.fileExtension();
+        StreamingResponseBody body = out -> export.write(user, portfolioId, exportFormat, out);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(exportFormat.contentType()))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(fileName).build().toString())
+                .body(body);
+    }
+
+    /**
+     * Ошибка в обычном виде {"message": ...}: тип ответа у выгрузок — StreamingResponseBody,
+     * иначе Spring не отдаст тело потоком, поэтому JSON пишется вручную.
+     */
+    private ResponseEntity<StreamingResponseBody> error(String message) {
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(Map.of("message", message));
+        } catch (JsonProcessingException e) {
+            json = "{}".getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] body = json;
+        return ResponseEntity.badRequest()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(out -> out.write(body));
+    }
+
+    private User getAuthenticatedUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()) {
+            throw new RuntimeException("Пользователь не авторизован");
+        }
+        String username = authentication.getName();
+        return userService.findByUsername(username)
+                .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
+    }
+
+    private Portfolio getPortfolioForUser(Long portfolioId, User user) {
+        return portfolioRepository.findByIdAndUser(portfolioId, user)
+                .orElseThrow(() -> new RuntimeException("Портфель не найден"));
+    }
+}
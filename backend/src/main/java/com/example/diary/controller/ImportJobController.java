@@ -0,0 +1,136 @@
+package com.example.diary.controller;
+
+import com.example.diary.model.ImportJob;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.User;
+import com.example.diary.repository.ImportJobRepository;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.service.UserService;
+import com.example.diary.service.imports.ImportFormat;
+import com.example.diary.service.imports.ImportJobService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Фоновые задания импорта: отправка файла, прогресс, продолжение после сбоя.
+ * Формат тела — как у /trades/import: CSV, NDJSON или JSON (в т.ч. тело /trades/bulk-import).
+ */
+@RestController
+@RequestMapping("/imports")
+@CrossOrigin(origins = "*")
+public class ImportJobController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportJobController.class);
+
+    @Autowired
+    private ImportJobService importJobService;
+
+    @Autowired
+    private ImportJobRepository importJobRepository;
+
+    @Autowired
+    private PortfolioRepository portfolioRepository;
+
+    @Autowired
+    private UserService userService;
+
+    /**
+     * Импорт маржинальных сделок. marginAmount — процент маржи для файлов без такой колонки.
+     */
+    @PostMapping("/trades")
+    public ResponseEntity<?> submitTrades(HttpServletRequest request,
+                                          @RequestParam(required = false) String format,
+                                          @RequestParam(required = false) String marginAmount,
+                                          @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        String defaultMargin = marginAmount != null && !marginAmount.isBlank() ? marginAmount.trim() : null;
+        return submit(request, ImportJob.Kind.TRADES, format, defaultMargin, portfolioId);
+    }
+
+    /** Импорт спотовых транзакций (раскладка scripts/rus_spot_import.csv или JSON /spot-transactions). */
+    @PostMapping("/spot")
+    public ResponseEntity<?> submitSpot(HttpServletRequest request,
+                                        @RequestParam(required = false) String format,
+                                        @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        return submit(request, ImportJob.Kind.SPOT, format, null, portfolioId);
+    }
+
+    @GetMapping
+    public ResponseEntity<?> getJobs() {
+        User user = getAuthenticatedUser();
+        List<Map<String, Object>> jobs = importJobRepository.findTop50ByUserOrderByIdDesc(user).stream()
+                .map(importJobService::toView)
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(jobs);
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<?> getJob(@PathVariable Long id) {
+        User user = getAuthenticatedUser();
+        return importJobRepository.findByIdAndUser(id, user)
+                .<ResponseEntity<?>>map(job -> ResponseEntity.ok(importJobService.toView(job)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /** Продолжить упавшее задание с последнего закоммиченного чанка. */
+    @PostMapping("/{id}/resume")
+    public ResponseEntity<?> resumeJob(@PathVariable Long id) {
+        User user = getAuthenticatedUser();
+        ImportJob job = importJobRepository.findByIdAndUser(id, user).orElse(null);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            return ResponseEntity.accepted().body(importJobService.toView(importJobService.resume(job)));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
+        }
+    }
+
+    private ResponseEntity<?> submit(HttpServletRequest request, ImportJob.Kind kind, String format,
+                                     String defaultMargin, Long portfolioId) {
+        if (portfolioId == null) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Не указан портфель для импорта"));
+        }
+        try {
+            User user = getAuthenticatedUser();
+            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
+            ImportFormat importFormat = ImportFormat.resolve(format, request.getContentType());
+            Charset charset = request.getCharacterEncoding() != null
+                    ? Charset.forName(request.getCharacterEncoding()) : StandardCharsets.UTF_8;
+            ImportJob job = importJobService.submit(user, portfolio, kind, importFormat,
+                    request.getInputStream(), charset, defaultMargin);
+            return ResponseEntity.accepted().body(importJobService.toView(job));
+        } catch (Exception e) {
+            logger.error("Ошибка при создании задания импорта", e);
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка создания задания импорта: " + e.getMessage()));
+        }
+    }
+
+    private User getAuthenticatedUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()) {
+            throw new RuntimeException("Пользователь не авторизован");
+        }
+        String username = authentication.getName();
+        return userService.findByUsername(username)
+                .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
+    }
+
+    private Portfolio getPortfolioForUser(Long portfolioId, User user) {
+        return portfolioRepository.findByIdAndUser(portfolioId, user)
+                .filter(portfolio -> portfolio.getIsActive() == null || Boolean.TRUE.equals(portfolio.getIsActive()))
+                .orElseThrow(() -> new RuntimeException("Портфель не найден или недоступен"));
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.diary.controller;
+
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.User;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.service.FxRateService;
+import com.example.diary.service.NavEngine;
+import com.example.diary.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Стоимость портфеля по дням (NAV) и кривая капитала.
+ */
+@RestController
+@RequestMapping("/nav")
+@CrossOrigin(origins = "*")
+public class NavController {
+
+    @Autowired
+    private NavEngine navEngine;
+
+    @Autowired
+    private FxRateService fxRateService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private PortfolioRepository portfolioRepository;
+
+    /**
+     * Кривая капитала за [from, to] (yyyy-MM-dd, обе границы необязательны).
+     * Без X-Portfolio-ID — сумма по всем активным портфелям пользователя в валюте currency
+     * (по умолчанию fx.reporting-currency), каждый день — по курсу этого дня.
+     */
+    @GetMapping("/equity-curve")
+    public ResponseEntity<?> getEquityCurve(@RequestParam(required = false) String from,
+                                            @RequestParam(required = false) String to,
+                                            @RequestParam(required = false) String currency,
+                                            @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        LocalDate fromDate;
+        LocalDate toDate;
+        try {
+            fromDate = from != null ? LocalDate.parse(from) : null;
+            toDate = to != null ? LocalDate.parse(to) : null;
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Даты должны быть в формате yyyy-MM-dd"));
+        }
+        try {
+            User user = getAuthenticatedUser();
+            List<NavEngine.Point> points;
+            String curveCurrency;
+            if (portfolioId != null) {
+                Portfolio portfolio = getPortfolioForUser(portfolioId, user);
+                points = navEngine.curve(user.getId(), portfolio.getId(), fromDate, toDate);
+                curveCurrency = portfolio.getCurrency();
+            } else {
+                curveCurrency = fxRateService.reportingCurrency(currency);
+                points = navEngine.combinedCurve(user.getId(), portfolioRepository.findByUserAndIsActiveTrue(user),
+                        curveCurrency, fromDate, toDate);
+            }
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("portfolioId", portfolioId);
+            response.put("currency", curveCurrency);
+            response.put("from", points.isEmpty() ? fromDate : points.get(0).date());
+            response.put("to", points.isEmpty() ? toDate : points.get(points.size() - 1).date());
+            response.put("points", points);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка расчёта кривой капитала: " + e.getMessage()));
+        }
+    }
+
+    private User getAuthenticatedUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()) {
+            throw new RuntimeException("Пользователь не авторизован");
+        }
+        String username = authentication.getName();
+        return userService.findByUsername(username)
+                .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
+    }
+
+    private Portfolio getPortfolioForUser(Long portfolioId, User user) {
+        return portfolioRepository.findByIdAndUser(portfolioId, user)
+                .orElseThrow(() -> new RuntimeException("Портфель не найден"));
+    }
+}
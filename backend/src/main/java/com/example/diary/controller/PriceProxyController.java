@@ -1,11 +1,13 @@
 package com.example.diary.controller;
 
+import com.example.diary.service.FxRateService;
 import com.example.diary.service.PriceService;
 import com.example.diary.service.PriceService.Quote;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDate;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
@@ -19,6 +21,9 @@ public class PriceProxyController {
     @Autowired
     private PriceService priceService;
 
+    @Autowired
+    private FxRateService fxRateService;
+
     @GetMapping
     public ResponseEntity<?> getPrice(@RequestParam String ticker,
                                       @RequestParam(required = false, defaultValue = "600") long ttlSeconds) {
@@ -47,6 +52,21 @@ public class PriceProxyController {
         return ResponseEntity.ok(Map.of("prices", quotes.stream().map(this::toMap).toList()));
     }
 
+    /**
+     * Курс валюты from в валюте to на дату (yyyy-MM-dd, по умолчанию сегодня) — тот же, что в сводных отчётах.
+     */
+    @GetMapping("/fx")
+    public ResponseEntity<?> fx(@RequestParam String from,
+                                @RequestParam(required = false, defaultValue = "RUB") String to,
+                                @RequestParam(required = false) String date) {
+        try {
+            LocalDate day = date != null ? LocalDate.parse(date) : LocalDate.now();
+            return ResponseEntity.ok(fxRateService.rate(from, to, day).toMap());
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Курс не найден: " + e.getMessage()));
+        }
+    }
+
     @GetMapping("/moex")
     public ResponseEntity<?> moex(@RequestParam String ticker,
                                   @RequestParam(required = false, defaultValue = "TQBR") String board,
@@ -74,7 +94,8 @@ public class PriceProxyController {
                 "ticker", q.ticker(),
                 "price", q.price(),
                 "source", q.source(),
-                "currency", q.currency()
+                "currency", q.currency(),
+                "asOf", q.asOf().toString()
         );
     }
 }
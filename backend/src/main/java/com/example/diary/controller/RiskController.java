@@ -0,0 +1,295 @@
+package com.example.diary.controller;
+
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.User;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.OpenTradeLot;
+import com.example.diary.service.FxRateService;
+import com.example.diary.service.FxRateService.Converter;
+import com.example.diary.service.LiquidationMonitor;
+import com.example.diary.service.NavEngine;
+import com.example.diary.service.PriceHistoryService;
+import com.example.diary.service.PriceService;
+import com.example.diary.service.RiskMetricsEngine;
+import com.example.diary.service.SpotLedgerEngine;
+import com.example.diary.service.StressTestEngine;
+import com.example.diary.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Риск по портфелям: сигналы маржин-колла и ликвидации, риск-метрики по дневной стоимости, стресс-тесты.
+ * Поток /risk/alerts/stream требует заголовок Authorization, поэтому клиент читает его через fetch, а не EventSource.
+ */
+@RestController
+@RequestMapping("/risk")
+@CrossOrigin(origins = "*")
+public class RiskController {
+
+    @Autowired
+    private LiquidationMonitor liquidationMonitor;
+
+    @Autowired
+    private RiskMetricsEngine riskMetricsEngine;
+
+    @Autowired
+    private StressTestEngine stressTestEngine;
+
+    @Autowired
+    private NavEngine navEngine;
+
+    @Autowired
+    private PriceHistoryService priceHistoryService;
+
+    @Autowired
+    private FxRateService fxRateService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private PortfolioRepository portfolioRepository;
+
+    @Autowired
+    private TradeRepository tradeRepository;
+
+    @Autowired
+    private SpotLedgerEngine spotLedgerEngine;
+
+    /**
+     * Активные сигналы пользователя, ближайшие к ликвидации — первыми.
+     */
+    @GetMapping("/alerts")
+    public ResponseEntity<?> getAlerts(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        try {
+            User user = getAuthenticatedUser();
+            return ResponseEntity.ok(liquidationMonitor.activeAlerts(user.getId(), portfolioId));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
+        }
+    }
+
+    /**
+     * SSE-поток сигналов: snapshot при подключении, затем alert и cleared по мере поступления котировок.
+     */
+    @GetMapping(value = "/alerts/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamAlerts() {
+        User user = getAuthenticatedUser();
+        return liquidationMonitor.subscribe(user.getId());
+    }
+
+    @GetMapping("/monitor/stats")
+    public ResponseEntity<?> getMonitorStats() {
+        return ResponseEntity.ok(liquidationMonitor.stats());
+    }
+
+    /**
+     * VaR, просадка, волатильность, Sharpe/Sortino по дневной стоимости портфелей (кривая NAV)
+     * и по доходностям тикеров открытых позиций (локальная история цен).
+     * Без X-Portfolio-ID — каждый активный портфель в своей валюте и их сумма (total) в валюте currency
+     * (по умолчанию fx.reporting-currency), каждый день — по курсу этого дня.
+     *
+     * @param confidence   уровень доверия VaR: 0.95 или 95
+     * @param window       окно скользящей волатильности, дней
+     * @param riskFreeRate безрисковая ставка, % годовых
+     */
+    @GetMapping("/metrics")
+    public ResponseEntity<?> getMetrics(@RequestParam(required = false) String from,
+                                        @RequestParam(required = false) String to,
+                                        @RequestParam(defaultValue = "0.95") double confidence,
+                                        @RequestParam(defaultValue = "30") int window,
+                                        @RequestParam(defaultValue = "0") double riskFreeRate,
+                                        @RequestParam(required = false) String currency,
+                                        @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        LocalDate fromDate;
+        LocalDate toDate;
+        try {
+            fromDate = from != null ? LocalDate.parse(from) : null;
+            toDate = to != null ? LocalDate.parse(to) : LocalDate.now();
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Даты должны быть в формате yyyy-MM-dd"));
+        }
+        double level = confidence > 1 ? confidence / 100.0 : confidence;
+        if (level < 0.5 || level >= 1) {
+            return ResponseEntity.badRequest().body(Map.of("message", "confidence должен быть в диапазоне [0.5, 1)"));
+        }
+        if (window < 2 || window > RiskMetricsEngine.MAX_WINDOW) {
+            return ResponseEntity.badRequest().body(Map.of("message",
+                    "window должен быть от 2 до " + RiskMetricsEngine.MAX_WINDOW));
+        }
+        try {
+            long started = System.nanoTime();
+            User user = getAuthenticatedUser();
+            List<Portfolio> portfolios = portfolioId != null
+                    ? List.of(getPortfolioForUser(portfolioId, user))
+                    : portfolioRepository.findByUserAndIsActiveTrue(user);
+            String reportCurrency = portfolioId != null
+                    ? portfolios.get(0).getCurrency()
+                    : fxRateService.reportingCurrency(currency);
+
+            List<RiskMetricsEngine.ReturnSeries> series = new ArrayList<>();
+            List<List<NavEngine.Point>> curves = new ArrayList<>();
+            for (Portfolio portfolio : portfolios) {
+                List<NavEngine.Point> curve = navEngine.curve(user.getId(), portfolio.getId(), fromDate, toDate);
+                series.add(navSeries("portfolio:" + portfolio.getId(), curve));
+                if (portfolios.size() > 1) {
+                    curves.add(navEngine.convert(curve, portfolio.getCurrency(), reportCurrency));
+                }
+            }
+            if (portfolios.size() > 1) {
+                series.add(navSeries("total", NavEngine.combine(curves)));
+            }
+
+            TreeSet<String> tickers = heldTickers(user, portfolioId);
+            Map<String, TreeMap<LocalDate, Double>> closes = priceHistoryService.series(tickers, toDate);
+            for (String ticker : tickers) {
+                series.add(RiskMetricsEngine.fromPrices("ticker:" + ticker, closes.get(ticker), fromDate, toDate));
+            }
+
+            Map<String, Map<String, Object>> metrics = riskMetricsEngine.compute(series,
+                    new RiskMetricsEngine.Params(level, window, riskFreeRate));
+
+            List<Map<String, Object>> byPortfolio = new ArrayList<>();
+            for (Portfolio portfolio : portfolios) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("portfolioId", portfolio.getId());
+                row.put("name", portfolio.getName());
+                row.put("currency", portfolio.getCurrency());
+                row.putAll(metrics.get("portfolio:" + portfolio.getId()));
+                byPortfolio.add(row);
+            }
+            List<Map<String, Object>> byTicker = new ArrayList<>();
+            for (String ticker : tickers) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("ticker", ticker);
+                row.putAll(metrics.get("ticker:" + ticker));
+                byTicker.add(row);
+            }
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("confidence", level);
+            response.put("window", window);
+            response.put("riskFreeRate", riskFreeRate);
+            response.put("currency", reportCurrency);
+            response.put("portfolios", byPortfolio);
+            if (metrics.containsKey("total")) {
+                response.put("total", metrics.get("total"));
+            }
+            response.put("tickers", byTicker);
+            response.put("elapsedMs", (System.nanoTime() - started) / 1_000_000);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка расчёта риск-метрик: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Стресс-тест открытых позиций: {"scenarios": [{name, shocks: {"RU": -20, "SBER": -30}, rateShiftBp, horizonDays}]}.
+     * Шоки в процентах по тикерам или рынкам (ALL, RU, US). Позиции и цены — как в сегодняшней точке кривой NAV.
+     * Без X-Portfolio-ID — все активные портфели пользователя в валюте currency (по умолчанию fx.reporting-currency):
+     * деньги, заём и цены каждого портфеля пересчитываются по сегодняшнему курсу.
+     */
+    @PostMapping("/stress")
+    public ResponseEntity<?> stressTest(@RequestBody Map<String, Object> payload,
+                                        @RequestParam(required = false) String currency,
+                                        @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        List<StressTestEngine.Scenario> scenarios = new ArrayList<>();
+        try {
+            if (!(payload.get("scenarios") instanceof List<?> items) || items.isEmpty()) {
+                return ResponseEntity.badRequest().body(Map.of("message", "Нужен непустой список scenarios"));
+            }
+            if (items.size() > StressTestEngine.MAX_SCENARIOS) {
+                return ResponseEntity.badRequest().body(Map.of("message",
+                        "Не больше " + StressTestEngine.MAX_SCENARIOS + " сценариев за запрос"));
+            }
+            for (int i = 0; i < items.size(); i++) {
+                scenarios.add(StressTestEngine.Scenario.parse(items.get(i), i));
+            }
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
+        }
+        try {
+            User user = getAuthenticatedUser();
+            List<Portfolio> portfolios = portfolioId != null
+                    ? List.of(getPortfolioForUser(portfolioId, user))
+                    : portfolioRepository.findByUserAndIsActiveTrue(user);
+            // Курс каждой валюты берётся один раз на весь набор портфелей
+            Converter converter = portfolioId != null
+                    ? null
+                    : fxRateService.converter(currency, LocalDate.now());
+            List<NavEngine.Exposure> exposures = new ArrayList<>();
+            for (Portfolio portfolio : portfolios) {
+                NavEngine.Exposure exposure = navEngine.exposure(portfolio.getId());
+                exposures.add(converter != null
+                        ? exposure.scaled(converter.factor(portfolio.getCurrency()).doubleValue())
+                        : exposure);
+            }
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("asOf", LocalDate.now());
+            response.put("portfolios", portfolios.stream().map(Portfolio::getId).toList());
+            response.put("currency", converter != null ? converter.currency() : portfolios.get(0).getCurrency());
+            if (converter != null) {
+                response.put("fxRates", converter.used());
+            }
+            response.putAll(stressTestEngine.run(StressTestEngine.Book.of(exposures), scenarios));
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка стресс-теста: " + e.getMessage()));
+        }
+    }
+
+    private static RiskMetricsEngine.ReturnSeries navSeries(String key, List<NavEngine.Point> curve) {
+        int n = curve.size();
+        LocalDate[] dates = new LocalDate[n];
+        double[] values = new double[n];
+        double[] flows = new double[n];
+        for (int i = 0; i < n; i++) {
+            NavEngine.Point p = curve.get(i);
+            dates[i] = p.date();
+            values[i] = p.nav();
+            flows[i] = p.netFlow();
+        }
+        return RiskMetricsEngine.fromValues(key, dates, values, flows);
+    }
+
+    /** Тикеры открытых маржинальных лотов и спотовых позиций (канонические имена). */
+    private TreeSet<String> heldTickers(User user, Long portfolioId) {
+        TreeSet<String> tickers = new TreeSet<>();
+        for (OpenTradeLot lot : tradeRepository.findOpenLots(user, portfolioId)) {
+            tickers.add(PriceService.canonicalTicker(lot.symbol()));
+        }
+        for (SpotLedgerEngine.Position position : spotLedgerEngine.ledger(user, portfolioId).openPositions()) {
+            tickers.add(PriceService.canonicalTicker(position.ticker()));
+        }
+        return tickers;
+    }
+
+    private User getAuthenticatedUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()) {
+            throw new RuntimeException("Пользователь не авторизован");
+        }
+        String username = authentication.getName();
+        return userService.findByUsername(username)
+                .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
+    }
+
+    private Portfolio getPortfolioForUser(Long portfolioId, User user) {
+        return portfolioRepository.findByIdAndUser(portfolioId, user)
+                .orElseThrow(() -> new RuntimeException("Портфель не найден"));
+    }
+}
@@ -1,19 +1,45 @@
 package com.example.diary.controller;
 
+import com.example.diary.event.PortfolioDataChangedEvent;
 import com.example.diary.model.Portfolio;
 import com.example.diary.model.SpotTransaction;
 import com.example.diary.model.User;
 import com.example.diary.repository.SpotTransactionRepository;
 import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.repository.projection.SpotLedgerRow;
+import com.example.diary.service.AnalyticsCache;
+import com.example.diary.service.FxRateService;
+import com.example.diary.service.FxRateService.Converter;
+import com.example.diary.service.FxRateService.Rate;
+import com.example.diary.service.PriceService;
+import com.example.diary.service.PriceService.Quote;
+import com.example.diary.service.SpotLedgerEngine;
+import com.example.diary.service.SpotLedgerEngine.Position;
+import com.example.diary.service.SpotLedgerEngine.SpotLedger;
+import com.example.diary.service.SpotLedgerEngine.Totals;
+import com.example.diary.service.SpotReturnEngine;
+import com.example.diary.service.SpotReturnEngine.FlowBook;
+import com.example.diary.service.SpotReturnEngine.Returns;
 import com.example.diary.service.UserService;
+import com.example.diary.service.imports.ImportFormat;
+import com.example.diary.service.imports.ImportResult;
+import com.example.diary.service.imports.ImportRowReader;
+import com.example.diary.service.imports.SpotImportService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -36,6 +62,31 @@ public class SpotTransactionController {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private SpotLedgerEngine spotLedgerEngine;
+
+    @Autowired
+    private AnalyticsCache analyticsCache;
+
+    @Autowired
+    private SpotReturnEngine spotReturnEngine;
+
+    @Autowired
+    private PriceService priceService;
+
+    @Autowired
+    private FxRateService fxRateService;
+
+    @Autowired
+    private SpotImportService spotImportService;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    // Ответы /portfolio и /stats — представления журнала, который кэшируется в SpotLedgerEngine;
+    // кэш ответов даёт им метрики /cache/stats и сбрасывается теми же событиями записи
+    private static final Duration DATA_TTL = Duration.ofMinutes(30);
+
     // Получить все транзакции
     @GetMapping
     public List<SpotTransaction> getAllTransactions(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
@@ -56,10 +107,50 @@ public class SpotTransactionController {
         User user = getAuthenticatedUser();
         Portfolio portfolio = getPortfolioForUser(portfolioId, user);
         transaction.setPortfolio(portfolio);
+        CachedViews base = cachedViews(portfolio.getId());
         SpotTransaction saved = repository.save(transaction);
+        publishSpotChanged(user, portfolio.getId(), saved.getTradeDate());
+        applyChange(base, null, SpotLedgerEngine.rowOf(saved));
         return ResponseEntity.ok(saved);
     }
 
+    /**
+     * Потоковый импорт транзакций из тела запроса: CSV (text/csv, например rus_spot_import.csv),
+     * NDJSON (application/x-ndjson) или JSON-массив. Тип операции принимается и по названию
+     * («Покупка», «Поступление средств»), знак суммы выставляется по типу при записи.
+     * Тело читается построчно и пишется чанками батч-вставками; номер строки в ошибках — номер строки файла.
+     */
+    @PostMapping("/import")
+    public ResponseEntity<?> importTransactions(HttpServletRequest request,
+                                                @RequestParam(required = false) String format,
+                                                @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        if (portfolioId == null) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Не указан портфель для импорта транзакций"));
+        }
+        try {
+            User user = getAuthenticatedUser();
+            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
+            ImportFormat importFormat = ImportFormat.resolve(format, request.getContentType());
+            Charset charset = request.getCharacterEncoding() != null
+                    ? Charset.forName(request.getCharacterEncoding()) : StandardCharsets.UTF_8;
+
+            ImportResult result;
+            try (ImportRowReader reader = ImportRowReader.forSpot(request.getInputStream(), charset, importFormat)) {
+                result = spotImportService.importStream(portfolio, reader);
+            }
+
+            Map<String, Object> response = result.toResponse();
+            if (result.getImportedCount() > 0) {
+                return ResponseEntity.ok(response);
+            } else {
+                return ResponseEntity.badRequest().body(response);
+            }
+        } catch (Exception e) {
+            logger.error("Ошибка при импорте спотовых транзакций", e);
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка импорта транзакций: " + e.getMessage()));
+        }
+    }
+
     // Получить транзакцию по ID
     @GetMapping("/{id}")
     public ResponseEntity<SpotTransaction> getTransaction(@PathVariable Long id) {
@@ -75,6 +166,8 @@ public class SpotTransactionController {
         User user = getAuthenticatedUser();
         return repository.findByIdAndPortfolioUser(id, user)
                 .map(transaction -> {
+                    CachedViews base = cachedViews(transaction.getPortfolio().getId());
+                    SpotLedgerRow before = SpotLedgerEngine.rowOf(transaction);
                     transaction.setCompany(transactionDetails.getCompany());
                     transaction.setTicker(transactionDetails.getTicker());
                     transaction.setTransactionType(transactionDetails.getTransactionType());
@@ -82,7 +175,11 @@ public class SpotTransactionController {
                     transaction.setQuantity(transactionDetails.getQuantity());
                     transaction.setTradeDate(transactionDetails.getTradeDate());
                     transaction.setNote(transactionDetails.getNote());
-                    return ResponseEntity.ok(repository.save(transaction));
+                    SpotTransaction saved = repository.save(transaction);
+                    publishSpotChanged(user, transaction.getPortfolio().getId(),
+                            earlier(before.tradeDate(), saved.getTradeDate()));
+                    applyChange(base, before, SpotLedgerEngine.rowOf(saved));
+                    return ResponseEntity.ok(saved);
                 })
                 .orElse(ResponseEntity.notFound().build());
     }
@@ -93,142 +190,80 @@ public class SpotTransactionController {
         User user = getAuthenticatedUser();
         return repository.findByIdAndPortfolioUser(id, user)
                 .map(transaction -> {
+                    CachedViews base = cachedViews(transaction.getPortfolio().getId());
+                    SpotLedgerRow before = SpotLedgerEngine.rowOf(transaction);
                     repository.delete(transaction);
+                    publishSpotChanged(user, transaction.getPortfolio().getId(), before.tradeDate());
+                    applyChange(base, before, null);
                     return ResponseEntity.ok().build();
                 })
                 .orElse(ResponseEntity.notFound().build());
     }
 
-    // Получить портфель (текущие позиции)
+    // Получить портфель (текущие позиции); без X-Portfolio-ID — по всем портфелям в валюте currency
     @GetMapping("/portfolio")
-    public Map<String, Object> getPortfolio(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+    public Map<String, Object> getPortfolio(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                            @RequestParam(required = false) String currency) {
         User user = getAuthenticatedUser();
-        List<SpotTransaction> transactions;
-        if (portfolioId != null) {
-            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
-            transactions = repository.findByPortfolioId(portfolio.getId());
-        } else {
-            transactions = repository.findByPortfolioUser(user);
-        }
-        
-        // Группируем по тикерам
-        Map<String, List<SpotTransaction>> byTicker = transactions.stream()
-                .collect(Collectors.groupingBy(SpotTransaction::getTicker));
-        
+        return analyticsCache.get(user.getId(), portfolioId, "spot/portfolio", cacheParams(portfolioId, currency), DATA_TTL,
+                () -> buildPortfolio(user, portfolioId, currency));
+    }
+
+    private Map<String, Object> buildPortfolio(User user, Long portfolioId, String currency) {
+        SpotLedger ledger = ledgerFor(user, portfolioId, currency);
+
         List<Map<String, Object>> positions = new ArrayList<>();
-        BigDecimal totalCash = BigDecimal.ZERO;
-        
-        for (Map.Entry<String, List<SpotTransaction>> entry : byTicker.entrySet()) {
-            String ticker = entry.getKey();
-            List<SpotTransaction> tickerTransactions = entry.getValue();
-            
-            if ("USD".equals(ticker)) {
-                // Считаем наличные
-                totalCash = tickerTransactions.stream()
-                        .map(SpotTransaction::getAmount)
-                        .reduce(BigDecimal.ZERO, BigDecimal::add);
-            } else {
-                // Считаем позицию по акциям
-                BigDecimal totalQuantity = BigDecimal.ZERO;
-                BigDecimal totalCost = BigDecimal.ZERO;
-                String company = "";
-                
-                for (SpotTransaction tx : tickerTransactions) {
-                    if (tx.getTransactionType() == SpotTransaction.TransactionType.BUY) {
-                        totalQuantity = totalQuantity.add(tx.getQuantity());
-                        totalCost = totalCost.add(tx.getAmount().abs()); // amount для покупок отрицательный
-                        company = tx.getCompany();
-                    } else if (tx.getTransactionType() == SpotTransaction.TransactionType.SELL) {
-                        totalQuantity = totalQuantity.subtract(tx.getQuantity());
-                        totalCost = totalCost.subtract(tx.getAmount().abs());
-                    }
-                }
-                
-                if (totalQuantity.compareTo(BigDecimal.ZERO) != 0) {
-                    Map<String, Object> position = new HashMap<>();
-                    position.put("ticker", ticker);
-                    position.put("company", company);
-                    position.put("quantity", totalQuantity);
-                    position.put("averagePrice", totalCost.divide(totalQuantity, 2, RoundingMode.HALF_UP));
-                    position.put("totalCost", totalCost);
-                    positions.add(position);
-                }
-            }
+        for (Position p : ledger.openPositions()) {
+            Map<String, Object> position = new HashMap<>();
+            position.put("ticker", p.ticker());
+            position.put("company", p.company() != null ? p.company() : "");
+            position.put("quantity", p.quantity());
+            position.put("averagePrice", p.averagePrice().setScale(2, RoundingMode.HALF_UP));
+            position.put("totalCost", p.cost().setScale(2, RoundingMode.HALF_UP));
+            positions.add(position);
         }
-        
+
         Map<String, Object> result = new HashMap<>();
         result.put("positions", positions);
-        result.put("cash", totalCash);
+        result.put("cash", ledger.totals().cash());
+        result.put("currency", currencyOf(user, portfolioId, currency));
         
         return result;
     }
 
     // Получить статистику
     @GetMapping("/statistics")
-    public Map<String, Object> getStatistics() {
+    public Map<String, Object> getStatistics(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                             @RequestParam(required = false) String currency) {
         User user = getAuthenticatedUser();
-        List<SpotTransaction> transactions = repository.findByPortfolioUser(user);
-        
-        // Общая статистика
-        long totalTransactions = transactions.size();
-        BigDecimal totalInvested = transactions.stream()
-                .filter(tx -> tx.getTransactionType() == SpotTransaction.TransactionType.BUY)
-                .map(tx -> tx.getAmount().abs())
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
-        
-        BigDecimal totalReceived = transactions.stream()
-                .filter(tx -> tx.getTransactionType() == SpotTransaction.TransactionType.SELL)
-                .map(SpotTransaction::getAmount)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
-        
-        BigDecimal totalDividends = transactions.stream()
-                .filter(tx -> tx.getTransactionType() == SpotTransaction.TransactionType.DIVIDEND)
-                .map(SpotTransaction::getAmount)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
-        
+        SpotLedger ledger = ledgerFor(user, portfolioId, currency);
+        Totals totals = ledger.totals();
+
         // Статистика по тикерам
-        Map<String, List<SpotTransaction>> byTicker = transactions.stream()
-                .filter(tx -> !"USD".equals(tx.getTicker()))
-                .collect(Collectors.groupingBy(SpotTransaction::getTicker));
-        
         List<Map<String, Object>> tickerStats = new ArrayList<>();
-        for (Map.Entry<String, List<SpotTransaction>> entry : byTicker.entrySet()) {
-            String ticker = entry.getKey();
-            List<SpotTransaction> tickerTransactions = entry.getValue();
-            
-            BigDecimal bought = tickerTransactions.stream()
-                    .filter(tx -> tx.getTransactionType() == SpotTransaction.TransactionType.BUY)
-                    .map(tx -> tx.getAmount().abs())
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-            
-            BigDecimal sold = tickerTransactions.stream()
-                    .filter(tx -> tx.getTransactionType() == SpotTransaction.TransactionType.SELL)
-                    .map(SpotTransaction::getAmount)
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-            
-            BigDecimal dividends = tickerTransactions.stream()
-                    .filter(tx -> tx.getTransactionType() == SpotTransaction.TransactionType.DIVIDEND)
-                    .map(SpotTransaction::getAmount)
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-            
+        for (Position p : ledger.positions().values()) {
+            if (!p.traded()) {
+                continue;
+            }
             Map<String, Object> stat = new HashMap<>();
-            stat.put("ticker", ticker);
-            stat.put("company", tickerTransactions.get(0).getCompany());
-            stat.put("totalBought", bought);
-            stat.put("totalSold", sold);
-            stat.put("totalDividends", dividends);
-            stat.put("netResult", sold.subtract(bought).add(dividends));
-            
+            stat.put("ticker", p.ticker());
+            stat.put("company", p.company());
+            stat.put("totalBought", p.bought());
+            stat.put("totalSold", p.sold());
+            stat.put("totalDividends", p.dividends());
+            stat.put("realizedPnL", p.realizedPnl());
+            stat.put("netResult", p.sold().subtract(p.bought()).add(p.dividends()));
             tickerStats.add(stat);
         }
         
         Map<String, Object> result = new HashMap<>();
-        result.put("totalTransactions", totalTransactions);
-        result.put("totalInvested", totalInvested);
-        result.put("totalReceived", totalReceived);
-        result.put("totalDividends", totalDividends);
-        result.put("netProfit", totalReceived.subtract(totalInvested).add(totalDividends));
+        result.put("totalTransactions", (long) totals.transactions());
+        result.put("totalInvested", totals.invested());
+        result.put("totalReceived", totals.received());
+        result.put("totalDividends", totals.dividends());
+        result.put("netProfit", totals.received().subtract(totals.invested()).add(totals.dividends()));
         result.put("tickerStatistics", tickerStats);
+        result.put("currency", currencyOf(user, portfolioId, currency));
         
         return result;
     }
@@ -271,6 +306,31 @@ public class SpotTransactionController {
                 .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
     }
 
+    // since — самая ранняя затронутая дата сделки: контрольные точки спотового журнала до неё остаются в силе
+    private void publishSpotChanged(User user, Long portfolioId, LocalDate since) {
+        eventPublisher.publishEvent(PortfolioDataChangedEvent.spot(user.getId(), portfolioId, since));
+    }
+
+    // Кэши, которые запись транзакции правит на месте вместо пересчёта: база снимается до записи
+    private record CachedViews(SpotLedger ledger, FlowBook flows) {}
+
+    private CachedViews cachedViews(Long portfolioId) {
+        return new CachedViews(spotLedgerEngine.cached(portfolioId), spotReturnEngine.cached(portfolioId));
+    }
+
+    private void applyChange(CachedViews base, SpotLedgerRow removed, SpotLedgerRow added) {
+        spotLedgerEngine.applyChange(base.ledger(), removed, added);
+        spotReturnEngine.applyChange(base.flows(), removed, added);
+    }
+
+    // транзакция без даты стоит в начале журнала, поэтому null раньше любой даты
+    private static LocalDate earlier(LocalDate a, LocalDate b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        return a.isBefore(b) ? a : b;
+    }
+
     private Portfolio getPortfolioForUser(Long portfolioId, User user) {
         return portfolioRepository.findByIdAndUser(portfolioId, user)
                 .filter(portfolio -> portfolio.getIsActive() == null || Boolean.TRUE.equals(portfolio.getIsActive()))
@@ -281,65 +341,13 @@ public class SpotTransactionController {
      * Сводная статистика по спотовым сделкам (расчёты на бэке).
      */
     @GetMapping("/stats")
-    public ResponseEntity<?> getStats(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+    public ResponseEntity<?> getStats(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                      @RequestParam(required = false) String currency) {
         try {
             logger.debug("GET /api/spot-transactions/stats portfolioId={}", portfolioId);
             User user = getAuthenticatedUser();
-            List<SpotTransaction> txs;
-            if (portfolioId != null) {
-                Portfolio portfolio = getPortfolioForUser(portfolioId, user);
-                txs = repository.findByPortfolioId(portfolio.getId());
-            } else {
-                txs = repository.findByPortfolioUser(user);
-            }
-
-        double cash = 0;
-        double totalInvested = 0;
-        double totalReceived = 0;
-        double totalDividends = 0;
-        double realizedPnL = 0;
-
-        record Pos(double qty, double cost) {}
-        Map<String, Pos> positions = new HashMap<>();
-
-        for (SpotTransaction tx : txs) {
-            double price = tx.getPrice() != null ? tx.getPrice().doubleValue() : 0;
-            double qty = tx.getQuantity() != null ? tx.getQuantity().doubleValue() : 0;
-            double amt = tx.getAmount() != null ? tx.getAmount().doubleValue() : 0;
-            cash += amt;
-
-            switch (tx.getTransactionType()) {
-                case BUY -> {
-                    totalInvested += price * qty;
-                    Pos p = positions.getOrDefault(tx.getTicker(), new Pos(0, 0));
-                    positions.put(tx.getTicker(), new Pos(p.qty + qty, p.cost + price * qty));
-                }
-                case SELL -> {
-                    totalReceived += price * qty;
-                    Pos p = positions.getOrDefault(tx.getTicker(), new Pos(0, 0));
-                    double remainingQty = p.qty - qty;
-                    double avgCost = p.qty > 0 ? p.cost / p.qty : 0;
-                    realizedPnL += (price - avgCost) * qty;
-                    double newCost = Math.max(0, p.cost - avgCost * qty);
-                    positions.put(tx.getTicker(), new Pos(Math.max(0, remainingQty), newCost));
-                }
-                case DIVIDEND -> totalDividends += amt;
-                case DEPOSIT, WITHDRAW -> { /* cash уже учли */ }
-            }
-        }
-
-        int openPositionsCount = (int) positions.values().stream().filter(p -> p.qty > 0).count();
-        int closedPositionsCount = (int) txs.stream().filter(tx -> tx.getTransactionType() == SpotTransaction.TransactionType.SELL).count();
-
-        Map<String, Object> resp = new HashMap<>();
-        resp.put("cashBalance", round(cash));
-        resp.put("totalInvested", round(totalInvested));
-        resp.put("totalReceived", round(totalReceived));
-        resp.put("totalDividends", round(totalDividends));
-        resp.put("realizedPnL", round(realizedPnL + totalDividends));
-        resp.put("openPositions", openPositionsCount);
-        resp.put("closedPositions", closedPositionsCount);
-        resp.put("positionsCount", positions.size());
+            Object resp = analyticsCache.get(user.getId(), portfolioId, "spot/stats", cacheParams(portfolioId, currency),
+                    DATA_TTL, () -> buildStats(user, portfolioId, currency));
             return ResponseEntity.ok(resp);
         } catch (Exception e) {
             logger.error("Ошибка /api/spot-transactions/stats", e);
@@ -347,55 +355,43 @@ public class SpotTransactionController {
         }
     }
 
+    private Map<String, Object> buildStats(User user, Long portfolioId, String currency) {
+        SpotLedger ledger = ledgerFor(user, portfolioId, currency);
+        Totals totals = ledger.totals();
+        int positionsCount = (int) ledger.positions().values().stream().filter(Position::traded).count();
+
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("cashBalance", round(totals.cash()));
+        resp.put("totalInvested", round(totals.invested()));
+        resp.put("totalReceived", round(totals.received()));
+        resp.put("totalDividends", round(totals.dividends()));
+        resp.put("realizedPnL", round(ledger.realizedPnl().add(totals.dividends())));
+        resp.put("openPositions", ledger.openPositions().size());
+        resp.put("closedPositions", totals.sells());
+        resp.put("positionsCount", positionsCount);
+        resp.put("currency", currencyOf(user, portfolioId, currency));
+        return resp;
+    }
+
     /**
      * Открытые позиции (количество, средняя цена).
      */
     @GetMapping("/positions/open")
-    public ResponseEntity<?> getOpenPositions(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+    public ResponseEntity<?> getOpenPositions(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                              @RequestParam(required = false) String currency) {
         try {
             logger.debug("GET /api/spot-transactions/positions portfolioId={}", portfolioId);
             User user = getAuthenticatedUser();
-            List<SpotTransaction> txs;
-            if (portfolioId != null) {
-                Portfolio portfolio = getPortfolioForUser(portfolioId, user);
-                txs = repository.findByPortfolioId(portfolio.getId());
-            } else {
-                txs = repository.findByPortfolioUser(user);
-            }
-
-        class PosAcc {
-            double qty = 0;
-            double cost = 0;
-            String company;
-        }
-        Map<String, PosAcc> map = new HashMap<>();
-        for (SpotTransaction tx : txs) {
-            if (tx.getTransactionType() == SpotTransaction.TransactionType.BUY || tx.getTransactionType() == SpotTransaction.TransactionType.SELL) {
-                PosAcc acc = map.computeIfAbsent(tx.getTicker(), k -> new PosAcc());
-                acc.company = tx.getCompany();
-                double price = tx.getPrice() != null ? tx.getPrice().doubleValue() : 0;
-                double qty = tx.getQuantity() != null ? tx.getQuantity().doubleValue() : 0;
-                if (tx.getTransactionType() == SpotTransaction.TransactionType.BUY) {
-                    acc.qty += qty;
-                    acc.cost += price * qty;
-                } else {
-                    double avg = acc.qty > 0 ? acc.cost / acc.qty : 0;
-                    acc.qty -= qty;
-                    acc.cost = Math.max(0, acc.cost - avg * qty);
-                }
-            }
-        }
+            SpotLedger ledger = ledgerFor(user, portfolioId, currency);
 
-            List<Map<String, Object>> result = map.entrySet().stream()
-                    .filter(e -> e.getValue().qty > 0)
-                    .map(e -> {
-                        PosAcc acc = e.getValue();
+            List<Map<String, Object>> result = ledger.openPositions().stream()
+                    .map(p -> {
                         Map<String, Object> row = new HashMap<>();
-                        row.put("ticker", e.getKey());
-                        row.put("company", acc.company);
-                        row.put("quantity", round(acc.qty));
-                        row.put("avgPrice", acc.qty > 0 ? round(acc.cost / acc.qty) : 0);
-                        row.put("invested", round(acc.cost));
+                        row.put("ticker", p.ticker());
+                        row.put("company", p.company());
+                        row.put("quantity", round(p.quantity()));
+                        row.put("avgPrice", round(p.averagePrice()));
+                        row.put("invested", round(p.cost()));
                         return row;
                     })
                     .toList();
@@ -407,7 +403,193 @@ public class SpotTransactionController {
         }
     }
 
-    private double round(double val) {
-        return BigDecimal.valueOf(val).setScale(2, RoundingMode.HALF_UP).doubleValue();
+    /**
+     * Оценка открытых позиций по текущим ценам: рыночная стоимость, нереализованный результат,
+     * доли в портфеле и свежесть котировок. Цены берутся одним пакетным запросом по всем тикерам.
+     * Позиции без котировки остаются в списке с пустой оценкой и в доли не входят.
+     * Стоимость — в валюте портфеля (без X-Portfolio-ID — в валюте currency): котировка в другой валюте
+     * пересчитывается по сегодняшнему курсу, купленная валюта (тикер USD, EUR) оценивается по курсу.
+     */
+    @GetMapping("/positions/valuation")
+    public ResponseEntity<?> getPositionsValuation(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                                   @RequestParam(required = false) String currency,
+                                                   @RequestParam(required = false, defaultValue = "600") long ttlSeconds) {
+        try {
+            logger.debug("GET /api/spot-transactions/positions/valuation portfolioId={}", portfolioId);
+            User user = getAuthenticatedUser();
+            SpotLedger ledger = ledgerFor(user, portfolioId, currency);
+            return ResponseEntity.ok(buildValuation(ledger, currencyOf(user, portfolioId, currency), ttlSeconds));
+        } catch (Exception e) {
+            logger.error("Ошибка /api/spot-transactions/positions/valuation", e);
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
+        }
+    }
+
+    /** Цена позиции: price и currency — как у источника, fxRate — курс к валюте журнала. */
+    private record Priced(Double price, String currency, String source, Instant asOf, BigDecimal fxRate) {}
+
+    private Map<String, Object> buildValuation(SpotLedger ledger, String ledgerCurrency, long ttlSeconds) {
+        List<Position> open = ledger.openPositions();
+        Map<String, Quote> prices = priceService.getPriceSnapshot(open.stream()
+                .map(Position::ticker)
+                .filter(ticker -> !FxRateService.isCurrencyCode(ticker))
+                .toList(), ttlSeconds);
+        Converter converter = fxRateService.converter(ledgerCurrency, LocalDate.now());
+        Instant now = Instant.now();
+
+        // сначала цена и стоимость всех оценённых позиций — от суммы считаются доли
+        Map<String, Priced> priced = new HashMap<>();
+        Map<String, BigDecimal> marketValues = new HashMap<>();
+        BigDecimal totalMarket = BigDecimal.ZERO;
+        for (Position p : open) {
+            Priced price = priceOf(p.ticker(), prices, converter);
+            if (price != null) {
+                BigDecimal value = p.quantity().multiply(BigDecimal.valueOf(price.price())).multiply(price.fxRate());
+                priced.put(p.ticker(), price);
+                marketValues.put(p.ticker(), value);
+                totalMarket = totalMarket.add(value);
+            }
+        }
+
+        BigDecimal totalInvested = BigDecimal.ZERO;
+        BigDecimal pricedInvested = BigDecimal.ZERO;
+        Instant oldest = null;
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Position p : open) {
+            Priced price = priced.get(p.ticker());
+            BigDecimal value = marketValues.get(p.ticker());
+            totalInvested = totalInvested.add(p.cost());
+
+            Map<String, Object> row = new HashMap<>();
+            row.put("ticker", p.ticker());
+            row.put("company", p.company());
+            row.put("quantity", round(p.quantity()));
+            row.put("avgPrice", round(p.averagePrice()));
+            row.put("invested", round(p.cost()));
+            row.put("price", value != null ? price.price() : null);
+            row.put("currency", value != null ? price.currency() : null);
+            row.put("fxRate", value != null ? price.fxRate() : null);
+            row.put("priceSource", value != null ? price.source() : null);
+            row.put("priceAsOf", value != null ? price.asOf().toString() : null);
+            row.put("priceAgeSeconds", value != null ? Duration.between(price.asOf(), now).getSeconds() : null);
+            row.put("marketValue", value != null ? round(value) : null);
+            row.put("unrealizedPnL", value != null ? round(value.subtract(p.cost())) : null);
+            row.put("unrealizedPnLPercent", value != null ? percent(value.subtract(p.cost()), p.cost()) : null);
+            row.put("weight", value != null ? percent(value, totalMarket) : null);
+            rows.add(row);
+
+            if (value != null) {
+                pricedInvested = pricedInvested.add(p.cost());
+                if (oldest == null || price.asOf().isBefore(oldest)) {
+                    oldest = price.asOf();
+                }
+            }
+        }
+        rows.sort(Comparator.comparing((Map<String, Object> r) -> (Double) r.get("marketValue"),
+                Comparator.nullsLast(Comparator.reverseOrder())));
+
+        BigDecimal unrealized = totalMarket.subtract(pricedInvested);
+        BigDecimal cash = ledger.totals().cash();
+        Map<String, Object> totals = new HashMap<>();
+        totals.put("currency", ledgerCurrency);
+        totals.put("invested", round(totalInvested));
+        totals.put("pricedInvested", round(pricedInvested));
+        totals.put("marketValue", round(totalMarket));
+        totals.put("unrealizedPnL", round(unrealized));
+        totals.put("unrealizedPnLPercent", percent(unrealized, pricedInvested));
+        totals.put("cashBalance", round(cash));
+        totals.put("equity", round(cash.add(totalMarket)));
+        totals.put("pricedPositions", marketValues.size());
+        totals.put("unpricedPositions", open.size() - marketValues.size());
+        totals.put("oldestPriceAsOf", oldest != null ? oldest.toString() : null);
+
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("positions", rows);
+        resp.put("totals", totals);
+        resp.put("fxRates", converter.used());
+        resp.put("valuedAt", now.toString());
+        return resp;
+    }
+
+    // Валюта оценивается по курсу к валюте журнала, бумага — по котировке с пересчётом из её валюты
+    private Priced priceOf(String ticker, Map<String, Quote> prices, Converter converter) {
+        if (FxRateService.isCurrencyCode(ticker)) {
+            Rate rate = converter.rate(ticker);
+            return new Priced(rate.rate().doubleValue(), converter.currency(), rate.source(),
+                    rate.date().atStartOfDay(ZoneId.systemDefault()).toInstant(), BigDecimal.ONE);
+        }
+        Quote quote = prices.get(ticker.toUpperCase(Locale.ROOT));
+        if (quote == null || quote.price() == null) {
+            return null;
+        }
+        return new Priced(quote.price(), quote.currency(), quote.source(), quote.asOf(), converter.factor(quote.currency()));
+    }
+
+    /**
+     * Доходность: XIRR и TWR (полная и годовая) в процентах, см. SpotReturnEngine.
+     * basis = CASH — по пополнениям и выводам, SECURITIES — по сделкам, если пополнений в портфеле нет.
+     * Без X-Portfolio-ID суммы — в валюте currency.
+     */
+    @GetMapping("/returns")
+    public ResponseEntity<?> getReturns(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                        @RequestParam(required = false) String currency) {
+        try {
+            logger.debug("GET /api/spot-transactions/returns portfolioId={}", portfolioId);
+            User user = getAuthenticatedUser();
+            String returnsCurrency = currencyOf(user, portfolioId, currency);
+            Returns returns = spotReturnEngine.returns(user, portfolioId, returnsCurrency);
+
+            Map<String, Object> resp = new HashMap<>();
+            resp.put("currency", returnsCurrency);
+            resp.put("basis", returns.basis());
+            resp.put("from", returns.from());
+            resp.put("to", returns.to());
+            resp.put("xirr", asPercent(returns.xirr()));
+            resp.put("twr", asPercent(returns.twr()));
+            resp.put("twrAnnualized", asPercent(returns.twrAnnualized()));
+            resp.put("terminalValue", round(BigDecimal.valueOf(returns.terminalValue())));
+            resp.put("contributed", round(BigDecimal.valueOf(returns.contributed())));
+            resp.put("withdrawn", round(BigDecimal.valueOf(returns.withdrawn())));
+            resp.put("flowDays", returns.flowDays());
+            resp.put("undatedTransactions", returns.undatedTransactions());
+            return ResponseEntity.ok(resp);
+        } catch (Exception e) {
+            logger.error("Ошибка /api/spot-transactions/returns", e);
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка расчёта доходности: " + e.getMessage()));
+        }
+    }
+
+    private static Double asPercent(Double fraction) {
+        return fraction != null ? Math.round(fraction * 10000) / 100.0 : null;
+    }
+
+    private Double percent(BigDecimal part, BigDecimal whole) {
+        if (whole.signum() == 0) {
+            return null;
+        }
+        return part.multiply(BigDecimal.valueOf(100)).divide(whole, 2, RoundingMode.HALF_UP).doubleValue();
+    }
+
+    private SpotLedger ledgerFor(User user, Long portfolioId, String currency) {
+        if (portfolioId != null) {
+            getPortfolioForUser(portfolioId, user);
+        }
+        return spotLedgerEngine.ledger(user, portfolioId, currency);
+    }
+
+    // Ключ кэша: с портфелем суммы в его валюте и currency не влияет на ответ
+    private String cacheParams(Long portfolioId, String currency) {
+        return portfolioId != null ? "" : fxRateService.reportingCurrency(currency);
+    }
+
+    // Валюта сумм ответа: портфеля, а без X-Portfolio-ID — сводная
+    private String currencyOf(User user, Long portfolioId, String currency) {
+        return portfolioId != null
+                ? getPortfolioForUser(portfolioId, user).getCurrency()
+                : fxRateService.reportingCurrency(currency);
+    }
+
+    private double round(BigDecimal val) {
+        return val.setScale(2, RoundingMode.HALF_UP).doubleValue();
     }
 }
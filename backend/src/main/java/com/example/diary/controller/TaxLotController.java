@@ -0,0 +1,110 @@
+package com.example.diary.controller;
+
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.User;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.service.TaxLotEngine;
+import com.example.diary.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Налоговые лоты: очередь открытых лотов тикера и предпросмотр закрытия без записи.
+ */
+@RestController
+@RequestMapping("/trades/lots")
+@CrossOrigin(origins = "*")
+public class TaxLotController {
+
+    @Autowired
+    private TaxLotEngine taxLotEngine;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private PortfolioRepository portfolioRepository;
+
+    /**
+     * Открытые лоты тикера в порядке FIFO.
+     */
+    @GetMapping
+    public ResponseEntity<?> getLots(@RequestParam String symbol,
+                                     @RequestHeader(value = "X-Portfolio-ID") Long portfolioId) {
+        try {
+            User user = getAuthenticatedUser();
+            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
+            TaxLotEngine.LotBook book = taxLotEngine.book(user.getId(), portfolio.getId(), symbol.trim());
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("symbol", book.symbol());
+            response.put("openQuantity", book.openQuantity());
+            response.put("lots", book.lots());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Что реализует закрытие: {symbol, quantity, method?, lots?, exitPrice?, exitDate?}.
+     * Тело как у /trades/fifo-close; ничего не записывает.
+     */
+    @PostMapping("/preview")
+    public ResponseEntity<?> preview(@RequestBody Map<String, Object> payload,
+                                     @RequestHeader(value = "X-Portfolio-ID") Long portfolioId) {
+        try {
+            User user = getAuthenticatedUser();
+            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
+
+            String symbol = payload.getOrDefault("symbol", "").toString().trim().toUpperCase();
+            if (symbol.isEmpty()) {
+                return ResponseEntity.badRequest().body(Map.of("message", "Тикер обязателен"));
+            }
+            Map<Long, Integer> lots = TaxLotEngine.parseLots(payload.get("lots"));
+            TaxLotEngine.Method method = lots != null && payload.get("method") == null
+                    ? TaxLotEngine.Method.SPECIFIC
+                    : TaxLotEngine.Method.parse(payload.get("method"));
+            if (!payload.containsKey("quantity") && lots == null) {
+                return ResponseEntity.badRequest().body(Map.of("message", "quantity обязателен"));
+            }
+            int quantity = payload.containsKey("quantity")
+                    ? ((Number) payload.get("quantity")).intValue()
+                    : lots.values().stream().mapToInt(Integer::intValue).sum();
+            BigDecimal exitPrice = payload.get("exitPrice") != null
+                    ? new BigDecimal(payload.get("exitPrice").toString())
+                    : null;
+            LocalDate exitDate = payload.get("exitDate") != null
+                    ? LocalDate.parse(payload.get("exitDate").toString())
+                    : LocalDate.now();
+
+            TaxLotEngine.LotBook book = taxLotEngine.book(user.getId(), portfolio.getId(), symbol);
+            return ResponseEntity.ok(taxLotEngine.preview(book, quantity, method, lots, exitPrice, exitDate));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка предпросмотра: " + e.getMessage()));
+        }
+    }
+
+    private User getAuthenticatedUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()) {
+            throw new RuntimeException("Пользователь не авторизован");
+        }
+        String username = authentication.getName();
+        return userService.findByUsername(username)
+                .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
+    }
+
+    private Portfolio getPortfolioForUser(Long portfolioId, User user) {
+        return portfolioRepository.findByIdAndUser(portfolioId, user)
+                .filter(portfolio -> portfolio.getIsActive() == null || Boolean.TRUE.equals(portfolio.getIsActive()))
+                .orElseThrow(() -> new RuntimeException("Портфель не найден или недоступен"));
+    }
+}
@@ -6,18 +6,39 @@ import com.example.diary.model.TradeClosure;
 import com.example.diary.model.FinancingEvent;
 import com.example.diary.model.User;
 import com.example.diary.model.FinancingEvent.EventType;
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.service.AnalyticsCache;
+import com.example.diary.service.FxRateService;
+import com.example.diary.service.FxRateService.Converter;
+import com.example.diary.service.PnlRollupService;
+import com.example.diary.service.RateScenarioEngine;
+import com.example.diary.service.TaxLotEngine;
 import com.example.diary.service.TradeService;
+import com.example.diary.service.imports.ImportFormat;
+import com.example.diary.service.imports.ImportResult;
+import com.example.diary.service.imports.TradeImportService;
+import com.example.diary.service.imports.ImportRowReader;
 import com.example.diary.repository.FinancingEventRepository;
 import com.example.diary.repository.TradeClosureRepository;
 import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.MonthlyPnlRow;
+import com.example.diary.repository.projection.OpenTradeLot;
+import com.example.diary.repository.projection.RateChangePoint;
+import com.example.diary.repository.projection.SymbolPnlRow;
+import com.example.diary.repository.projection.TradeJournalRow;
 import com.example.diary.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -55,22 +76,131 @@ public class TradeController {
     @Autowired
     private com.example.diary.repository.PortfolioRepository portfolioRepository;
 
+    @Autowired
+    private PnlRollupService pnlRollupService;
+
     @Autowired
     private UserService userService;
 
     @Autowired
     private PriceService priceService;
+
+    @Autowired
+    private FxRateService fxRateService;
+
+    @Autowired
+    private AnalyticsCache analyticsCache;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private TradeImportService tradeImportService;
+
+    @Autowired
+    private RateScenarioEngine rateScenarioEngine;
+
+    // Аналитика меняется только при записи (кэш сбрасывается событием), TTL — страховка
+    private static final Duration DATA_TTL = Duration.ofMinutes(30);
+    // Статистика содержит оценку по живым ценам
+    private static final Duration LIVE_PRICE_TTL = Duration.ofSeconds(60);
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 500;
+
+    /**
+     * Журнал сделок. Без параметров возвращает полный список (как раньше);
+     * если передан любой из limit/cursor/фильтров — страницу с keyset-курсором по (entryDate, id):
+     * {"items": [...], "nextCursor": "...", "hasMore": true}. Строки страницы — TradeJournalRow
+     * (хранимые колонки сделки, без вычисляемых полей и закрытий).
+     */
     @GetMapping
-    public ResponseEntity<List<Trade>> getAllTrades(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+    public ResponseEntity<?> getAllTrades(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                          @RequestParam(required = false) Integer limit,
+                                          @RequestParam(required = false) String cursor,
+                                          @RequestParam(required = false) String symbol,
+                                          @RequestParam(required = false) String status,
+                                          @RequestParam(required = false) String entryFrom,
+                                          @RequestParam(required = false) String entryTo,
+                                          @RequestParam(required = false) String exitFrom,
+                                          @RequestParam(required = false) String exitTo) {
         User user = getAuthenticatedUser();
-        List<Trade> trades;
         if (portfolioId != null) {
-            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
-            trades = tradeRepository.findByPortfolioIdAndPortfolioUser(portfolio.getId(), user);
+            getPortfolioForUser(portfolioId, user);
+        }
+
+        boolean paged = limit != null || cursor != null || symbol != null || status != null
+                || entryFrom != null || entryTo != null || exitFrom != null || exitTo != null;
+        if (!paged) {
+            List<Trade> trades = portfolioId != null
+                    ? tradeRepository.findByPortfolioIdAndPortfolioUser(portfolioId, user)
+                    : tradeRepository.findByPortfolioUser(user);
+            return ResponseEntity.ok(trades);
+        }
+
+        Boolean open;
+        if (status == null || status.isBlank() || "all".equalsIgnoreCase(status)) {
+            open = null;
+        } else if ("open".equalsIgnoreCase(status)) {
+            open = Boolean.TRUE;
+        } else if ("closed".equalsIgnoreCase(status)) {
+            open = Boolean.FALSE;
         } else {
-            trades = tradeRepository.findByPortfolioUser(user);
+            return ResponseEntity.badRequest().body(Map.of("message", "status должен быть open, closed или all"));
+        }
+
+        LocalDate cursorDate = null;
+        Long cursorId = null;
+        if (cursor != null && !cursor.isBlank()) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int sep = decoded.indexOf(':');
+                cursorDate = LocalDate.parse(decoded.substring(0, sep));
+                cursorId = Long.parseLong(decoded.substring(sep + 1));
+            } catch (RuntimeException e) {
+                return ResponseEntity.badRequest().body(Map.of("message", "Некорректный курсор"));
+            }
+        }
+
+        LocalDate entryFromDate;
+        LocalDate entryToDate;
+        LocalDate exitFromDate;
+        LocalDate exitToDate;
+        try {
+            entryFromDate = entryFrom != null ? LocalDate.parse(entryFrom) : null;
+            entryToDate = entryTo != null ? LocalDate.parse(entryTo) : null;
+            exitFromDate = exitFrom != null ? LocalDate.parse(exitFrom) : null;
+            exitToDate = exitTo != null ? LocalDate.parse(exitTo) : null;
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Даты должны быть в формате yyyy-MM-dd"));
+        }
+
+        int pageSize = Math.min(Math.max(limit != null ? limit : DEFAULT_PAGE_SIZE, 1), MAX_PAGE_SIZE);
+        String normalizedSymbol = symbol != null && !symbol.isBlank() ? symbol.trim().toUpperCase() : null;
+
+        List<Long> portfolioIds = portfolioId != null
+                ? List.of(portfolioId)
+                : portfolioRepository.findByUser(user).stream().map(Portfolio::getId).collect(Collectors.toList());
+
+        // Берём на одну строку больше, чтобы узнать, есть ли следующая страница, без COUNT(*)
+        List<TradeJournalRow> rows = tradeRepository.findJournalPage(portfolioIds, normalizedSymbol, open,
+                entryFromDate, entryToDate, exitFromDate, exitToDate, cursorDate, cursorId, pageSize + 1);
+        boolean hasMore = rows.size() > pageSize;
+        List<TradeJournalRow> items = hasMore ? rows.subList(0, pageSize) : rows;
+
+        String nextCursor = null;
+        if (hasMore) {
+            TradeJournalRow last = items.get(items.size() - 1);
+            nextCursor = Base64.getUrlEncoder().withoutPadding().encodeToString(
+                    (last.entryDate() + ":" + last.id()).getBytes(StandardCharsets.UTF_8));
         }
-        return ResponseEntity.ok(trades);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("items", items);
+        response.put("nextCursor", nextCursor);
+        response.put("hasMore", hasMore);
+        response.put("limit", pageSize);
+        return ResponseEntity.ok(response);
     }
 
     @PostMapping("/buy")
@@ -150,140 +280,63 @@ public class TradeController {
                 return ResponseEntity.badRequest().body(Map.of("message", "Список сделок пуст"));
             }
 
-            List<Trade> savedTrades = new ArrayList<>();
-            int importedCount = 0;
-            int errorCount = 0;
-            List<Map<String, String>> errors = new ArrayList<>();
-
-            for (int i = 0; i < tradesToImport.size(); i++) {
-                try {
-                    Map<String, Object> tradeData = tradesToImport.get(i);
-                    Trade trade = new Trade();
-                    trade.setPortfolio(portfolio);
-
-                    // Обязательные поля
-                    String symbol = (String) tradeData.get("symbol");
-                    if (symbol == null || symbol.trim().isEmpty()) {
-                        throw new IllegalArgumentException("Тикер не может быть пустым");
-                    }
-                    trade.setSymbol(symbol.trim().toUpperCase());
-
-                    // Цена входа
-                    Object entryPriceObj = tradeData.get("entryPrice");
-                    if (entryPriceObj == null) {
-                        throw new IllegalArgumentException("Цена входа не может быть пустой");
-                    }
-                    BigDecimal entryPrice;
-                    if (entryPriceObj instanceof String) {
-                        entryPrice = new BigDecimal((String) entryPriceObj);
-                    } else if (entryPriceObj instanceof Number) {
-                        entryPrice = BigDecimal.valueOf(((Number) entryPriceObj).doubleValue());
-                    } else {
-                        throw new IllegalArgumentException("Неверный формат цены входа");
-                    }
-                    trade.setEntryPrice(entryPrice);
-
-                    // Количество
-                    Object quantityObj = tradeData.get("quantity");
-                    if (quantityObj == null) {
-                        throw new IllegalArgumentException("Количество не может быть пустым");
-                    }
-                    Integer quantity;
-                    if (quantityObj instanceof String) {
-                        quantity = Integer.parseInt((String) quantityObj);
-                    } else if (quantityObj instanceof Number) {
-                        quantity = ((Number) quantityObj).intValue();
-                    } else {
-                        throw new IllegalArgumentException("Неверный формат количества");
-                    }
-                    trade.setQuantity(quantity);
-
-                    // Процент маржи
-                    Object marginAmountObj = tradeData.get("marginAmount");
-                    if (marginAmountObj == null) {
-                        throw new IllegalArgumentException("Процент маржи не может быть пустым");
-                    }
-                    BigDecimal marginAmount;
-                    if (marginAmountObj instanceof String) {
-                        marginAmount = new BigDecimal((String) marginAmountObj);
-                    } else if (marginAmountObj instanceof Number) {
-                        marginAmount = BigDecimal.valueOf(((Number) marginAmountObj).doubleValue());
-                    } else {
-                        throw new IllegalArgumentException("Неверный формат процента маржи");
-                    }
-                    trade.setMarginAmount(marginAmount);
+            ImportResult result = tradeImportService.importRows(portfolio, tradesToImport);
+            Map<String, Object> response = result.toResponse();
 
-                    // Дата входа
-                    Object entryDateObj = tradeData.get("entryDate");
-                    if (entryDateObj == null) {
-                        throw new IllegalArgumentException("Дата входа не может быть пустой");
-                    }
-                    LocalDate entryDate;
-                    if (entryDateObj instanceof String) {
-                        entryDate = LocalDate.parse((String) entryDateObj);
-                    } else {
-                        throw new IllegalArgumentException("Неверный формат даты входа");
-                    }
-                    trade.setEntryDate(entryDate);
+            if (result.getImportedCount() > 0) {
+                return ResponseEntity.ok(response);
+            } else {
+                return ResponseEntity.badRequest().body(response);
+            }
+        } catch (Exception e) {
+            logger.error("Ошибка при массовом импорте сделок", e);
+            Map<String, String> error = new HashMap<>();
+            error.put("message", "Ошибка массового импорта сделок: " + e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        }
+    }
 
-                    // Опциональные поля
-                    // Заметки
-                    if (tradeData.containsKey("notes")) {
-                        trade.setNotes((String) tradeData.get("notes"));
-                    }
+    /**
+     * Потоковый импорт сделок из тела запроса: CSV (text/csv), NDJSON (application/x-ndjson)
+     * или JSON в формате /trades/bulk-import (application/json).
+     * Тело читается построчно и пишется чанками, файл целиком в память не загружается.
+     * marginAmount задаёт процент маржи для файлов без такой колонки (например, rus_spot_import.csv).
+     * Номер строки в ошибках — номер строки файла.
+     */
+    @PostMapping("/import")
+    public ResponseEntity<?> streamImportTrades(HttpServletRequest request,
+                                                @RequestParam(required = false) String format,
+                                                @RequestParam(required = false) String marginAmount,
+                                                @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        if (portfolioId == null) {
+            return ResponseEntity.badRequest().body(Map.of("message", "Не указан портфель для импорта сделок"));
+        }
+        try {
+            User user = getAuthenticatedUser();
+            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
+            ImportFormat importFormat = ImportFormat.resolve(format, request.getContentType());
+            Charset charset = request.getCharacterEncoding() != null
+                    ? Charset.forName(request.getCharacterEncoding()) : StandardCharsets.UTF_8;
 
-                    // Дата выхода (если есть)
-                    if (tradeData.containsKey("exitDate") && tradeData.get("exitDate") != null && !((String) tradeData.get("exitDate")).isEmpty()) {
-                        LocalDate exitDate = LocalDate.parse((String) tradeData.get("exitDate"));
-                        trade.setExitDate(exitDate);
-
-                        // Если есть дата выхода, должна быть и цена выхода
-                        if (tradeData.containsKey("exitPrice") && tradeData.get("exitPrice") != null) {
-                            Object exitPriceObj = tradeData.get("exitPrice");
-                            BigDecimal exitPrice;
-                            if (exitPriceObj instanceof String) {
-                                if (!((String) exitPriceObj).isEmpty()) {
-                                    exitPrice = new BigDecimal((String) exitPriceObj);
-                                    trade.setExitPrice(exitPrice);
-                                }
-                            } else if (exitPriceObj instanceof Number) {
-                                exitPrice = BigDecimal.valueOf(((Number) exitPriceObj).doubleValue());
-                                trade.setExitPrice(exitPrice);
-                            }
-                        }
-                    }
-                    // Сохраняем сделку
-                    Trade savedTrade = tradeRepository.save(trade);
-                    savedTrades.add(savedTrade);
-                    importedCount++;
-                    logger.info("Импортирована сделка с ID: {}", savedTrade.getId());
-                } catch (Exception e) {
-                    errorCount++;
-                    Map<String, String> error = new HashMap<>();
-                    error.put("row", String.valueOf(i + 1));
-                    error.put("message", e.getMessage());
-                    errors.add(error);
-                    logger.error("Ошибка при импорте строки {}: {}", i + 1, e.getMessage());
-                }
+            Map<String, Object> defaults = new HashMap<>();
+            if (marginAmount != null && !marginAmount.isBlank()) {
+                defaults.put("marginAmount", marginAmount.trim());
             }
 
-            Map<String, Object> response = new HashMap<>();
-            response.put("importedCount", importedCount);
-            response.put("errorCount", errorCount);
-            if (!errors.isEmpty()) {
-                response.put("errors", errors);
+            ImportResult result;
+            try (ImportRowReader reader = ImportRowReader.forTrades(request.getInputStream(), charset, importFormat)) {
+                result = tradeImportService.importStream(portfolio, reader, defaults);
             }
 
-            if (importedCount > 0) {
+            Map<String, Object> response = result.toResponse();
+            if (result.getImportedCount() > 0) {
                 return ResponseEntity.ok(response);
             } else {
                 return ResponseEntity.badRequest().body(response);
             }
         } catch (Exception e) {
-            logger.error("Ошибка при массовом импорте сделок", e);
-            Map<String, String> error = new HashMap<>();
-            error.put("message", "Ошибка массового импорта сделок: " + e.getMessage());
-            return ResponseEntity.badRequest().body(error);
+            logger.error("Ошибка при потоковом импорте сделок", e);
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка импорта сделок: " + e.getMessage()));
         }
     }
 
@@ -341,7 +394,6 @@ public class TradeController {
                 .orElseThrow(() -> new RuntimeException("Сделка не найдена"));
 
             FinancingEvent event = new FinancingEvent();
-            event.setTrade(trade);
 
             String typeStr = payload.getOrDefault("eventType", EventType.RATE_CHANGE.name()).toString();
             EventType eventType = EventType.valueOf(typeStr.toUpperCase());
@@ -364,23 +416,9 @@ public class TradeController {
                 event.setNotes(payload.get("notes").toString());
             }
 
-            FinancingEvent saved = financingEventRepository.save(event);
-
-            // Применяем изменения к сделке (быстрый пересчёт)
-            if (eventType == EventType.REPAYMENT && event.getAmountChange() != null) {
-                BigDecimal borrowed = trade.getBorrowedAmount() == null ? BigDecimal.ZERO : trade.getBorrowedAmount();
-                BigDecimal updated = borrowed.subtract(event.getAmountChange());
-                if (updated.compareTo(BigDecimal.ZERO) < 0) updated = BigDecimal.ZERO;
-                trade.setBorrowedAmount(updated.setScale(2, RoundingMode.HALF_UP));
-            } else if (eventType == EventType.COLLATERAL_TOPUP && event.getAmountChange() != null) {
-                BigDecimal collateral = trade.getCollateralAmount() == null ? BigDecimal.ZERO : trade.getCollateralAmount();
-                BigDecimal updated = collateral.add(event.getAmountChange());
-                trade.setCollateralAmount(updated.setScale(2, RoundingMode.HALF_UP));
-            } else if (eventType == EventType.RATE_CHANGE && event.getRate() != null) {
-                trade.setMarginAmount(event.getRate().setScale(4, RoundingMode.HALF_UP));
-            }
-
-            tradeRepository.save(trade);
+            // событие сохраняется и применяется к сделке (быстрый пересчёт) в одной транзакции со сводками PnL
+            FinancingEvent saved = tradeService.addFinancingEvent(user, trade.getId(), event);
+            trade = saved.getTrade();
 
             return ResponseEntity.ok(Map.of(
                 "event", saved,
@@ -423,7 +461,7 @@ public class TradeController {
             if (portfolioId != null && !trade.getPortfolio().getId().equals(portfolioId)) {
                 return ResponseEntity.status(403).build();
             }
-            tradeRepository.delete(trade);
+            tradeService.deleteTrade(user, trade.getId());
             return ResponseEntity.ok().build();
         } catch (Exception e) {
             logger.error("Ошибка при удалении сделки", e);
@@ -433,202 +471,289 @@ public class TradeController {
         }
     }
     
-    // Аналитика на основе реальных данных
+    // Аналитика на основе реальных данных; без X-Portfolio-ID суммы — в валюте currency
     @GetMapping("/analytics/summary")
     public ResponseEntity<?> getAnalyticsSummary(
             @RequestParam(required = false) String startDate,
             @RequestParam(required = false) String endDate,
+            @RequestParam(required = false) String currency,
             @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
         User user = getAuthenticatedUser();
-        List<Trade> allTrades;
-        if (portfolioId != null) {
-            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
-            allTrades = tradeRepository.findByPortfolioIdAndPortfolioUser(portfolio.getId(), user);
-        } else {
-            allTrades = tradeRepository.findByPortfolioUser(user);
-        }
-        
-        // Фильтрация по дате, если указаны параметры
-        if (startDate != null || endDate != null) {
-            LocalDate start = startDate != null ? 
-                LocalDate.parse(startDate) : LocalDate.of(1900, 1, 1);
-            LocalDate end = endDate != null ? 
-                LocalDate.parse(endDate) : LocalDate.now();
-            
-            allTrades = allTrades.stream()
-                .filter(trade -> {
-                    // Фильтруем по дате входа для открытых сделок или по дате выхода для закрытых
-                    LocalDate date = trade.getExitDate() != null ? trade.getExitDate() : trade.getEntryDate();
-                    return !date.isBefore(start) && !date.isAfter(end);
-                })
-                .collect(Collectors.toList());
+        String reportCurrency;
+        try {
+            reportCurrency = reportCurrency(portfolioId, currency);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
         }
-        
-        // Считаем количество сделок
-        int totalTrades = allTrades.size();
-        
-        // Считаем количество прибыльных сделок (только для закрытых)
-        List<Trade> closedTrades = allTrades.stream()
-            .filter(trade -> trade.getExitDate() != null)
-            .collect(Collectors.toList());
-        
-        int winningTrades = 0;
-        double totalProfit = 0.0;
-        
-        for (Trade trade : closedTrades) {
-            Double profit = trade.getProfit();
-            if (profit != null) {
-                if (profit > 0) {
-                    winningTrades++;
-                }
-                totalProfit += profit;
-            }
+        Object summary = analyticsCache.get(user.getId(), portfolioId, "trades/analytics/summary",
+                cacheParams(startDate, endDate, reportCurrency), DATA_TTL,
+                () -> buildAnalyticsSummary(user, startDate, endDate, portfolioId, reportCurrency));
+        return ResponseEntity.ok(summary);
+    }
+
+    /**
+     * Сводка по тем же помесячным сводкам реализаций, что и /analytics/monthly и /analytics/symbols:
+     * результат, проценты и выигрыши считаются по реализациям (частичные закрытия лота входят),
+     * период — с точностью до месяца. В своей валюте totalProfit равен сумме строк обоих отчётов;
+     * в сводной валюте месяц пересчитывается по курсу на свой последний день, как в /analytics/monthly.
+     * totalTrades — число сделок, закрытых (открытые — по дате входа) в самом периоде.
+     */
+    private Map<String, Object> buildAnalyticsSummary(User user, String startDate, String endDate, Long portfolioId,
+                                                      String reportCurrency) {
+        LocalDate start = startDate != null ?
+            LocalDate.parse(startDate) : LocalDate.of(1900, 1, 1);
+        LocalDate end = endDate != null ?
+            LocalDate.parse(endDate) : LocalDate.now();
+
+        List<Long> portfolioIds = analyticsPortfolioIds(user, portfolioId);
+        List<MonthlyPnlRow> rows = reportCurrency != null
+                ? convertedMonthly(user, reportCurrency, start, end)
+                : pnlRollupService.monthly(portfolioIds, start, end);
+
+        BigDecimal realized = BigDecimal.ZERO;
+        BigDecimal gross = BigDecimal.ZERO;
+        BigDecimal interest = BigDecimal.ZERO;
+        long closes = 0;
+        long winning = 0;
+        for (MonthlyPnlRow row : rows) {
+            realized = realized.add(row.realizedPnl());
+            gross = gross.add(row.grossPnl());
+            interest = interest.add(row.interestPaid());
+            closes += row.closeCount() != null ? row.closeCount() : 0;
+            winning += row.winningCount() != null ? row.winningCount() : 0;
         }
-        
-        // Рассчитываем процент успешных сделок
-        double winRate = closedTrades.isEmpty() ? 0 : 
-            Math.round((double) winningTrades / closedTrades.size() * 10000) / 100.0;
-        
+        long totalTrades = portfolioIds.isEmpty() ? 0 : tradeRepository.countInPeriod(portfolioIds, start, end);
+
+        // Рассчитываем процент успешных реализаций
+        double winRate = closes == 0 ? 0 :
+            Math.round((double) winning / closes * 10000) / 100.0;
+
         Map<String, Object> summary = new HashMap<>();
         summary.put("totalTrades", totalTrades);
-        summary.put("closedTrades", closedTrades.size());
-        summary.put("winningTrades", winningTrades);
+        summary.put("closedTrades", closes);
+        summary.put("winningTrades", winning);
         summary.put("winRate", winRate);
-        summary.put("totalProfit", Math.round(totalProfit * 100) / 100.0);
-        
-        return ResponseEntity.ok(summary);
+        summary.put("totalProfit", round(realized.doubleValue(), 2));
+        summary.put("grossProfit", round(gross.doubleValue(), 2));
+        summary.put("interest", round(interest.doubleValue(), 2));
+        if (reportCurrency != null) {
+            summary.put("currency", reportCurrency);
+        }
+
+        return summary;
     }
     
     @GetMapping("/analytics/monthly")
     public ResponseEntity<?> getMonthlyAnalytics(
             @RequestParam(required = false) String startDate,
             @RequestParam(required = false) String endDate,
+            @RequestParam(required = false) String currency,
             @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
         User user = getAuthenticatedUser();
-        List<Trade> allTrades;
-        if (portfolioId != null) {
-            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
-            allTrades = tradeRepository.findByPortfolioIdAndPortfolioUser(portfolio.getId(), user);
-        } else {
-            allTrades = tradeRepository.findByPortfolioUser(user);
+        String reportCurrency;
+        try {
+            reportCurrency = reportCurrency(portfolioId, currency);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
         }
-        
+        Object result = analyticsCache.get(user.getId(), portfolioId, "trades/analytics/monthly",
+                cacheParams(startDate, endDate, reportCurrency), DATA_TTL,
+                () -> buildMonthlyAnalytics(user, startDate, endDate, portfolioId, reportCurrency));
+        return ResponseEntity.ok(result);
+    }
+
+    private List<Map<String, Object>> buildMonthlyAnalytics(User user, String startDate, String endDate, Long portfolioId,
+                                                            String reportCurrency) {
+
         // Фильтрация по дате, если указаны параметры
         LocalDate start = startDate != null ? 
             LocalDate.parse(startDate) : LocalDate.of(LocalDate.now().getYear() - 1, 1, 1);
         LocalDate end = endDate != null ? 
             LocalDate.parse(endDate) : LocalDate.now();
         
-        // Создаем карту для хранения данных по месяцам
-        Map<String, Double> monthlyData = new HashMap<>();
-        
         // Подготавливаем список всех месяцев в диапазоне
+        Map<String, Map<String, Object>> monthlyData = new HashMap<>();
         LocalDate current = start.withDayOfMonth(1);
         DateTimeFormatter monthFormatter = DateTimeFormatter.ofPattern("yyyy-MM");
         
         while (!current.isAfter(end)) {
-            monthlyData.put(current.format(monthFormatter), 0.0);
+            monthlyData.put(current.format(monthFormatter), monthEntry(current.format(monthFormatter), null));
             current = current.plusMonths(1);
         }
         
-        // Заполняем данные по закрытым сделкам
-        for (Trade trade : allTrades) {
-            if (trade.getExitDate() != null) {
-                // Используем дату закрытия сделки
-                LocalDate exitDate = trade.getExitDate();
-                if (!exitDate.isBefore(start) && !exitDate.isAfter(end)) {
-                    String month = exitDate.format(monthFormatter);
-                    Double profit = trade.getProfit();
-                    if (profit != null) {
-                        monthlyData.put(month, monthlyData.getOrDefault(month, 0.0) + profit);
-                    }
-                }
-            }
+        // Реализованный результат берётся из помесячных сводок, а не пересчитывается по всем сделкам
+        List<MonthlyPnlRow> rows = reportCurrency != null
+                ? convertedMonthly(user, reportCurrency, start, end)
+                : pnlRollupService.monthly(analyticsPortfolioIds(user, portfolioId), start, end);
+        for (MonthlyPnlRow row : rows) {
+            String month = row.monthStart().format(monthFormatter);
+            monthlyData.put(month, monthEntry(month, row));
         }
         
-        // Формируем список результатов по месяцам
-        List<Map<String, Object>> result = new ArrayList<>();
-        for (Map.Entry<String, Double> entry : monthlyData.entrySet()) {
-            Map<String, Object> monthData = new HashMap<>();
-            monthData.put("month", entry.getKey());
-            monthData.put("profit", Math.round(entry.getValue() * 100) / 100.0);
-            result.add(monthData);
-        }
+        List<Map<String, Object>> result = new ArrayList<>(monthlyData.values());
         
         // Сортируем по месяцам
         result.sort((a, b) -> ((String) a.get("month")).compareTo((String) b.get("month")));
         
-        return ResponseEntity.ok(result);
+        return result;
+    }
+
+    /**
+     * Помесячные сводки всех портфелей в валюте currency: сводки читаются по группам портфелей одной валюты,
+     * месяц пересчитывается по курсу на свой последний день (текущий — на сегодня), затем группы складываются.
+     */
+    private List<MonthlyPnlRow> convertedMonthly(User user, String currency, LocalDate start, LocalDate end) {
+        TreeMap<LocalDate, MonthlyPnlRow> byMonth = new TreeMap<>();
+        LocalDate today = LocalDate.now();
+        portfolioIdsByCurrency(user).forEach((portfolioCurrency, ids) -> {
+            List<MonthlyPnlRow> rows = pnlRollupService.monthly(ids, start, end);
+            List<LocalDate> monthEnds = rows.stream()
+                    .map(r -> r.monthStart().plusMonths(1).minusDays(1))
+                    .map(d -> d.isAfter(today) ? today : d)
+                    .toList();
+            double[] rates = fxRateService.rates(portfolioCurrency, currency, monthEnds);
+            for (int i = 0; i < rows.size(); i++) {
+                byMonth.merge(rows.get(i).monthStart(), rows.get(i).scaled(rates[i]), MonthlyPnlRow::plus);
+            }
+        });
+        return new ArrayList<>(byMonth.values());
+    }
+
+    private Map<String, Object> monthEntry(String month, MonthlyPnlRow row) {
+        Map<String, Object> monthData = new HashMap<>();
+        monthData.put("month", month);
+        monthData.put("profit", row != null ? round(row.realizedPnl().doubleValue(), 2) : 0.0);
+        monthData.put("grossProfit", row != null ? round(row.grossPnl().doubleValue(), 2) : 0.0);
+        monthData.put("interest", row != null ? round(row.interestPaid().doubleValue(), 2) : 0.0);
+        monthData.put("count", row != null ? row.closeCount() : 0L);
+        return monthData;
     }
     
     @GetMapping("/analytics/symbols")
     public ResponseEntity<?> getSymbolAnalytics(
             @RequestParam(required = false) String startDate,
             @RequestParam(required = false) String endDate,
+            @RequestParam(required = false) String currency,
             @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
         User user = getAuthenticatedUser();
-        List<Trade> allTrades;
-        if (portfolioId != null) {
-            Portfolio portfolio = getPortfolioForUser(portfolioId, user);
-            allTrades = tradeRepository.findByPortfolioIdAndPortfolioUser(portfolio.getId(), user);
-        } else {
-            allTrades = tradeRepository.findByPortfolioUser(user);
-        }
-        
-        // Фильтрация по дате, если указаны параметры
-        if (startDate != null || endDate != null) {
-            LocalDate start = startDate != null ? 
-                LocalDate.parse(startDate) : LocalDate.of(1900, 1, 1);
-            LocalDate end = endDate != null ? 
-                LocalDate.parse(endDate) : LocalDate.now();
-            
-            allTrades = allTrades.stream()
-                .filter(trade -> {
-                    // Для закрытых сделок используем дату закрытия, для открытых - дату открытия
-                    LocalDate date = trade.getExitDate() != null ? trade.getExitDate() : trade.getEntryDate();
-                    return !date.isBefore(start) && !date.isAfter(end);
-                })
-                .collect(Collectors.toList());
-        }
-        
-        // Группируем данные по символам
-        Map<String, Double> symbolData = new HashMap<>();
-        Map<String, Integer> symbolCount = new HashMap<>();
-        
-        for (Trade trade : allTrades) {
-            String symbol = trade.getSymbol();
-            symbolCount.put(symbol, symbolCount.getOrDefault(symbol, 0) + 1);
-            
-            if (trade.getExitDate() != null) {
-                Double profit = trade.getProfit();
-                if (profit != null) {
-                    symbolData.put(symbol, symbolData.getOrDefault(symbol, 0.0) + profit);
-                }
-            }
+        String reportCurrency;
+        try {
+            reportCurrency = reportCurrency(portfolioId, currency);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
         }
+        Object result = analyticsCache.get(user.getId(), portfolioId, "trades/analytics/symbols",
+                cacheParams(startDate, endDate, reportCurrency), DATA_TTL,
+                () -> buildSymbolAnalytics(user, startDate, endDate, portfolioId, reportCurrency));
+        return ResponseEntity.ok(result);
+    }
+
+    private List<Map<String, Object>> buildSymbolAnalytics(User user, String startDate, String endDate, Long portfolioId,
+                                                           String reportCurrency) {
+
+        // Фильтрация по дате закрытия (с точностью до месяца сводки)
+        LocalDate start = startDate != null ? 
+            LocalDate.parse(startDate) : LocalDate.of(1900, 1, 1);
+        LocalDate end = endDate != null ? 
+            LocalDate.parse(endDate) : LocalDate.now();
         
-        // Формируем результат
+        // Формируем результат по сводкам тикеров
+        List<SymbolPnlRow> rows = reportCurrency != null
+                ? convertedBySymbol(user, reportCurrency, start, end)
+                : pnlRollupService.bySymbol(analyticsPortfolioIds(user, portfolioId), start, end);
         List<Map<String, Object>> result = new ArrayList<>();
-        for (String symbol : symbolData.keySet()) {
+        for (SymbolPnlRow row : rows) {
             Map<String, Object> data = new HashMap<>();
-            data.put("symbol", symbol);
-            data.put("profit", Math.round(symbolData.get(symbol) * 100) / 100.0);
-            data.put("count", symbolCount.get(symbol));
+            data.put("symbol", row.symbol());
+            data.put("profit", round(row.realizedPnl().doubleValue(), 2));
+            data.put("grossProfit", round(row.grossPnl().doubleValue(), 2));
+            data.put("interest", round(row.interestPaid().doubleValue(), 2));
+            data.put("count", row.closeCount());
+            data.put("winning", row.winningCount());
+            data.put("closedQuantity", row.closedQuantity());
             result.add(data);
         }
         
         // Сортируем по прибыли (по убыванию)
         result.sort((a, b) -> Double.compare((Double) b.get("profit"), (Double) a.get("profit")));
         
-        return ResponseEntity.ok(result);
+        return result;
+    }
+
+    // Сводка за диапазон месяцев без дат внутри: группы портфелей одной валюты — по сегодняшнему курсу
+    private List<SymbolPnlRow> convertedBySymbol(User user, String currency, LocalDate start, LocalDate end) {
+        Map<String, SymbolPnlRow> bySymbol = new LinkedHashMap<>();
+        Converter converter = fxRateService.converter(currency, LocalDate.now());
+        portfolioIdsByCurrency(user).forEach((portfolioCurrency, ids) -> {
+            double rate = converter.factor(portfolioCurrency).doubleValue();
+            for (SymbolPnlRow row : pnlRollupService.bySymbol(ids, start, end)) {
+                bySymbol.merge(row.symbol(), row.scaled(rate), SymbolPnlRow::plus);
+            }
+        });
+        return new ArrayList<>(bySymbol.values());
+    }
+
+    private List<Long> analyticsPortfolioIds(User user, Long portfolioId) {
+        if (portfolioId != null) {
+            return List.of(getPortfolioForUser(portfolioId, user).getId());
+        }
+        return portfolioRepository.findByUser(user).stream().map(Portfolio::getId).collect(Collectors.toList());
+    }
+
+    // Сводная валюта ответа без X-Portfolio-ID; с портфелем суммы остаются в его валюте (null)
+    private String reportCurrency(Long portfolioId, String currency) {
+        return portfolioId == null ? fxRateService.reportingCurrency(currency) : null;
+    }
+
+    private Map<Long, String> portfolioCurrencies(User user) {
+        Map<Long, String> currencies = new HashMap<>();
+        for (Portfolio portfolio : portfolioRepository.findByUser(user)) {
+            currencies.put(portfolio.getId(), currencyOf(portfolio));
+        }
+        return currencies;
+    }
+
+    private Map<String, List<Long>> portfolioIdsByCurrency(User user) {
+        return portfolioRepository.findByUser(user).stream()
+                .collect(Collectors.groupingBy(this::currencyOf, TreeMap::new,
+                        Collectors.mapping(Portfolio::getId, Collectors.toList())));
+    }
+
+    private String currencyOf(Portfolio portfolio) {
+        return portfolio.getCurrency() != null ? portfolio.getCurrency() : FxRateService.BASE_CURRENCY;
+    }
+
+    /**
+     * Полная пересборка сводок реализованного PnL — на случай ручной правки данных в обход API.
+     */
+    @PostMapping("/analytics/rollups/rebuild")
+    public ResponseEntity<?> rebuildPnlRollups(
+            @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+        try {
+            User user = getAuthenticatedUser();
+            List<Long> portfolioIds = analyticsPortfolioIds(user, portfolioId);
+            int realizations = 0;
+            for (Long id : portfolioIds) {
+                realizations += pnlRollupService.rebuild(id);
+                publishTradesChanged(user, id);
+            }
+            return ResponseEntity.ok(Map.of("portfolios", portfolioIds.size(), "realizations", realizations));
+        } catch (Exception e) {
+            logger.error("Ошибка при пересборке сводок PnL", e);
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка пересборки сводок: " + e.getMessage()));
+        }
     }
 
     @PostMapping("/update-interest-rates")
-    public ResponseEntity<?> updateInterestRates(@RequestBody Map<String, Object> request) {
+    public ResponseEntity<?> updateInterestRates(@RequestBody Map<String, Object> request,
+                                                 @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
         try {
             logger.info("Получен запрос на обновление процентных ставок");
             
             User user = getAuthenticatedUser();
+            if (portfolioId != null) {
+                getPortfolioForUser(portfolioId, user);
+            }
 
             @SuppressWarnings("unchecked")
             List<Map<String, Object>> rateChanges = (List<Map<String, Object>>) request.get("rateChanges");
@@ -638,49 +763,34 @@ public class TradeController {
                 return ResponseEntity.badRequest().body(Map.of("message", "Список изменений ставок пуст"));
             }
             
-            // Получаем все открытые сделки
-            List<Trade> openTrades = tradeRepository.findByPortfolioUser(user).stream()
-                .filter(trade -> trade.getExitDate() == null)
-                .collect(Collectors.toList());
-            
-            if (applyToOpenTrades != null && applyToOpenTrades && !openTrades.isEmpty()) {
-                // Находим самую последнюю ставку
-                @SuppressWarnings("unchecked")
-                Map<String, Object> latestRateChange = rateChanges.stream()
-                    .max((a, b) -> ((String) a.get("date")).compareTo((String) b.get("date")))
-                    .orElse(null);
-                
-                if (latestRateChange != null) {
-                    Object rateObj = latestRateChange.get("rate");
-                    BigDecimal newRate;
-                    
+            if (applyToOpenTrades != null && applyToOpenTrades) {
+                // Дата -> ставка; при повторе даты берётся последнее значение из списка
+                SortedMap<LocalDate, BigDecimal> changes = new TreeMap<>();
+                for (Map<String, Object> change : rateChanges) {
+                    Object rateObj = change.get("rate");
+                    Object dateObj = change.get("date");
+                    if (rateObj == null || dateObj == null) {
+                        return ResponseEntity.badRequest().body(Map.of("message", "У изменения ставки должны быть дата и ставка"));
+                    }
+                    BigDecimal rate;
                     if (rateObj instanceof Number) {
-                        newRate = BigDecimal.valueOf(((Number) rateObj).doubleValue());
+                        rate = BigDecimal.valueOf(((Number) rateObj).doubleValue());
                     } else {
-                        newRate = new BigDecimal(rateObj.toString());
+                        rate = new BigDecimal(rateObj.toString());
                     }
-                    newRate = newRate.setScale(4, RoundingMode.HALF_UP);
-                    
-                    // Обновляем ставки во всех открытых сделках
-                    List<Trade> updatedTrades = new ArrayList<>();
-                    for (Trade trade : openTrades) {
-                        trade.setMarginAmount(newRate);
-                        Trade savedTrade = tradeRepository.save(trade);
-                        updatedTrades.add(savedTrade);
-                    }
-                    
-                    logger.info("Обновлены ставки в {} открытых сделках на {}", 
-                               updatedTrades.size(), newRate);
-                    
-                    Map<String, Object> response = new HashMap<>();
-                    response.put("success", true);
-                    response.put("updatedTrades", updatedTrades.size());
-                    response.put("newRate", newRate);
-                    response.put("message", String.format("Ставка %s%% применена к %d открытым сделкам", 
-                                                        newRate, updatedTrades.size()));
-                    
-                    return ResponseEntity.ok(response);
+                    changes.put(LocalDate.parse(dateObj.toString().substring(0, Math.min(10, dateObj.toString().length()))),
+                            rate.setScale(4, RoundingMode.HALF_UP));
                 }
+
+                Map<String, Object> response = tradeService.applyRateChanges(user, portfolioId, changes);
+                int updated = (Integer) response.get("updatedTrades");
+                logger.info("Обновлены ставки в {} открытых сделках на {}, событий RATE_CHANGE: {}",
+                           updated, response.get("newRate"), response.get("recordedEvents"));
+
+                response.put("success", true);
+                response.put("message", String.format("Ставка %s%% применена к %d открытым сделкам",
+                                                    response.get("newRate"), updated));
+                return ResponseEntity.ok(response);
             }
             
             // Если не нужно применять к сделкам, просто возвращаем успех
@@ -699,46 +809,94 @@ public class TradeController {
         }
     }
 
+    /**
+     * Влияние плавающей ставки на открытые позиции.
+     * rateChanges и scenarios[{name, rateChanges}] — детерминированные траектории (уровень ставки с даты);
+     * simulation{paths, keyRate, volatility, ...} — Монте-Карло по ключевой ставке с распределением стоимости.
+     */
     @PostMapping("/analytics/floating-rates-impact")
-    public ResponseEntity<?> getFloatingRatesImpact(@RequestBody Map<String, Object> request) {
+    public ResponseEntity<?> getFloatingRatesImpact(@RequestBody Map<String, Object> request,
+                                                    @RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
         try {
             @SuppressWarnings("unchecked")
             List<Map<String, Object>> rateChanges = (List<Map<String, Object>>) request.get("rateChanges");
-            
-            if (rateChanges == null || rateChanges.isEmpty()) {
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> scenarios = (List<Map<String, Object>>) request.get("scenarios");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> simulation = (Map<String, Object>) request.get("simulation");
+
+            boolean hasRateChanges = rateChanges != null && !rateChanges.isEmpty();
+            if (!hasRateChanges && (scenarios == null || scenarios.isEmpty()) && simulation == null) {
                 return ResponseEntity.badRequest().body(Map.of("message", "Список изменений ставок пуст"));
             }
 
             User user = getAuthenticatedUser();
-            List<Trade> openTrades = tradeRepository.findByPortfolioUser(user).stream()
-                .filter(trade -> trade.getExitDate() == null)
-                .collect(Collectors.toList());
-            
+            if (portfolioId != null) {
+                getPortfolioForUser(portfolioId, user);
+            }
+            int horizonDays = intParam(request.get("horizonDays"), 365);
+            if (horizonDays < 1 || horizonDays > RateScenarioEngine.MAX_HORIZON_DAYS) {
+                return ResponseEntity.badRequest().body(Map.of("message",
+                        "Горизонт должен быть от 1 до " + RateScenarioEngine.MAX_HORIZON_DAYS + " дней"));
+            }
+
+            LocalDate today = LocalDate.now();
+            List<OpenTradeLot> openLots = tradeRepository.findOpenLots(user, portfolioId);
+            Map<Long, RateChangePoint> latestRateChange = latestRateChanges(openLots, today);
+
             // Рассчитываем влияние изменения ставок на открытые позиции
             double totalInvested = 0.0;
             double totalInterestOld = 0.0;
+            List<RateScenarioEngine.Lot> lots = new ArrayList<>(openLots.size());
+            for (OpenTradeLot lot : openLots) {
+                totalInvested += safeMul(lot.entryPrice(), lot.quantity());
 
-            for (Trade trade : openTrades) {
-                Double investment = trade.getTotalCost();
-                if (investment != null) {
-                    totalInvested += investment;
+                Double dailyInterest = dailyInterestOf(lot, latestRateChange.get(lot.id()));
+                if (dailyInterest != null && lot.entryDate() != null) {
+                    long daysHeld = ChronoUnit.DAYS.between(lot.entryDate(), today);
+                    totalInterestOld += dailyInterest * daysHeld;
                 }
 
-                Double dailyInterest = trade.getDailyInterestAmount();
-                if (dailyInterest != null && trade.getEntryDate() != null) {
-                    long daysHeld = ChronoUnit.DAYS.between(trade.getEntryDate(), LocalDate.now());
-                    totalInterestOld += dailyInterest * daysHeld;
+                BigDecimal principal = principalOf(lot);
+                BigDecimal rate = rateOf(lot, latestRateChange.get(lot.id()));
+                if (principal != null && rate != null) {
+                    lots.add(new RateScenarioEngine.Lot(lot.id(), lot.symbol(), principal.doubleValue(), rate.doubleValue()));
                 }
             }
-            
-            Map<String, Object> impact = new HashMap<>();
-            impact.put("openTrades", openTrades.size());
+
+            Map<String, Object> impact = new LinkedHashMap<>();
+            impact.put("openTrades", openLots.size());
             impact.put("totalInvested", Math.round(totalInvested * 100) / 100.0);
             impact.put("totalInterestCurrent", Math.round(totalInterestOld * 100) / 100.0);
-            impact.put("rateChangesCount", rateChanges.size());
-            
+            impact.put("rateChangesCount", hasRateChanges ? rateChanges.size() : 0);
+            impact.put("asOf", today);
+            impact.put("horizonDays", horizonDays);
+
+            double baseline = rateScenarioEngine.baselineCost(lots, horizonDays);
+            impact.put("projectedCostCurrentRates", round(baseline));
+
+            List<Map<String, Object>> scenarioResults = new ArrayList<>();
+            if (hasRateChanges) {
+                scenarioResults.add(scenarioResult("Заданные изменения", rateChanges, lots, today, horizonDays, baseline));
+            }
+            if (scenarios != null) {
+                for (Map<String, Object> scenario : scenarios) {
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Object>> changes = (List<Map<String, Object>>) scenario.get("rateChanges");
+                    String name = scenario.get("name") != null ? scenario.get("name").toString() : "Сценарий " + (scenarioResults.size() + 1);
+                    scenarioResults.add(scenarioResult(name, changes != null ? changes : List.of(), lots, today, horizonDays, baseline));
+                }
+            }
+            impact.put("scenarios", scenarioResults);
+
+            if (simulation != null && !lots.isEmpty()) {
+                impact.put("simulation", rateScenarioEngine.simulate(lots, simulationOf(simulation, lots), horizonDays));
+            }
+
             return ResponseEntity.ok(impact);
-            
+
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
         } catch (Exception e) {
             logger.error("Ошибка при расчете влияния плавающих ставок", e);
             Map<String, String> error = new HashMap<>();
@@ -747,6 +905,78 @@ public class TradeController {
         }
     }
 
+    private Map<String, Object> scenarioResult(String name, List<Map<String, Object>> rateChanges,
+                                               List<RateScenarioEngine.Lot> lots, LocalDate today,
+                                               int horizonDays, double baseline) {
+        SortedMap<LocalDate, Double> changes = new TreeMap<>();
+        for (Map<String, Object> change : rateChanges) {
+            Object rateObj = change.get("rate");
+            Object dateObj = change.get("date");
+            if (rateObj == null || dateObj == null) {
+                throw new IllegalArgumentException("У изменения ставки должны быть дата и ставка");
+            }
+            String date = dateObj.toString();
+            changes.put(LocalDate.parse(date.substring(0, Math.min(10, date.length()))), doubleParam(rateObj, 0));
+        }
+        double cost = rateScenarioEngine.scenarioCost(lots, changes, today, horizonDays);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", name);
+        result.put("rateChangesCount", changes.size());
+        result.put("projectedCost", round(cost));
+        result.put("deltaVsCurrent", round(cost - baseline));
+        return result;
+    }
+
+    /**
+     * Параметры Монте-Карло. По умолчанию стартовая ключевая ставка — средневзвешенная ставка лотов,
+     * долгосрочный уровень равен стартовому, волатильность 2 п.п. в год, возврат к среднему 0.5.
+     */
+    private RateScenarioEngine.Simulation simulationOf(Map<String, Object> params, List<RateScenarioEngine.Lot> lots) {
+        double principalSum = 0;
+        double weightedRate = 0;
+        for (RateScenarioEngine.Lot lot : lots) {
+            principalSum += lot.principal();
+            weightedRate += lot.principal() * lot.rate();
+        }
+        double averageRate = principalSum > 0 ? weightedRate / principalSum : 0;
+
+        int paths = intParam(params.get("paths"), 5000);
+        if (paths < 1 || paths > RateScenarioEngine.MAX_PATHS) {
+            throw new IllegalArgumentException("Число траекторий должно быть от 1 до " + RateScenarioEngine.MAX_PATHS);
+        }
+        int stepDays = intParam(params.get("stepDays"), 7);
+        if (stepDays < 1 || stepDays > 365) {
+            throw new IllegalArgumentException("Шаг траектории должен быть от 1 до 365 дней");
+        }
+        double keyRate = doubleParam(params.get("keyRate"), averageRate);
+        double volatility = doubleParam(params.get("volatility"), 2.0);
+        double meanReversion = doubleParam(params.get("meanReversion"), 0.5);
+        if (volatility < 0 || meanReversion < 0) {
+            throw new IllegalArgumentException("Волатильность и скорость возврата к среднему не могут быть отрицательными");
+        }
+        long seed = params.get("seed") != null ? (long) doubleParam(params.get("seed"), 0) : System.nanoTime();
+        return new RateScenarioEngine.Simulation(paths, stepDays, keyRate,
+                doubleParam(params.get("longTermRate"), keyRate), volatility, meanReversion, seed);
+    }
+
+    private static int intParam(Object value, int defaultValue) {
+        return value != null ? (int) doubleParam(value, defaultValue) : defaultValue;
+    }
+
+    private static double doubleParam(Object value, double defaultValue) {
+        if (value == null || value.toString().isBlank()) {
+            return defaultValue;
+        }
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString().trim().replace(',', '.'));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Некорректное число: " + value);
+        }
+    }
+
     @PostMapping("/{id}/close-part")
     public ResponseEntity<?> closePartOfTrade(
             @PathVariable Long id,
@@ -774,31 +1004,33 @@ public class TradeController {
             if (qty <= 0) {
                 return ResponseEntity.badRequest().body(Map.of("message", "Количество должно быть > 0"));
             }
-            Integer openQty = trade.getOpenQuantity();
-            if (openQty == null || qty > openQty) {
-                return ResponseEntity.badRequest().body(Map.of("message", "Недостаточно открытых лотов для закрытия"));
-            }
-
-            // Создание closure
-            TradeClosure closure = new TradeClosure();
-            closure.setTrade(trade);
-            closure.setClosedQuantity(qty);
-            closure.setExitPrice(exitPrice);
-            closure.setExitDate(exitDate);
-            closure.setNotes(notes);
 
-            tradeClosureRepository.save(closure);
+            // Закрытие вместе с пересчётом открытого остатка сделки
+            Trade updated = tradeService.closePart(user, trade.getId(), qty, exitPrice, exitDate, notes);
 
             // Возвращаем обновлённую сделку с открытиями и закрытиями
-            return ResponseEntity.ok(Map.of("message", "Частичное закрытие сохранено", "trade", tradeRepository.findByIdAndPortfolioUser(id, user).get()));
+            return ResponseEntity.ok(Map.of("message", "Частичное закрытие сохранено", "trade", updated));
         } catch (Exception e) {
             logger.error("Ошибка при частичном закрытии", e);
             return ResponseEntity.badRequest().body(Map.of("message", "Ошибка: " + e.getMessage()));
         }
     }
 
+    @DeleteMapping("/{id}/closures/{closureId}")
+    public ResponseEntity<?> deleteClosure(@PathVariable Long id, @PathVariable Long closureId) {
+        try {
+            User user = getAuthenticatedUser();
+            Trade updated = tradeService.deleteClosure(user, id, closureId);
+            return ResponseEntity.ok(Map.of("message", "Закрытие удалено", "trade", updated));
+        } catch (Exception e) {
+            logger.error("Ошибка при удалении закрытия", e);
+            return ResponseEntity.badRequest().body(Map.of("message", "Ошибка: " + e.getMessage()));
+        }
+    }
+
     /**
-     * FIFO закрытие по тикеру: закрывает указанное количество лотов, начиная с самых старых открытых сделок.
+     * Закрытие по тикеру: по умолчанию FIFO — начиная с самых старых открытых сделок;
+     * method = LIFO/HIFO или lots = [{tradeId, quantity}] меняют порядок выбора лотов.
      */
     @PostMapping("/fifo-close")
     public ResponseEntity<?> closeFifo(
@@ -813,10 +1045,17 @@ public class TradeController {
                 return ResponseEntity.badRequest().body(Map.of("message", "Тикер обязателен"));
             }
 
-            if (!payload.containsKey("quantity")) {
+            // lots: [{tradeId, quantity}] — закрытие конкретных лотов; method: FIFO (по умолчанию), LIFO, HIFO
+            Map<Long, Integer> lots = TaxLotEngine.parseLots(payload.get("lots"));
+            TaxLotEngine.Method method = lots != null && payload.get("method") == null
+                    ? TaxLotEngine.Method.SPECIFIC
+                    : TaxLotEngine.Method.parse(payload.get("method"));
+            if (!payload.containsKey("quantity") && lots == null) {
                 return ResponseEntity.badRequest().body(Map.of("message", "quantity обязателен"));
             }
-            int qtyToClose = ((Number) payload.get("quantity")).intValue();
+            int qtyToClose = payload.containsKey("quantity")
+                    ? ((Number) payload.get("quantity")).intValue()
+                    : lots.values().stream().mapToInt(Integer::intValue).sum();
             if (qtyToClose <= 0) {
                 return ResponseEntity.badRequest().body(Map.of("message", "quantity должен быть > 0"));
             }
@@ -830,7 +1069,7 @@ public class TradeController {
                     : LocalDate.now();
             String notes = payload.getOrDefault("notes", "").toString();
 
-            Map<String, Object> response = tradeService.fifoClose(user, portfolio, symbol, qtyToClose, exitPrice, exitDate, notes);
+            Map<String, Object> response = tradeService.closeLots(user, portfolio, symbol, qtyToClose, method, lots, exitPrice, exitDate, notes);
             return ResponseEntity.ok(response);
         } catch (Exception e) {
             logger.error("Ошибка при FIFO закрытии", e);
@@ -848,6 +1087,10 @@ public class TradeController {
                 .orElseThrow(() -> new RuntimeException("Пользователь не найден"));
     }
 
+    private void publishTradesChanged(User user, Long portfolioId) {
+        eventPublisher.publishEvent(PortfolioDataChangedEvent.trades(user.getId(), portfolioId));
+    }
+
     private Portfolio getPortfolioForUser(Long portfolioId, User user) {
         return portfolioRepository.findByIdAndUser(portfolioId, user)
                 .filter(portfolio -> portfolio.getIsActive() == null || Boolean.TRUE.equals(portfolio.getIsActive()))
@@ -856,10 +1099,26 @@ public class TradeController {
 
     /**
      * Сводная статистика по маржинальным сделкам (на бэке, чтобы не считать на фронте).
+     * Без X-Portfolio-ID суммы пересчитываются в валюту currency по сегодняшнему курсу:
+     * стоимость и результат — из валюты портфеля сделки, проценты — из валюты финансирования.
      */
     @GetMapping("/stats")
-    public ResponseEntity<?> getStats(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
+    public ResponseEntity<?> getStats(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId,
+                                      @RequestParam(required = false) String currency) {
         User user = getAuthenticatedUser();
+        String reportCurrency;
+        try {
+            reportCurrency = reportCurrency(portfolioId, currency);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("message", e.getMessage()));
+        }
+        Object resp = analyticsCache.get(user.getId(), portfolioId, "trades/stats",
+                cacheParams(reportCurrency), LIVE_PRICE_TTL,
+                () -> buildStats(user, portfolioId, reportCurrency));
+        return ResponseEntity.ok(resp);
+    }
+
+    private Map<String, Object> buildStats(User user, Long portfolioId, String reportCurrency) {
         List<Trade> trades = portfolioId != null
                 ? tradeRepository.findByPortfolioIdAndPortfolioUser(portfolioId, user)
                 : tradeRepository.findByPortfolioUser(user);
@@ -879,7 +1138,24 @@ public class TradeController {
         int openCount = 0;
         int closedCount = 0;
 
+        // Один параллельный запрос котировок по уникальным тикерам открытых сделок;
+        // все лоты оцениваются по одному и тому же снимку цен
+        Set<String> openSymbols = trades.stream()
+                .filter(t -> t.getExitDate() == null && t.getSymbol() != null)
+                .map(Trade::getSymbol)
+                .collect(Collectors.toSet());
+        Map<String, Quote> prices = priceService.getPriceSnapshot(openSymbols, 600);
+
+        // Курс каждой валюты берётся один раз на весь набор сделок
+        Converter converter = reportCurrency != null ? fxRateService.converter(reportCurrency, LocalDate.now()) : null;
+        Map<Long, String> currencies = converter != null ? portfolioCurrencies(user) : Map.of();
+
         for (Trade t : trades) {
+            String tradeCurrency = currencies.get(t.getPortfolio().getId());
+            double fx = converter != null ? converter.factor(tradeCurrency).doubleValue() : 1;
+            double fxInterest = converter != null
+                    ? converter.factor(t.getFinancingCurrency() != null ? t.getFinancingCurrency() : tradeCurrency).doubleValue()
+                    : 1;
             double total = safeMul(t.getEntryPrice(), t.getQuantity());
             double borrowed = t.getBorrowedAmount() != null ? t.getBorrowedAmount().doubleValue() : total;
 
@@ -895,33 +1171,34 @@ public class TradeController {
 
             if (t.getExitDate() == null) {
                 openCount++;
-                totalCostOpen += total;
+                totalCostOpen += total * fx;
                 totalSharesOpen += t.getQuantity() != null ? t.getQuantity() : 0;
-                borrowedTotal += borrowed;
-                weightedRate += rateToday * borrowed;
-                weight += borrowed;
-                totalInterestDaily += daily != null ? daily : 0;
-                totalInterestMonthly += (daily != null ? daily : 0) * 30;
-
-                Double price = getLivePrice(t.getSymbol());
+                borrowedTotal += borrowed * fx;
+                weightedRate += rateToday * borrowed * fx;
+                weight += borrowed * fx;
+                totalInterestDaily += (daily != null ? daily : 0) * fxInterest;
+                totalInterestMonthly += (daily != null ? daily : 0) * 30 * fxInterest;
+
+                Quote quote = prices.get(t.getSymbol().toUpperCase(Locale.ROOT));
+                Double price = quote != null ? quote.price() : null;
                 if (price != null) {
-                    double pot = (price - t.getEntryPrice().doubleValue()) * t.getQuantity();
+                    double pot = (price - t.getEntryPrice().doubleValue()) * t.getQuantity() * fx;
                     potentialProfit += pot;
-                    double accrued = t.getTotalInterest() != null ? t.getTotalInterest() : 0;
+                    double accrued = t.getTotalInterest() != null ? t.getTotalInterest() * fxInterest : 0;
                     potentialProfitAfterInterest += pot - accrued;
                 }
             } else {
                 closedCount++;
                 if (t.getExitPrice() != null) {
-                    closedProfit += (t.getExitPrice().doubleValue() - t.getEntryPrice().doubleValue()) * t.getQuantity();
+                    closedProfit += (t.getExitPrice().doubleValue() - t.getEntryPrice().doubleValue()) * t.getQuantity() * fx;
                 }
             }
 
             Double totalInterest = t.getTotalInterest();
             if (totalInterest != null) {
-                totalAccruedInterest += totalInterest;
+                totalAccruedInterest += totalInterest * fxInterest;
                 if (t.getExitDate() != null) {
-                    totalInterestPaid += totalInterest;
+                    totalInterestPaid += totalInterest * fxInterest;
                 }
             }
         }
@@ -946,53 +1223,62 @@ public class TradeController {
         resp.put("totalOverallProfitNet", round(closedProfit - totalInterestPaid + potentialProfitAfterInterest));
         resp.put("openCount", openCount);
         resp.put("closedCount", closedCount);
+        if (converter != null) {
+            resp.put("currency", converter.currency());
+            resp.put("fxRates", converter.used());
+        }
 
-        return ResponseEntity.ok(resp);
+        return resp;
     }
 
     /**
      * Детализация открытых позиций (для карточек/таблиц на фронте).
+     * Читает проекции открытых лотов и точки смены ставки, не поднимая сущности Trade.
      */
     @GetMapping("/positions/open")
     public ResponseEntity<?> getOpenPositions(@RequestHeader(value = "X-Portfolio-ID", required = false) Long portfolioId) {
         try {
             logger.debug("GET /api/trades/positions portfolioId={}", portfolioId);
             User user = getAuthenticatedUser();
-            List<Trade> trades = portfolioId != null
-                    ? tradeRepository.findByPortfolioIdAndPortfolioUser(portfolioId, user)
-                    : tradeRepository.findByPortfolioUser(user);
+            List<OpenTradeLot> lots = tradeRepository.findOpenLots(user, portfolioId);
+            if (lots.isEmpty()) {
+                return ResponseEntity.ok(Collections.emptyList());
+            }
 
-            List<Map<String, Object>> positions = trades.stream()
-                    .filter(t -> t.getExitDate() == null)
+            LocalDate today = LocalDate.now();
+            Map<Long, RateChangePoint> latestRateChange = latestRateChanges(lots, today);
+
+            List<Map<String, Object>> positions = lots.stream()
                     .map(t -> {
-                        double total = safeMul(t.getEntryPrice(), t.getQuantity());
-                        double borrowed = t.getBorrowedAmount() != null ? t.getBorrowedAmount().doubleValue() : total;
+                        double total = safeMul(t.entryPrice(), t.quantity());
+                        double borrowed = t.borrowedAmount() != null ? t.borrowedAmount().doubleValue() : total;
                         double ltv = total > 0 ? (borrowed / total) * 100 : 0;
-                        Double dailyInterest = t.getDailyInterestAmount();
+                        Double dailyInterest = dailyInterestOf(t, latestRateChange.get(t.id()));
                         double rateToday;
                         if (dailyInterest != null && borrowed > 0) {
                             rateToday = dailyInterest * 365 * 100 / borrowed;
                         } else {
-                            rateToday = t.getMarginAmount() != null ? t.getMarginAmount().doubleValue() : 0;
+                            rateToday = t.marginAmount() != null ? t.marginAmount().doubleValue() : 0;
                             dailyInterest = borrowed * rateToday / 100 / 365;
                         }
                         long heldDays = 0;
-                        if (t.getEntryDate() != null) {
-                            heldDays = ChronoUnit.DAYS.between(t.getEntryDate(), LocalDate.now());
+                        if (t.entryDate() != null) {
+                            heldDays = ChronoUnit.DAYS.between(t.entryDate(), today);
                             if (heldDays < 0) heldDays = 0;
                         }
                         Map<String, Object> row = new HashMap<>();
-                        row.put("id", t.getId());
-                        row.put("symbol", t.getSymbol());
-                        row.put("entryPrice", t.getEntryPrice());
-                        row.put("quantity", t.getQuantity());
-                        row.put("entryDate", t.getEntryDate());
+                        row.put("id", t.id());
+                        row.put("symbol", t.symbol());
+                        row.put("entryPrice", t.entryPrice());
+                        row.put("quantity", t.quantity());
+                        row.put("openQuantity", t.openQuantity());
+                        row.put("entryDate", t.entryDate());
                         row.put("borrowed", round(borrowed));
                         row.put("exposure", round(total));
                         row.put("ltv", round(ltv, 2));
                         row.put("rate", round(rateToday, 2));
                         row.put("interestPerDay", round(dailyInterest != null ? dailyInterest : 0));
-                        row.put("maintenanceMargin", t.getMaintenanceMargin());
+                        row.put("maintenanceMargin", t.maintenanceMargin());
                         row.put("heldDays", heldDays);
                         return row;
                     })
@@ -1005,6 +1291,58 @@ public class TradeController {
         }
     }
 
+    /**
+     * То же, что Trade#getDailyInterestAmount, но для проекции лота:
+     * ставка — последняя RATE_CHANGE на сегодня, иначе marginAmount.
+     */
+    private Double dailyInterestOf(OpenTradeLot lot, RateChangePoint latestRateChange) {
+        BigDecimal principal = principalOf(lot);
+        BigDecimal rate = rateOf(lot, latestRateChange);
+        if (principal == null || rate == null) {
+            return null;
+        }
+        return Trade.dailyInterest(principal, rate);
+    }
+
+    private BigDecimal principalOf(OpenTradeLot lot) {
+        if (lot.borrowedAmount() != null) {
+            return lot.borrowedAmount();
+        }
+        if (lot.entryPrice() != null && lot.quantity() != null) {
+            return lot.entryPrice().multiply(BigDecimal.valueOf(lot.quantity()));
+        }
+        return null;
+    }
+
+    // Без marginAmount ставка у лота не задана — как и у Trade#getDailyInterestAmount
+    private BigDecimal rateOf(OpenTradeLot lot, RateChangePoint latestRateChange) {
+        if (lot.marginAmount() == null) {
+            return null;
+        }
+        return latestRateChange != null && latestRateChange.rate() != null
+                ? latestRateChange.rate()
+                : lot.marginAmount();
+    }
+
+    /** Последняя на дату смена ставки по каждому лоту. */
+    private Map<Long, RateChangePoint> latestRateChanges(List<OpenTradeLot> lots, LocalDate date) {
+        Map<Long, RateChangePoint> latest = new HashMap<>();
+        if (lots.isEmpty()) {
+            return latest;
+        }
+        List<Long> lotIds = lots.stream().map(OpenTradeLot::id).toList();
+        for (RateChangePoint point : financingEventRepository.findRateChanges(lotIds, date)) {
+            latest.merge(point.tradeId(), point,
+                    (a, b) -> b.eventDate().isAfter(a.eventDate()) ? b : a);
+        }
+        return latest;
+    }
+
+    // Начисленные проценты зависят от текущей даты, поэтому она входит в ключ кэша
+    private String cacheParams(String... params) {
+        return LocalDate.now() + "|" + String.join("|", Arrays.stream(params).map(String::valueOf).toList());
+    }
+
     private double safeMul(BigDecimal price, Integer qty) {
         if (price == null || qty == null) return 0;
         return price.doubleValue() * qty;
@@ -1017,9 +1355,4 @@ public class TradeController {
     private double round(double val, int scale) {
         return BigDecimal.valueOf(val).setScale(scale, RoundingMode.HALF_UP).doubleValue();
     }
-
-    private Double getLivePrice(String ticker) {
-        Quote quote = priceService.getPrice(ticker, 600);
-        return quote != null ? quote.price() : null;
-    }
 }
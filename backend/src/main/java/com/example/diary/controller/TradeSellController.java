@@ -2,6 +2,7 @@ package com.example.diary.controller;
 
 import com.example.diary.model.Portfolio;
 import com.example.diary.model.User;
+import com.example.diary.service.TaxLotEngine;
 import com.example.diary.service.TradeService;
 import com.example.diary.service.UserService;
 import com.example.diary.repository.PortfolioRepository;
@@ -30,7 +31,7 @@ public class TradeSellController {
     private PortfolioRepository portfolioRepository;
 
     /**
-     * Единый FIFO-селл: тикер, qty, цена, дата. Возвращает итог по закрытию.
+     * Единый FIFO-селл: тикер, qty, цена, дата (необязательно method/lots, как в /trades/fifo-close). Возвращает итог по закрытию.
      */
     @PostMapping("/fifo")
     public ResponseEntity<?> fifoSell(@RequestBody Map<String, Object> payload,
@@ -44,10 +45,17 @@ public class TradeSellController {
             if (symbol.isEmpty()) {
                 return ResponseEntity.badRequest().body(Map.of("message", "Тикер обязателен"));
             }
-            if (!payload.containsKey("quantity")) {
+            // lots: [{tradeId, quantity}] — закрытие конкретных лотов; method: FIFO (по умолчанию), LIFO, HIFO
+            Map<Long, Integer> lots = TaxLotEngine.parseLots(payload.get("lots"));
+            TaxLotEngine.Method method = lots != null && payload.get("method") == null
+                    ? TaxLotEngine.Method.SPECIFIC
+                    : TaxLotEngine.Method.parse(payload.get("method"));
+            if (!payload.containsKey("quantity") && lots == null) {
                 return ResponseEntity.badRequest().body(Map.of("message", "quantity обязателен"));
             }
-            int qty = ((Number) payload.get("quantity")).intValue();
+            int qty = payload.containsKey("quantity")
+                    ? ((Number) payload.get("quantity")).intValue()
+                    : lots.values().stream().mapToInt(Integer::intValue).sum();
             if (qty <= 0) {
                 return ResponseEntity.badRequest().body(Map.of("message", "quantity должен быть > 0"));
             }
@@ -60,7 +68,7 @@ public class TradeSellController {
                     : LocalDate.now();
             String notes = payload.getOrDefault("notes", "").toString();
 
-            Map<String, Object> result = tradeService.fifoClose(user, portfolio, symbol, qty, exitPrice, exitDate, notes);
+            Map<String, Object> result = tradeService.closeLots(user, portfolio, symbol, qty, method, lots, exitPrice, exitDate, notes);
             return ResponseEntity.ok(result);
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(Map.of("message", "Ошибка FIFO продажи: " + e.getMessage()));
@@ -0,0 +1,35 @@
+package com.example.diary.event;
+
+import java.time.LocalDate;
+
+/**
+ * Публикуется после любой записи, меняющей данные портфеля (сделки, закрытия,
+ * события финансирования, спотовые транзакции). Слушатели сбрасывают производные
+ * данные: кэши аналитики, индексы и т.п.
+ *
+ * @param userId      владелец портфеля
+ * @param portfolioId портфель; null — затронуты все портфели пользователя
+ * @param kind        какой журнал изменился
+ * @param symbol      тикер, если изменение затронуло только его; null — тикер неизвестен или их несколько
+ * @param since       самая ранняя дата сделки среди изменённых спотовых транзакций; null — неизвестна
+ */
+public record PortfolioDataChangedEvent(Long userId, Long portfolioId, Kind kind, String symbol, LocalDate since) {
+
+    public enum Kind { TRADES, SPOT }
+
+    public static PortfolioDataChangedEvent trades(Long userId, Long portfolioId) {
+        return new PortfolioDataChangedEvent(userId, portfolioId, Kind.TRADES, null, null);
+    }
+
+    public static PortfolioDataChangedEvent trades(Long userId, Long portfolioId, String symbol) {
+        return new PortfolioDataChangedEvent(userId, portfolioId, Kind.TRADES, symbol, null);
+    }
+
+    public static PortfolioDataChangedEvent spot(Long userId, Long portfolioId) {
+        return new PortfolioDataChangedEvent(userId, portfolioId, Kind.SPOT, null, null);
+    }
+
+    public static PortfolioDataChangedEvent spot(Long userId, Long portfolioId, LocalDate since) {
+        return new PortfolioDataChangedEvent(userId, portfolioId, Kind.SPOT, null, since);
+    }
+}
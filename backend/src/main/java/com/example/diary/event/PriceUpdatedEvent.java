@@ -0,0 +1,14 @@
+package com.example.diary.event;
+
+import java.time.Instant;
+
+/**
+ * Публикуется PriceService после получения свежей котировки из внешнего источника
+ * (ответы из кэша событие не порождают).
+ *
+ * @param ticker тикер в верхнем регистре (после подстановки алиасов)
+ * @param price  последняя цена
+ * @param at     момент получения
+ */
+public record PriceUpdatedEvent(String ticker, double price, Instant at) {
+}
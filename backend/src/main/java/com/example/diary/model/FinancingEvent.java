@@ -11,7 +11,9 @@ import java.time.LocalDate;
  * изменение ставки, погашение займа, пополнение залога.
  */
 @Entity
-@Table(name = "financing_events")
+@Table(name = "financing_events", indexes = {
+    @Index(name = "idx_financing_events_trade_date", columnList = "trade_id, event_date")
+})
 public class FinancingEvent {
 
     public enum EventType {
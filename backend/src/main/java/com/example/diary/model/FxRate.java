@@ -0,0 +1,48 @@
+package com.example.diary.model;
+
+import jakarta.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Курс валюты к рублю на дату: одна строка на валюту и день, рублей за одну единицу валюты.
+ */
+@Entity
+@Table(name = "fx_rates", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_fx_rates_currency_date", columnNames = {"currency", "rate_date"})
+})
+public class FxRate {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Код ISO 4217: USD, EUR, CNY
+    @Column(nullable = false, length = 5)
+    private String currency;
+
+    @Column(name = "rate_date", nullable = false)
+    private LocalDate rateDate;
+
+    @Column(nullable = false, precision = 19, scale = 8)
+    private BigDecimal rate;
+
+    // Источник курса: cbr
+    @Column(length = 16)
+    private String source;
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public String getCurrency() { return currency; }
+    public void setCurrency(String currency) { this.currency = currency; }
+
+    public LocalDate getRateDate() { return rateDate; }
+    public void setRateDate(LocalDate rateDate) { this.rateDate = rateDate; }
+
+    public BigDecimal getRate() { return rate; }
+    public void setRate(BigDecimal rate) { this.rate = rate; }
+
+    public String getSource() { return source; }
+    public void setSource(String source) { this.source = source; }
+}
@@ -0,0 +1,149 @@
+package com.example.diary.model;
+
+import com.example.diary.service.imports.ImportFormat;
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Фоновое задание импорта. Тело запроса сохраняется на диск,
+ * а processedRows фиксируется в той же транзакции, что и каждый записанный чанк,
+ * поэтому после падения задание продолжается с места остановки без дублей.
+ */
+@Entity
+@Table(name = "import_jobs", indexes = {
+    @Index(name = "idx_import_jobs_user", columnList = "user_id, id"),
+    @Index(name = "idx_import_jobs_status", columnList = "status")
+})
+public class ImportJob {
+
+    public enum Kind {
+        TRADES,
+        SPOT
+    }
+
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "user_id", nullable = false)
+    private User user;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "portfolio_id", nullable = false)
+    private Portfolio portfolio;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Kind kind;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private ImportFormat format;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private Status status = Status.QUEUED;
+
+    @Column(name = "payload_path", length = 1000)
+    private String payloadPath;
+
+    // Процент маржи по умолчанию для файлов сделок без такой колонки
+    @Column(name = "default_margin")
+    private String defaultMargin;
+
+    // Всего записей во входе (известно после сохранения тела)
+    @Column(name = "total_rows")
+    private Long totalRows;
+
+    // Сколько записей входа обработано и закоммичено — позиция для продолжения
+    @Column(name = "processed_rows", nullable = false)
+    private long processedRows;
+
+    @Column(name = "imported_count", nullable = false)
+    private int importedCount;
+
+    @Column(name = "error_count", nullable = false)
+    private int errorCount;
+
+    // Построчные ошибки в JSON (ограничены, как в ответе синхронного импорта)
+    @Lob
+    @Column(name = "errors_json")
+    private String errorsJson;
+
+    @Column(length = 2000)
+    private String message;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt = LocalDateTime.now();
+
+    @Column(name = "started_at")
+    private LocalDateTime startedAt;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @Column(name = "finished_at")
+    private LocalDateTime finishedAt;
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public User getUser() { return user; }
+    public void setUser(User user) { this.user = user; }
+
+    public Portfolio getPortfolio() { return portfolio; }
+    public void setPortfolio(Portfolio portfolio) { this.portfolio = portfolio; }
+
+    public Kind getKind() { return kind; }
+    public void setKind(Kind kind) { this.kind = kind; }
+
+    public ImportFormat getFormat() { return format; }
+    public void setFormat(ImportFormat format) { this.format = format; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public String getPayloadPath() { return payloadPath; }
+    public void setPayloadPath(String payloadPath) { this.payloadPath = payloadPath; }
+
+    public String getDefaultMargin() { return defaultMargin; }
+    public void setDefaultMargin(String defaultMargin) { this.defaultMargin = defaultMargin; }
+
+    public Long getTotalRows() { return totalRows; }
+    public void setTotalRows(Long totalRows) { this.totalRows = totalRows; }
+
+    public long getProcessedRows() { return processedRows; }
+    public void setProcessedRows(long processedRows) { this.processedRows = processedRows; }
+
+    public int getImportedCount() { return importedCount; }
+    public void setImportedCount(int importedCount) { this.importedCount = importedCount; }
+
+    public int getErrorCount() { return errorCount; }
+    public void setErrorCount(int errorCount) { this.errorCount = errorCount; }
+
+    public String getErrorsJson() { return errorsJson; }
+    public void setErrorsJson(String errorsJson) { this.errorsJson = errorsJson; }
+
+    public String getMessage() { return message; }
+    public void setMessage(String message) { this.message = message; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+
+    public LocalDateTime getStartedAt() { return startedAt; }
+    public void setStartedAt(LocalDateTime startedAt) { this.startedAt = startedAt; }
+
+    public LocalDateTime getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(LocalDateTime updatedAt) { this.updatedAt = updatedAt; }
+
+    public LocalDateTime getFinishedAt() { return finishedAt; }
+    public void setFinishedAt(LocalDateTime finishedAt) { this.finishedAt = finishedAt; }
+}
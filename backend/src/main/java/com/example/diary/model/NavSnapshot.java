@@ -0,0 +1,85 @@
+package com.example.diary.model;
+
+import jakarta.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Стоимость портфеля на конец дня. Снимки пишутся только за завершённые дни
+ * и продлеваются от последнего сохранённого, текущий день считается на лету.
+ */
+@Entity
+@Table(name = "nav_snapshots", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_nav_snapshots_portfolio_date", columnNames = {"portfolio_id", "snapshot_date"})
+})
+public class NavSnapshot {
+
+    // последовательность вместо IDENTITY: догоняемые дни вставляются одним JDBC-батчем
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "nav_snapshots_seq")
+    @SequenceGenerator(name = "nav_snapshots_seq", sequenceName = "nav_snapshots_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(name = "portfolio_id", nullable = false)
+    private Long portfolioId;
+
+    @Column(name = "snapshot_date", nullable = false)
+    private LocalDate snapshotDate;
+
+    // Рыночная стоимость спотовых бумаг
+    @Column(name = "spot_value", nullable = false, precision = 19, scale = 2)
+    private BigDecimal spotValue;
+
+    // Денежный остаток: спотовые движения и выручка закрытых маржинальных лотов за вычетом займа и процентов
+    @Column(nullable = false, precision = 19, scale = 2)
+    private BigDecimal cash;
+
+    // Рыночная стоимость открытых маржинальных лотов
+    @Column(name = "margin_value", nullable = false, precision = 19, scale = 2)
+    private BigDecimal marginValue;
+
+    // Непогашенный заём по открытым лотам
+    @Column(nullable = false, precision = 19, scale = 2)
+    private BigDecimal borrowed;
+
+    // Начисленные, но не уплаченные проценты по открытым лотам
+    @Column(name = "accrued_interest", nullable = false, precision = 19, scale = 2)
+    private BigDecimal accruedInterest;
+
+    @Column(nullable = false, precision = 19, scale = 2)
+    private BigDecimal nav;
+
+    // Внешний поток дня: пополнения/выводы спота и собственные средства новых маржинальных лотов
+    @Column(name = "net_flow", nullable = false, precision = 19, scale = 2)
+    private BigDecimal netFlow;
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public Long getPortfolioId() { return portfolioId; }
+    public void setPortfolioId(Long portfolioId) { this.portfolioId = portfolioId; }
+
+    public LocalDate getSnapshotDate() { return snapshotDate; }
+    public void setSnapshotDate(LocalDate snapshotDate) { this.snapshotDate = snapshotDate; }
+
+    public BigDecimal getSpotValue() { return spotValue; }
+    public void setSpotValue(BigDecimal spotValue) { this.spotValue = spotValue; }
+
+    public BigDecimal getCash() { return cash; }
+    public void setCash(BigDecimal cash) { this.cash = cash; }
+
+    public BigDecimal getMarginValue() { return marginValue; }
+    public void setMarginValue(BigDecimal marginValue) { this.marginValue = marginValue; }
+
+    public BigDecimal getBorrowed() { return borrowed; }
+    public void setBorrowed(BigDecimal borrowed) { this.borrowed = borrowed; }
+
+    public BigDecimal getAccruedInterest() { return accruedInterest; }
+    public void setAccruedInterest(BigDecimal accruedInterest) { this.accruedInterest = accruedInterest; }
+
+    public BigDecimal getNav() { return nav; }
+    public void setNav(BigDecimal nav) { this.nav = nav; }
+
+    public BigDecimal getNetFlow() { return netFlow; }
+    public void setNetFlow(BigDecimal netFlow) { this.netFlow = netFlow; }
+}
@@ -0,0 +1,22 @@
+package com.example.diary.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Реализованный результат портфеля за месяц.
+ */
+@Entity
+@Table(name = "pnl_monthly_rollups", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_pnl_monthly_portfolio_month", columnNames = {"portfolio_id", "month_start"})
+})
+public class PnlMonthlyRollup extends PnlRollup {
+
+    // последовательность вместо IDENTITY: пересборка вставляет строки одним JDBC-батчем
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "pnl_monthly_rollups_seq")
+    @SequenceGenerator(name = "pnl_monthly_rollups_seq", sequenceName = "pnl_monthly_rollups_seq", allocationSize = 50)
+    private Long id;
+
+    @Override
+    public Long getId() { return id; }
+}
@@ -0,0 +1,68 @@
+package com.example.diary.model;
+
+import jakarta.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Общие поля сводок реализованного результата. Строка копит сумму по всем реализациям ключа:
+ * частичным закрытиям и целиком закрытым сделкам без закрытий.
+ */
+@MappedSuperclass
+public abstract class PnlRollup {
+
+    @Column(name = "portfolio_id", nullable = false)
+    private Long portfolioId;
+
+    // Первое число месяца, в котором прошло закрытие
+    @Column(name = "month_start", nullable = false)
+    private LocalDate monthStart;
+
+    // Результат за вычетом процентов: gross - interest
+    @Column(name = "realized_pnl", nullable = false, precision = 19, scale = 6)
+    private BigDecimal realizedPnl = BigDecimal.ZERO;
+
+    // (цена выхода - цена входа) * количество
+    @Column(name = "gross_pnl", nullable = false, precision = 19, scale = 6)
+    private BigDecimal grossPnl = BigDecimal.ZERO;
+
+    // Проценты по займу, приходящиеся на закрытое количество, с даты входа до даты закрытия
+    @Column(name = "interest_paid", nullable = false, precision = 19, scale = 6)
+    private BigDecimal interestPaid = BigDecimal.ZERO;
+
+    @Column(name = "closed_quantity", nullable = false)
+    private long closedQuantity;
+
+    // Число реализаций (закрытий)
+    @Column(name = "close_count", nullable = false)
+    private int closeCount;
+
+    @Column(name = "winning_count", nullable = false)
+    private int winningCount;
+
+    public abstract Long getId();
+
+    public Long getPortfolioId() { return portfolioId; }
+    public void setPortfolioId(Long portfolioId) { this.portfolioId = portfolioId; }
+
+    public LocalDate getMonthStart() { return monthStart; }
+    public void setMonthStart(LocalDate monthStart) { this.monthStart = monthStart; }
+
+    public BigDecimal getRealizedPnl() { return realizedPnl; }
+    public void setRealizedPnl(BigDecimal realizedPnl) { this.realizedPnl = realizedPnl; }
+
+    public BigDecimal getGrossPnl() { return grossPnl; }
+    public void setGrossPnl(BigDecimal grossPnl) { this.grossPnl = grossPnl; }
+
+    public BigDecimal getInterestPaid() { return interestPaid; }
+    public void setInterestPaid(BigDecimal interestPaid) { this.interestPaid = interestPaid; }
+
+    public long getClosedQuantity() { return closedQuantity; }
+    public void setClosedQuantity(long closedQuantity) { this.closedQuantity = closedQuantity; }
+
+    public int getCloseCount() { return closeCount; }
+    public void setCloseCount(int closeCount) { this.closeCount = closeCount; }
+
+    public int getWinningCount() { return winningCount; }
+    public void setWinningCount(int winningCount) { this.winningCount = winningCount; }
+}
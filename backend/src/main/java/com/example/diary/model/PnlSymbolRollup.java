@@ -0,0 +1,28 @@
+package com.example.diary.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Реализованный результат по тикеру портфеля за месяц: месяц в ключе сохраняет фильтр по датам
+ * у аналитики по тикерам, итог за всё время — сумма строк тикера.
+ */
+@Entity
+@Table(name = "pnl_symbol_rollups", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_pnl_symbol_portfolio_symbol_month", columnNames = {"portfolio_id", "symbol", "month_start"})
+})
+public class PnlSymbolRollup extends PnlRollup {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "pnl_symbol_rollups_seq")
+    @SequenceGenerator(name = "pnl_symbol_rollups_seq", sequenceName = "pnl_symbol_rollups_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(nullable = false, length = 32)
+    private String symbol;
+
+    @Override
+    public Long getId() { return id; }
+
+    public String getSymbol() { return symbol; }
+    public void setSymbol(String symbol) { this.symbol = symbol; }
+}
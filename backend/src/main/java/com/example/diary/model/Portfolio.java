@@ -7,7 +7,9 @@ import com.fasterxml.jackson.annotation.JsonManagedReference;
 import com.fasterxml.jackson.annotation.JsonBackReference;
 
 @Entity
-@Table(name = "portfolios")
+@Table(name = "portfolios", indexes = {
+    @Index(name = "idx_portfolios_user_active", columnList = "user_id, is_active")
+})
 public class Portfolio {
     
     @Id
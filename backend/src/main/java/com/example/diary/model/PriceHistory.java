@@ -0,0 +1,49 @@
+package com.example.diary.model;
+
+import jakarta.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Локальная история цен закрытия: одна строка на тикер и день.
+ * Цена дня — последняя полученная за этот день котировка.
+ */
+@Entity
+@Table(name = "price_history", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_price_history_symbol_date", columnNames = {"symbol", "price_date"})
+})
+public class PriceHistory {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Тикер после подстановки алиасов (PriceService.canonicalTicker)
+    @Column(nullable = false, length = 32)
+    private String symbol;
+
+    @Column(name = "price_date", nullable = false)
+    private LocalDate priceDate;
+
+    @Column(name = "close_price", nullable = false, precision = 19, scale = 6)
+    private BigDecimal closePrice;
+
+    // Источник котировки: moex, alpha и т.п.
+    @Column(length = 16)
+    private String source;
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public String getSymbol() { return symbol; }
+    public void setSymbol(String symbol) { this.symbol = symbol; }
+
+    public LocalDate getPriceDate() { return priceDate; }
+    public void setPriceDate(LocalDate priceDate) { this.priceDate = priceDate; }
+
+    public BigDecimal getClosePrice() { return closePrice; }
+    public void setClosePrice(BigDecimal closePrice) { this.closePrice = closePrice; }
+
+    public String getSource() { return source; }
+    public void setSource(String source) { this.source = source; }
+}
@@ -0,0 +1,96 @@
+package com.example.diary.model;
+
+import jakarta.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Состояние спотового журнала портфеля после первых transactionSeq транзакций
+ * в порядке (дата сделки, id); последняя учтённая — asOfId от asOfDate.
+ */
+@Entity
+@Table(name = "spot_ledger_checkpoints", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_spot_checkpoints_portfolio_seq", columnNames = {"portfolio_id", "transaction_seq"})
+}, indexes = {
+    @Index(name = "idx_spot_checkpoints_portfolio_date", columnList = "portfolio_id, as_of_date")
+})
+public class SpotLedgerCheckpoint {
+
+    // последовательность вместо IDENTITY: точки одного построения вставляются одним JDBC-батчем
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "spot_ledger_checkpoints_seq")
+    @SequenceGenerator(name = "spot_ledger_checkpoints_seq", sequenceName = "spot_ledger_checkpoints_seq", allocationSize = 50)
+    private Long id;
+
+    @Column(name = "portfolio_id", nullable = false)
+    private Long portfolioId;
+
+    @Column(name = "transaction_seq", nullable = false)
+    private Integer transactionSeq;
+
+    @Column(name = "as_of_date", nullable = false)
+    private LocalDate asOfDate;
+
+    @Column(name = "as_of_id", nullable = false)
+    private Long asOfId;
+
+    @Column(nullable = false, precision = 19, scale = 6)
+    private BigDecimal cash;
+
+    @Column(nullable = false, precision = 19, scale = 6)
+    private BigDecimal invested;
+
+    @Column(nullable = false, precision = 19, scale = 6)
+    private BigDecimal received;
+
+    @Column(nullable = false, precision = 19, scale = 6)
+    private BigDecimal dividends;
+
+    @Column(nullable = false)
+    private Integer sells;
+
+    // Позиции по тикерам (количество, себестоимость, результат, обороты) в JSON
+    @Lob
+    @Column(name = "positions_json", nullable = false)
+    private String positionsJson;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public Long getPortfolioId() { return portfolioId; }
+    public void setPortfolioId(Long portfolioId) { this.portfolioId = portfolioId; }
+
+    public Integer getTransactionSeq() { return transactionSeq; }
+    public void setTransactionSeq(Integer transactionSeq) { this.transactionSeq = transactionSeq; }
+
+    public LocalDate getAsOfDate() { return asOfDate; }
+    public void setAsOfDate(LocalDate asOfDate) { this.asOfDate = asOfDate; }
+
+    public Long getAsOfId() { return asOfId; }
+    public void setAsOfId(Long asOfId) { this.asOfId = asOfId; }
+
+    public BigDecimal getCash() { return cash; }
+    public void setCash(BigDecimal cash) { this.cash = cash; }
+
+    public BigDecimal getInvested() { return invested; }
+    public void setInvested(BigDecimal invested) { this.invested = invested; }
+
+    public BigDecimal getReceived() { return received; }
+    public void setReceived(BigDecimal received) { this.received = received; }
+
+    public BigDecimal getDividends() { return dividends; }
+    public void setDividends(BigDecimal dividends) { this.dividends = dividends; }
+
+    public Integer getSells() { return sells; }
+    public void setSells(Integer sells) { this.sells = sells; }
+
+    public String getPositionsJson() { return positionsJson; }
+    public void setPositionsJson(String positionsJson) { this.positionsJson = positionsJson; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+}
@@ -7,7 +7,12 @@ import com.fasterxml.jackson.annotation.JsonBackReference;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 @Entity
-@Table(name = "spot_transactions")
+@Table(name = "spot_transactions", indexes = {
+    // индексы создаются миграцией V2, здесь — для справки
+    @Index(name = "idx_spot_portfolio_ticker_date", columnList = "portfolio_id, ticker, trade_date"),
+    @Index(name = "idx_spot_portfolio_date", columnList = "portfolio_id, trade_date, id"),
+    @Index(name = "idx_spot_portfolio_type_date", columnList = "portfolio_id, transaction_type, trade_date")
+})
 public class SpotTransaction {
     
     public enum TransactionType { 
@@ -29,7 +34,8 @@ public class SpotTransaction {
     }
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "spot_transactions_seq")
+    @SequenceGenerator(name = "spot_transactions_seq", sequenceName = "spot_transactions_seq", allocationSize = 50)
     private Long id;
 
     @Column(name = "company")
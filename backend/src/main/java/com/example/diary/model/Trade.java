@@ -13,13 +13,29 @@ import com.fasterxml.jackson.annotation.JsonBackReference;
 import com.example.diary.model.FinancingEvent.EventType;
 
 @Entity
-@Table(name = "trades")
+@Table(name = "trades", indexes = {
+    // keyset-пагинация журнала: WHERE portfolio_id = ? ORDER BY entry_date DESC, id DESC
+    @Index(name = "idx_trades_portfolio_entry", columnList = "portfolio_id DESC, entry_date DESC, id DESC"),
+    // фильтр по тикеру внутри портфеля с той же сортировкой
+    @Index(name = "idx_trades_portfolio_symbol_entry", columnList = "portfolio_id DESC, symbol DESC, entry_date DESC, id DESC"),
+    // открытые лоты тикера для FIFO и позиций: WHERE portfolio_id = ? AND symbol = ? AND open_quantity > 0
+    @Index(name = "idx_trades_portfolio_symbol_open", columnList = "portfolio_id, symbol, open_quantity"),
+    // диапазоны по дате выхода (статистика)
+    @Index(name = "idx_trades_exit_date", columnList = "exit_date, portfolio_id")
+})
 public class Trade {
 
+    // pooled-последовательность вместо IDENTITY, чтобы массовый импорт шёл JDBC-батчами
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "trades_seq")
+    @SequenceGenerator(name = "trades_seq", sequenceName = "trades_seq", allocationSize = 50)
     private Long id;
 
+    // оптимистическая блокировка: параллельные закрытия одного лота не должны перезаписать друг друга
+    @Version
+    @Column(name = "version")
+    private Long version;
+
     @NotBlank(message = "Symbol is required")
     @Size(min = 1, max = 10, message = "Symbol must be between 1 and 10 characters")
     @Column(nullable = false)
@@ -39,6 +55,13 @@ public class Trade {
     @Column(nullable = false)
     private Integer quantity;
 
+    // Денормализованные остатки по частичным закрытиям (поддерживаются TradeService)
+    @Column(name = "open_quantity")
+    private Integer openQuantity;
+
+    @Column(name = "closed_quantity")
+    private Integer closedQuantity;
+
     @NotNull(message = "Entry date is required")
     @Column(name = "entry_date", nullable = false)
     private LocalDate entryDate;
@@ -98,6 +121,8 @@ public class Trade {
     public Long getId() { return id; }
     public void setId(Long id) { this.id = id; }
 
+    public Long getVersion() { return version; }
+
     public String getSymbol() { return symbol; }
     public void setSymbol(String symbol) { this.symbol = symbol; }
 
@@ -189,9 +214,15 @@ public class Trade {
 
     @Transient
     public Double getLiquidationPrice() {
-        // Приближённая оценка: P*Q*(1 - mm) = borrowed -> P = borrowed / (Q*(1 - mm))
+        return liquidationPrice(getPrincipal(), quantity, maintenanceMargin);
+    }
+
+    /**
+     * Приближённая цена ликвидации: P*Q*(1 - mm) = borrowed -> P = borrowed / (Q*(1 - mm)).
+     * Общая формула для сущности и для индекса монитора ликвидаций.
+     */
+    public static Double liquidationPrice(BigDecimal principal, Integer quantity, BigDecimal maintenanceMargin) {
         if (maintenanceMargin == null || quantity == null || quantity == 0) return null;
-        BigDecimal principal = getPrincipal();
         if (principal == null || principal.compareTo(BigDecimal.ZERO) <= 0) return null;
 
         BigDecimal mm = maintenanceMargin.divide(BigDecimal.valueOf(100), 6, RoundingMode.HALF_UP);
@@ -227,6 +258,14 @@ public class Trade {
         }
         BigDecimal rate = getCurrentRate(LocalDate.now());
         if (rate == null) return null;
+        return dailyInterest(principal, rate);
+    }
+
+    /**
+     * Дневной процент по займу: principal * rate% / 365, округлённый до копеек.
+     * Общая формула для сущности и для проекций открытых лотов.
+     */
+    public static Double dailyInterest(BigDecimal principal, BigDecimal rate) {
         BigDecimal yearlyInterest = principal
                 .multiply(rate)
                 .divide(BigDecimal.valueOf(100), 10, RoundingMode.HALF_UP);
@@ -309,11 +348,38 @@ public class Trade {
         return result;
     }
 
-    @Transient
     public Integer getOpenQuantity() {
-        if (quantity == null) return null;
-        int closed = closures.stream().mapToInt(c -> c.getClosedQuantity()).sum();
-        return quantity - closed;
+        if (openQuantity == null && quantity != null) {
+            // строка ещё не прошла бэкфилл — считаем по закрытиям
+            int closed = closures.stream().mapToInt(c -> c.getClosedQuantity()).sum();
+            return quantity - closed;
+        }
+        return openQuantity;
+    }
+    public void setOpenQuantity(Integer openQuantity) { this.openQuantity = openQuantity; }
+
+    public Integer getClosedQuantity() { return closedQuantity; }
+    public void setClosedQuantity(Integer closedQuantity) { this.closedQuantity = closedQuantity; }
+
+    /**
+     * Учитывает закрытие части лота (положительное qty) или его отмену (отрицательное).
+     */
+    public void applyClosedQuantity(int qty) {
+        int closed = (closedQuantity != null ? closedQuantity : 0) + qty;
+        closedQuantity = closed;
+        openQuantity = quantity - closed;
+    }
+
+    @PrePersist
+    private void initQuantities() {
+        if (quantity == null) return;
+        if (closedQuantity == null) {
+            // импортированная закрытая сделка без частичных закрытий закрыта целиком
+            closedQuantity = exitDate != null ? quantity : 0;
+        }
+        if (openQuantity == null) {
+            openQuantity = quantity - closedQuantity;
+        }
     }
 
     public static class DailyInterest {
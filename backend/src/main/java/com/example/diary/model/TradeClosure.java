@@ -7,11 +7,15 @@ import java.math.BigDecimal;
 import java.time.LocalDate;
 
 @Entity
-@Table(name = "trade_closures")
+@Table(name = "trade_closures", indexes = {
+    @Index(name = "idx_trade_closures_trade_exit", columnList = "trade_id, exit_date, id")
+})
 public class TradeClosure {
 
+    // последовательность вместо IDENTITY: закрытия FIFO по нескольким лотам вставляются одним JDBC-батчем
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "trade_closures_seq")
+    @SequenceGenerator(name = "trade_closures_seq", sequenceName = "trade_closures_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
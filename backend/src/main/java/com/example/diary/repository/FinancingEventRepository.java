@@ -2,11 +2,16 @@ package com.example.diary.repository;
 
 import com.example.diary.model.FinancingEvent;
 import com.example.diary.model.User;
+import com.example.diary.repository.projection.RateChangePoint;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -14,4 +19,50 @@ public interface FinancingEventRepository extends JpaRepository<FinancingEvent,
 
     @Query("SELECT fe FROM FinancingEvent fe WHERE fe.trade.id = :tradeId AND fe.trade.portfolio.user = :user ORDER BY fe.eventDate ASC")
     List<FinancingEvent> findByTradeIdAndUser(@Param("tradeId") Long tradeId, @Param("user") User user);
+
+    @Query("SELECT new com.example.diary.repository.projection.RateChangePoint(fe.trade.id, fe.eventDate, fe.rate) " +
+           "FROM FinancingEvent fe " +
+           "WHERE fe.trade.id IN :tradeIds " +
+           "AND fe.eventType = 'RATE_CHANGE' " +
+           "AND fe.eventDate <= :asOf")
+    List<RateChangePoint> findRateChanges(@Param("tradeIds") Collection<Long> tradeIds, @Param("asOf") LocalDate asOf);
+
+    /**
+     * Исправляет ставку уже записанного RATE_CHANGE на ту же дату у открытых сделок пользователя
+     * (или одного портфеля) — повторная отправка даты с другой ставкой обновляет событие, а не теряется.
+     */
+    @Modifying
+    @Query("UPDATE FinancingEvent fe SET fe.rate = :rate, fe.notes = :notes " +
+           "WHERE fe.eventType = :eventType AND fe.eventDate = :eventDate " +
+           "AND (fe.rate IS NULL OR fe.rate <> :rate) " +
+           "AND fe.trade.id IN (SELECT t.id FROM Trade t " +
+           "WHERE t.portfolio.id IN (SELECT p.id FROM Portfolio p WHERE p.user = :user " +
+           "AND (:portfolioId IS NULL OR p.id = :portfolioId)) " +
+           "AND t.openQuantity > 0 AND t.entryDate <= :eventDate)")
+    int updateRateChanges(@Param("user") User user,
+                          @Param("portfolioId") Long portfolioId,
+                          @Param("eventDate") LocalDate eventDate,
+                          @Param("eventType") FinancingEvent.EventType eventType,
+                          @Param("rate") BigDecimal rate,
+                          @Param("notes") String notes);
+
+    /**
+     * Одним INSERT ... SELECT записывает RATE_CHANGE всем открытым сделкам пользователя
+     * (или одного портфеля), открытым не позже даты изменения и ещё не имеющим события на эту дату.
+     * Вместе с {@link #updateRateChanges} — upsert по (сделка, RATE_CHANGE, дата).
+     */
+    @Modifying
+    @Query("INSERT INTO FinancingEvent (trade, eventDate, eventType, rate, notes) " +
+           "SELECT t, :eventDate, :eventType, :rate, :notes FROM Trade t " +
+           "WHERE t.portfolio.id IN (SELECT p.id FROM Portfolio p WHERE p.user = :user " +
+           "AND (:portfolioId IS NULL OR p.id = :portfolioId)) " +
+           "AND t.openQuantity > 0 AND t.entryDate <= :eventDate " +
+           "AND NOT EXISTS (SELECT 1 FROM FinancingEvent fe WHERE fe.trade = t " +
+           "AND fe.eventType = :eventType AND fe.eventDate = :eventDate)")
+    int insertRateChanges(@Param("user") User user,
+                          @Param("portfolioId") Long portfolioId,
+                          @Param("eventDate") LocalDate eventDate,
+                          @Param("eventType") FinancingEvent.EventType eventType,
+                          @Param("rate") BigDecimal rate,
+                          @Param("notes") String notes);
 }
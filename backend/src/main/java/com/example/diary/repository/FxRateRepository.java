@@ -0,0 +1,13 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.FxRate;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface FxRateRepository extends JpaRepository<FxRate, Long> {
+
+    List<FxRate> findByCurrencyOrderByRateDateAsc(String currency);
+}
@@ -0,0 +1,35 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.ImportJob;
+import com.example.diary.model.User;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ImportJobRepository extends JpaRepository<ImportJob, Long> {
+
+    Optional<ImportJob> findByIdAndUser(Long id, User user);
+
+    List<ImportJob> findTop50ByUserOrderByIdDesc(User user);
+
+    List<ImportJob> findByStatusInOrderByIdAsc(Collection<ImportJob.Status> statuses);
+
+    /** Checkpoint: вызывается внутри транзакции чанка. */
+    @Modifying
+    @Query("UPDATE ImportJob j SET j.processedRows = :processed, j.importedCount = :imported, " +
+           "j.errorCount = :errorCount, j.errorsJson = :errorsJson, j.updatedAt = :now WHERE j.id = :id")
+    int saveCheckpoint(@Param("id") Long id,
+                       @Param("processed") long processed,
+                       @Param("imported") int imported,
+                       @Param("errorCount") int errorCount,
+                       @Param("errorsJson") String errorsJson,
+                       @Param("now") LocalDateTime now);
+}
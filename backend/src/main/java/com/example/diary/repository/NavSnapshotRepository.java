@@ -0,0 +1,33 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.NavSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@Repository
+public interface NavSnapshotRepository extends JpaRepository<NavSnapshot, Long> {
+
+    @Query("SELECT MAX(s.snapshotDate) FROM NavSnapshot s WHERE s.portfolioId = :portfolioId")
+    LocalDate findLastDate(@Param("portfolioId") Long portfolioId);
+
+    @Query("SELECT s FROM NavSnapshot s WHERE s.portfolioId = :portfolioId " +
+           "AND s.snapshotDate BETWEEN :from AND :to ORDER BY s.snapshotDate ASC")
+    List<NavSnapshot> findRange(@Param("portfolioId") Long portfolioId,
+                                @Param("from") LocalDate from,
+                                @Param("to") LocalDate to);
+
+    @Modifying
+    @Query("DELETE FROM NavSnapshot s WHERE s.portfolioId = :portfolioId")
+    int deleteByPortfolio(@Param("portfolioId") Long portfolioId);
+
+    @Modifying
+    @Query("DELETE FROM NavSnapshot s WHERE s.portfolioId IN " +
+           "(SELECT p.id FROM Portfolio p WHERE p.user.id = :userId)")
+    int deleteByUser(@Param("userId") Long userId);
+}
@@ -0,0 +1,60 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.PnlMonthlyRollup;
+import com.example.diary.repository.projection.MonthlyPnlRow;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface PnlMonthlyRollupRepository extends JpaRepository<PnlMonthlyRollup, Long> {
+
+    boolean existsByPortfolioIdAndMonthStart(Long portfolioId, LocalDate monthStart);
+
+    /** Прибавляет приращение к строке; 0 — строки ещё нет. */
+    @Modifying
+    @Query("UPDATE PnlMonthlyRollup r SET r.realizedPnl = r.realizedPnl + :realized, " +
+           "r.grossPnl = r.grossPnl + :gross, r.interestPaid = r.interestPaid + :interest, " +
+           "r.closedQuantity = r.closedQuantity + :quantity, r.closeCount = r.closeCount + :closes, " +
+           "r.winningCount = r.winningCount + :wins " +
+           "WHERE r.portfolioId = :portfolioId AND r.monthStart = :month")
+    int increment(@Param("portfolioId") Long portfolioId,
+                  @Param("month") LocalDate month,
+                  @Param("realized") BigDecimal realized,
+                  @Param("gross") BigDecimal gross,
+                  @Param("interest") BigDecimal interest,
+                  @Param("quantity") long quantity,
+                  @Param("closes") int closes,
+                  @Param("wins") int wins);
+
+    @Query("SELECT new com.example.diary.repository.projection.MonthlyPnlRow(" +
+           "r.monthStart, SUM(r.realizedPnl), SUM(r.grossPnl), SUM(r.interestPaid), " +
+           "SUM(r.closedQuantity), SUM(r.closeCount), SUM(r.winningCount)) " +
+           "FROM PnlMonthlyRollup r " +
+           "WHERE r.portfolioId IN :portfolioIds AND r.monthStart BETWEEN :from AND :to " +
+           "GROUP BY r.monthStart ORDER BY r.monthStart ASC")
+    List<MonthlyPnlRow> sumByMonth(@Param("portfolioIds") Collection<Long> portfolioIds,
+                                   @Param("from") LocalDate from,
+                                   @Param("to") LocalDate to);
+
+    @Modifying
+    @Query("DELETE FROM PnlMonthlyRollup r WHERE r.portfolioId = :portfolioId")
+    int deleteByPortfolio(@Param("portfolioId") Long portfolioId);
+
+    @Query("SELECT DISTINCT r.portfolioId FROM PnlMonthlyRollup r " +
+           "WHERE r.portfolioId IN (SELECT p.id FROM Portfolio p WHERE p.user.id = :userId)")
+    List<Long> findPortfolioIdsByUser(@Param("userId") Long userId);
+
+    /** Портфели с закрытыми сделками, для которых сводки ещё ни разу не строились. */
+    @Query("SELECT DISTINCT t.portfolio.id FROM Trade t " +
+           "WHERE (t.exitDate IS NOT NULL OR t.closedQuantity > 0) " +
+           "AND NOT EXISTS (SELECT 1 FROM PnlMonthlyRollup r WHERE r.portfolioId = t.portfolio.id)")
+    List<Long> findPortfoliosWithoutRollups();
+}
@@ -0,0 +1,51 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.PnlSymbolRollup;
+import com.example.diary.repository.projection.SymbolPnlRow;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface PnlSymbolRollupRepository extends JpaRepository<PnlSymbolRollup, Long> {
+
+    boolean existsByPortfolioIdAndSymbolAndMonthStart(Long portfolioId, String symbol, LocalDate monthStart);
+
+    /** Прибавляет приращение к строке; 0 — строки ещё нет. */
+    @Modifying
+    @Query("UPDATE PnlSymbolRollup r SET r.realizedPnl = r.realizedPnl + :realized, " +
+           "r.grossPnl = r.grossPnl + :gross, r.interestPaid = r.interestPaid + :interest, " +
+           "r.closedQuantity = r.closedQuantity + :quantity, r.closeCount = r.closeCount + :closes, " +
+           "r.winningCount = r.winningCount + :wins " +
+           "WHERE r.portfolioId = :portfolioId AND r.symbol = :symbol AND r.monthStart = :month")
+    int increment(@Param("portfolioId") Long portfolioId,
+                  @Param("symbol") String symbol,
+                  @Param("month") LocalDate month,
+                  @Param("realized") BigDecimal realized,
+                  @Param("gross") BigDecimal gross,
+                  @Param("interest") BigDecimal interest,
+                  @Param("quantity") long quantity,
+                  @Param("closes") int closes,
+                  @Param("wins") int wins);
+
+    @Query("SELECT new com.example.diary.repository.projection.SymbolPnlRow(" +
+           "r.symbol, SUM(r.realizedPnl), SUM(r.grossPnl), SUM(r.interestPaid), " +
+           "SUM(r.closedQuantity), SUM(r.closeCount), SUM(r.winningCount)) " +
+           "FROM PnlSymbolRollup r " +
+           "WHERE r.portfolioId IN :portfolioIds AND r.monthStart BETWEEN :from AND :to " +
+           "GROUP BY r.symbol HAVING SUM(r.closeCount) > 0")
+    List<SymbolPnlRow> sumBySymbol(@Param("portfolioIds") Collection<Long> portfolioIds,
+                                   @Param("from") LocalDate from,
+                                   @Param("to") LocalDate to);
+
+    @Modifying
+    @Query("DELETE FROM PnlSymbolRollup r WHERE r.portfolioId = :portfolioId")
+    int deleteByPortfolio(@Param("portfolioId") Long portfolioId);
+}
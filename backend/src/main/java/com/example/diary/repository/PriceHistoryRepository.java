@@ -0,0 +1,28 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.PriceHistory;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface PriceHistoryRepository extends JpaRepository<PriceHistory, Long> {
+
+    List<PriceHistory> findBySymbolInAndPriceDateLessThanEqualOrderByPriceDateAsc(Collection<String> symbols, LocalDate to);
+
+    /** Обновляет цену дня; 0 — строки за этот день ещё нет. */
+    @Modifying
+    @Query("UPDATE PriceHistory ph SET ph.closePrice = :price, ph.source = :source " +
+           "WHERE ph.symbol = :symbol AND ph.priceDate = :date")
+    int updateClose(@Param("symbol") String symbol,
+                    @Param("date") LocalDate date,
+                    @Param("price") BigDecimal price,
+                    @Param("source") String source);
+}
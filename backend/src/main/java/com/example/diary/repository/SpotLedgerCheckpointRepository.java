@@ -0,0 +1,29 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.SpotLedgerCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+@Repository
+public interface SpotLedgerCheckpointRepository extends JpaRepository<SpotLedgerCheckpoint, Long> {
+
+    /** Последняя (ближайшая к концу журнала) точка портфеля. */
+    Optional<SpotLedgerCheckpoint> findFirstByPortfolioIdOrderByTransactionSeqDesc(Long portfolioId);
+
+    /** Удаляет точки, в которые могла попасть транзакция от даты since; since = null — все точки портфеля. */
+    @Modifying
+    @Query("DELETE FROM SpotLedgerCheckpoint c WHERE c.portfolioId = :portfolioId " +
+           "AND (CAST(:since AS LocalDate) IS NULL OR c.asOfDate >= :since)")
+    int deleteFrom(@Param("portfolioId") Long portfolioId, @Param("since") LocalDate since);
+
+    @Modifying
+    @Query("DELETE FROM SpotLedgerCheckpoint c WHERE c.portfolioId IN " +
+           "(SELECT p.id FROM Portfolio p WHERE p.user.id = :userId)")
+    int deleteByUser(@Param("userId") Long userId);
+}
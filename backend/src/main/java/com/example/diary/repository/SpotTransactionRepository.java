@@ -2,13 +2,20 @@ package com.example.diary.repository;
 
 import com.example.diary.model.SpotTransaction;
 import com.example.diary.model.User;
+import jakarta.persistence.QueryHint;
+import com.example.diary.repository.projection.SpotExportRow;
+import com.example.diary.repository.projection.SpotFlowRow;
+import com.example.diary.repository.projection.SpotLedgerRow;
 import org.springframework.data.jpa.repository.JpaRepository;
-import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface SpotTransactionRepository extends JpaRepository<SpotTransaction, Long> {
@@ -28,12 +35,62 @@ public interface SpotTransactionRepository extends JpaRepository<SpotTransaction
     List<SpotTransaction> findByPortfolioUser(User user);
 
     Optional<SpotTransaction> findByIdAndPortfolioUser(Long id, User user);
-    
-    @Modifying
-    @Query("UPDATE SpotTransaction st SET st.amount = -ABS(st.amount) WHERE st.transactionType = 'WITHDRAW' AND st.amount > 0")
-    int fixWithdrawAmounts();
-    
-    @Modifying
-    @Query("UPDATE SpotTransaction st SET st.amount = -ABS(st.amount) WHERE st.transactionType = 'BUY' AND st.amount > 0")
-    int fixBuyAmounts();
+
+    /** Все движения портфеля по дате — журнал для пересчёта стоимости портфеля по дням. */
+    @Query("SELECT new com.example.diary.repository.projection.SpotLedgerRow(" +
+           "st.id, st.ticker, st.company, st.transactionType, st.price, st.quantity, st.amount, st.tradeDate) " +
+           "FROM SpotTransaction st " +
+           "WHERE st.portfolio.id = :portfolioId AND st.tradeDate IS NOT NULL " +
+           "ORDER BY st.tradeDate ASC, st.id ASC")
+    List<SpotLedgerRow> findLedgerRows(@Param("portfolioId") Long portfolioId);
+
+    /** Журнал портфеля для свёртки позиций, включая транзакции без даты (они идут первыми). */
+    @Query("SELECT new com.example.diary.repository.projection.SpotLedgerRow(" +
+           "st.id, st.ticker, st.company, st.transactionType, st.price, st.quantity, st.amount, st.tradeDate) " +
+           "FROM SpotTransaction st " +
+           "WHERE st.portfolio.id = :portfolioId " +
+           "ORDER BY st.tradeDate ASC NULLS FIRST, st.id ASC")
+    List<SpotLedgerRow> findBookRows(@Param("portfolioId") Long portfolioId);
+
+    /**
+     * Журнал после контрольной точки: транзакции позже (date, id) в том же порядке.
+     * Отдельное условие tradeDate >= :date даёт планировщику диапазон по idx_spot_portfolio_date —
+     * по одному OR он читает весь портфель.
+     */
+    @Query("SELECT new com.example.diary.repository.projection.SpotLedgerRow(" +
+           "st.id, st.ticker, st.company, st.transactionType, st.price, st.quantity, st.amount, st.tradeDate) " +
+           "FROM SpotTransaction st " +
+           "WHERE st.portfolio.id = :portfolioId AND st.tradeDate >= :date " +
+           "AND (st.tradeDate > :date OR st.id > :id) " +
+           "ORDER BY st.tradeDate ASC, st.id ASC")
+    List<SpotLedgerRow> findBookRowsAfter(@Param("portfolioId") Long portfolioId,
+                                          @Param("date") LocalDate date,
+                                          @Param("id") Long id);
+
+    /** То же по одному тикеру — для пересвёртки позиции после правки задним числом. */
+    @Query("SELECT new com.example.diary.repository.projection.SpotLedgerRow(" +
+           "st.id, st.ticker, st.company, st.transactionType, st.price, st.quantity, st.amount, st.tradeDate) " +
+           "FROM SpotTransaction st " +
+           "WHERE st.portfolio.id = :portfolioId AND st.ticker = :ticker " +
+           "ORDER BY st.tradeDate ASC NULLS FIRST, st.id ASC")
+    List<SpotLedgerRow> findBookRowsByTicker(@Param("portfolioId") Long portfolioId, @Param("ticker") String ticker);
+
+    /** Дневные суммы движений по типам — денежные потоки SpotReturnEngine. */
+    @Query("SELECT new com.example.diary.repository.projection.SpotFlowRow(" +
+           "st.tradeDate, st.transactionType, SUM(st.amount), COUNT(st)) " +
+           "FROM SpotTransaction st " +
+           "WHERE st.portfolio.id = :portfolioId " +
+           "GROUP BY st.tradeDate, st.transactionType")
+    List<SpotFlowRow> sumFlowsByDate(@Param("portfolioId") Long portfolioId);
+
+    /** Курсор выгрузки спотовых транзакций, см. TradeRepository#streamExportRows. */
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "500"))
+    @Query("SELECT new com.example.diary.repository.projection.SpotExportRow(" +
+           "st.id, st.portfolio.id, st.tradeDate, st.transactionType, st.ticker, st.company, " +
+           "st.price, st.quantity, st.amount, st.note) " +
+           "FROM SpotTransaction st " +
+           "WHERE st.portfolio.user = :user " +
+           "AND (:portfolioId IS NULL OR st.portfolio.id = :portfolioId) " +
+           "ORDER BY st.id ASC")
+    Stream<SpotExportRow> streamExportRows(@Param("user") User user, @Param("portfolioId") Long portfolioId);
 }
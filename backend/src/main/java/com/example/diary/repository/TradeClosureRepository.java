@@ -1,9 +1,33 @@
 package com.example.diary.repository;
 
 import com.example.diary.model.TradeClosure;
+import com.example.diary.model.User;
+import com.example.diary.repository.projection.ClosureExportRow;
+import com.example.diary.repository.projection.ClosureLedgerRow;
+import jakarta.persistence.QueryHint;
 import java.util.List;
+import java.util.stream.Stream;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
  
 public interface TradeClosureRepository extends JpaRepository<TradeClosure, Long> {
     List<TradeClosure> findByTradeId(Long tradeId);
-} 
\ No newline at end of file
+
+    @Query("SELECT new com.example.diary.repository.projection.ClosureLedgerRow(" +
+           "c.trade.id, c.closedQuantity, c.exitPrice, c.exitDate) " +
+           "FROM TradeClosure c WHERE c.trade.portfolio.id = :portfolioId " +
+           "ORDER BY c.exitDate ASC, c.id ASC")
+    List<ClosureLedgerRow> findLedgerRows(@Param("portfolioId") Long portfolioId);
+
+    /** Курсор выгрузки закрытий, см. TradeRepository#streamExportRows. */
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "500"))
+    @Query("SELECT new com.example.diary.repository.projection.ClosureExportRow(" +
+           "c.id, c.trade.id, c.trade.portfolio.id, c.trade.symbol, c.closedQuantity, c.exitPrice, c.exitDate, c.notes) " +
+           "FROM TradeClosure c " +
+           "WHERE c.trade.portfolio.user = :user " +
+           "AND (:portfolioId IS NULL OR c.trade.portfolio.id = :portfolioId) " +
+           "ORDER BY c.id ASC")
+    Stream<ClosureExportRow> streamExportRows(@Param("user") User user, @Param("portfolioId") Long portfolioId);
+} 
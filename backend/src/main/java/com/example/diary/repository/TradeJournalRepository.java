@@ -0,0 +1,34 @@
+package com.example.diary.repository;
+
+import com.example.diary.repository.projection.TradeJournalRow;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Страница журнала сделок. Условие собирается только из заданных фильтров,
+ * поэтому каждый запрос получает свой план по индексам журнала, а не одно универсальное условие.
+ */
+public interface TradeJournalRepository {
+
+    /**
+     * Keyset-страница по (entryDate, id) от новых к старым.
+     *
+     * @param portfolioIds портфели, по которым читается журнал (уже проверенные на владельца)
+     * @param open         true — только открытые, false — только закрытые, null — все
+     * @param cursorDate   дата последней строки предыдущей страницы; null — первая страница
+     * @param cursorId     id последней строки предыдущей страницы
+     * @param limit        сколько строк прочитать
+     */
+    List<TradeJournalRow> findJournalPage(Collection<Long> portfolioIds,
+                                          String symbol,
+                                          Boolean open,
+                                          LocalDate entryFrom,
+                                          LocalDate entryTo,
+                                          LocalDate exitFrom,
+                                          LocalDate exitTo,
+                                          LocalDate cursorDate,
+                                          Long cursorId,
+                                          int limit);
+}
@@ -0,0 +1,104 @@
+package com.example.diary.repository;
+
+import com.example.diary.model.Trade;
+import com.example.diary.repository.projection.TradeJournalRow;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Order;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Журнал сделок на Criteria API.
+ *
+ * Индексы журнала убывающие: idx_trades_portfolio_entry (portfolio_id, entry_date, id) и
+ * idx_trades_portfolio_symbol_entry (portfolio_id, symbol, entry_date, id). Планировщик H2 снимает сортировку
+ * индексом, только если ORDER BY совпадает с колонками индекса с первой, поэтому для одного портфеля
+ * сортировка начинается с portfolio_id (и symbol) — на результат это не влияет, они фиксированы условием.
+ * Курсор дополнительно ограничивает entry_date сверху, чтобы чтение шло диапазоном индекса.
+ */
+class TradeJournalRepositoryImpl implements TradeJournalRepository {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<TradeJournalRow> findJournalPage(Collection<Long> portfolioIds,
+                                                 String symbol,
+                                                 Boolean open,
+                                                 LocalDate entryFrom,
+                                                 LocalDate entryTo,
+                                                 LocalDate exitFrom,
+                                                 LocalDate exitTo,
+                                                 LocalDate cursorDate,
+                                                 Long cursorId,
+                                                 int limit) {
+        if (portfolioIds.isEmpty()) {
+            return List.of();
+        }
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<TradeJournalRow> query = cb.createQuery(TradeJournalRow.class);
+        Root<Trade> t = query.from(Trade.class);
+        Path<Long> portfolioId = t.get("portfolio").get("id");
+        Path<String> symbolPath = t.get("symbol");
+        Path<LocalDate> entryDate = t.get("entryDate");
+        Path<LocalDate> exitDate = t.get("exitDate");
+        Path<Integer> openQuantity = t.get("openQuantity");
+        Path<Long> id = t.get("id");
+
+        query.select(cb.construct(TradeJournalRow.class,
+                id, portfolioId, symbolPath, entryDate, t.get("entryPrice"), t.get("quantity"),
+                openQuantity, t.get("closedQuantity"), exitDate, t.get("exitPrice"), t.get("marginAmount"),
+                t.get("leverage"), t.get("borrowedAmount"), t.get("collateralAmount"), t.get("maintenanceMargin"),
+                t.get("financingRateType"), t.get("financingCurrency"), t.get("notes")));
+
+        boolean single = portfolioIds.size() == 1;
+        List<Predicate> where = new ArrayList<>();
+        where.add(single ? cb.equal(portfolioId, portfolioIds.iterator().next()) : portfolioId.in(portfolioIds));
+        if (symbol != null) {
+            where.add(cb.equal(symbolPath, symbol));
+        }
+        if (open != null) {
+            where.add(open ? cb.gt(openQuantity, 0) : cb.equal(openQuantity, 0));
+        }
+        if (entryFrom != null) {
+            where.add(cb.greaterThanOrEqualTo(entryDate, entryFrom));
+        }
+        if (entryTo != null) {
+            where.add(cb.lessThanOrEqualTo(entryDate, entryTo));
+        }
+        if (exitFrom != null) {
+            where.add(cb.greaterThanOrEqualTo(exitDate, exitFrom));
+        }
+        if (exitTo != null) {
+            where.add(cb.lessThanOrEqualTo(exitDate, exitTo));
+        }
+        if (cursorDate != null) {
+            // (entryDate, id) < (cursorDate, cursorId): граница диапазона плюс дорезание внутри дня курсора
+            where.add(cb.lessThanOrEqualTo(entryDate, cursorDate));
+            where.add(cb.or(cb.lessThan(entryDate, cursorDate), cb.lessThan(id, cursorId)));
+        }
+        query.where(where.toArray(new Predicate[0]));
+
+        List<Order> order = new ArrayList<>();
+        if (single) {
+            order.add(cb.desc(portfolioId));
+            if (symbol != null) {
+                order.add(cb.desc(symbolPath));
+            }
+        }
+        order.add(cb.desc(entryDate));
+        order.add(cb.desc(id));
+        query.orderBy(order);
+
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+}
@@ -2,17 +2,27 @@ package com.example.diary.repository;
 
 import com.example.diary.model.Trade;
 import com.example.diary.model.User;
+import jakarta.persistence.QueryHint;
+import com.example.diary.repository.projection.LiquidationLot;
+import com.example.diary.repository.projection.OpenTradeLot;
+import com.example.diary.repository.projection.TradeExportRow;
+import com.example.diary.repository.projection.TradeLedgerRow;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
-public interface TradeRepository extends JpaRepository<Trade, Long> {
+public interface TradeRepository extends JpaRepository<Trade, Long>, TradeJournalRepository {
     
     @Query("SELECT t FROM Trade t WHERE t.exitDate BETWEEN :startDate AND :endDate ORDER BY t.exitDate DESC")
     List<Trade> findByExitDateBetween(@Param("startDate") LocalDate startDate, @Param("endDate") LocalDate endDate);
@@ -36,11 +46,91 @@ public interface TradeRepository extends JpaRepository<Trade, Long> {
                                       @Param("endDate") LocalDate endDate,
                                       @Param("user") User user);
 
+    /** Сделки портфелей, закрытые (открытые — по дате входа) в [startDate, endDate] — счётчик сводки аналитики. */
+    @Query("SELECT COUNT(t) FROM Trade t " +
+           "WHERE t.portfolio.id IN :portfolioIds " +
+           "AND COALESCE(t.exitDate, t.entryDate) BETWEEN :startDate AND :endDate")
+    long countInPeriod(@Param("portfolioIds") Collection<Long> portfolioIds,
+                       @Param("startDate") LocalDate startDate,
+                       @Param("endDate") LocalDate endDate);
+
     List<Trade> findByPortfolioIdAndPortfolioUser(Long portfolioId, User user);
 
     List<Trade> findByPortfolioUser(User user);
 
     Optional<Trade> findByIdAndPortfolioUser(Long id, User user);
 
-    List<Trade> findByPortfolioUserAndSymbolAndExitDateIsNullOrderByEntryDateAsc(User user, String symbol);
+    @Modifying
+    @Query("UPDATE Trade t SET t.closedQuantity = CASE WHEN t.exitDate IS NOT NULL THEN t.quantity " +
+           "ELSE COALESCE((SELECT SUM(c.closedQuantity) FROM TradeClosure c WHERE c.trade = t), 0) END " +
+           "WHERE t.closedQuantity IS NULL")
+    int backfillClosedQuantity();
+
+    @Modifying
+    @Query("UPDATE Trade t SET t.openQuantity = t.quantity - t.closedQuantity " +
+           "WHERE t.openQuantity IS NULL AND t.closedQuantity IS NOT NULL")
+    int backfillOpenQuantity();
+
+    @Modifying
+    @Query("UPDATE Trade t SET t.version = 0 WHERE t.version IS NULL")
+    int backfillVersion();
+
+    @Query("SELECT new com.example.diary.repository.projection.OpenTradeLot(" +
+           "t.id, t.symbol, t.quantity, t.openQuantity, t.entryPrice, t.entryDate, " +
+           "t.borrowedAmount, t.marginAmount, t.maintenanceMargin) " +
+           "FROM Trade t " +
+           "WHERE t.portfolio.user = :user " +
+           "AND (:portfolioId IS NULL OR t.portfolio.id = :portfolioId) " +
+           "AND t.openQuantity > 0 " +
+           "ORDER BY t.entryDate ASC, t.id ASC")
+    List<OpenTradeLot> findOpenLots(@Param("user") User user, @Param("portfolioId") Long portfolioId);
+
+    /**
+     * Очередь открытых лотов тикера в портфеле (FIFO-порядок) без загрузки сущностей — для движка налоговых лотов.
+     */
+    @Query("SELECT new com.example.diary.repository.projection.OpenTradeLot(" +
+           "t.id, t.symbol, t.quantity, t.openQuantity, t.entryPrice, t.entryDate, " +
+           "t.borrowedAmount, t.marginAmount, t.maintenanceMargin) " +
+           "FROM Trade t " +
+           "WHERE t.portfolio.id = :portfolioId AND t.symbol = :symbol AND t.openQuantity > 0 " +
+           "ORDER BY t.entryDate ASC, t.id ASC")
+    List<OpenTradeLot> findOpenLotsBySymbol(@Param("portfolioId") Long portfolioId, @Param("symbol") String symbol);
+
+    /**
+     * Все лоты портфеля в порядке открытия — журнал для пересчёта стоимости портфеля по дням.
+     */
+    @Query("SELECT new com.example.diary.repository.projection.TradeLedgerRow(" +
+           "t.id, t.symbol, t.quantity, t.entryPrice, t.entryDate, t.exitPrice, t.exitDate, " +
+           "t.borrowedAmount, t.marginAmount, t.maintenanceMargin) " +
+           "FROM Trade t " +
+           "WHERE t.portfolio.id = :portfolioId " +
+           "ORDER BY t.entryDate ASC, t.id ASC")
+    List<TradeLedgerRow> findLedgerRows(@Param("portfolioId") Long portfolioId);
+
+    /**
+     * Открытые лоты с заданной поддерживающей маржой — источник индекса монитора ликвидаций.
+     * userId = null — по всем пользователям (первичное построение индекса).
+     */
+    @Query("SELECT new com.example.diary.repository.projection.LiquidationLot(" +
+           "t.id, t.portfolio.user.id, t.portfolio.id, t.symbol, t.quantity, t.entryPrice, " +
+           "t.borrowedAmount, t.maintenanceMargin) " +
+           "FROM Trade t " +
+           "WHERE (:userId IS NULL OR t.portfolio.user.id = :userId) " +
+           "AND t.openQuantity > 0 " +
+           "AND t.maintenanceMargin IS NOT NULL")
+    List<LiquidationLot> findLiquidationLots(@Param("userId") Long userId);
+
+    /**
+     * Курсор выгрузки сделок: строки читаются вперёд порциями по fetch size, без загрузки сущностей.
+     * Поток нужно закрыть и читать внутри транзакции.
+     */
+    @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "500"))
+    @Query("SELECT new com.example.diary.repository.projection.TradeExportRow(" +
+           "t.id, t.portfolio.id, t.symbol, t.entryDate, t.entryPrice, t.quantity, t.openQuantity, " +
+           "t.exitDate, t.exitPrice, t.marginAmount, t.borrowedAmount, t.maintenanceMargin, t.notes) " +
+           "FROM Trade t " +
+           "WHERE t.portfolio.user = :user " +
+           "AND (:portfolioId IS NULL OR t.portfolio.id = :portfolioId) " +
+           "ORDER BY t.id ASC")
+    Stream<TradeExportRow> streamExportRows(@Param("user") User user, @Param("portfolioId") Long portfolioId);
 }
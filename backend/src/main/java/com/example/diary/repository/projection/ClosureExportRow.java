@@ -0,0 +1,18 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Строка выгрузки частичных закрытий.
+ */
+public record ClosureExportRow(
+        Long id,
+        Long tradeId,
+        Long portfolioId,
+        String symbol,
+        Integer closedQuantity,
+        BigDecimal exitPrice,
+        LocalDate exitDate,
+        String notes) {
+}
@@ -0,0 +1,10 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Частичное закрытие лота: сколько, по какой цене и когда.
+ */
+public record ClosureLedgerRow(Long tradeId, Integer closedQuantity, BigDecimal exitPrice, LocalDate exitDate) {
+}
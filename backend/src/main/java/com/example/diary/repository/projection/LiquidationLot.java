@@ -0,0 +1,18 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+
+/**
+ * Открытый лот для индекса монитора ликвидаций: владелец, портфель и поля,
+ * из которых считается цена ликвидации (см. Trade#liquidationPrice).
+ */
+public record LiquidationLot(
+        Long id,
+        Long userId,
+        Long portfolioId,
+        String symbol,
+        Integer quantity,
+        BigDecimal entryPrice,
+        BigDecimal borrowedAmount,
+        BigDecimal maintenanceMargin) {
+}
@@ -0,0 +1,35 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Сумма сводок реализованного результата за месяц (по одному или нескольким портфелям).
+ */
+public record MonthlyPnlRow(
+        LocalDate monthStart,
+        BigDecimal realizedPnl,
+        BigDecimal grossPnl,
+        BigDecimal interestPaid,
+        Long closedQuantity,
+        Long closeCount,
+        Long winningCount) {
+
+    /** Денежные суммы в другой валюте: rate — курс пересчёта, счётчики не меняются. */
+    public MonthlyPnlRow scaled(double rate) {
+        BigDecimal factor = BigDecimal.valueOf(rate);
+        return new MonthlyPnlRow(monthStart, realizedPnl.multiply(factor), grossPnl.multiply(factor), interestPaid.multiply(factor),
+                closedQuantity, closeCount, winningCount);
+    }
+
+    /** Сумма сводок одного месяца из разных портфелей. */
+    public MonthlyPnlRow plus(MonthlyPnlRow other) {
+        return new MonthlyPnlRow(monthStart, realizedPnl.add(other.realizedPnl), grossPnl.add(other.grossPnl),
+                interestPaid.add(other.interestPaid), sum(closedQuantity, other.closedQuantity),
+                sum(closeCount, other.closeCount), sum(winningCount, other.winningCount));
+    }
+
+    private static Long sum(Long a, Long b) {
+        return (a != null ? a : 0L) + (b != null ? b : 0L);
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Открытый маржинальный лот: только поля, нужные для дашборда открытых позиций.
+ * Заполняется конструкторным выражением в JPQL, без загрузки сущности Trade.
+ */
+public record OpenTradeLot(
+        Long id,
+        String symbol,
+        Integer quantity,
+        Integer openQuantity,
+        BigDecimal entryPrice,
+        LocalDate entryDate,
+        BigDecimal borrowedAmount,
+        BigDecimal marginAmount,
+        BigDecimal maintenanceMargin) {
+}
@@ -0,0 +1,10 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Точка изменения ставки по сделке (событие RATE_CHANGE).
+ */
+public record RateChangePoint(Long tradeId, LocalDate eventDate, BigDecimal rate) {
+}
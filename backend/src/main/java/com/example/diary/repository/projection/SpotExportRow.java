@@ -0,0 +1,22 @@
+package com.example.diary.repository.projection;
+
+import com.example.diary.model.SpotTransaction.TransactionType;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Строка выгрузки спотовых транзакций; имена колонок совпадают с заголовками импорта.
+ */
+public record SpotExportRow(
+        Long id,
+        Long portfolioId,
+        LocalDate tradeDate,
+        TransactionType transactionType,
+        String ticker,
+        String company,
+        BigDecimal price,
+        BigDecimal quantity,
+        BigDecimal amount,
+        String note) {
+}
@@ -0,0 +1,16 @@
+package com.example.diary.repository.projection;
+
+import com.example.diary.model.SpotTransaction.TransactionType;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Сумма спотовых движений одного типа за день — денежные потоки для расчёта доходности.
+ */
+public record SpotFlowRow(
+        LocalDate tradeDate,
+        TransactionType transactionType,
+        BigDecimal amount,
+        Long transactions) {
+}
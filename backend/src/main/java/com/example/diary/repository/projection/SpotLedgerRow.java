@@ -0,0 +1,20 @@
+package com.example.diary.repository.projection;
+
+import com.example.diary.model.SpotTransaction.TransactionType;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Движение по спотовому счёту: журнал для свёртки позиций и пересчёта стоимости портфеля по дням.
+ */
+public record SpotLedgerRow(
+        Long id,
+        String ticker,
+        String company,
+        TransactionType transactionType,
+        BigDecimal price,
+        BigDecimal quantity,
+        BigDecimal amount,
+        LocalDate tradeDate) {
+}
@@ -0,0 +1,34 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+
+/**
+ * Сумма сводок реализованного результата по тикеру за диапазон месяцев.
+ */
+public record SymbolPnlRow(
+        String symbol,
+        BigDecimal realizedPnl,
+        BigDecimal grossPnl,
+        BigDecimal interestPaid,
+        Long closedQuantity,
+        Long closeCount,
+        Long winningCount) {
+
+    /** Денежные суммы в другой валюте: rate — курс пересчёта, счётчики не меняются. */
+    public SymbolPnlRow scaled(double rate) {
+        BigDecimal factor = BigDecimal.valueOf(rate);
+        return new SymbolPnlRow(symbol, realizedPnl.multiply(factor), grossPnl.multiply(factor), interestPaid.multiply(factor),
+                closedQuantity, closeCount, winningCount);
+    }
+
+    /** Сумма сводок одного тикера из разных портфелей. */
+    public SymbolPnlRow plus(SymbolPnlRow other) {
+        return new SymbolPnlRow(symbol, realizedPnl.add(other.realizedPnl), grossPnl.add(other.grossPnl),
+                interestPaid.add(other.interestPaid), sum(closedQuantity, other.closedQuantity),
+                sum(closeCount, other.closeCount), sum(winningCount, other.winningCount));
+    }
+
+    private static Long sum(Long a, Long b) {
+        return (a != null ? a : 0L) + (b != null ? b : 0L);
+    }
+}
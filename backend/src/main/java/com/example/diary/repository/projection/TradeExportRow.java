@@ -0,0 +1,23 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Строка выгрузки маржинальных сделок; имена колонок совпадают с заголовками импорта.
+ */
+public record TradeExportRow(
+        Long id,
+        Long portfolioId,
+        String symbol,
+        LocalDate entryDate,
+        BigDecimal entryPrice,
+        Integer quantity,
+        Integer openQuantity,
+        LocalDate exitDate,
+        BigDecimal exitPrice,
+        BigDecimal marginAmount,
+        BigDecimal borrowedAmount,
+        BigDecimal maintenanceMargin,
+        String notes) {
+}
@@ -0,0 +1,31 @@
+package com.example.diary.repository.projection;
+
+import com.example.diary.model.Trade;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Строка журнала сделок: хранимые колонки сделки без вычисляемых @Transient-полей,
+ * закрытий и событий финансирования. Заполняется конструкторным выражением, без загрузки сущности Trade.
+ */
+public record TradeJournalRow(
+        Long id,
+        Long portfolioId,
+        String symbol,
+        LocalDate entryDate,
+        BigDecimal entryPrice,
+        Integer quantity,
+        Integer openQuantity,
+        Integer closedQuantity,
+        LocalDate exitDate,
+        BigDecimal exitPrice,
+        BigDecimal marginAmount,
+        BigDecimal leverage,
+        BigDecimal borrowedAmount,
+        BigDecimal collateralAmount,
+        BigDecimal maintenanceMargin,
+        Trade.FinancingRateType financingRateType,
+        String financingCurrency,
+        String notes) {
+}
@@ -0,0 +1,20 @@
+package com.example.diary.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Маржинальный лот для пересчёта стоимости портфеля по дням (открытые и закрытые).
+ */
+public record TradeLedgerRow(
+        Long id,
+        String symbol,
+        Integer quantity,
+        BigDecimal entryPrice,
+        LocalDate entryDate,
+        BigDecimal exitPrice,
+        LocalDate exitDate,
+        BigDecimal borrowedAmount,
+        BigDecimal marginAmount,
+        BigDecimal maintenanceMargin) {
+}
@@ -57,6 +57,8 @@ public class SecurityConfig {
                 .requestMatchers("/prices/**").permitAll()
                 .requestMatchers("/h2-console/**").permitAll()
                 .requestMatchers("/error").permitAll()
+                // повторная диспетчеризация потоковых ответов (/export): исходный запрос уже авторизован
+                .dispatcherTypeMatchers(jakarta.servlet.DispatcherType.ASYNC).permitAll()
                 .requestMatchers(org.springframework.http.HttpMethod.OPTIONS, "/**").permitAll()
                 .anyRequest().authenticated()
             )
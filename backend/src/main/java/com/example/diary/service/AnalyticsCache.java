@@ -0,0 +1,148 @@
+package com.example.diary.service;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Кэш результатов аналитических эндпоинтов (stats, analytics/*, spot portfolio/stats).
+ * Спотовые portfolio/stats кэшируются поверх журнала SpotLedgerEngine, их ключ включает сводную валюту.
+ * Область кэша — пара (пользователь, портфель); portfolioId = null означает сводку по всем портфелям.
+ * Любая запись в портфель сбрасывает его область и сводную область пользователя.
+ * Метрики попаданий и сбросов тоже ведутся по пользователю: {@link #stats} отдаёт только свои.
+ */
+@Service
+public class AnalyticsCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalyticsCache.class);
+
+    // Ограничение на число вариантов параметров в одной области (разные диапазоны дат и т.п.)
+    private static final int MAX_ENTRIES_PER_SCOPE = 64;
+
+    private record ScopeKey(Long userId, Long portfolioId) {}
+
+    private record CounterKey(Long userId, String endpoint) {}
+
+    private record Entry(Object value, Instant expiresAt) {}
+
+    private static final class Scope {
+        // Поколение растёт при каждом сбросе: результат, посчитанный до сброса, не кладётся в кэш
+        final AtomicLong generation = new AtomicLong();
+        final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    }
+
+    private static final class Counters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+    }
+
+    private final Map<ScopeKey, Scope> scopes = new ConcurrentHashMap<>();
+    private final Map<CounterKey, Counters> counters = new ConcurrentHashMap<>();
+    private final Map<Long, LongAdder> invalidations = new ConcurrentHashMap<>();
+
+    /**
+     * Возвращает закэшированный результат или считает его через loader.
+     *
+     * @param endpoint имя эндпоинта (для ключа и метрик)
+     * @param params   параметры запроса, влияющие на результат
+     * @param ttl      максимальный возраст записи (важно для данных с живыми ценами)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Long userId, Long portfolioId, String endpoint, String params, Duration ttl, Supplier<T> loader) {
+        Scope scope = scopes.computeIfAbsent(new ScopeKey(userId, portfolioId), k -> new Scope());
+        Counters stat = counters.computeIfAbsent(new CounterKey(userId, endpoint), k -> new Counters());
+        String key = endpoint + "|" + params;
+
+        Entry entry = scope.entries.get(key);
+        Instant now = Instant.now();
+        if (entry != null && entry.expiresAt().isAfter(now)) {
+            stat.hits.increment();
+            return (T) entry.value();
+        }
+
+        stat.misses.increment();
+        long generation = scope.generation.get();
+        T value = loader.get();
+        if (value != null) {
+            synchronized (scope) {
+                if (scope.generation.get() == generation) {
+                    if (scope.entries.size() >= MAX_ENTRIES_PER_SCOPE) {
+                        scope.entries.clear();
+                    }
+                    scope.entries.put(key, new Entry(value, now.plus(ttl)));
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Сбрасывает область портфеля и сводную область пользователя.
+     * Если portfolioId == null — все области пользователя.
+     */
+    public void invalidate(Long userId, Long portfolioId) {
+        invalidations.computeIfAbsent(userId, k -> new LongAdder()).increment();
+        scopes.forEach((key, scope) -> {
+            if (!key.userId().equals(userId)) return;
+            if (portfolioId == null || key.portfolioId() == null || key.portfolioId().equals(portfolioId)) {
+                synchronized (scope) {
+                    scope.generation.incrementAndGet();
+                    scope.entries.clear();
+                }
+            }
+        });
+    }
+
+    // После коммита: иначе параллельное чтение успело бы закэшировать старые данные
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPortfolioDataChanged(PortfolioDataChangedEvent event) {
+        logger.debug("Сброс кэша аналитики: user={}, portfolio={}, {}", event.userId(), event.portfolioId(), event.kind());
+        invalidate(event.userId(), event.portfolioId());
+    }
+
+    /** Метрики кэша одного пользователя: его попадания/промахи по эндпоинтам, записи и сбросы. */
+    public Map<String, Object> stats(Long userId) {
+        long hits = 0;
+        long misses = 0;
+        Map<String, Object> byEndpoint = new TreeMap<>();
+        for (Map.Entry<CounterKey, Counters> e : counters.entrySet()) {
+            if (!e.getKey().userId().equals(userId)) continue;
+            long h = e.getValue().hits.sum();
+            long m = e.getValue().misses.sum();
+            hits += h;
+            misses += m;
+            byEndpoint.put(e.getKey().endpoint(), Map.of("hits", h, "misses", m, "hitRatio", ratio(h, m)));
+        }
+        int entries = scopes.entrySet().stream()
+                .filter(e -> e.getKey().userId().equals(userId))
+                .mapToInt(e -> e.getValue().entries.size())
+                .sum();
+        LongAdder userInvalidations = invalidations.get(userId);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", hits);
+        result.put("misses", misses);
+        result.put("hitRatio", ratio(hits, misses));
+        result.put("entries", entries);
+        result.put("invalidations", userInvalidations != null ? userInvalidations.sum() : 0L);
+        result.put("endpoints", byEndpoint);
+        return result;
+    }
+
+    private double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : Math.round(hits * 10000.0 / total) / 10000.0;
+    }
+}
@@ -0,0 +1,411 @@
+package com.example.diary.service;
+
+import com.example.diary.model.FxRate;
+import com.example.diary.repository.FxRateRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.client.RestTemplate;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Курсы валют по дням: официальные курсы ЦБ к рублю, кросс-курсы — через рубль.
+ *
+ * История хранится в fx_rates и в памяти по валюте; недостающий диапазон дат догружается одним запросом
+ * XML_dynamic ЦБ и дописывается в таблицу. Курс на выходной или праздник — последний известный до даты.
+ * Если источник недоступен (или fx.source=offline) и истории нет, берётся курс заглушки fx.offline-rates
+ * с source = offline — так отчёты в сводной валюте работают без сети, а подмена видна в ответе.
+ */
+@Service
+public class FxRateService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FxRateService.class);
+
+    public static final String BASE_CURRENCY = "RUB";
+
+    private static final int SCALE = 8;
+    // Курс на начало диапазона может быть опубликован до него (выходные, праздники)
+    private static final int LOOKBACK_DAYS = 14;
+    private static final DateTimeFormatter CBR_REQUEST_DATE = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+    private static final DateTimeFormatter CBR_RECORD_DATE = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+
+    // Внутренние коды валют ЦБ для XML_dynamic
+    private static final Map<String, String> CBR_CODES = Map.ofEntries(
+            Map.entry("USD", "R01235"),
+            Map.entry("EUR", "R01239"),
+            Map.entry("CNY", "R01375"),
+            Map.entry("GBP", "R01035"),
+            Map.entry("CHF", "R01775"),
+            Map.entry("JPY", "R01820"),
+            Map.entry("HKD", "R01200"),
+            Map.entry("KZT", "R01335"),
+            Map.entry("TRY", "R01700J"),
+            Map.entry("BYN", "R01090B")
+    );
+
+    /** Курс: сколько единиц to стоит одна единица from на дату date. */
+    public record Rate(String from, String to, LocalDate date, BigDecimal rate, String source) {
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("from", from);
+            map.put("to", to);
+            map.put("date", date);
+            map.put("rate", rate);
+            map.put("source", source);
+            return map;
+        }
+    }
+
+    /** Рублей за единицу валюты. */
+    private record RubRate(BigDecimal value, String source) {
+        static final RubRate ONE = new RubRate(BigDecimal.ONE, "identity");
+    }
+
+    /** Известная история валюты: курсы по датам и диапазон, уже запрошенный у источника. */
+    private static final class Series {
+        final TreeMap<LocalDate, BigDecimal> rates = new TreeMap<>();
+        LocalDate coveredFrom;
+        LocalDate coveredTo;
+        Instant failedAt;
+    }
+
+    /**
+     * Пересчёт сумм в одну валюту на одну дату. Курс каждой исходной валюты получается один раз,
+     * дальше позиции и итоги умножаются на готовый множитель. Не потокобезопасен — на один расчёт.
+     */
+    public final class Converter {
+        private final String currency;
+        private final LocalDate date;
+        private final Map<String, Rate> rates = new LinkedHashMap<>();
+
+        private Converter(String currency, LocalDate date) {
+            this.currency = currency;
+            this.date = date;
+        }
+
+        /** Валюта, в которую пересчитываются суммы. */
+        public String currency() {
+            return currency;
+        }
+
+        /** Курс from → валюта пересчёта; пустая валюта считается валютой пересчёта. */
+        public Rate rate(String from) {
+            String code = normalize(from);
+            if (code == null || code.equals(currency)) {
+                return new Rate(currency, currency, date, BigDecimal.ONE, "identity");
+            }
+            return rates.computeIfAbsent(code, c -> FxRateService.this.rate(c, currency, date));
+        }
+
+        /** Множитель для сумм в валюте from. */
+        public BigDecimal factor(String from) {
+            return rate(from).rate();
+        }
+
+        public BigDecimal convert(BigDecimal amount, String from) {
+            BigDecimal factor = factor(from);
+            return amount == null || factor.compareTo(BigDecimal.ONE) == 0 ? amount : amount.multiply(factor);
+        }
+
+        public double convert(double amount, String from) {
+            BigDecimal factor = factor(from);
+            return factor.compareTo(BigDecimal.ONE) == 0 ? amount : amount * factor.doubleValue();
+        }
+
+        /** Курсы, по которым уже пересчитывались суммы, — для ответа. */
+        public List<Map<String, Object>> used() {
+            return rates.values().stream().map(Rate::toMap).toList();
+        }
+    }
+
+    private final FxRateRepository fxRateRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final RestTemplate restTemplate;
+    private final String reportingCurrency;
+    private final boolean offline;
+    private final Map<String, BigDecimal> offlineRates;
+    private final Duration retryAfter;
+
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    public FxRateService(FxRateRepository fxRateRepository,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${fx.reporting-currency:RUB}") String reportingCurrency,
+                         @Value("${fx.source:cbr}") String source,
+                         @Value("${fx.offline-rates:}") String offlineRates,
+                         @Value("${fx.retry-minutes:30}") long retryMinutes) {
+        this.fxRateRepository = fxRateRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.restTemplate = createRestTemplate();
+        this.reportingCurrency = normalize(reportingCurrency) != null ? normalize(reportingCurrency) : BASE_CURRENCY;
+        this.offline = "offline".equalsIgnoreCase(source);
+        this.offlineRates = parseRates(offlineRates);
+        this.retryAfter = Duration.ofMinutes(Math.max(1, retryMinutes));
+    }
+
+    /** Сводная валюта отчёта: запрошенная или fx.reporting-currency. */
+    public String reportingCurrency(String requested) {
+        String code = normalize(requested);
+        if (code == null) {
+            return reportingCurrency;
+        }
+        if (!isCurrencyCode(code) && !offlineRates.containsKey(code)) {
+            throw new IllegalArgumentException("Валюта " + code + " не поддерживается");
+        }
+        return code;
+    }
+
+    /** Тикер — код валюты (так в спотовых транзакциях помечают движения денег: USD, RUB). */
+    public static boolean isCurrencyCode(String ticker) {
+        String code = normalize(ticker);
+        return code != null && (BASE_CURRENCY.equals(code) || CBR_CODES.containsKey(code));
+    }
+
+    public Converter converter(String currency, LocalDate date) {
+        return new Converter(reportingCurrency(currency), date);
+    }
+
+    /** Курс from → to на дату: последний известный на эту дату. */
+    public Rate rate(String from, String to, LocalDate date) {
+        String f = normalize(from);
+        String t = normalize(to);
+        if (f == null || t == null || f.equals(t)) {
+            return new Rate(f, t, date, BigDecimal.ONE, "identity");
+        }
+        load(f, date, date);
+        load(t, date, date);
+        RubRate fromRub = rubRate(f, date);
+        RubRate toRub = rubRate(t, date);
+        BigDecimal cross = fromRub.value().divide(toRub.value(), SCALE, RoundingMode.HALF_UP);
+        String source = t.equals(BASE_CURRENCY) ? fromRub.source()
+                : f.equals(BASE_CURRENCY) ? toRub.source()
+                : fromRub.source().equals(toRub.source()) ? fromRub.source() : fromRub.source() + "/" + toRub.source();
+        return new Rate(f, t, date, cross, source);
+    }
+
+    /**
+     * Курсы from → to на каждую из дат: история догружается один раз на весь диапазон,
+     * дальше курс дня — поиск в отсортированном ряду. Для пересчёта дневных рядов (кривых, потоков).
+     */
+    public double[] rates(String from, String to, List<LocalDate> dates) {
+        double[] result = new double[dates.size()];
+        String f = normalize(from);
+        String t = normalize(to);
+        if (f == null || t == null || f.equals(t) || dates.isEmpty()) {
+            Arrays.fill(result, 1.0);
+            return result;
+        }
+        LocalDate min = Collections.min(dates);
+        LocalDate max = Collections.max(dates);
+        load(f, min, max);
+        load(t, min, max);
+        for (int i = 0; i < result.length; i++) {
+            result[i] = rubRate(f, dates.get(i)).value().doubleValue() / rubRate(t, dates.get(i)).value().doubleValue();
+        }
+        return result;
+    }
+
+    // Догружает историю валюты на [from, to], если её ещё нет в памяти
+    private void load(String currency, LocalDate from, LocalDate to) {
+        if (BASE_CURRENCY.equals(currency)) {
+            return;
+        }
+        Series s = series.computeIfAbsent(currency, this::loadSeries);
+        synchronized (s) {
+            ensureCovered(currency, s, from, to);
+        }
+    }
+
+    private RubRate rubRate(String currency, LocalDate date) {
+        if (BASE_CURRENCY.equals(currency)) {
+            return RubRate.ONE;
+        }
+        Series s = series.computeIfAbsent(currency, this::loadSeries);
+        BigDecimal value;
+        synchronized (s) {
+            Map.Entry<LocalDate, BigDecimal> entry = s.rates.floorEntry(date);
+            if (entry == null) {
+                // дата раньше начала истории — ближайший известный курс
+                entry = s.rates.ceilingEntry(date);
+            }
+            value = entry != null ? entry.getValue() : null;
+        }
+        if (value != null) {
+            return new RubRate(value, "cbr");
+        }
+        BigDecimal stub = offlineRates.get(currency);
+        if (stub == null) {
+            throw new IllegalArgumentException("Нет курса валюты " + currency + " к " + BASE_CURRENCY);
+        }
+        return new RubRate(stub, "offline");
+    }
+
+    private Series loadSeries(String currency) {
+        Series s = new Series();
+        for (FxRate row : fxRateRepository.findByCurrencyOrderByRateDateAsc(currency)) {
+            s.rates.put(row.getRateDate(), row.getRate());
+        }
+        if (!s.rates.isEmpty()) {
+            s.coveredFrom = s.rates.firstKey();
+            s.coveredTo = s.rates.lastKey();
+        }
+        return s;
+    }
+
+    /** Догружает у ЦБ даты [from, to], которых ещё нет в ряду. Вызывается под блокировкой ряда. */
+    private void ensureCovered(String currency, Series s, LocalDate from, LocalDate to) {
+        String code = CBR_CODES.get(currency);
+        if (offline || code == null) {
+            return;
+        }
+        LocalDate today = LocalDate.now();
+        LocalDate end = to.isAfter(today) ? today : to;
+        if (s.coveredFrom != null && !from.isBefore(s.coveredFrom) && !end.isAfter(s.coveredTo)) {
+            return;
+        }
+        // после неудачи источник не дёргается до истечения паузы: отвечаем по тому, что есть
+        if (s.failedAt != null && Duration.between(s.failedAt, Instant.now()).compareTo(retryAfter) < 0) {
+            return;
+        }
+        LocalDate start = from.minusDays(LOOKBACK_DAYS);
+        List<LocalDate[]> gaps = new ArrayList<>();
+        if (s.coveredFrom == null) {
+            gaps.add(new LocalDate[]{start, end});
+        } else {
+            if (from.isBefore(s.coveredFrom)) {
+                gaps.add(new LocalDate[]{start, s.coveredFrom.minusDays(1)});
+            }
+            if (end.isAfter(s.coveredTo)) {
+                gaps.add(new LocalDate[]{s.coveredTo.plusDays(1), end});
+            }
+        }
+        for (LocalDate[] gap : gaps) {
+            TreeMap<LocalDate, BigDecimal> fetched;
+            try {
+                fetched = fetchCbr(code, gap[0], gap[1]);
+            } catch (Exception e) {
+                s.failedAt = Instant.now();
+                logger.warn("Курсы {} за {}..{} у ЦБ не получены: {}", currency, gap[0], gap[1], e.getMessage());
+                return;
+            }
+            Map<LocalDate, BigDecimal> added = new TreeMap<>();
+            fetched.forEach((date, rate) -> {
+                if (!s.rates.containsKey(date)) {
+                    added.put(date, rate);
+                }
+            });
+            s.rates.putAll(fetched);
+            s.coveredFrom = s.coveredFrom == null || gap[0].isBefore(s.coveredFrom) ? gap[0] : s.coveredFrom;
+            s.coveredTo = s.coveredTo == null || gap[1].isAfter(s.coveredTo) ? gap[1] : s.coveredTo;
+            s.failedAt = null;
+            save(currency, added);
+        }
+    }
+
+    private void save(String currency, Map<LocalDate, BigDecimal> rates) {
+        if (rates.isEmpty()) {
+            return;
+        }
+        List<FxRate> rows = new ArrayList<>(rates.size());
+        rates.forEach((date, rate) -> {
+            FxRate row = new FxRate();
+            row.setCurrency(currency);
+            row.setRateDate(date);
+            row.setRate(rate);
+            row.setSource("cbr");
+            rows.add(row);
+        });
+        try {
+            transactionTemplate.executeWithoutResult(status -> fxRateRepository.saveAll(rows));
+            logger.debug("Курсы {}: сохранено {} дней", currency, rows.size());
+        } catch (DataIntegrityViolationException e) {
+            // те же дни уже записал другой экземпляр — в памяти ряд и так полный
+            logger.debug("Курсы {} уже сохранены: {}", currency, e.getMessage());
+        }
+    }
+
+    /** Динамика официального курса: рублей за единицу валюты по датам установления. */
+    private TreeMap<LocalDate, BigDecimal> fetchCbr(String code, LocalDate from, LocalDate to) throws Exception {
+        String url = String.format("https://www.cbr.ru/scripts/XML_dynamic.asp?date_req1=%s&date_req2=%s&VAL_NM_RQ=%s",
+                from.format(CBR_REQUEST_DATE), to.format(CBR_REQUEST_DATE), code);
+        byte[] body = restTemplate.getForObject(url, byte[].class);
+        TreeMap<LocalDate, BigDecimal> rates = new TreeMap<>();
+        if (body == null || body.length == 0) {
+            return rates;
+        }
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        // кодировка (windows-1251) берётся из XML-декларации
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+        NodeList records = document.getElementsByTagName("Record");
+        for (int i = 0; i < records.getLength(); i++) {
+            Element record = (Element) records.item(i);
+            LocalDate date = LocalDate.parse(record.getAttribute("Date"), CBR_RECORD_DATE);
+            BigDecimal nominal = decimal(record.getElementsByTagName("Nominal").item(0).getTextContent());
+            BigDecimal value = decimal(record.getElementsByTagName("Value").item(0).getTextContent());
+            rates.put(date, value.divide(nominal, SCALE, RoundingMode.HALF_UP));
+        }
+        return rates;
+    }
+
+    private static BigDecimal decimal(String text) {
+        return new BigDecimal(text.trim().replace(" ", "").replace(',', '.'));
+    }
+
+    // Формат: USD:90,EUR:98.5 — рублей за единицу
+    private static Map<String, BigDecimal> parseRates(String value) {
+        Map<String, BigDecimal> rates = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return rates;
+        }
+        for (String pair : value.split(",")) {
+            String[] parts = pair.split(":");
+            if (parts.length == 2 && normalize(parts[0]) != null) {
+                try {
+                    rates.put(normalize(parts[0]), new BigDecimal(parts[1].trim()));
+                } catch (NumberFormatException e) {
+                    logger.warn("Курс заглушки {} пропущен: {}", pair, e.getMessage());
+                }
+            }
+        }
+        return rates;
+    }
+
+    private static String normalize(String currency) {
+        return currency == null || currency.isBlank() ? null : currency.trim().toUpperCase(Locale.ROOT);
+    }
+
+    private static RestTemplate createRestTemplate() {
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        factory.setConnectTimeout((int) Duration.ofSeconds(3).toMillis());
+        factory.setReadTimeout((int) Duration.ofSeconds(8).toMillis());
+        return new RestTemplate(factory);
+    }
+}
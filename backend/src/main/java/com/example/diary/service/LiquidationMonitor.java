@@ -0,0 +1,359 @@
+package com.example.diary.service;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.event.PriceUpdatedEvent;
+import com.example.diary.model.Trade;
+import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.LiquidationLot;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Монитор маржин-коллов и ликвидаций по открытым маржинальным сделкам.
+ *
+ * Держит индекс: тикер -> лоты, упорядоченные по цене ликвидации. На каждую свежую котировку
+ * (PriceUpdatedEvent) затронутые лоты находятся диапазонным запросом tailMap по порогу
+ * price / (1 + warning%), то есть за O(log n + попадания), без обхода всех сделок.
+ * Лот с ценой ликвидации не ниже текущей цены — LIQUIDATION, в пределах warning% — MARGIN_CALL.
+ * Изменения уровня рассылаются владельцу по SSE.
+ */
+@Service
+public class LiquidationMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiquidationMonitor.class);
+
+    private static final long EMITTER_TIMEOUT_MS = 30 * 60 * 1000L;
+
+    public enum Level { MARGIN_CALL, LIQUIDATION }
+
+    /** Активный сигнал по лоту; distancePercent — на сколько процентов цена выше цены ликвидации. */
+    public record Alert(long tradeId, long portfolioId, String symbol, Level level, double price,
+                        double liquidationPrice, double distancePercent, Instant at) {}
+
+    private record Position(long tradeId, long userId, long portfolioId, String symbol, double liquidationPrice) {
+        IndexKey key() {
+            return new IndexKey(liquidationPrice, tradeId);
+        }
+    }
+
+    // цена ликвидации не уникальна — id сделки делает ключ уникальным
+    private record IndexKey(double liquidationPrice, long tradeId) implements Comparable<IndexKey> {
+        private static final Comparator<IndexKey> ORDER = Comparator
+                .comparingDouble(IndexKey::liquidationPrice)
+                .thenComparingLong(IndexKey::tradeId);
+
+        @Override
+        public int compareTo(IndexKey other) {
+            return ORDER.compare(this, other);
+        }
+    }
+
+    /** Лоты и активные сигналы одного тикера; изменения сигналов идут под монитором книги. */
+    private static final class SymbolBook {
+        final ConcurrentSkipListMap<IndexKey, Position> byLiquidationPrice = new ConcurrentSkipListMap<>();
+        final Map<Long, Alert> alerts = new HashMap<>();
+        volatile Double lastPrice;
+    }
+
+    private final TradeRepository tradeRepository;
+    private final PriceService priceService;
+    private final double warningPercent;
+    private final long refreshSeconds;
+
+    private final Map<String, SymbolBook> books = new ConcurrentHashMap<>();
+    private final Map<Long, Position> positions = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Long>> tradesByUser = new ConcurrentHashMap<>();
+    private final Map<Long, List<SseEmitter>> subscribers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "liquidation-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LiquidationMonitor(TradeRepository tradeRepository,
+                              PriceService priceService,
+                              @Value("${risk.monitor.warning-percent:10}") double warningPercent,
+                              @Value("${risk.monitor.refresh-seconds:60}") long refreshSeconds) {
+        this.tradeRepository = tradeRepository;
+        this.priceService = priceService;
+        this.warningPercent = warningPercent;
+        this.refreshSeconds = refreshSeconds;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        List<LiquidationLot> lots = tradeRepository.findLiquidationLots(null);
+        Map<Long, List<LiquidationLot>> byUser = new HashMap<>();
+        for (LiquidationLot lot : lots) {
+            byUser.computeIfAbsent(lot.userId(), k -> new ArrayList<>()).add(lot);
+        }
+        byUser.forEach(this::replaceUserPositions);
+        logger.info("Монитор ликвидаций: в индексе {} лотов по {} тикерам", positions.size(), books.size());
+
+        // Котировки по тикерам из индекса обновляются периодически; оценка срабатывает на PriceUpdatedEvent
+        if (refreshSeconds > 0) {
+            refresher.scheduleWithFixedDelay(this::refreshPrices, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void refreshPrices() {
+        try {
+            List<String> symbols = books.entrySet().stream()
+                    .filter(e -> !e.getValue().byLiquidationPrice.isEmpty())
+                    .map(Map.Entry::getKey)
+                    .toList();
+            if (!symbols.isEmpty()) {
+                priceService.getPriceSnapshot(symbols, refreshSeconds);
+            }
+        } catch (Exception e) {
+            logger.warn("Не удалось обновить котировки для монитора ликвидаций: {}", e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void onPriceUpdated(PriceUpdatedEvent event) {
+        SymbolBook book = books.get(event.ticker());
+        if (book == null) {
+            return;
+        }
+        book.lastPrice = event.price();
+        evaluate(event.ticker(), book, event.price(), event.at());
+    }
+
+    // После коммита: индекс перечитывает лоты пользователя и должен увидеть записанное
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPortfolioDataChanged(PortfolioDataChangedEvent event) {
+        if (event.kind() != PortfolioDataChangedEvent.Kind.TRADES || event.userId() == null) {
+            return;
+        }
+        try {
+            replaceUserPositions(event.userId(), tradeRepository.findLiquidationLots(event.userId()));
+        } catch (Exception e) {
+            logger.warn("Не удалось обновить индекс ликвидаций пользователя {}: {}", event.userId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Заменяет лоты пользователя в индексе и переоценивает затронутые тикеры по последней известной цене.
+     */
+    private synchronized void replaceUserPositions(Long userId, List<LiquidationLot> lots) {
+        Set<String> touched = new HashSet<>();
+        Set<Long> previous = tradesByUser.getOrDefault(userId, Set.of());
+        Set<Long> current = ConcurrentHashMap.newKeySet();
+
+        for (LiquidationLot lot : lots) {
+            Position position = toPosition(lot);
+            if (position == null) {
+                continue;
+            }
+            current.add(position.tradeId());
+            Position old = positions.put(position.tradeId(), position);
+            if (old != null && old.equals(position)) {
+                continue;
+            }
+            if (old != null) {
+                removeFromBook(old);
+                touched.add(old.symbol());
+            }
+            books.computeIfAbsent(position.symbol(), s -> new SymbolBook())
+                    .byLiquidationPrice.put(position.key(), position);
+            touched.add(position.symbol());
+        }
+        for (Long tradeId : previous) {
+            if (!current.contains(tradeId)) {
+                Position old = positions.remove(tradeId);
+                if (old != null) {
+                    removeFromBook(old);
+                    touched.add(old.symbol());
+                }
+            }
+        }
+        tradesByUser.put(userId, current);
+
+        for (String symbol : touched) {
+            SymbolBook book = books.get(symbol);
+            if (book != null && book.lastPrice != null) {
+                evaluate(symbol, book, book.lastPrice, Instant.now());
+            }
+        }
+    }
+
+    private Position toPosition(LiquidationLot lot) {
+        if (lot.symbol() == null) {
+            return null;
+        }
+        BigDecimal principal = lot.borrowedAmount();
+        if (principal == null && lot.entryPrice() != null && lot.quantity() != null) {
+            principal = lot.entryPrice().multiply(BigDecimal.valueOf(lot.quantity()));
+        }
+        Double liquidationPrice = Trade.liquidationPrice(principal, lot.quantity(), lot.maintenanceMargin());
+        if (liquidationPrice == null) {
+            return null;
+        }
+        return new Position(lot.id(), lot.userId(), lot.portfolioId(),
+                PriceService.canonicalTicker(lot.symbol()), liquidationPrice);
+    }
+
+    private void removeFromBook(Position position) {
+        SymbolBook book = books.get(position.symbol());
+        if (book == null) {
+            return;
+        }
+        book.byLiquidationPrice.remove(position.key());
+        synchronized (book) {
+            book.alerts.remove(position.tradeId());
+        }
+    }
+
+    private void evaluate(String symbol, SymbolBook book, double price, Instant at) {
+        if (price <= 0) {
+            return;
+        }
+        IndexKey threshold = new IndexKey(price / (1 + warningPercent / 100.0), Long.MIN_VALUE);
+        List<Alert> raised = new ArrayList<>();
+        List<Alert> cleared = new ArrayList<>();
+
+        synchronized (book) {
+            Set<Long> hit = new HashSet<>();
+            for (Position position : book.byLiquidationPrice.tailMap(threshold, true).values()) {
+                hit.add(position.tradeId());
+                Level level = position.liquidationPrice() >= price ? Level.LIQUIDATION : Level.MARGIN_CALL;
+                Alert previous = book.alerts.get(position.tradeId());
+                if (previous != null && previous.level() == level) {
+                    continue;
+                }
+                double distance = (price - position.liquidationPrice()) / position.liquidationPrice() * 100;
+                Alert alert = new Alert(position.tradeId(), position.portfolioId(), symbol, level, price,
+                        position.liquidationPrice(), Math.round(distance * 100) / 100.0, at);
+                book.alerts.put(position.tradeId(), alert);
+                raised.add(alert);
+            }
+            // сигналы, из-под которых цена ушла вверх; их не больше, чем активных сигналов по тикеру
+            book.alerts.values().removeIf(alert -> {
+                if (hit.contains(alert.tradeId())) {
+                    return false;
+                }
+                cleared.add(alert);
+                return true;
+            });
+        }
+
+        for (Alert alert : raised) {
+            logger.info("{} {}: цена {} при цене ликвидации {} (сделка {})",
+                    alert.level(), symbol, price, alert.liquidationPrice(), alert.tradeId());
+            send(ownerOf(alert.tradeId()), "alert", alert);
+        }
+        for (Alert alert : cleared) {
+            send(ownerOf(alert.tradeId()), "cleared", alert);
+        }
+    }
+
+    private Long ownerOf(long tradeId) {
+        Position position = positions.get(tradeId);
+        return position != null ? position.userId() : null;
+    }
+
+    /** Активные сигналы пользователя; portfolioId = null — по всем портфелям. */
+    public List<Alert> activeAlerts(Long userId, Long portfolioId) {
+        List<Alert> result = new ArrayList<>();
+        for (Long tradeId : tradesByUser.getOrDefault(userId, Set.of())) {
+            Position position = positions.get(tradeId);
+            if (position == null || (portfolioId != null && position.portfolioId() != portfolioId)) {
+                continue;
+            }
+            SymbolBook book = books.get(position.symbol());
+            if (book == null) {
+                continue;
+            }
+            synchronized (book) {
+                Alert alert = book.alerts.get(tradeId);
+                if (alert != null) {
+                    result.add(alert);
+                }
+            }
+        }
+        result.sort(Comparator.comparingDouble(Alert::distancePercent));
+        return result;
+    }
+
+    /**
+     * Подписка на сигналы: сразу отправляет событие snapshot с активными сигналами,
+     * далее alert (новый сигнал или смена уровня) и cleared (цена ушла из зоны риска).
+     */
+    public SseEmitter subscribe(Long userId) {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MS);
+        List<SseEmitter> userEmitters = subscribers.computeIfAbsent(userId, k -> new CopyOnWriteArrayList<>());
+        userEmitters.add(emitter);
+        emitter.onCompletion(() -> userEmitters.remove(emitter));
+        emitter.onTimeout(() -> userEmitters.remove(emitter));
+        emitter.onError(e -> userEmitters.remove(emitter));
+        try {
+            emitter.send(SseEmitter.event().name("snapshot").data(activeAlerts(userId, null)));
+        } catch (IOException e) {
+            userEmitters.remove(emitter);
+            emitter.completeWithError(e);
+        }
+        return emitter;
+    }
+
+    private void send(Long userId, String name, Alert alert) {
+        if (userId == null) {
+            return;
+        }
+        List<SseEmitter> userEmitters = subscribers.get(userId);
+        if (userEmitters == null) {
+            return;
+        }
+        for (SseEmitter emitter : userEmitters) {
+            try {
+                emitter.send(SseEmitter.event().name(name).data(alert));
+            } catch (Exception e) {
+                // клиент отключился — соединение закроет контейнер
+                userEmitters.remove(emitter);
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        int alerts = 0;
+        for (SymbolBook book : books.values()) {
+            synchronized (book) {
+                alerts += book.alerts.size();
+            }
+        }
+        int streams = subscribers.values().stream().mapToInt(List::size).sum();
+        return Map.of("positions", positions.size(), "symbols", books.size(),
+                "activeAlerts", alerts, "subscribers", streams, "warningPercent", warningPercent);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+        subscribers.values().forEach(list -> list.forEach(SseEmitter::complete));
+    }
+}
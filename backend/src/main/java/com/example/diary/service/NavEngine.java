@@ -0,0 +1,583 @@
+package com.example.diary.service;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.model.NavSnapshot;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.SpotTransaction;
+import com.example.diary.repository.FinancingEventRepository;
+import com.example.diary.repository.NavSnapshotRepository;
+import com.example.diary.repository.SpotTransactionRepository;
+import com.example.diary.repository.TradeClosureRepository;
+import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.ClosureLedgerRow;
+import com.example.diary.repository.projection.RateChangePoint;
+import com.example.diary.repository.projection.SpotLedgerRow;
+import com.example.diary.repository.projection.TradeLedgerRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Дневная стоимость портфеля (NAV) и кривая капитала.
+ *
+ * NAV = спотовые бумаги + деньги + открытые маржинальные лоты − непогашенный заём − начисленные проценты.
+ * Деньги — сумма спотовых движений и выручка закрытых маржинальных лотов за вычетом займа и процентов.
+ * Цены — локальная история закрытий ({@link PriceHistoryService}) и цены самих сделок, без дыр:
+ * день без котировки берёт последнюю известную.
+ *
+ * Завершённые дни сохраняются в nav_snapshots и при следующем запросе только продлеваются от последнего
+ * снимка: состояние на начало отрезка сворачивается из журнала (линейно по числу записей), а оценка
+ * по дням считается только для новых дней. Текущий день считается на лету и не сохраняется.
+ * Любая запись в портфель сбрасывает его снимки — журнал мог измениться задним числом: после коммита
+ * записи снимки удаляются из таблицы, поэтому устаревшие дни не переживают и перезапуск процесса.
+ */
+@Service
+public class NavEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(NavEngine.class);
+
+    // Нижняя граница диапазона, если from не задан
+    private static final LocalDate EPOCH = LocalDate.of(1900, 1, 1);
+
+    /**
+     * Стоимость портфеля на конец дня.
+     *
+     * @param netFlow внешний поток дня (пополнения/выводы спота, собственные средства новых маржинальных лотов)
+     */
+    public record Point(LocalDate date, double spotValue, double cash, double marginValue,
+                        double borrowed, double accruedInterest, double nav, double netFlow) {
+
+        Point plus(Point other) {
+            return new Point(date, round(spotValue + other.spotValue), round(cash + other.cash),
+                    round(marginValue + other.marginValue), round(borrowed + other.borrowed),
+                    round(accruedInterest + other.accruedInterest), round(nav + other.nav),
+                    round(netFlow + other.netFlow));
+        }
+
+        /** Точка в другой валюте по курсу её дня. */
+        Point scaled(double rate) {
+            return new Point(date, round(spotValue * rate), round(cash * rate), round(marginValue * rate),
+                    round(borrowed * rate), round(accruedInterest * rate), round(nav * rate), round(netFlow * rate));
+        }
+
+        static Point of(NavSnapshot s) {
+            return new Point(s.getSnapshotDate(), s.getSpotValue().doubleValue(), s.getCash().doubleValue(),
+                    s.getMarginValue().doubleValue(), s.getBorrowed().doubleValue(),
+                    s.getAccruedInterest().doubleValue(), s.getNav().doubleValue(), s.getNetFlow().doubleValue());
+        }
+
+        NavSnapshot toSnapshot(Long portfolioId) {
+            NavSnapshot s = new NavSnapshot();
+            s.setPortfolioId(portfolioId);
+            s.setSnapshotDate(date);
+            s.setSpotValue(money(spotValue));
+            s.setCash(money(cash));
+            s.setMarginValue(money(marginValue));
+            s.setBorrowed(money(borrowed));
+            s.setAccruedInterest(money(accruedInterest));
+            s.setNav(money(nav));
+            s.setNetFlow(money(netFlow));
+            return s;
+        }
+    }
+
+    /**
+     * Открытый маржинальный лот на дату оценки.
+     *
+     * @param principal непогашенный заём открытой части
+     * @param rate      действующая ставка, % годовых
+     */
+    public record MarginExposure(long tradeId, long portfolioId, String symbol, int openQuantity, int quantity,
+                                 double principal, double rate, BigDecimal maintenanceMargin, double price) {
+
+        MarginExposure scaled(double fx) {
+            return new MarginExposure(tradeId, portfolioId, symbol, openQuantity, quantity,
+                    principal * fx, rate, maintenanceMargin, price * fx);
+        }
+    }
+
+    /** Спотовая позиция на дату оценки. */
+    public record SpotExposure(long portfolioId, String symbol, double quantity, double price) {
+
+        SpotExposure scaled(double fx) {
+            return new SpotExposure(portfolioId, symbol, quantity, price * fx);
+        }
+    }
+
+    /** Позиции портфеля на дату: то, из чего складывается NAV этого дня. */
+    public record Exposure(LocalDate date, double cash, double accruedInterest,
+                           List<MarginExposure> margin, List<SpotExposure> spot) {
+
+        /** Позиции в другой валюте: деньги, заём, проценты и цены по одному курсу, ставки без изменений. */
+        public Exposure scaled(double fx) {
+            if (fx == 1) {
+                return this;
+            }
+            return new Exposure(date, cash * fx, accruedInterest * fx,
+                    margin.stream().map(m -> m.scaled(fx)).toList(),
+                    spot.stream().map(s -> s.scaled(fx)).toList());
+        }
+    }
+
+    private final TradeRepository tradeRepository;
+    private final TradeClosureRepository tradeClosureRepository;
+    private final FinancingEventRepository financingEventRepository;
+    private final SpotTransactionRepository spotTransactionRepository;
+    private final NavSnapshotRepository navSnapshotRepository;
+    private final PriceHistoryService priceHistoryService;
+    private final FxRateService fxRateService;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate invalidationTemplate;
+
+    // Счётчики записей: портфеля и пользователя целиком (событие без portfolioId)
+    private final Map<Long, AtomicLong> portfolioStamps = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicLong> userStamps = new ConcurrentHashMap<>();
+    // Значение счётчиков, при котором снимки портфеля последний раз признаны актуальными
+    private final Map<Long, Long> validatedStamps = new ConcurrentHashMap<>();
+    private final Map<Long, Object> portfolioLocks = new ConcurrentHashMap<>();
+
+    public NavEngine(TradeRepository tradeRepository,
+                     TradeClosureRepository tradeClosureRepository,
+                     FinancingEventRepository financingEventRepository,
+                     SpotTransactionRepository spotTransactionRepository,
+                     NavSnapshotRepository navSnapshotRepository,
+                     PriceHistoryService priceHistoryService,
+                     FxRateService fxRateService,
+                     PlatformTransactionManager transactionManager) {
+        this.tradeRepository = tradeRepository;
+        this.tradeClosureRepository = tradeClosureRepository;
+        this.financingEventRepository = financingEventRepository;
+        this.spotTransactionRepository = spotTransactionRepository;
+        this.navSnapshotRepository = navSnapshotRepository;
+        this.priceHistoryService = priceHistoryService;
+        this.fxRateService = fxRateService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // после коммита ресурсы исходной транзакции ещё привязаны к потоку — удаление идёт в собственной
+        this.invalidationTemplate = new TransactionTemplate(transactionManager);
+        this.invalidationTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Кривая капитала портфеля за [from, to]; from = null — с первой записи журнала, to = null — по сегодня.
+     * Владение портфелем проверяет вызывающий.
+     */
+    public List<Point> curve(Long userId, Long portfolioId, LocalDate from, LocalDate to) {
+        LocalDate today = LocalDate.now();
+        LocalDate end = to == null || to.isAfter(today) ? today : to;
+        LocalDate start = from != null ? from : EPOCH;
+        if (start.isAfter(end)) {
+            return List.of();
+        }
+        LocalDate lastClosedDay = today.minusDays(1);
+
+        synchronized (portfolioLocks.computeIfAbsent(portfolioId, k -> new Object())) {
+            long stamp = stamp(userId, portfolioId);
+            Long validated = validatedStamps.get(portfolioId);
+            // до первой записи после старта процесса сохранённым снимкам можно верить: записи прошлых
+            // запусков уже удалили их в onPortfolioDataChanged
+            if (validated != null ? validated != stamp : stamp != 0) {
+                int removed = transactionTemplate.execute(status -> navSnapshotRepository.deleteByPortfolio(portfolioId));
+                logger.debug("NAV портфеля {}: журнал изменился, сброшено снимков {}", portfolioId, removed);
+            }
+            validatedStamps.put(portfolioId, stamp);
+
+            LocalDate last = navSnapshotRepository.findLastDate(portfolioId);
+            List<Point> points = new ArrayList<>();
+            if (last != null) {
+                LocalDate storedTo = last.isBefore(end) ? last : end;
+                navSnapshotRepository.findRange(portfolioId, start, storedTo).forEach(s -> points.add(Point.of(s)));
+            }
+            if (last != null && !last.isBefore(end)) {
+                return points;
+            }
+
+            Ledger ledger = loadLedger(portfolioId, end);
+            if (ledger.firstDate == null) {
+                return points;
+            }
+            LocalDate evalFrom = last != null ? last.plusDays(1) : ledger.firstDate;
+            List<Point> fresh = ledger.evaluate(evalFrom, end);
+
+            List<NavSnapshot> closedDays = fresh.stream()
+                    .filter(p -> !p.date().isAfter(lastClosedDay))
+                    .map(p -> p.toSnapshot(portfolioId))
+                    .toList();
+            // запись, закоммиченная во время расчёта, могла не попасть в журнал — такие дни не сохраняем
+            if (!closedDays.isEmpty() && stamp(userId, portfolioId) == stamp) {
+                transactionTemplate.executeWithoutResult(status -> navSnapshotRepository.saveAll(closedDays));
+                logger.debug("NAV портфеля {}: сохранено снимков {} ({} .. {})", portfolioId, closedDays.size(),
+                        closedDays.get(0).getSnapshotDate(), closedDays.get(closedDays.size() - 1).getSnapshotDate());
+            }
+            for (Point p : fresh) {
+                if (!p.date().isBefore(start)) {
+                    points.add(p);
+                }
+            }
+            return points;
+        }
+    }
+
+    /**
+     * Кривая портфеля в валюте currency: точка каждого дня пересчитывается по курсу этого дня.
+     * Снимки хранятся в валюте портфеля, пересчёт — поверх них.
+     */
+    public List<Point> curve(Long userId, Portfolio portfolio, String currency, LocalDate from, LocalDate to) {
+        return convert(curve(userId, portfolio.getId(), from, to), portfolio.getCurrency(), currency);
+    }
+
+    /** Уже посчитанная кривая в валюте currency: точка каждого дня по курсу этого дня. */
+    public List<Point> convert(List<Point> points, String fromCurrency, String currency) {
+        if (points.isEmpty() || currency == null || currency.equalsIgnoreCase(fromCurrency)) {
+            return points;
+        }
+        double[] rates = fxRateService.rates(fromCurrency, currency, points.stream().map(Point::date).toList());
+        List<Point> converted = new ArrayList<>(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            converted.add(points.get(i).scaled(rates[i]));
+        }
+        return converted;
+    }
+
+    /**
+     * Сводная кривая нескольких портфелей в валюте currency: покомпонентная сумма по датам.
+     */
+    public List<Point> combinedCurve(Long userId, Collection<Portfolio> portfolios, String currency,
+                                     LocalDate from, LocalDate to) {
+        List<List<Point>> curves = new ArrayList<>();
+        for (Portfolio portfolio : portfolios) {
+            curves.add(curve(userId, portfolio, currency, from, to));
+        }
+        return combine(curves);
+    }
+
+    /** Покомпонентная сумма уже посчитанных кривых по датам. */
+    public static List<Point> combine(Collection<List<Point>> curves) {
+        TreeMap<LocalDate, Point> byDate = new TreeMap<>();
+        for (List<Point> curve : curves) {
+            for (Point p : curve) {
+                byDate.merge(p.date(), p, Point::plus);
+            }
+        }
+        return new ArrayList<>(byDate.values());
+    }
+
+    /**
+     * Открытые позиции и деньги портфеля на сегодня по тем же ценам, что и точка кривой за сегодня.
+     */
+    public Exposure exposure(Long portfolioId) {
+        LocalDate today = LocalDate.now();
+        Ledger ledger = loadLedger(portfolioId, today);
+        if (ledger.firstDate == null) {
+            return new Exposure(today, 0, 0, List.of(), List.of());
+        }
+        return ledger.exposure(portfolioId, today);
+    }
+
+    /**
+     * Сначала счётчик (расчёт, начатый до записи, свои дни уже не сохранит), затем удаление снимков из таблицы.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPortfolioDataChanged(PortfolioDataChangedEvent event) {
+        Integer removed = null;
+        if (event.portfolioId() != null) {
+            portfolioStamps.computeIfAbsent(event.portfolioId(), k -> new AtomicLong()).incrementAndGet();
+            removed = invalidationTemplate.execute(status -> navSnapshotRepository.deleteByPortfolio(event.portfolioId()));
+        } else if (event.userId() != null) {
+            userStamps.computeIfAbsent(event.userId(), k -> new AtomicLong()).incrementAndGet();
+            removed = invalidationTemplate.execute(status -> navSnapshotRepository.deleteByUser(event.userId()));
+        }
+        if (removed != null && removed > 0) {
+            logger.debug("NAV: запись в портфель {} пользователя {}, удалено снимков {}",
+                    event.portfolioId(), event.userId(), removed);
+        }
+    }
+
+    // Оба счётчика только растут, поэтому сумма меняется при любой записи
+    private long stamp(Long userId, Long portfolioId) {
+        AtomicLong p = portfolioStamps.get(portfolioId);
+        AtomicLong u = userStamps.get(userId);
+        return (p != null ? p.get() : 0) + (u != null ? u.get() : 0);
+    }
+
+    private Ledger loadLedger(Long portfolioId, LocalDate end) {
+        List<TradeLedgerRow> trades = tradeRepository.findLedgerRows(portfolioId);
+        List<ClosureLedgerRow> closures = tradeClosureRepository.findLedgerRows(portfolioId);
+        List<SpotLedgerRow> spot = spotTransactionRepository.findLedgerRows(portfolioId);
+
+        Map<Long, List<RateChangePoint>> rateChanges = new HashMap<>();
+        if (!trades.isEmpty()) {
+            List<Long> ids = trades.stream().map(TradeLedgerRow::id).toList();
+            for (RateChangePoint point : financingEventRepository.findRateChanges(ids, end)) {
+                rateChanges.computeIfAbsent(point.tradeId(), k -> new ArrayList<>()).add(point);
+            }
+        }
+
+        Set<String> symbols = new HashSet<>();
+        trades.forEach(t -> symbols.add(PriceService.canonicalTicker(t.symbol())));
+        spot.stream()
+                .filter(s -> s.ticker() != null && isSecurityTrade(s.transactionType()))
+                .forEach(s -> symbols.add(PriceService.canonicalTicker(s.ticker())));
+        Map<String, TreeMap<LocalDate, Double>> prices = priceHistoryService.series(symbols, end);
+
+        return new Ledger(trades, closures, rateChanges, spot, prices);
+    }
+
+    private static boolean isSecurityTrade(SpotTransaction.TransactionType type) {
+        return type == SpotTransaction.TransactionType.BUY || type == SpotTransaction.TransactionType.SELL;
+    }
+
+    private static double value(BigDecimal v) {
+        return v != null ? v.doubleValue() : 0;
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 100.0) / 100.0;
+    }
+
+    private static BigDecimal money(double v) {
+        return BigDecimal.valueOf(v).setScale(2, RoundingMode.HALF_UP);
+    }
+
+    /** Маржинальный лот журнала с закрытиями и ставками. */
+    private static final class Lot {
+        final TradeLedgerRow row;
+        final String symbol;
+        final int quantity;
+        final double principal;
+        final List<RateChangePoint> rateChanges;
+
+        Lot(TradeLedgerRow row, List<RateChangePoint> rateChanges) {
+            this.row = row;
+            this.symbol = PriceService.canonicalTicker(row.symbol());
+            this.quantity = row.quantity() != null ? row.quantity() : 0;
+            double borrowed = row.borrowedAmount() != null
+                    ? row.borrowedAmount().doubleValue()
+                    : value(row.entryPrice()) * quantity;
+            this.principal = borrowed;
+            this.rateChanges = rateChanges;
+        }
+
+        double principalShare(double qty) {
+            return quantity > 0 ? principal * qty / quantity : 0;
+        }
+
+        /** Ставка, действующая в день day: последняя RATE_CHANGE не позже day, иначе marginAmount. */
+        double rateOn(LocalDate day) {
+            double rate = value(row.marginAmount());
+            for (RateChangePoint change : rateChanges) {
+                if (change.eventDate().isAfter(day)) {
+                    break;
+                }
+                if (change.rate() != null) {
+                    rate = change.rate().doubleValue();
+                }
+            }
+            return rate;
+        }
+
+        /** Множитель начисленных процентов на единицу займа за [entryDate, to). */
+        double interestFactor(LocalDate to) {
+            return PnlRollupService.interestFactor(row.marginAmount(), row.entryDate(), rateChanges, to);
+        }
+    }
+
+    private record Closure(Lot lot, int quantity, double price, LocalDate date) {}
+
+    /** Журнал портфеля, упорядоченный по датам, и ряды цен для его тикеров. */
+    private static final class Ledger {
+        final List<Lot> lots = new ArrayList<>();
+        final List<Closure> closures = new ArrayList<>();
+        final List<SpotLedgerRow> spot;
+        final Map<String, TreeMap<LocalDate, Double>> prices;
+        final LocalDate firstDate;
+
+        Ledger(List<TradeLedgerRow> trades, List<ClosureLedgerRow> closureRows,
+               Map<Long, List<RateChangePoint>> rateChanges, List<SpotLedgerRow> spot,
+               Map<String, TreeMap<LocalDate, Double>> prices) {
+            this.spot = spot;
+            this.prices = prices;
+
+            Map<Long, List<ClosureLedgerRow>> closuresByTrade = new HashMap<>();
+            closureRows.forEach(c -> closuresByTrade.computeIfAbsent(c.tradeId(), k -> new ArrayList<>()).add(c));
+
+            LocalDate first = null;
+            for (TradeLedgerRow row : trades) {
+                if (row.entryDate() == null || row.quantity() == null) {
+                    continue;
+                }
+                List<RateChangePoint> changes = new ArrayList<>(rateChanges.getOrDefault(row.id(), List.of()));
+                changes.sort(Comparator.comparing(RateChangePoint::eventDate));
+                Lot lot = new Lot(row, changes);
+                lots.add(lot);
+                first = first == null || row.entryDate().isBefore(first) ? row.entryDate() : first;
+                observe(lot.symbol, row.entryDate(), row.entryPrice());
+
+                List<ClosureLedgerRow> parts = closuresByTrade.get(row.id());
+                if (parts != null) {
+                    for (ClosureLedgerRow c : parts) {
+                        closures.add(new Closure(lot, c.closedQuantity(), value(c.exitPrice()), c.exitDate()));
+                        observe(lot.symbol, c.exitDate(), c.exitPrice());
+                    }
+                } else if (row.exitDate() != null) {
+                    // закрытая сделка без частичных закрытий (импорт, старые записи) закрыта целиком
+                    BigDecimal exitPrice = row.exitPrice() != null ? row.exitPrice() : row.entryPrice();
+                    closures.add(new Closure(lot, lot.quantity, value(exitPrice), row.exitDate()));
+                    observe(lot.symbol, row.exitDate(), exitPrice);
+                }
+            }
+            closures.sort(Comparator.comparing(Closure::date));
+
+            for (SpotLedgerRow row : spot) {
+                first = first == null || row.tradeDate().isBefore(first) ? row.tradeDate() : first;
+                if (row.ticker() != null && isSecurityTrade(row.transactionType())) {
+                    observe(PriceService.canonicalTicker(row.ticker()), row.tradeDate(), row.price());
+                }
+            }
+            this.firstDate = first;
+        }
+
+        // Цена сделки — тоже наблюдение цены, но котировка из истории за тот же день важнее
+        private void observe(String symbol, LocalDate date, BigDecimal price) {
+            if (date != null && price != null && price.signum() > 0) {
+                prices.computeIfAbsent(symbol, k -> new TreeMap<>()).putIfAbsent(date, price.doubleValue());
+            }
+        }
+
+        private double priceOn(String symbol, LocalDate date, double fallback) {
+            TreeMap<LocalDate, Double> series = prices.get(symbol);
+            Map.Entry<LocalDate, Double> entry = series != null ? series.floorEntry(date) : null;
+            return entry != null ? entry.getValue() : fallback;
+        }
+
+        /**
+         * Стоимость на каждый день [from, to]. События до from сворачиваются в состояние без потоков.
+         */
+        List<Point> evaluate(LocalDate from, LocalDate to) {
+            List<Point> result = new ArrayList<>();
+            Walk walk = new Walk();
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                double flow = walk.advance(day);
+                result.add(walk.point(day, flow));
+            }
+            return result;
+        }
+
+        /** Открытые позиции и деньги на конец дня с ценами этого дня. */
+        Exposure exposure(Long portfolioId, LocalDate day) {
+            Walk walk = new Walk();
+            walk.advance(day);
+            Point point = walk.point(day, 0);
+            List<MarginExposure> margin = new ArrayList<>();
+            walk.open.forEach((lot, qty) -> margin.add(new MarginExposure(lot.row.id(), portfolioId, lot.symbol,
+                    qty, lot.quantity, lot.principalShare(qty), lot.rateOn(day), lot.row.maintenanceMargin(),
+                    priceOn(lot.symbol, day, value(lot.row.entryPrice())))));
+            List<SpotExposure> spotPositions = new ArrayList<>();
+            walk.holdings.forEach((symbol, qty) -> {
+                if (qty > 0) {
+                    spotPositions.add(new SpotExposure(portfolioId, symbol, qty,
+                            priceOn(symbol, day, walk.lastSpotPrice.getOrDefault(symbol, 0.0))));
+                }
+            });
+            return new Exposure(day, point.cash(), point.accruedInterest(), margin, spotPositions);
+        }
+
+        /** Проход по журналу в порядке дат: состояние на конец очередного дня. */
+        private final class Walk {
+            int lotIdx = 0;
+            int closureIdx = 0;
+            int spotIdx = 0;
+            double cash = 0;
+            final Map<Lot, Integer> open = new LinkedHashMap<>();
+            final Map<String, Double> holdings = new HashMap<>();
+            final Map<String, Double> lastSpotPrice = new HashMap<>();
+            final List<Lot> byEntry = new ArrayList<>(lots);
+
+            Walk() {
+                byEntry.sort(Comparator.comparing(l -> l.row.entryDate()));
+            }
+
+            /** Применяет все события по day включительно; возвращает внешний поток самого day. */
+            double advance(LocalDate day) {
+                double flow = 0;
+                for (; lotIdx < byEntry.size() && !byEntry.get(lotIdx).row.entryDate().isAfter(day); lotIdx++) {
+                    Lot lot = byEntry.get(lotIdx);
+                    open.put(lot, lot.quantity);
+                    if (lot.row.entryDate().equals(day)) {
+                        flow += value(lot.row.entryPrice()) * lot.quantity - lot.principal;
+                    }
+                }
+                for (; closureIdx < closures.size() && !closures.get(closureIdx).date().isAfter(day); closureIdx++) {
+                    Closure c = closures.get(closureIdx);
+                    // полностью закрытый лот убираем из оценки
+                    open.merge(c.lot(), -c.quantity(), (a, b) -> a + b > 0 ? a + b : null);
+                    double share = c.lot().principalShare(c.quantity());
+                    cash += c.quantity() * c.price() - share - share * c.lot().interestFactor(c.date());
+                }
+                for (; spotIdx < spot.size() && !spot.get(spotIdx).tradeDate().isAfter(day); spotIdx++) {
+                    SpotLedgerRow tx = spot.get(spotIdx);
+                    cash += value(tx.amount());
+                    switch (tx.transactionType()) {
+                        case BUY, SELL -> {
+                            String sym = PriceService.canonicalTicker(tx.ticker());
+                            double qty = tx.transactionType() == SpotTransaction.TransactionType.BUY
+                                    ? value(tx.quantity()) : -value(tx.quantity());
+                            holdings.merge(sym, qty, Double::sum);
+                            if (tx.price() != null) {
+                                lastSpotPrice.put(sym, tx.price().doubleValue());
+                            }
+                        }
+                        case DEPOSIT, WITHDRAW -> {
+                            if (tx.tradeDate().equals(day)) {
+                                flow += value(tx.amount());
+                            }
+                        }
+                        case DIVIDEND -> { /* доход, а не внешний поток */ }
+                    }
+                }
+                return flow;
+            }
+
+            Point point(LocalDate day, double flow) {
+                double marginValue = 0;
+                double borrowed = 0;
+                double accrued = 0;
+                for (Map.Entry<Lot, Integer> e : open.entrySet()) {
+                    Lot lot = e.getKey();
+                    double share = lot.principalShare(e.getValue());
+                    marginValue += e.getValue() * priceOn(lot.symbol, day, value(lot.row.entryPrice()));
+                    borrowed += share;
+                    accrued += share * lot.interestFactor(day);
+                }
+                double spotValue = 0;
+                for (Map.Entry<String, Double> h : holdings.entrySet()) {
+                    if (h.getValue() > 0) {
+                        spotValue += h.getValue() * priceOn(h.getKey(), day, lastSpotPrice.getOrDefault(h.getKey(), 0.0));
+                    }
+                }
+                double nav = spotValue + cash + marginValue - borrowed - accrued;
+                return new Point(day, round(spotValue), round(cash), round(marginValue), round(borrowed),
+                        round(accrued), round(nav), round(flow));
+            }
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.example.diary.service;
+
+import com.example.diary.model.PnlMonthlyRollup;
+import com.example.diary.model.PnlRollup;
+import com.example.diary.model.PnlSymbolRollup;
+import com.example.diary.model.Trade;
+import com.example.diary.model.TradeClosure;
+import com.example.diary.repository.FinancingEventRepository;
+import com.example.diary.repository.PnlMonthlyRollupRepository;
+import com.example.diary.repository.PnlSymbolRollupRepository;
+import com.example.diary.repository.TradeClosureRepository;
+import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.ClosureLedgerRow;
+import com.example.diary.repository.projection.MonthlyPnlRow;
+import com.example.diary.repository.projection.RateChangePoint;
+import com.example.diary.repository.projection.SymbolPnlRow;
+import com.example.diary.repository.projection.TradeLedgerRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Сводки реализованного результата маржинальных сделок по (портфель, месяц) и (портфель, тикер, месяц).
+ *
+ * Реализация — частичное закрытие лота или закрытая сделка без закрытий (импорт, старые записи),
+ * как в журнале NavEngine. Её результат: (цена выхода - цена входа) * q минус проценты по доле займа
+ * q / quantity с даты входа до даты закрытия по кусочной ставке.
+ *
+ * Изменения копятся в {@link Delta} и применяются в транзакции самой операции (закрытие, импорт,
+ * удаление сделки), поэтому сводки не расходятся с журналом. Для пересчёта с нуля есть {@link #rebuild}.
+ */
+@Service
+public class PnlRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PnlRollupService.class);
+
+    private static final int SCALE = 6;
+
+    private final PnlMonthlyRollupRepository monthlyRepository;
+    private final PnlSymbolRollupRepository symbolRepository;
+    private final TradeRepository tradeRepository;
+    private final TradeClosureRepository tradeClosureRepository;
+    private final FinancingEventRepository financingEventRepository;
+    private final TradeLocks tradeLocks;
+    private final TransactionTemplate newTransaction;
+
+    public PnlRollupService(PnlMonthlyRollupRepository monthlyRepository,
+                            PnlSymbolRollupRepository symbolRepository,
+                            TradeRepository tradeRepository,
+                            TradeClosureRepository tradeClosureRepository,
+                            FinancingEventRepository financingEventRepository,
+                            TradeLocks tradeLocks,
+                            PlatformTransactionManager transactionManager) {
+        this.monthlyRepository = monthlyRepository;
+        this.symbolRepository = symbolRepository;
+        this.tradeRepository = tradeRepository;
+        this.tradeClosureRepository = tradeClosureRepository;
+        this.financingEventRepository = financingEventRepository;
+        this.tradeLocks = tradeLocks;
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /** Сумма реализаций по ключу сводки. */
+    private static final class Totals {
+        BigDecimal realized = BigDecimal.ZERO;
+        BigDecimal gross = BigDecimal.ZERO;
+        BigDecimal interest = BigDecimal.ZERO;
+        long quantity;
+        int closes;
+        int wins;
+
+        void add(BigDecimal realizedPart, BigDecimal grossPart, BigDecimal interestPart, int qty, int sign) {
+            realized = realized.add(realizedPart.multiply(BigDecimal.valueOf(sign)));
+            gross = gross.add(grossPart.multiply(BigDecimal.valueOf(sign)));
+            interest = interest.add(interestPart.multiply(BigDecimal.valueOf(sign)));
+            quantity += (long) qty * sign;
+            closes += sign;
+            if (realizedPart.signum() > 0) {
+                wins += sign;
+            }
+        }
+
+        boolean isZero() {
+            return realized.signum() == 0 && gross.signum() == 0 && interest.signum() == 0
+                    && quantity == 0 && closes == 0 && wins == 0;
+        }
+
+        void copyTo(PnlRollup row) {
+            row.setRealizedPnl(realized);
+            row.setGrossPnl(gross);
+            row.setInterestPaid(interest);
+            row.setClosedQuantity(quantity);
+            row.setCloseCount(closes);
+            row.setWinningCount(wins);
+        }
+    }
+
+    private record MonthKey(Long portfolioId, LocalDate month) {}
+
+    private record SymbolKey(Long portfolioId, String symbol, LocalDate month) {}
+
+    /**
+     * Накопленные изменения сводок. Ключи применяются в отсортированном порядке,
+     * чтобы параллельные транзакции блокировали строки в одной последовательности.
+     */
+    public static final class Delta {
+        private final Map<MonthKey, Totals> months = new TreeMap<>(
+                Comparator.comparing(MonthKey::portfolioId).thenComparing(MonthKey::month));
+        private final Map<SymbolKey, Totals> symbols = new TreeMap<>(
+                Comparator.comparing(SymbolKey::portfolioId).thenComparing(SymbolKey::symbol).thenComparing(SymbolKey::month));
+
+        /**
+         * Реализация q лотов по цене exitPrice в день exitDate.
+         *
+         * @param sign +1 — закрытие добавлено, -1 — отменено
+         */
+        public void add(Long portfolioId, TradeLedgerRow lot, List<RateChangePoint> rateChanges,
+                        int qty, BigDecimal exitPrice, LocalDate exitDate, int sign) {
+            if (lot.quantity() == null || lot.quantity() <= 0 || exitDate == null || lot.entryPrice() == null) {
+                return;
+            }
+            BigDecimal price = exitPrice != null ? exitPrice : lot.entryPrice();
+            BigDecimal gross = price.subtract(lot.entryPrice()).multiply(BigDecimal.valueOf(qty));
+            BigDecimal principal = lot.borrowedAmount() != null
+                    ? lot.borrowedAmount()
+                    : lot.entryPrice().multiply(BigDecimal.valueOf(lot.quantity()));
+            double share = principal.doubleValue() * qty / lot.quantity();
+            double factor = interestFactor(lot.marginAmount(), lot.entryDate(), rateChanges, exitDate);
+            BigDecimal interest = BigDecimal.valueOf(share * factor).setScale(SCALE, RoundingMode.HALF_UP);
+            gross = gross.setScale(SCALE, RoundingMode.HALF_UP);
+            BigDecimal realized = gross.subtract(interest);
+
+            LocalDate month = exitDate.withDayOfMonth(1);
+            months.computeIfAbsent(new MonthKey(portfolioId, month), k -> new Totals())
+                    .add(realized, gross, interest, qty, sign);
+            symbols.computeIfAbsent(new SymbolKey(portfolioId, lot.symbol(), month), k -> new Totals())
+                    .add(realized, gross, interest, qty, sign);
+        }
+    }
+
+    /**
+     * Σ ставка·дни / 36500 за [entryDate, to) — доля займа, набежавшая процентами.
+     * Ставки — события RATE_CHANGE по возрастанию даты, до первого действует baseRate (marginAmount).
+     * Кусочная ставка считается так же, как в {@link Trade#getTotalInterest()}.
+     */
+    static double interestFactor(BigDecimal baseRate, LocalDate entryDate, List<RateChangePoint> rateChanges, LocalDate to) {
+        if (baseRate == null || entryDate == null || !to.isAfter(entryDate)) {
+            return 0;
+        }
+        double factor = 0;
+        double rate = baseRate.doubleValue();
+        LocalDate periodStart = entryDate;
+        for (RateChangePoint change : rateChanges) {
+            if (change.eventDate().isBefore(entryDate)) {
+                continue;
+            }
+            if (!change.eventDate().isBefore(to)) {
+                break;
+            }
+            factor += rate * ChronoUnit.DAYS.between(periodStart, change.eventDate());
+            if (change.rate() != null) {
+                rate = change.rate().doubleValue();
+            }
+            periodStart = change.eventDate();
+        }
+        factor += rate * ChronoUnit.DAYS.between(periodStart, to);
+        return factor / 36500.0;
+    }
+
+    public static TradeLedgerRow lotOf(Trade trade) {
+        return new TradeLedgerRow(trade.getId(), trade.getSymbol(), trade.getQuantity(), trade.getEntryPrice(),
+                trade.getEntryDate(), trade.getExitPrice(), trade.getExitDate(), trade.getBorrowedAmount(),
+                trade.getMarginAmount(), trade.getMaintenanceMargin());
+    }
+
+    /** Ставки RATE_CHANGE сделок по возрастанию даты. */
+    public Map<Long, List<RateChangePoint>> rateChanges(Collection<Long> tradeIds) {
+        Map<Long, List<RateChangePoint>> result = new HashMap<>();
+        if (tradeIds.isEmpty()) {
+            return result;
+        }
+        for (RateChangePoint point : financingEventRepository.findRateChanges(tradeIds, LocalDate.now().plusYears(100))) {
+            result.computeIfAbsent(point.tradeId(), k -> new ArrayList<>()).add(point);
+        }
+        result.values().forEach(list -> list.sort(Comparator.comparing(RateChangePoint::eventDate)));
+        return result;
+    }
+
+    /**
+     * Добавляет в delta все реализации сделки (sign = -1 — убирает). Закрытия читаются из БД,
+     * поэтому для удаления сделки или правки её условий вызывается до изменения и после него.
+     */
+    public void addTrade(Delta delta, Trade trade, int sign) {
+        if (trade.getId() == null) {
+            if (trade.getExitDate() != null) {
+                delta.add(trade.getPortfolio().getId(), lotOf(trade), List.of(),
+                        trade.getQuantity(), trade.getExitPrice(), trade.getExitDate(), sign);
+            }
+            return;
+        }
+        TradeLedgerRow lot = lotOf(trade);
+        List<RateChangePoint> changes = rateChanges(List.of(trade.getId())).getOrDefault(trade.getId(), List.of());
+        List<TradeClosure> closures = tradeClosureRepository.findByTradeId(trade.getId());
+        Long portfolioId = trade.getPortfolio().getId();
+        if (!closures.isEmpty()) {
+            for (TradeClosure closure : closures) {
+                delta.add(portfolioId, lot, changes, closure.getClosedQuantity(), closure.getExitPrice(), closure.getExitDate(), sign);
+            }
+        } else if (trade.getExitDate() != null) {
+            delta.add(portfolioId, lot, changes, trade.getQuantity(), trade.getExitPrice(), trade.getExitDate(), sign);
+        }
+    }
+
+    /**
+     * Применяет delta в текущей транзакции: UPDATE с приращением, недостающая строка
+     * сначала создаётся нулевой в отдельной транзакции (её мог одновременно создать другой поток).
+     */
+    public void apply(Delta delta) {
+        delta.months.forEach((key, totals) -> {
+            if (totals.isZero()) {
+                return;
+            }
+            if (incrementMonth(key, totals) == 0) {
+                ensureMonth(key);
+                if (incrementMonth(key, totals) == 0) {
+                    throw new IllegalStateException("Не удалось обновить сводку за " + key.month());
+                }
+            }
+        });
+        delta.symbols.forEach((key, totals) -> {
+            if (totals.isZero()) {
+                return;
+            }
+            if (incrementSymbol(key, totals) == 0) {
+                ensureSymbol(key);
+                if (incrementSymbol(key, totals) == 0) {
+                    throw new IllegalStateException("Не удалось обновить сводку " + key.symbol() + " за " + key.month());
+                }
+            }
+        });
+    }
+
+    private int incrementMonth(MonthKey key, Totals t) {
+        return monthlyRepository.increment(key.portfolioId(), key.month(),
+                t.realized, t.gross, t.interest, t.quantity, t.closes, t.wins);
+    }
+
+    private int incrementSymbol(SymbolKey key, Totals t) {
+        return symbolRepository.increment(key.portfolioId(), key.symbol(), key.month(),
+                t.realized, t.gross, t.interest, t.quantity, t.closes, t.wins);
+    }
+
+    private void ensureMonth(MonthKey key) {
+        try {
+            newTransaction.executeWithoutResult(status -> {
+                if (!monthlyRepository.existsByPortfolioIdAndMonthStart(key.portfolioId(), key.month())) {
+                    PnlMonthlyRollup row = new PnlMonthlyRollup();
+                    row.setPortfolioId(key.portfolioId());
+                    row.setMonthStart(key.month());
+                    monthlyRepository.saveAndFlush(row);
+                }
+            });
+        } catch (DataIntegrityViolationException e) {
+            // строку одновременно создал другой поток
+        }
+    }
+
+    private void ensureSymbol(SymbolKey key) {
+        try {
+            newTransaction.executeWithoutResult(status -> {
+                if (!symbolRepository.existsByPortfolioIdAndSymbolAndMonthStart(key.portfolioId(), key.symbol(), key.month())) {
+                    PnlSymbolRollup row = new PnlSymbolRollup();
+                    row.setPortfolioId(key.portfolioId());
+                    row.setSymbol(key.symbol());
+                    row.setMonthStart(key.month());
+                    symbolRepository.saveAndFlush(row);
+                }
+            });
+        } catch (DataIntegrityViolationException e) {
+            // строку одновременно создал другой поток
+        }
+    }
+
+    /**
+     * Пересобирает сводки портфеля из журнала сделок и закрытий в отдельной транзакции.
+     * На время пересборки берутся все полосы TradeLocks, чтобы закрытия не проскочили между чтением и записью.
+     *
+     * @return число учтённых реализаций
+     */
+    public int rebuild(Long portfolioId) {
+        List<Lock> locks = tradeLocks.all();
+        locks.forEach(Lock::lock);
+        try {
+            long started = System.currentTimeMillis();
+            Integer count = newTransaction.execute(status -> {
+                monthlyRepository.deleteByPortfolio(portfolioId);
+                symbolRepository.deleteByPortfolio(portfolioId);
+
+                List<TradeLedgerRow> trades = tradeRepository.findLedgerRows(portfolioId);
+                Map<Long, List<ClosureLedgerRow>> closuresByTrade = new HashMap<>();
+                for (ClosureLedgerRow c : tradeClosureRepository.findLedgerRows(portfolioId)) {
+                    closuresByTrade.computeIfAbsent(c.tradeId(), k -> new ArrayList<>()).add(c);
+                }
+                Map<Long, List<RateChangePoint>> rates = rateChanges(trades.stream().map(TradeLedgerRow::id).toList());
+
+                Delta delta = new Delta();
+                int realizations = 0;
+                for (TradeLedgerRow lot : trades) {
+                    List<RateChangePoint> changes = rates.getOrDefault(lot.id(), List.of());
+                    List<ClosureLedgerRow> parts = closuresByTrade.get(lot.id());
+                    if (parts != null) {
+                        for (ClosureLedgerRow c : parts) {
+                            delta.add(portfolioId, lot, changes, c.closedQuantity(), c.exitPrice(), c.exitDate(), 1);
+                            realizations++;
+                        }
+                    } else if (lot.exitDate() != null) {
+                        delta.add(portfolioId, lot, changes, lot.quantity(), lot.exitPrice(), lot.exitDate(), 1);
+                        realizations++;
+                    }
+                }
+
+                List<PnlMonthlyRollup> monthRows = new ArrayList<>();
+                delta.months.forEach((key, totals) -> {
+                    PnlMonthlyRollup row = new PnlMonthlyRollup();
+                    row.setPortfolioId(key.portfolioId());
+                    row.setMonthStart(key.month());
+                    totals.copyTo(row);
+                    monthRows.add(row);
+                });
+                List<PnlSymbolRollup> symbolRows = new ArrayList<>();
+                delta.symbols.forEach((key, totals) -> {
+                    PnlSymbolRollup row = new PnlSymbolRollup();
+                    row.setPortfolioId(key.portfolioId());
+                    row.setSymbol(key.symbol());
+                    row.setMonthStart(key.month());
+                    totals.copyTo(row);
+                    symbolRows.add(row);
+                });
+                monthlyRepository.saveAll(monthRows);
+                symbolRepository.saveAll(symbolRows);
+                return realizations;
+            });
+            logger.info("Сводки PnL портфеля {} пересобраны: {} реализаций за {} мс",
+                    portfolioId, count, System.currentTimeMillis() - started);
+            return count != null ? count : 0;
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+        }
+    }
+
+    /**
+     * Пересборка сводок одного портфеля или (portfolioId = null) всех портфелей пользователя, где они есть.
+     */
+    public void rebuildPortfolios(Long userId, Long portfolioId) {
+        List<Long> ids = portfolioId != null ? List.of(portfolioId) : monthlyRepository.findPortfolioIdsByUser(userId);
+        for (Long id : ids) {
+            rebuild(id);
+        }
+    }
+
+    // После бэкфилла остатков (HIGHEST_PRECEDENCE), до остальных слушателей старта
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE + 1)
+    public void buildMissing() {
+        for (Long portfolioId : monthlyRepository.findPortfoliosWithoutRollups()) {
+            rebuild(portfolioId);
+        }
+    }
+
+    public List<MonthlyPnlRow> monthly(Collection<Long> portfolioIds, LocalDate from, LocalDate to) {
+        if (portfolioIds.isEmpty()) {
+            return List.of();
+        }
+        return monthlyRepository.sumByMonth(portfolioIds, from.withDayOfMonth(1), to);
+    }
+
+    public List<SymbolPnlRow> bySymbol(Collection<Long> portfolioIds, LocalDate from, LocalDate to) {
+        if (portfolioIds.isEmpty()) {
+            return List.of();
+        }
+        return symbolRepository.sumBySymbol(portfolioIds, from.withDayOfMonth(1), to);
+    }
+}
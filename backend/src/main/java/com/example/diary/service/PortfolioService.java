@@ -1,9 +1,11 @@
 package com.example.diary.service;
 
+import com.example.diary.event.PortfolioDataChangedEvent;
 import com.example.diary.model.Portfolio;
 import com.example.diary.model.User;
 import com.example.diary.repository.PortfolioRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import java.util.List;
 import java.util.Optional;
@@ -13,6 +15,9 @@ public class PortfolioService {
     
     @Autowired
     private PortfolioRepository portfolioRepository;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
     
     public Portfolio createPortfolio(String name, Portfolio.PortfolioType type, String currency, String description, User user) {
         Portfolio portfolio = new Portfolio();
@@ -55,6 +60,10 @@ public class PortfolioService {
             Portfolio portfolio = portfolioOpt.get();
             portfolio.setIsActive(false);
             portfolioRepository.save(portfolio);
+            // сводные данные пользователя больше не должны учитывать этот портфель
+            eventPublisher.publishEvent(portfolio.getType() == Portfolio.PortfolioType.SPOT
+                    ? PortfolioDataChangedEvent.spot(user.getId(), portfolio.getId())
+                    : PortfolioDataChangedEvent.trades(user.getId(), portfolio.getId()));
         } else {
             throw new RuntimeException("Портфель не найден");
         }
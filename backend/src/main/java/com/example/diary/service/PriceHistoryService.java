@@ -0,0 +1,103 @@
+package com.example.diary.service;
+
+import com.example.diary.event.PriceUpdatedEvent;
+import com.example.diary.model.PriceHistory;
+import com.example.diary.repository.PriceHistoryRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Локальная история цен закрытия. Пополняется свежими котировками PriceService:
+ * цена дня перезаписывается последней полученной, поэтому к концу дня в таблице лежит закрытие.
+ */
+@Service
+public class PriceHistoryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PriceHistoryService.class);
+
+    private record Recorded(LocalDate date, double price) {}
+
+    private final PriceHistoryRepository priceHistoryRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    // Последняя записанная цена тикера: одинаковые котировки монитора не пишутся повторно
+    private final Map<String, Recorded> lastRecorded = new ConcurrentHashMap<>();
+
+    public PriceHistoryService(PriceHistoryRepository priceHistoryRepository,
+                               PlatformTransactionManager transactionManager) {
+        this.priceHistoryRepository = priceHistoryRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @EventListener
+    public void onPriceUpdated(PriceUpdatedEvent event) {
+        LocalDate date = LocalDate.ofInstant(event.at(), ZoneId.systemDefault());
+        Recorded recorded = new Recorded(date, event.price());
+        if (recorded.equals(lastRecorded.put(event.ticker(), recorded))) {
+            return;
+        }
+        try {
+            record(event.ticker(), date, BigDecimal.valueOf(event.price()), "quote");
+        } catch (Exception e) {
+            lastRecorded.remove(event.ticker());
+            logger.warn("Не удалось сохранить цену {} за {}: {}", event.ticker(), date, e.getMessage());
+        }
+    }
+
+    /**
+     * Записывает цену закрытия тикера за день (upsert по паре тикер-дата).
+     */
+    public void record(String symbol, LocalDate date, BigDecimal price, String source) {
+        String sym = PriceService.canonicalTicker(symbol);
+        try {
+            upsert(sym, date, price, source);
+        } catch (DataIntegrityViolationException e) {
+            // строку дня одновременно вставил другой поток — теперь она есть, обновляем
+            upsert(sym, date, price, source);
+        }
+    }
+
+    private void upsert(String symbol, LocalDate date, BigDecimal price, String source) {
+        transactionTemplate.executeWithoutResult(status -> {
+            if (priceHistoryRepository.updateClose(symbol, date, price, source) == 0) {
+                PriceHistory row = new PriceHistory();
+                row.setSymbol(symbol);
+                row.setPriceDate(date);
+                row.setClosePrice(price);
+                row.setSource(source);
+                priceHistoryRepository.saveAndFlush(row);
+            }
+        });
+    }
+
+    /**
+     * Ряды цен закрытия по тикерам (канонические имена) до даты включительно.
+     */
+    public Map<String, TreeMap<LocalDate, Double>> series(Collection<String> symbols, LocalDate to) {
+        Map<String, TreeMap<LocalDate, Double>> result = new HashMap<>();
+        if (symbols.isEmpty()) {
+            return result;
+        }
+        for (PriceHistory row : priceHistoryRepository.findBySymbolInAndPriceDateLessThanEqualOrderByPriceDateAsc(symbols, to)) {
+            result.computeIfAbsent(row.getSymbol(), k -> new TreeMap<>())
+                    .put(row.getPriceDate(), row.getClosePrice().doubleValue());
+        }
+        return result;
+    }
+}
@@ -1,18 +1,38 @@
 package com.example.diary.service;
 
+import com.example.diary.event.PriceUpdatedEvent;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 public class PriceService {
 
-    private final RestTemplate restTemplate = new RestTemplate();
+    private static final int QUOTE_THREADS = 8;
+    private static final long BATCH_TIMEOUT_SECONDS = 15;
+
+    private final RestTemplate restTemplate = createRestTemplate();
+
+    // Пул для параллельных запросов котировок: пакет ждёт самую медленную, а не сумму всех
+    private final ExecutorService quoteExecutor = Executors.newFixedThreadPool(QUOTE_THREADS, r -> {
+        Thread t = new Thread(r, "price-quote");
+        t.setDaemon(true);
+        return t;
+    });
 
     @Value("${alphavantage.api.key:}")
     private String alphaKey;
@@ -52,19 +72,37 @@ public class PriceService {
 
     private record CachedQuote(Double price, Instant ts, String source, String currency) {}
 
-    public record Quote(String ticker, Double price, String source, String currency) {}
+    /** Котировка; asOf — момент получения цены от источника (для закэшированной — время запроса, а не выдачи). */
+    public record Quote(String ticker, Double price, String source, String currency, Instant asOf) {}
 
     private final Map<String, CachedQuote> cache = new ConcurrentHashMap<>();
 
+    private final ApplicationEventPublisher eventPublisher;
+
+    public PriceService(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /** Тикер, под которым котировка хранится в кэше и публикуется в PriceUpdatedEvent. */
+    public static String canonicalTicker(String ticker) {
+        String requested = ticker.toUpperCase(Locale.ROOT);
+        return TICKER_ALIASES.getOrDefault(requested, requested);
+    }
+
+    /** Тикер торгуется на MOEX (российский рынок) — для группировки позиций по рынкам. */
+    public static boolean isRuTicker(String ticker) {
+        return RU_TICKERS.contains(canonicalTicker(ticker));
+    }
+
     public Quote getPrice(String ticker, long ttlSeconds) {
         if (ticker == null || ticker.isBlank()) {
             return null;
         }
         String requested = ticker.toUpperCase(Locale.ROOT);
-        String sym = TICKER_ALIASES.getOrDefault(requested, requested);
+        String sym = canonicalTicker(requested);
         CachedQuote cached = cache.get(sym);
         if (cached != null && Duration.between(cached.ts(), Instant.now()).getSeconds() < ttlSeconds) {
-            return new Quote(requested, cached.price(), cached.source(), cached.currency());
+            return new Quote(requested, cached.price(), cached.source(), cached.currency(), cached.ts());
         }
 
         boolean isRu = RU_TICKERS.contains(sym);
@@ -93,15 +131,18 @@ public class PriceService {
             return null;
         }
 
-        cache.put(sym, new CachedQuote(price, Instant.now(), source, currency));
-        return new Quote(requested, price, source, currency);
+        Instant now = Instant.now();
+        cache.put(sym, new CachedQuote(price, now, source, currency));
+        eventPublisher.publishEvent(new PriceUpdatedEvent(sym, price, now));
+        return new Quote(requested, price, source, currency, now);
     }
 
     public List<Quote> getPrices(Collection<String> tickers, long ttlSeconds) {
         if (tickers == null || tickers.isEmpty()) return Collections.emptyList();
+        Map<String, Quote> snapshot = getPriceSnapshot(tickers, ttlSeconds);
         List<Quote> quotes = new ArrayList<>();
         for (String ticker : tickers) {
-            Quote q = getPrice(ticker, ttlSeconds);
+            Quote q = ticker != null ? snapshot.get(ticker.toUpperCase(Locale.ROOT)) : null;
             if (q != null) {
                 quotes.add(q);
             }
@@ -109,6 +150,53 @@ public class PriceService {
         return quotes;
     }
 
+    /**
+     * Котировки по набору тикеров одним параллельным пакетом.
+     * Каждый уникальный тикер запрашивается один раз; ключ результата — тикер в верхнем регистре.
+     * Тикеры без цены (или не успевшие за BATCH_TIMEOUT_SECONDS) в результат не попадают.
+     */
+    public Map<String, Quote> getPriceSnapshot(Collection<String> tickers, long ttlSeconds) {
+        if (tickers == null || tickers.isEmpty()) return Collections.emptyMap();
+        Map<String, CompletableFuture<Quote>> futures = new LinkedHashMap<>();
+        for (String ticker : tickers) {
+            if (ticker == null || ticker.isBlank()) continue;
+            String key = ticker.toUpperCase(Locale.ROOT);
+            futures.computeIfAbsent(key, k -> CompletableFuture.supplyAsync(() -> getPrice(k, ttlSeconds), quoteExecutor));
+        }
+
+        try {
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+                    .get(BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {
+            // берём то, что успело прийти
+        }
+
+        Map<String, Quote> snapshot = new HashMap<>();
+        futures.forEach((key, future) -> {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                Quote q = future.join();
+                if (q != null) {
+                    snapshot.put(key, q);
+                }
+            }
+        });
+        return snapshot;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        quoteExecutor.shutdownNow();
+    }
+
+    private static RestTemplate createRestTemplate() {
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        factory.setConnectTimeout((int) Duration.ofSeconds(3).toMillis());
+        factory.setReadTimeout((int) Duration.ofSeconds(8).toMillis());
+        return new RestTemplate(factory);
+    }
+
     private Double fetchMoexPrice(String ticker) {
         String mappedBoard = moexBoardMap.getOrDefault(ticker, "TQBR");
         String[] boards = new String[]{mappedBoard, "TQBR", "TQTF"};
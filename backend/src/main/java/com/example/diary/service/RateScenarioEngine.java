@@ -0,0 +1,297 @@
+package com.example.diary.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Прогноз стоимости финансирования открытых лотов на горизонте при разных траекториях ставки.
+ *
+ * Детерминированный сценарий — абсолютные уровни ставки с дат изменения (как в калькуляторе плавающих ставок).
+ * Стохастический — траектории ключевой ставки по модели Васичека; их сдвиг относительно стартового уровня
+ * прибавляется к текущей ставке каждого лота (спред лота к ключевой сохраняется), ставка не уходит ниже нуля.
+ * Траектории считаются параллельно (fork-join) на примитивных массивах; каждая траектория получает
+ * свой генератор от seed, поэтому результат не зависит от числа потоков.
+ */
+@Service
+public class RateScenarioEngine {
+
+    public static final int MAX_PATHS = 50_000;
+    public static final int MAX_HORIZON_DAYS = 3650;
+    // распределение по каждому лоту храним только пока матрица лоты x траектории умеренного размера
+    private static final long MAX_LOT_DISTRIBUTION_CELLS = 4_000_000L;
+    private static final int PATHS_PER_TASK = 256;
+    private static final double[] PERCENTILES = {5, 25, 50, 75, 95, 99};
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /** Открытый лот: сумма займа и текущая годовая ставка в процентах. */
+    public record Lot(long id, String symbol, double principal, double rate) {}
+
+    /**
+     * Параметры стохастической модели: ставки в процентах годовых, meanReversion — в долях за год.
+     */
+    public record Simulation(int paths, int stepDays, double keyRate, double longTermRate,
+                             double volatility, double meanReversion, long seed) {}
+
+    /** Стоимость финансирования при текущих ставках без изменений. */
+    public double baselineCost(List<Lot> lots, int horizonDays) {
+        double cost = 0;
+        for (Lot lot : lots) {
+            cost += lot.principal() * Math.max(0, lot.rate()) * horizonDays / 36500.0;
+        }
+        return cost;
+    }
+
+    /**
+     * Детерминированный сценарий: с каждой даты изменения все лоты платят указанную ставку.
+     * Изменения с датой до asOf действуют с первого дня горизонта.
+     */
+    public double scenarioCost(List<Lot> lots, SortedMap<LocalDate, Double> rateChanges,
+                               LocalDate asOf, int horizonDays) {
+        // отрезки горизонта: [start, end) -> уровень ставки (NaN — текущая ставка лота)
+        List<int[]> bounds = new ArrayList<>();
+        List<Double> levels = new ArrayList<>();
+        int cursor = 0;
+        double level = Double.NaN;
+        for (Map.Entry<LocalDate, Double> change : rateChanges.entrySet()) {
+            int day = (int) Math.max(0, Math.min(horizonDays, ChronoUnit.DAYS.between(asOf, change.getKey())));
+            if (day > cursor) {
+                bounds.add(new int[]{cursor, day});
+                levels.add(level);
+                cursor = day;
+            }
+            level = change.getValue();
+        }
+        if (cursor < horizonDays) {
+            bounds.add(new int[]{cursor, horizonDays});
+            levels.add(level);
+        }
+
+        double cost = 0;
+        for (Lot lot : lots) {
+            double rateDays = 0;
+            for (int i = 0; i < bounds.size(); i++) {
+                double rate = Double.isNaN(levels.get(i)) ? lot.rate() : levels.get(i);
+                rateDays += Math.max(0, rate) * (bounds.get(i)[1] - bounds.get(i)[0]);
+            }
+            cost += lot.principal() * rateDays / 36500.0;
+        }
+        return cost;
+    }
+
+    /**
+     * Монте-Карло по траекториям ключевой ставки.
+     * Возвращает распределение общей стоимости и (если объём позволяет) по каждому лоту.
+     */
+    public Map<String, Object> simulate(List<Lot> lots, Simulation sim, int horizonDays) {
+        long started = System.nanoTime();
+        int lotCount = lots.size();
+        double[] principal = new double[lotCount];
+        double[] rate = new double[lotCount];
+        for (int i = 0; i < lotCount; i++) {
+            principal[i] = lots.get(i).principal();
+            rate[i] = lots.get(i).rate();
+        }
+
+        int steps = (horizonDays + sim.stepDays() - 1) / sim.stepDays();
+        int[] stepLength = new int[steps];
+        for (int k = 0; k < steps; k++) {
+            stepLength[k] = Math.min(sim.stepDays(), horizonDays - k * sim.stepDays());
+        }
+
+        double[] totals = new double[sim.paths()];
+        boolean perLot = (long) lotCount * sim.paths() <= MAX_LOT_DISTRIBUTION_CELLS;
+        double[][] lotCosts = perLot ? new double[lotCount][sim.paths()] : null;
+        double[] lotSums = new double[lotCount];
+
+        PathTask root = new PathTask(0, sim.paths(), sim, principal, rate, stepLength, totals, lotCosts);
+        pool.invoke(root);
+
+        // средние по лотам копятся в листовых задачах — нужны, когда полное распределение не хранится
+        root.mergeLotSums(lotSums);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("paths", sim.paths());
+        result.put("stepDays", sim.stepDays());
+        result.put("keyRate", round(sim.keyRate()));
+        result.put("longTermRate", round(sim.longTermRate()));
+        result.put("volatility", round(sim.volatility()));
+        result.put("meanReversion", round(sim.meanReversion()));
+        result.put("seed", sim.seed());
+        result.put("total", distribution(totals));
+
+        List<Map<String, Object>> byLot = new ArrayList<>(lotCount);
+        for (int i = 0; i < lotCount; i++) {
+            Lot lot = lots.get(i);
+            Map<String, Object> row;
+            if (perLot) {
+                row = distribution(lotCosts[i]);
+            } else {
+                row = new LinkedHashMap<>();
+                row.put("mean", round(lotSums[i] / sim.paths()));
+            }
+            row.put("id", lot.id());
+            row.put("symbol", lot.symbol());
+            row.put("principal", round(lot.principal()));
+            row.put("currentRate", round(lot.rate()));
+            row.put("baselineCost", round(lot.principal() * Math.max(0, lot.rate()) * horizonDays / 36500.0));
+            byLot.add(row);
+        }
+        result.put("trades", byLot);
+        result.put("elapsedMs", (System.nanoTime() - started) / 1_000_000);
+        return result;
+    }
+
+    /**
+     * Диапазон траекторий [from, to): делится пополам, пока не станет достаточно мелким.
+     */
+    private static final class PathTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final Simulation sim;
+        private final double[] principal;
+        private final double[] rate;
+        private final int[] stepLength;
+        private final double[] totals;
+        private final double[][] lotCosts;
+        private final double[] lotSums;
+        private PathTask left;
+        private PathTask right;
+
+        PathTask(int from, int to, Simulation sim, double[] principal, double[] rate, int[] stepLength,
+                 double[] totals, double[][] lotCosts) {
+            this.from = from;
+            this.to = to;
+            this.sim = sim;
+            this.principal = principal;
+            this.rate = rate;
+            this.stepLength = stepLength;
+            this.totals = totals;
+            this.lotCosts = lotCosts;
+            this.lotSums = new double[principal.length];
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PATHS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                left = new PathTask(from, middle, sim, principal, rate, stepLength, totals, lotCosts);
+                right = new PathTask(middle, to, sim, principal, rate, stepLength, totals, lotCosts);
+                invokeAll(left, right);
+                return;
+            }
+            int steps = stepLength.length;
+            double[] shift = new double[steps];
+            double dt = sim.stepDays() / 365.0;
+            double a = sim.meanReversion();
+            double decay = Math.exp(-a * dt);
+            double noise = a > 1e-9
+                    ? sim.volatility() * Math.sqrt((1 - Math.exp(-2 * a * dt)) / (2 * a))
+                    : sim.volatility() * Math.sqrt(dt);
+            double theta = sim.longTermRate();
+            int horizonDays = 0;
+            for (int length : stepLength) {
+                horizonDays += length;
+            }
+
+            for (int p = from; p < to; p++) {
+                SplittableRandom random = new SplittableRandom(sim.seed() * 0x9E3779B97F4A7C15L + p);
+                double key = sim.keyRate();
+                double shiftDays = 0;
+                double minShift = Double.MAX_VALUE;
+                for (int k = 0; k < steps; k++) {
+                    key = theta + (key - theta) * decay + noise * random.nextGaussian();
+                    shift[k] = key - sim.keyRate();
+                    shiftDays += shift[k] * stepLength[k];
+                    minShift = Math.min(minShift, shift[k]);
+                }
+
+                double total = 0;
+                for (int i = 0; i < principal.length; i++) {
+                    double rateDays;
+                    if (rate[i] + minShift >= 0) {
+                        // ставка лота ни разу не упёрлась в ноль — сумма считается в закрытой форме
+                        rateDays = rate[i] * horizonDays + shiftDays;
+                    } else {
+                        rateDays = 0;
+                        for (int k = 0; k < steps; k++) {
+                            rateDays += Math.max(0, rate[i] + shift[k]) * stepLength[k];
+                        }
+                    }
+                    double cost = principal[i] * rateDays / 36500.0;
+                    total += cost;
+                    lotSums[i] += cost;
+                    if (lotCosts != null) {
+                        lotCosts[i][p] = cost;
+                    }
+                }
+                totals[p] = total;
+            }
+        }
+
+        void mergeLotSums(double[] target) {
+            if (left != null) {
+                left.mergeLotSums(target);
+                right.mergeLotSums(target);
+                return;
+            }
+            for (int i = 0; i < target.length; i++) {
+                target[i] += lotSums[i];
+            }
+        }
+    }
+
+    private static Map<String, Object> distribution(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (double v : sorted) {
+            sum += v;
+        }
+        double mean = sum / sorted.length;
+        double squares = 0;
+        for (double v : sorted) {
+            squares += (v - mean) * (v - mean);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mean", round(mean));
+        stats.put("stdDev", round(sorted.length > 1 ? Math.sqrt(squares / (sorted.length - 1)) : 0));
+        stats.put("min", round(sorted[0]));
+        for (double p : PERCENTILES) {
+            stats.put("p" + (int) p, round(percentile(sorted, p)));
+        }
+        stats.put("max", round(sorted[sorted.length - 1]));
+        return stats;
+    }
+
+    // линейная интерполяция между соседними порядковыми статистиками
+    private static double percentile(double[] sorted, double p) {
+        double index = p / 100.0 * (sorted.length - 1);
+        int lower = (int) Math.floor(index);
+        int upper = Math.min(sorted.length - 1, lower + 1);
+        return sorted[lower] + (sorted[upper] - sorted[lower]) * (index - lower);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,366 @@
+package com.example.diary.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Риск-метрики по дневным рядам: исторический и параметрический VaR, expected shortfall,
+ * максимальная просадка, скользящая волатильность, Sharpe и Sortino.
+ *
+ * Ряды — примитивные массивы доходностей. Каждый ряд считается своей fork-join задачей,
+ * суммы моментов длинного ряда дополнительно делятся пополам по диапазонам.
+ * Ряды календарные (выходные — дни без движения цены), поэтому годовой пересчёт идёт по 365 дням.
+ * Доходности, волатильность и VaR в ответе — в процентах.
+ */
+@Service
+public class RiskMetricsEngine {
+
+    public static final int MAX_WINDOW = 365;
+    private static final int PERIODS_PER_YEAR = 365;
+    private static final int VALUES_PER_TASK = 4096;
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Ряд дневных доходностей: returns[i] — доходность дня dates[i], base — день перед первой доходностью.
+     *
+     * @param lastValue стоимость на последний день — база для VaR в деньгах
+     */
+    public record ReturnSeries(String key, LocalDate base, LocalDate[] dates, double[] returns, double lastValue) {}
+
+    /**
+     * @param confidence   уровень доверия VaR, доля (0.95)
+     * @param window       окно скользящей волатильности в днях
+     * @param riskFreeRate безрисковая ставка, % годовых
+     */
+    public record Params(double confidence, int window, double riskFreeRate) {}
+
+    /**
+     * Доходности по стоимости портфеля без учёта внешних потоков: r = (V_t − flow_t − V_{t−1}) / V_{t−1}.
+     * Дни с неположительной стоимостью накануне пропускаются.
+     */
+    public static ReturnSeries fromValues(String key, LocalDate[] dates, double[] values, double[] flows) {
+        int n = dates.length;
+        LocalDate[] outDates = new LocalDate[Math.max(0, n - 1)];
+        double[] out = new double[Math.max(0, n - 1)];
+        int count = 0;
+        LocalDate base = null;
+        for (int i = 1; i < n; i++) {
+            double previous = values[i - 1];
+            if (previous <= 0) {
+                continue;
+            }
+            if (base == null) {
+                base = dates[i - 1];
+            }
+            outDates[count] = dates[i];
+            out[count] = (values[i] - flows[i] - previous) / previous;
+            count++;
+        }
+        return new ReturnSeries(key, base, Arrays.copyOf(outDates, count), Arrays.copyOf(out, count),
+                n > 0 ? values[n - 1] : 0);
+    }
+
+    /**
+     * Доходности тикера по ценам закрытия на календарной сетке [from, to]; день без котировки берёт последнюю.
+     */
+    public static ReturnSeries fromPrices(String key, TreeMap<LocalDate, Double> closes, LocalDate from, LocalDate to) {
+        if (closes == null || closes.isEmpty()) {
+            return new ReturnSeries(key, null, new LocalDate[0], new double[0], 0);
+        }
+        LocalDate first = closes.firstKey();
+        LocalDate start = from != null && from.isAfter(first) ? from : first;
+        if (start.isAfter(to)) {
+            return new ReturnSeries(key, null, new LocalDate[0], new double[0], 0);
+        }
+        List<LocalDate> days = new ArrayList<>();
+        for (LocalDate day = start; !day.isAfter(to); day = day.plusDays(1)) {
+            days.add(day);
+        }
+        double[] values = new double[days.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = closes.floorEntry(days.get(i)).getValue();
+        }
+        return fromValues(key, days.toArray(new LocalDate[0]), values, new double[values.length]);
+    }
+
+    /**
+     * Метрики по каждому ряду; ключ результата — ReturnSeries.key, порядок как во входном списке.
+     */
+    public Map<String, Map<String, Object>> compute(List<ReturnSeries> series, Params params) {
+        List<SeriesTask> tasks = new ArrayList<>(series.size());
+        for (ReturnSeries s : series) {
+            tasks.add(new SeriesTask(s, params));
+        }
+        pool.invoke(new AllSeriesTask(tasks));
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        for (SeriesTask task : tasks) {
+            result.put(task.series.key(), task.result);
+        }
+        return result;
+    }
+
+    /** Все ряды сразу: задачи рядов выполняются параллельно в пуле. */
+    private static final class AllSeriesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SeriesTask> tasks;
+
+        AllSeriesTask(List<SeriesTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /** Метрики одного ряда. */
+    private static final class SeriesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ReturnSeries series;
+        private final Params params;
+        private Map<String, Object> result;
+
+        SeriesTask(ReturnSeries series, Params params) {
+            this.series = series;
+            this.params = params;
+        }
+
+        @Override
+        protected void compute() {
+            double[] r = series.returns();
+            int n = r.length;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("observations", n);
+            m.put("from", series.base());
+            m.put("to", n > 0 ? series.dates()[n - 1] : series.base());
+            m.put("lastValue", round(series.lastValue()));
+            if (n < 2) {
+                result = m;
+                return;
+            }
+            double rfDaily = params.riskFreeRate() / 100.0 / PERIODS_PER_YEAR;
+
+            // суммы моментов и сортировка для квантилей независимы — считаем параллельно
+            MomentsTask moments = new MomentsTask(r, 0, n, rfDaily);
+            moments.fork();
+            double[] sorted = r.clone();
+            Arrays.sort(sorted);
+            double[] s = moments.join();
+
+            double mean = s[0] / n;
+            double variance = Math.max(0, (s[1] - n * mean * mean) / (n - 1));
+            double stdDev = Math.sqrt(variance);
+            double downside = Math.sqrt(s[2] / n);
+            double annualFactor = Math.sqrt(PERIODS_PER_YEAR);
+
+            double tail = 1 - params.confidence();
+            double quantile = percentile(sorted, tail);
+            double historicalVar = -quantile;
+            double tailSum = 0;
+            int tailCount = 0;
+            for (double v : sorted) {
+                if (v > quantile) {
+                    break;
+                }
+                tailSum += v;
+                tailCount++;
+            }
+            double expectedShortfall = tailCount > 0 ? -tailSum / tailCount : historicalVar;
+            double parametricVar = -(mean + inverseNormal(tail) * stdDev);
+
+            m.put("meanDailyReturn", round4(mean * 100));
+            m.put("annualReturn", round(mean * PERIODS_PER_YEAR * 100));
+            m.put("volatility", round(stdDev * annualFactor * 100));
+            m.put("confidence", params.confidence());
+            m.put("historicalVaR", round(historicalVar * 100));
+            m.put("historicalVaRAmount", round(historicalVar * series.lastValue()));
+            m.put("parametricVaR", round(parametricVar * 100));
+            m.put("parametricVaRAmount", round(parametricVar * series.lastValue()));
+            m.put("expectedShortfall", round(expectedShortfall * 100));
+            m.put("sharpe", stdDev > 0 ? round((mean - rfDaily) / stdDev * annualFactor) : null);
+            m.put("sortino", downside > 0 ? round((mean - rfDaily) / downside * annualFactor) : null);
+            m.put("maxDrawdown", drawdown(r));
+            m.put("rollingVolatility", rollingVolatility(r, params.window()));
+            result = m;
+        }
+
+        /** Просадка индекса богатства (1 на базовый день, дальше произведение 1 + r). */
+        private Map<String, Object> drawdown(double[] r) {
+            double wealth = 1;
+            double peak = 1;
+            int peakIdx = -1;
+            double maxDrawdown = 0;
+            int maxPeakIdx = -1;
+            int troughIdx = -1;
+            for (int i = 0; i < r.length; i++) {
+                wealth *= 1 + r[i];
+                if (wealth > peak) {
+                    peak = wealth;
+                    peakIdx = i;
+                } else if (peak > 0 && (peak - wealth) / peak > maxDrawdown) {
+                    maxDrawdown = (peak - wealth) / peak;
+                    maxPeakIdx = peakIdx;
+                    troughIdx = i;
+                }
+            }
+            Map<String, Object> dd = new LinkedHashMap<>();
+            dd.put("percent", round(maxDrawdown * 100));
+            if (troughIdx >= 0) {
+                dd.put("peakDate", maxPeakIdx >= 0 ? series.dates()[maxPeakIdx] : series.base());
+                dd.put("troughDate", series.dates()[troughIdx]);
+                // восстановление — первый день после дна, когда индекс вернулся к пику
+                double level = 1;
+                for (int i = 0; i <= troughIdx; i++) {
+                    level *= 1 + r[i];
+                }
+                double peakLevel = level / (1 - maxDrawdown);
+                LocalDate recovery = null;
+                for (int i = troughIdx + 1; i < r.length; i++) {
+                    level *= 1 + r[i];
+                    if (level >= peakLevel - 1e-12) {
+                        recovery = series.dates()[i];
+                        break;
+                    }
+                }
+                dd.put("recoveryDate", recovery);
+            }
+            return dd;
+        }
+
+        /** Годовая волатильность в скользящем окне: суммы окна сдвигаются за O(1) на шаг. */
+        private List<Map<String, Object>> rollingVolatility(double[] r, int window) {
+            List<Map<String, Object>> points = new ArrayList<>();
+            if (window < 2 || r.length < window) {
+                return points;
+            }
+            double sum = 0;
+            double sumSq = 0;
+            for (int i = 0; i < r.length; i++) {
+                sum += r[i];
+                sumSq += r[i] * r[i];
+                if (i >= window) {
+                    sum -= r[i - window];
+                    sumSq -= r[i - window] * r[i - window];
+                }
+                if (i >= window - 1) {
+                    double mean = sum / window;
+                    double variance = Math.max(0, (sumSq - window * mean * mean) / (window - 1));
+                    Map<String, Object> point = new LinkedHashMap<>();
+                    point.put("date", series.dates()[i]);
+                    point.put("volatility", round(Math.sqrt(variance * PERIODS_PER_YEAR) * 100));
+                    points.add(point);
+                }
+            }
+            return points;
+        }
+    }
+
+    /**
+     * Суммы r, r² и квадратов отрицательных отклонений от безрисковой ставки на диапазоне [from, to).
+     */
+    private static final class MomentsTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] values;
+        private final int from;
+        private final int to;
+        private final double threshold;
+
+        MomentsTask(double[] values, int from, int to, double threshold) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from > VALUES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                MomentsTask left = new MomentsTask(values, from, middle, threshold);
+                left.fork();
+                double[] right = new MomentsTask(values, middle, to, threshold).compute();
+                double[] l = left.join();
+                return new double[] {l[0] + right[0], l[1] + right[1], l[2] + right[2]};
+            }
+            double sum = 0;
+            double sumSq = 0;
+            double downSq = 0;
+            for (int i = from; i < to; i++) {
+                double v = values[i];
+                sum += v;
+                sumSq += v * v;
+                if (v < threshold) {
+                    downSq += (v - threshold) * (v - threshold);
+                }
+            }
+            return new double[] {sum, sumSq, downSq};
+        }
+    }
+
+    // линейная интерполяция между соседними порядковыми статистиками, p — доля
+    private static double percentile(double[] sorted, double p) {
+        double index = p * (sorted.length - 1);
+        int lower = (int) Math.floor(index);
+        int upper = Math.min(sorted.length - 1, lower + 1);
+        return sorted[lower] + (sorted[upper] - sorted[lower]) * (index - lower);
+    }
+
+    /**
+     * Квантиль стандартного нормального распределения (рациональная аппроксимация Акклама,
+     * относительная погрешность ~1e-9).
+     */
+    static double inverseNormal(double p) {
+        final double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+                1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        final double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+                6.680131188771972e+01, -1.328068155288572e+01};
+        final double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+                -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        final double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+                3.754408661907416e+00};
+        final double low = 0.02425;
+        if (p < low) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - low) {
+            double q = Math.sqrt(-2 * Math.log(1 - p));
+            return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                    / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+                / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private static double round4(double value) {
+        return Math.round(value * 10000) / 10000.0;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
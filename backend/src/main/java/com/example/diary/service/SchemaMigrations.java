@@ -0,0 +1,153 @@
+package com.example.diary.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.EntityManagerFactoryDependsOnPostProcessor;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.EncodedResource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Версионные миграции схемы: скрипты db/migration/V{n}__{описание}.sql применяются по порядку
+ * до старта JPA, применённые версии с контрольной суммой пишутся в schema_history.
+ * Hibernate после этого только проверяет схему (ddl-auto=validate), поэтому любое изменение
+ * сущностей должно сопровождаться новым скриптом. Изменять уже применённый скрипт нельзя —
+ * старт упадёт на несовпадении контрольной суммы.
+ */
+@Component
+public class SchemaMigrations {
+
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrations.class);
+
+    private static final Pattern SCRIPT_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+    record Migration(int version, String description, Resource script, long checksum) {}
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final String location;
+
+    public SchemaMigrations(DataSource dataSource,
+                            @Value("${schema.migrations.location:classpath:db/migration}") String location) {
+        this.dataSource = dataSource;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.location = location;
+    }
+
+    @PostConstruct
+    public void migrate() throws IOException, SQLException {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS schema_history (" +
+                "version INTEGER PRIMARY KEY, " +
+                "description VARCHAR(200) NOT NULL, " +
+                "checksum BIGINT NOT NULL, " +
+                "installed_at TIMESTAMP NOT NULL, " +
+                "execution_ms BIGINT NOT NULL)");
+
+        Map<Integer, Long> applied = new HashMap<>();
+        jdbcTemplate.query("SELECT version, checksum FROM schema_history",
+                rs -> { applied.put(rs.getInt(1), rs.getLong(2)); });
+
+        int appliedNow = 0;
+        for (Migration migration : scan()) {
+            Long checksum = applied.get(migration.version());
+            if (checksum != null) {
+                if (checksum != migration.checksum()) {
+                    throw new IllegalStateException("Миграция V" + migration.version() + " (" + migration.description()
+                            + ") изменена после применения — добавьте новую версию вместо правки");
+                }
+                continue;
+            }
+            apply(migration);
+            appliedNow++;
+        }
+        if (appliedNow == 0) {
+            logger.debug("Схема актуальна, применено версий: {}", applied.size());
+        }
+    }
+
+    private void apply(Migration migration) throws SQLException {
+        long started = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                ScriptUtils.executeSqlScript(connection, new EncodedResource(migration.script(), StandardCharsets.UTF_8));
+                connection.commit();
+            } catch (RuntimeException | SQLException e) {
+                connection.rollback();
+                throw new IllegalStateException("Ошибка миграции V" + migration.version() + ": " + e.getMessage(), e);
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+        long elapsed = System.currentTimeMillis() - started;
+        jdbcTemplate.update("INSERT INTO schema_history (version, description, checksum, installed_at, execution_ms) " +
+                        "VALUES (?, ?, ?, ?, ?)",
+                migration.version(), migration.description(), migration.checksum(),
+                Timestamp.valueOf(LocalDateTime.now()), elapsed);
+        logger.info("Применена миграция V{} {} за {} мс", migration.version(), migration.description(), elapsed);
+    }
+
+    private List<Migration> scan() throws IOException {
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources(location + "/V*__*.sql");
+        List<Migration> migrations = new ArrayList<>();
+        Map<Integer, String> seen = new HashMap<>();
+        for (Resource resource : resources) {
+            String name = resource.getFilename();
+            Matcher matcher = name != null ? SCRIPT_NAME.matcher(name) : null;
+            if (matcher == null || !matcher.matches()) {
+                throw new IllegalStateException("Неверное имя миграции: " + name + " (ожидается V<номер>__<описание>.sql)");
+            }
+            int version = Integer.parseInt(matcher.group(1));
+            String previous = seen.put(version, name);
+            if (previous != null) {
+                throw new IllegalStateException("Две миграции с версией " + version + ": " + previous + ", " + name);
+            }
+            migrations.add(new Migration(version, matcher.group(2).replace('_', ' '), resource, checksum(resource)));
+        }
+        migrations.sort(Comparator.comparingInt(Migration::version));
+        return migrations;
+    }
+
+    private static long checksum(Resource resource) throws IOException {
+        try (InputStream in = resource.getInputStream()) {
+            CRC32 crc = new CRC32();
+            // переводы строк не влияют на сумму: скрипт, сохранённый в Windows, считается тем же
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+            crc.update(text.getBytes(StandardCharsets.UTF_8));
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * EntityManagerFactory создаётся после миграций: иначе validate увидит ещё не обновлённую схему.
+     */
+    @Component
+    static class EntityManagerFactoryDependsOnMigrations extends EntityManagerFactoryDependsOnPostProcessor {
+        EntityManagerFactoryDependsOnMigrations() {
+            super(SchemaMigrations.class);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.diary.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Подтягивает pooled-последовательности к уже существующим id.
+ * Таблицы раньше заполнялись через IDENTITY, а hibernate создаёт новую последовательность с 1 —
+ * без выравнивания первые вставки попали бы на занятые id.
+ * Зависимость от EntityManagerFactory гарантирует, что схема уже обновлена.
+ */
+@Component
+public class SequenceAligner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SequenceAligner.class);
+
+    /** Последовательность, таблица и allocationSize из @SequenceGenerator сущности. */
+    record PooledSequence(String sequence, String table, int allocationSize) {}
+
+    static final List<PooledSequence> SEQUENCES = List.of(
+            new PooledSequence("TRADES_SEQ", "trades", 50),
+            new PooledSequence("TRADE_CLOSURES_SEQ", "trade_closures", 50),
+            new PooledSequence("SPOT_TRANSACTIONS_SEQ", "spot_transactions", 50)
+    );
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public SequenceAligner(EntityManagerFactory entityManagerFactory, JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void align() {
+        for (PooledSequence seq : SEQUENCES) {
+            Long maxId = jdbcTemplate.queryForObject("SELECT MAX(id) FROM " + seq.table(), Long.class);
+            if (maxId == null) {
+                continue;
+            }
+            List<Long> base = jdbcTemplate.queryForList(
+                    "SELECT BASE_VALUE FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?",
+                    Long.class, seq.sequence());
+            if (base.isEmpty()) {
+                logger.warn("Последовательность {} не найдена", seq.sequence());
+                continue;
+            }
+            // pooled-оптимизатор выдаёт диапазон (value - allocationSize, value], поэтому
+            // следующее значение должно превышать max(id) как минимум на allocationSize
+            long required = maxId + seq.allocationSize();
+            if (base.get(0) < required) {
+                jdbcTemplate.execute("ALTER SEQUENCE " + seq.sequence() + " RESTART WITH " + required);
+                logger.info("Последовательность {} выровнена: {} -> {}", seq.sequence(), base.get(0), required);
+            }
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package com.example.diary.service;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.SpotLedgerCheckpoint;
+import com.example.diary.model.SpotTransaction;
+import com.example.diary.model.SpotTransaction.TransactionType;
+import com.example.diary.model.User;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.repository.SpotLedgerCheckpointRepository;
+import com.example.diary.repository.SpotTransactionRepository;
+import com.example.diary.repository.projection.SpotLedgerRow;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Спотовый журнал портфеля, свёрнутый за один проход: позиции по средней цене, денежный остаток,
+ * реализованный результат и дивиденды. Спотовые отчёты — представления над ним.
+ *
+ * Журнал строится лениво одним запросом проекций и кэшируется по портфелю. Запись спотовой транзакции
+ * подменяет его копией с учётом изменения (как книги TaxLotEngine): денежные итоги аддитивны,
+ * позиция тикера дописывается за O(1), если транзакция последняя по тикеру, иначе тикер сворачивается
+ * заново из БД. Прочие записи сбрасывают журнал по событию.
+ *
+ * При построении каждые checkpoint-interval транзакций состояние сохраняется контрольной точкой
+ * (spot_ledger_checkpoints), и после рестарта или сброса свёртка продолжается от последней из них.
+ * Запись удаляет точки начиная с самой ранней затронутой даты сделки (PortfolioDataChangedEvent#since),
+ * более ранние остаются в силе.
+ */
+@Service
+public class SpotLedgerEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpotLedgerEngine.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int SCALE = 6;
+
+    // Порядок свёртки: транзакции без даты первыми, затем по дате и id
+    static final Comparator<SpotLedgerRow> ORDER = Comparator
+            .comparing(SpotLedgerRow::tradeDate, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(SpotLedgerRow::id, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    /**
+     * Позиция по тикеру. cost — остаток себестоимости по средней цене (у короткой позиции отрицательный);
+     * bought/sold — обороты покупок и продаж.
+     * last — последняя свёрнутая покупка/продажа, после неё новую транзакцию можно дописать без пересвёртки.
+     */
+    public record Position(String ticker, String company, BigDecimal quantity, BigDecimal cost,
+                           BigDecimal realizedPnl, BigDecimal bought, BigDecimal sold, BigDecimal dividends,
+                           int buys, int sells, SpotLedgerRow last) {
+
+        static Position empty(String ticker) {
+            return new Position(ticker, null, BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO,
+                    BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO, 0, 0, null);
+        }
+
+        public BigDecimal averagePrice() {
+            return quantity.signum() > 0 ? cost.divide(quantity, SCALE, RoundingMode.HALF_UP) : BigDecimal.ZERO;
+        }
+
+        public boolean isOpen() {
+            return quantity.signum() > 0;
+        }
+
+        /** Были ли по тикеру покупки или продажи (тикеры только с дивидендами позициями не считаются). */
+        public boolean traded() {
+            return buys + sells > 0;
+        }
+
+        /** Можно ли дописать транзакцию без пересвёртки тикера. */
+        boolean appendable(SpotLedgerRow row) {
+            return row.transactionType() == TransactionType.DIVIDEND || last == null || ORDER.compare(row, last) > 0;
+        }
+
+        Position fold(SpotLedgerRow row) {
+            BigDecimal qty = value(row.quantity());
+            BigDecimal gross = value(row.price()).multiply(qty);
+            String name = row.company() != null && !row.company().isBlank() ? row.company() : company;
+            switch (row.transactionType()) {
+                case BUY -> {
+                    return trade(name, qty, value(row.price()), row).withTurnover(bought.add(gross), sold, buys + 1, sells);
+                }
+                case SELL -> {
+                    return trade(name, qty.negate(), value(row.price()), row).withTurnover(bought, sold.add(gross), buys, sells + 1);
+                }
+                case DIVIDEND -> {
+                    return new Position(ticker, company != null ? company : name, quantity, cost, realizedPnl,
+                            bought, sold, dividends.add(value(row.amount())), buys, sells, last);
+                }
+                default -> {
+                    return this;
+                }
+            }
+        }
+
+        /**
+         * Сделка по средней цене со знаком: delta > 0 — покупка. Встречная сделка сначала закрывает
+         * текущую позицию (результат — от средней цены), остаток открывает позицию в её сторону.
+         * Продажа сверх остатка так открывает короткую позицию, а следующая покупка её закрывает —
+         * количество совпадает с holdings в NavEngine, а результат сходится с оборотами.
+         */
+        private Position trade(String name, BigDecimal delta, BigDecimal price, SpotLedgerRow row) {
+            BigDecimal newQuantity = quantity.add(delta);
+            BigDecimal newCost;
+            BigDecimal realized = realizedPnl;
+            if (quantity.signum() == 0 || quantity.signum() == delta.signum()) {
+                newCost = cost.add(price.multiply(delta));
+            } else {
+                BigDecimal avg = cost.divide(quantity, SCALE, RoundingMode.HALF_UP);
+                BigDecimal closing = delta.abs().min(quantity.abs());
+                // закрываемая часть: для длинной позиции (цена - средняя), для короткой — наоборот
+                realized = realized.add(price.subtract(avg).multiply(closing)
+                        .multiply(BigDecimal.valueOf(quantity.signum())));
+                BigDecimal rest = delta.abs().subtract(closing);
+                if (rest.signum() > 0) {
+                    newCost = price.multiply(rest).multiply(BigDecimal.valueOf(delta.signum()));
+                } else {
+                    newCost = newQuantity.signum() == 0 ? BigDecimal.ZERO : avg.multiply(newQuantity);
+                }
+            }
+            return new Position(ticker, name, newQuantity, newCost.setScale(SCALE, RoundingMode.HALF_UP),
+                    realized.setScale(SCALE, RoundingMode.HALF_UP), bought, sold, dividends, buys, sells, row);
+        }
+
+        private Position withTurnover(BigDecimal bought, BigDecimal sold, int buys, int sells) {
+            return new Position(ticker, company, quantity, cost, realizedPnl, bought, sold, dividends, buys, sells, last);
+        }
+
+        /** Сумма позиций одного тикера в разных портфелях. */
+        Position plus(Position other) {
+            return new Position(ticker, company != null ? company : other.company,
+                    quantity.add(other.quantity), cost.add(other.cost), realizedPnl.add(other.realizedPnl),
+                    bought.add(other.bought), sold.add(other.sold), dividends.add(other.dividends),
+                    buys + other.buys, sells + other.sells, null);
+        }
+
+        /** Денежные поля в другой валюте: factor — курс пересчёта, количество не меняется. */
+        Position scaled(BigDecimal factor) {
+            return new Position(ticker, company, quantity, scale(cost, factor), scale(realizedPnl, factor),
+                    scale(bought, factor), scale(sold, factor), scale(dividends, factor), buys, sells, last);
+        }
+    }
+
+    /** Позиция в JSON контрольной точки; от последней покупки/продажи хранятся только дата и id. */
+    record StoredPosition(String ticker, String company, BigDecimal quantity, BigDecimal cost,
+                          BigDecimal realizedPnl, BigDecimal bought, BigDecimal sold, BigDecimal dividends,
+                          int buys, int sells, Long lastId, String lastDate) {
+
+        static StoredPosition of(Position p) {
+            return new StoredPosition(p.ticker(), p.company(), p.quantity(), p.cost(), p.realizedPnl(),
+                    p.bought(), p.sold(), p.dividends(), p.buys(), p.sells(),
+                    p.last() != null ? p.last().id() : null,
+                    p.last() != null && p.last().tradeDate() != null ? p.last().tradeDate().toString() : null);
+        }
+
+        Position toPosition() {
+            SpotLedgerRow last = lastId == null ? null : new SpotLedgerRow(lastId, ticker, company, null, null, null, null,
+                    lastDate != null ? LocalDate.parse(lastDate) : null);
+            return new Position(ticker, company, quantity, cost, realizedPnl, bought, sold, dividends, buys, sells, last);
+        }
+    }
+
+    /** Состояние свёртки после транзакции boundary — кандидат в контрольную точку. */
+    private record Snapshot(Totals totals, List<StoredPosition> positions, SpotLedgerRow boundary) {}
+
+    /** Денежные итоги журнала: всё, что складывается независимо от порядка транзакций. */
+    public record Totals(BigDecimal cash, BigDecimal invested, BigDecimal received, BigDecimal dividends,
+                         int transactions, int sells) {
+
+        static final Totals ZERO = new Totals(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO, 0, 0);
+
+        Totals plus(SpotLedgerRow row, int sign) {
+            BigDecimal s = BigDecimal.valueOf(sign);
+            BigDecimal gross = value(row.price()).multiply(value(row.quantity())).multiply(s);
+            BigDecimal amount = value(row.amount()).multiply(s);
+            TransactionType type = row.transactionType();
+            return new Totals(cash.add(amount),
+                    type == TransactionType.BUY ? invested.add(gross) : invested,
+                    type == TransactionType.SELL ? received.add(gross) : received,
+                    type == TransactionType.DIVIDEND ? dividends.add(amount) : dividends,
+                    transactions + sign,
+                    type == TransactionType.SELL ? sells + sign : sells);
+        }
+
+        Totals plus(Totals other) {
+            return new Totals(cash.add(other.cash), invested.add(other.invested), received.add(other.received),
+                    dividends.add(other.dividends), transactions + other.transactions, sells + other.sells);
+        }
+
+        Totals scaled(BigDecimal factor) {
+            return new Totals(scale(cash, factor), scale(invested, factor), scale(received, factor),
+                    scale(dividends, factor), transactions, sells);
+        }
+    }
+
+    /**
+     * Неизменяемый журнал портфеля (или сумма журналов портфелей пользователя в сводной валюте,
+     * тогда portfolioId = null). stamp — счётчик сбросов пользователя на момент построения.
+     */
+    public static final class SpotLedger {
+        private final Long userId;
+        private final Long portfolioId;
+        private final long stamp;
+        private final Map<String, Position> positions;
+        private final Totals totals;
+
+        private SpotLedger(Long userId, Long portfolioId, long stamp, Map<String, Position> positions, Totals totals) {
+            this.userId = userId;
+            this.portfolioId = portfolioId;
+            this.stamp = stamp;
+            this.positions = Collections.unmodifiableMap(positions);
+            this.totals = totals;
+        }
+
+        /** Позиции по тикерам в алфавитном порядке. */
+        public Map<String, Position> positions() { return positions; }
+
+        public Totals totals() { return totals; }
+
+        public Long portfolioId() { return portfolioId; }
+
+        public List<Position> openPositions() {
+            return positions.values().stream().filter(Position::isOpen).toList();
+        }
+
+        public BigDecimal realizedPnl() {
+            return positions.values().stream().map(Position::realizedPnl).reduce(BigDecimal.ZERO, BigDecimal::add);
+        }
+    }
+
+    private final SpotTransactionRepository spotTransactionRepository;
+    private final PortfolioRepository portfolioRepository;
+    private final SpotLedgerCheckpointRepository checkpointRepository;
+    private final FxRateService fxRateService;
+    private final TransactionTemplate transactionTemplate;
+    private final int checkpointInterval;
+
+    private final Map<Long, SpotLedger> ledgers = new ConcurrentHashMap<>();
+    // Счётчик сбросов по пользователю: журнал, построенный до сброса, в кэш не попадает
+    private final Map<Long, AtomicLong> resets = new ConcurrentHashMap<>();
+
+    public SpotLedgerEngine(SpotTransactionRepository spotTransactionRepository,
+                            PortfolioRepository portfolioRepository,
+                            SpotLedgerCheckpointRepository checkpointRepository,
+                            FxRateService fxRateService,
+                            PlatformTransactionManager transactionManager,
+                            @Value("${spot.ledger.checkpoint-interval:500}") int checkpointInterval) {
+        this.spotTransactionRepository = spotTransactionRepository;
+        this.portfolioRepository = portfolioRepository;
+        this.checkpointRepository = checkpointRepository;
+        this.fxRateService = fxRateService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+    }
+
+    /**
+     * Журнал портфеля; portfolioId = null — сумма по всем портфелям пользователя в сводной валюте по умолчанию.
+     * Доступ к портфелю проверяет вызывающий.
+     */
+    public SpotLedger ledger(User user, Long portfolioId) {
+        return ledger(user, portfolioId, null);
+    }
+
+    /**
+     * Журнал портфеля в его валюте; portfolioId = null — сумма по всем портфелям пользователя,
+     * пересчитанная в currency (null — fx.reporting-currency) по сегодняшнему курсу.
+     */
+    public SpotLedger ledger(User user, Long portfolioId, String currency) {
+        if (portfolioId != null) {
+            return ledger(user.getId(), portfolioId);
+        }
+        FxRateService.Converter converter = fxRateService.converter(currency, LocalDate.now());
+        List<SpotLedger> parts = new ArrayList<>();
+        for (Portfolio portfolio : portfolioRepository.findByUser(user)) {
+            parts.add(converted(ledger(user.getId(), portfolio.getId()), converter.factor(portfolio.getCurrency())));
+        }
+        return merge(user.getId(), parts);
+    }
+
+    /** Кэшированный журнал портфеля без построения — база для applyChange; null, если его нет. */
+    public SpotLedger cached(Long portfolioId) {
+        return ledgers.get(portfolioId);
+    }
+
+    public SpotLedger ledger(Long userId, Long portfolioId) {
+        SpotLedger cached = ledgers.get(portfolioId);
+        if (cached != null) {
+            return cached;
+        }
+        AtomicLong counter = resetCounter(userId);
+        long stamp = counter.get();
+
+        Totals totals = Totals.ZERO;
+        Map<String, Position> positions = new TreeMap<>();
+        List<SpotLedgerRow> rows = null;
+        SpotLedgerCheckpoint checkpoint = checkpointRepository
+                .findFirstByPortfolioIdOrderByTransactionSeqDesc(portfolioId).orElse(null);
+        if (checkpoint != null) {
+            try {
+                for (StoredPosition stored : MAPPER.readValue(checkpoint.getPositionsJson(),
+                        new TypeReference<List<StoredPosition>>() {})) {
+                    positions.put(stored.ticker(), stored.toPosition());
+                }
+                totals = new Totals(checkpoint.getCash(), checkpoint.getInvested(), checkpoint.getReceived(),
+                        checkpoint.getDividends(), checkpoint.getTransactionSeq(), checkpoint.getSells());
+                rows = spotTransactionRepository.findBookRowsAfter(portfolioId,
+                        checkpoint.getAsOfDate(), checkpoint.getAsOfId());
+            } catch (JsonProcessingException e) {
+                logger.warn("Контрольная точка спотового журнала {} не читается, журнал строится с начала: {}",
+                        checkpoint.getId(), e.getMessage());
+                invalidateCheckpoints(portfolioId, null);
+                positions.clear();
+            }
+        }
+        if (rows == null) {
+            rows = spotTransactionRepository.findBookRows(portfolioId);
+        }
+
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (SpotLedgerRow row : rows) {
+            totals = totals.plus(row, 1);
+            if (affectsPosition(row)) {
+                positions.put(row.ticker(), positions.getOrDefault(row.ticker(), Position.empty(row.ticker())).fold(row));
+            }
+            // транзакции без даты идут в начале журнала, точку от них не продолжить запросом по дате
+            if (row.tradeDate() != null && row.id() != null && totals.transactions() % checkpointInterval == 0) {
+                snapshots.add(new Snapshot(totals, positions.values().stream().map(StoredPosition::of).toList(), row));
+            }
+        }
+        SpotLedger loaded = new SpotLedger(userId, portfolioId, stamp, positions, totals);
+        synchronized (counter) {
+            // за время чтения была запись — прочитанное могло устареть, отдаём без кэширования и без точек
+            if (counter.get() == stamp) {
+                SpotLedger existing = ledgers.putIfAbsent(portfolioId, loaded);
+                if (existing != null) {
+                    return existing;
+                }
+                saveCheckpoints(portfolioId, snapshots);
+                return loaded;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Подменяет журнал копией с учётом записи, если с момента построения базы не было других записей
+     * (единственный сброс — от события самой записи). removed — транзакция до правки или удаления,
+     * added — после создания или правки. Иначе журнал перестроится при следующем обращении.
+     */
+    public void applyChange(SpotLedger base, SpotLedgerRow removed, SpotLedgerRow added) {
+        if (base == null) {
+            return;
+        }
+        AtomicLong counter = resetCounter(base.userId);
+        if (counter.get() != base.stamp + 1) {
+            return;
+        }
+        Totals totals = base.totals;
+        Map<String, Position> positions = new TreeMap<>(base.positions);
+        Set<String> refold = new LinkedHashSet<>();
+        if (removed != null) {
+            totals = totals.plus(removed, -1);
+            if (affectsPosition(removed)) {
+                refold.add(removed.ticker());
+            }
+        }
+        if (added != null) {
+            totals = totals.plus(added, 1);
+            if (affectsPosition(added) && !refold.contains(added.ticker())) {
+                Position current = positions.getOrDefault(added.ticker(), Position.empty(added.ticker()));
+                if (current.appendable(added)) {
+                    positions.put(added.ticker(), current.fold(added));
+                } else {
+                    refold.add(added.ticker());
+                }
+            }
+        }
+        for (String ticker : refold) {
+            Position position = Position.empty(ticker);
+            for (SpotLedgerRow row : spotTransactionRepository.findBookRowsByTicker(base.portfolioId, ticker)) {
+                position = position.fold(row);
+            }
+            if (position.traded() || position.dividends.signum() != 0) {
+                positions.put(ticker, position);
+            } else {
+                positions.remove(ticker);
+            }
+        }
+        synchronized (counter) {
+            long current = counter.get();
+            if (current != base.stamp + 1) {
+                return;
+            }
+            SpotLedger updated = new SpotLedger(base.userId, base.portfolioId, current, positions, totals);
+            ledgers.compute(base.portfolioId, (k, cached) -> cached == null || cached == base ? updated : cached);
+        }
+    }
+
+    public static SpotLedgerRow rowOf(SpotTransaction tx) {
+        return new SpotLedgerRow(tx.getId(), tx.getTicker(), tx.getCompany(), tx.getTransactionType(),
+                tx.getPrice(), tx.getQuantity(), tx.getAmount(), tx.getTradeDate());
+    }
+
+    // Сразу после коммита записи, до подстановки обновлённой копии вызывающим
+    @TransactionalEventListener(fallbackExecution = true)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onPortfolioDataChanged(PortfolioDataChangedEvent event) {
+        if (event.kind() == PortfolioDataChangedEvent.Kind.SPOT && event.userId() != null) {
+            evict(event.userId(), event.portfolioId());
+            if (event.portfolioId() != null) {
+                invalidateCheckpoints(event.portfolioId(), event.since());
+            } else {
+                transactionTemplate.execute(status -> checkpointRepository.deleteByUser(event.userId()));
+            }
+        }
+    }
+
+    /**
+     * Удаляет контрольные точки, в которые могла попасть транзакция от даты since; since = null — все.
+     * Вызывается после сброса счётчика: построение, начатое до записи, свои точки уже не сохранит.
+     */
+    public void invalidateCheckpoints(Long portfolioId, LocalDate since) {
+        Integer deleted = transactionTemplate.execute(status -> checkpointRepository.deleteFrom(portfolioId, since));
+        if (deleted != null && deleted > 0) {
+            logger.debug("Спотовый журнал {}: удалено контрольных точек {} (с {})", portfolioId, deleted, since);
+        }
+    }
+
+    private void saveCheckpoints(Long portfolioId, List<Snapshot> snapshots) {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        List<SpotLedgerCheckpoint> checkpoints = new ArrayList<>(snapshots.size());
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            for (Snapshot snapshot : snapshots) {
+                SpotLedgerCheckpoint checkpoint = new SpotLedgerCheckpoint();
+                checkpoint.setPortfolioId(portfolioId);
+                checkpoint.setTransactionSeq(snapshot.totals().transactions());
+                checkpoint.setAsOfDate(snapshot.boundary().tradeDate());
+                checkpoint.setAsOfId(snapshot.boundary().id());
+                checkpoint.setCash(snapshot.totals().cash());
+                checkpoint.setInvested(snapshot.totals().invested());
+                checkpoint.setReceived(snapshot.totals().received());
+                checkpoint.setDividends(snapshot.totals().dividends());
+                checkpoint.setSells(snapshot.totals().sells());
+                checkpoint.setPositionsJson(MAPPER.writeValueAsString(snapshot.positions()));
+                checkpoint.setCreatedAt(now);
+                checkpoints.add(checkpoint);
+            }
+            checkpointRepository.saveAll(checkpoints);
+        } catch (JsonProcessingException | DataIntegrityViolationException e) {
+            // точки — только ускорение: без них журнал просто построится с более ранней
+            logger.warn("Контрольные точки спотового журнала {} не сохранены: {}", portfolioId, e.getMessage());
+        }
+    }
+
+    /**
+     * Сбрасывает журналы пользователя: portfolioId = null — по всем портфелям.
+     */
+    public void evict(Long userId, Long portfolioId) {
+        AtomicLong counter = resetCounter(userId);
+        synchronized (counter) {
+            counter.incrementAndGet();
+            ledgers.entrySet().removeIf(e -> userId.equals(e.getValue().userId)
+                    && (portfolioId == null || portfolioId.equals(e.getKey())));
+        }
+    }
+
+    // Курс один на портфель: все позиции и итоги умножаются на него, кэшированный журнал не меняется
+    private static SpotLedger converted(SpotLedger ledger, BigDecimal factor) {
+        if (factor.compareTo(BigDecimal.ONE) == 0) {
+            return ledger;
+        }
+        Map<String, Position> positions = new TreeMap<>();
+        ledger.positions.forEach((ticker, position) -> positions.put(ticker, position.scaled(factor)));
+        return new SpotLedger(ledger.userId, ledger.portfolioId, -1, positions, ledger.totals.scaled(factor));
+    }
+
+    private static SpotLedger merge(Long userId, List<SpotLedger> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        Totals totals = Totals.ZERO;
+        Map<String, Position> positions = new TreeMap<>();
+        for (SpotLedger part : parts) {
+            totals = totals.plus(part.totals);
+            part.positions.forEach((ticker, position) -> positions.merge(ticker, position, Position::plus));
+        }
+        return new SpotLedger(userId, null, -1, positions, totals);
+    }
+
+    // Ввод и вывод денег меняют только остаток, даже если у них указан тикер (USD, RUB и т.п.);
+    // доход с тикером-валютой — тоже деньги, а купленная валюта — позиция, как и бумага
+    private static boolean affectsPosition(SpotLedgerRow row) {
+        TransactionType type = row.transactionType();
+        return row.ticker() != null
+                && (type == TransactionType.BUY || type == TransactionType.SELL
+                    || type == TransactionType.DIVIDEND && !FxRateService.isCurrencyCode(row.ticker()));
+    }
+
+    private AtomicLong resetCounter(Long userId) {
+        return resets.computeIfAbsent(userId, id -> new AtomicLong());
+    }
+
+    private static BigDecimal value(BigDecimal v) {
+        return v != null ? v : BigDecimal.ZERO;
+    }
+
+    private static BigDecimal scale(BigDecimal v, BigDecimal factor) {
+        return v.multiply(factor).setScale(SCALE, RoundingMode.HALF_UP);
+    }
+}
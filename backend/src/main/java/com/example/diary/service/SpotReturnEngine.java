@@ -0,0 +1,450 @@
+package com.example.diary.service;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.SpotTransaction.TransactionType;
+import com.example.diary.model.User;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.repository.SpotTransactionRepository;
+import com.example.diary.repository.projection.SpotFlowRow;
+import com.example.diary.repository.projection.SpotLedgerRow;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Доходность спотового портфеля: денежно-взвешенная (XIRR) и взвешенная по времени (TWR).
+ *
+ * Потоки — спотовые транзакции, сложенные по дням. Если в портфеле есть пополнения и выводы, считается
+ * доходность счёта: потоки — пополнения и выводы, стоимость — бумаги плюс деньги (дивиденды уже в деньгах).
+ * Без них — доходность бумаг: потоки — покупки, продажи и дивиденды, стоимость — только бумаги.
+ * Стоимость по дням и на сегодня берётся из кривой {@link NavEngine}, по тем же ценам, что /nav/equity-curve.
+ *
+ * Дневные потоки кэшируются по портфелю; запись транзакции правит копию на её сумму (как журнал
+ * {@link SpotLedgerEngine}), так что пересчёт после новой транзакции не перечитывает потоки из БД.
+ * XIRR — метод Ньютона внутри вилки со сменой знака, с откатом на бисекцию; старт — прошлый корень.
+ */
+@Service
+public class SpotReturnEngine {
+
+    private static final double DAYS_PER_YEAR = 365.0;
+    private static final double TOLERANCE = 1e-10;
+    private static final int MAX_ITERATIONS = 100;
+    // 1 + r должно оставаться положительным
+    private static final double MIN_RATE = -0.999999;
+    private static final double MAX_RATE = 1e6;
+    private static final double DEFAULT_GUESS = 0.1;
+
+    public enum Basis {
+        /** пополнения и выводы, стоимость — бумаги и деньги */
+        CASH,
+        /** покупки, продажи и дивиденды, стоимость — бумаги */
+        SECURITIES
+    }
+
+    /**
+     * Потоки дня — суммы транзакций со знаком как в amount.
+     * external — пополнения и выводы, securities — покупки, продажи и дивиденды.
+     */
+    record DayFlow(BigDecimal external, BigDecimal securities) {
+
+        static final DayFlow ZERO = new DayFlow(BigDecimal.ZERO, BigDecimal.ZERO);
+
+        DayFlow plus(TransactionType type, BigDecimal amount) {
+            return switch (type) {
+                case DEPOSIT, WITHDRAW -> new DayFlow(external.add(amount), securities);
+                case BUY, SELL, DIVIDEND -> new DayFlow(external, securities.add(amount));
+            };
+        }
+
+        DayFlow plus(DayFlow other) {
+            return new DayFlow(external.add(other.external), securities.add(other.securities));
+        }
+
+        DayFlow scaled(double rate) {
+            BigDecimal factor = BigDecimal.valueOf(rate);
+            return new DayFlow(external.multiply(factor), securities.multiply(factor));
+        }
+
+        boolean isZero() {
+            return external.signum() == 0 && securities.signum() == 0;
+        }
+
+        /** Вложение инвестора в день (минус — изъятие). */
+        double contribution(Basis basis) {
+            return basis == Basis.CASH ? external.doubleValue() : -securities.doubleValue();
+        }
+    }
+
+    /**
+     * Неизменяемые дневные потоки портфеля; stamp — счётчик сбросов на момент построения.
+     * undated — транзакции без даты: во времени их не расположить, в расчёт они не входят.
+     */
+    public static final class FlowBook {
+        private final Long userId;
+        private final Long portfolioId;
+        private final long stamp;
+        private final TreeMap<LocalDate, DayFlow> days;
+        private final int undated;
+
+        FlowBook(Long userId, Long portfolioId, long stamp, TreeMap<LocalDate, DayFlow> days, int undated) {
+            this.userId = userId;
+            this.portfolioId = portfolioId;
+            this.stamp = stamp;
+            this.days = days;
+            this.undated = undated;
+        }
+
+        public boolean isEmpty() {
+            return days.isEmpty();
+        }
+    }
+
+    /**
+     * Итог расчёта. Доходности — доли (0.12 = 12%); null, если не определены
+     * (нет вложений, нет стоимости или у XIRR нет корня).
+     *
+     * @param iterations шагов решателя XIRR
+     */
+    public record Returns(Basis basis, LocalDate from, LocalDate to, Double xirr, Double twr, Double twrAnnualized,
+                          double terminalValue, double contributed, double withdrawn, int flowDays,
+                          int undatedTransactions, int iterations) {}
+
+    record Solution(double rate, int iterations) {}
+
+    /** Потоки портфеля в сводном расчёте; portfolio = null — расчёт по одному портфелю, без пересчёта валют. */
+    private record Part(FlowBook book, Portfolio portfolio) {}
+
+    private final SpotTransactionRepository spotTransactionRepository;
+    private final PortfolioRepository portfolioRepository;
+    private final NavEngine navEngine;
+    private final FxRateService fxRateService;
+
+    private final Map<Long, FlowBook> books = new ConcurrentHashMap<>();
+    // Счётчик сбросов по пользователю: потоки, прочитанные до сброса, в кэш не попадают
+    private final Map<Long, AtomicLong> resets = new ConcurrentHashMap<>();
+    // Последний корень XIRR по портфелю (по пользователю — с ключом -userId): старт следующего решения
+    private final Map<Long, Double> lastRates = new ConcurrentHashMap<>();
+
+    public SpotReturnEngine(SpotTransactionRepository spotTransactionRepository,
+                            PortfolioRepository portfolioRepository,
+                            NavEngine navEngine,
+                            FxRateService fxRateService) {
+        this.spotTransactionRepository = spotTransactionRepository;
+        this.portfolioRepository = portfolioRepository;
+        this.navEngine = navEngine;
+        this.fxRateService = fxRateService;
+    }
+
+    /**
+     * Доходность портфеля в его валюте; portfolioId = null — по всем портфелям пользователя вместе,
+     * в валюте currency (null — fx.reporting-currency): потоки и стоимость каждого дня пересчитываются
+     * по курсу этого дня. Доступ к портфелю проверяет вызывающий.
+     */
+    public Returns returns(User user, Long portfolioId, String currency) {
+        List<Part> parts = new ArrayList<>();
+        String target = fxRateService.reportingCurrency(currency);
+        if (portfolioId != null) {
+            parts.add(new Part(flows(user.getId(), portfolioId), null));
+        } else {
+            for (Portfolio portfolio : portfolioRepository.findByUser(user)) {
+                FlowBook book = flows(user.getId(), portfolio.getId());
+                if (!book.isEmpty()) {
+                    parts.add(new Part(book, portfolio));
+                }
+            }
+        }
+        TreeMap<LocalDate, DayFlow> days = new TreeMap<>();
+        int undated = 0;
+        for (Part part : parts) {
+            TreeMap<LocalDate, DayFlow> partDays = part.book().days;
+            if (part.portfolio() != null && !partDays.isEmpty()) {
+                // курсы на все дни портфеля одним вызовом
+                List<LocalDate> dates = new ArrayList<>(partDays.keySet());
+                double[] rates = fxRateService.rates(part.portfolio().getCurrency(), target, dates);
+                for (int i = 0; i < dates.size(); i++) {
+                    days.merge(dates.get(i), partDays.get(dates.get(i)).scaled(rates[i]), DayFlow::plus);
+                }
+            } else {
+                partDays.forEach((date, flow) -> days.merge(date, flow, DayFlow::plus));
+            }
+            undated += part.book().undated;
+        }
+        Basis basis = days.values().stream().anyMatch(d -> d.external().signum() != 0) ? Basis.CASH : Basis.SECURITIES;
+        if (days.isEmpty()) {
+            return new Returns(basis, null, null, null, null, null, 0, 0, 0, 0, undated, 0);
+        }
+
+        List<List<NavEngine.Point>> curves = new ArrayList<>();
+        for (Part part : parts) {
+            curves.add(part.portfolio() != null
+                    ? navEngine.curve(user.getId(), part.portfolio(), target, null, null)
+                    : navEngine.curve(user.getId(), part.book().portfolioId, null, null));
+        }
+        List<NavEngine.Point> curve = curves.size() == 1 ? curves.get(0) : NavEngine.combine(curves);
+
+        LocalDate from = days.firstKey();
+        double terminal = curve.isEmpty() ? 0 : value(curve.get(curve.size() - 1), basis);
+        // полностью выведенный портфель: период заканчивается последним потоком, а не сегодняшним днём
+        LocalDate to = days.lastKey();
+        for (int i = curve.size() - 1; i >= 0; i--) {
+            if (value(curve.get(i), basis) != 0) {
+                LocalDate valued = curve.get(i).date();
+                to = valued.isAfter(to) ? valued : to;
+                break;
+            }
+        }
+
+        // XIRR: вложения со знаком минус, изъятия и итоговая стоимость — плюс; время в годах от первого потока
+        List<double[]> flows = new ArrayList<>();
+        double contributed = 0;
+        double withdrawn = 0;
+        for (Map.Entry<LocalDate, DayFlow> e : days.entrySet()) {
+            double c = e.getValue().contribution(basis);
+            if (c == 0) {
+                continue;
+            }
+            if (c > 0) {
+                contributed += c;
+            } else {
+                withdrawn -= c;
+            }
+            flows.add(new double[]{years(from, e.getKey()), -c});
+        }
+        if (terminal != 0) {
+            flows.add(new double[]{years(from, to), terminal});
+        }
+        double[] times = new double[flows.size()];
+        double[] amounts = new double[flows.size()];
+        for (int i = 0; i < flows.size(); i++) {
+            times[i] = flows.get(i)[0];
+            amounts[i] = flows.get(i)[1];
+        }
+        Long rateKey = portfolioId != null ? portfolioId : -user.getId();
+        Solution solution = xirr(times, amounts, lastRates.getOrDefault(rateKey, DEFAULT_GUESS));
+        if (solution != null) {
+            lastRates.put(rateKey, solution.rate());
+        }
+
+        Double twr = twr(curve, days, basis);
+        long period = ChronoUnit.DAYS.between(from, to);
+        Double twrAnnualized = twr != null && twr > -1 && period > 0
+                ? Math.pow(1 + twr, DAYS_PER_YEAR / period) - 1 : null;
+
+        return new Returns(basis, from, to, solution != null ? solution.rate() : null, twr, twrAnnualized,
+                terminal, contributed, withdrawn, flows.size() - (terminal != 0 ? 1 : 0), undated,
+                solution != null ? solution.iterations() : 0);
+    }
+
+    /** Кэшированные потоки портфеля без построения — база для applyChange; null, если их нет. */
+    public FlowBook cached(Long portfolioId) {
+        return books.get(portfolioId);
+    }
+
+    public FlowBook flows(Long userId, Long portfolioId) {
+        FlowBook cached = books.get(portfolioId);
+        if (cached != null) {
+            return cached;
+        }
+        AtomicLong counter = resetCounter(userId);
+        long stamp = counter.get();
+
+        TreeMap<LocalDate, DayFlow> days = new TreeMap<>();
+        int undated = 0;
+        for (SpotFlowRow row : spotTransactionRepository.sumFlowsByDate(portfolioId)) {
+            if (row.tradeDate() == null) {
+                undated += row.transactions().intValue();
+            } else if (row.transactionType() != null) {
+                days.merge(row.tradeDate(), DayFlow.ZERO.plus(row.transactionType(), value(row.amount())), DayFlow::plus);
+            }
+        }
+        FlowBook loaded = new FlowBook(userId, portfolioId, stamp, days, undated);
+        synchronized (counter) {
+            if (counter.get() == stamp) {
+                FlowBook existing = books.putIfAbsent(portfolioId, loaded);
+                return existing != null ? existing : loaded;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Подменяет потоки копией с учётом записи, если после построения базы не было других записей,
+     * см. {@link SpotLedgerEngine#applyChange}. Потоки аддитивны, поэтому правка задним числом тоже
+     * применяется на месте.
+     */
+    public void applyChange(FlowBook base, SpotLedgerRow removed, SpotLedgerRow added) {
+        if (base == null) {
+            return;
+        }
+        AtomicLong counter = resetCounter(base.userId);
+        if (counter.get() != base.stamp + 1) {
+            return;
+        }
+        TreeMap<LocalDate, DayFlow> days = new TreeMap<>(base.days);
+        int undated = base.undated + apply(days, removed, -1) + apply(days, added, 1);
+        synchronized (counter) {
+            long current = counter.get();
+            if (current != base.stamp + 1) {
+                return;
+            }
+            FlowBook updated = new FlowBook(base.userId, base.portfolioId, current, days, undated);
+            books.compute(base.portfolioId, (k, cached) -> cached == null || cached == base ? updated : cached);
+        }
+    }
+
+    // Сразу после коммита записи, до подстановки обновлённой копии вызывающим
+    @TransactionalEventListener(fallbackExecution = true)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onPortfolioDataChanged(PortfolioDataChangedEvent event) {
+        if (event.kind() == PortfolioDataChangedEvent.Kind.SPOT && event.userId() != null) {
+            evict(event.userId(), event.portfolioId());
+        }
+    }
+
+    /**
+     * Сбрасывает потоки пользователя: portfolioId = null — по всем портфелям.
+     */
+    public void evict(Long userId, Long portfolioId) {
+        AtomicLong counter = resetCounter(userId);
+        synchronized (counter) {
+            counter.incrementAndGet();
+            books.entrySet().removeIf(e -> userId.equals(e.getValue().userId)
+                    && (portfolioId == null || portfolioId.equals(e.getKey())));
+        }
+    }
+
+    /**
+     * Ставка r, при которой Σ amounts[i] · (1 + r)^(−times[i]) = 0; null, если корня нет
+     * (все потоки одного знака). Шаг Ньютона, вышедший из вилки или не уменьшивший невязку вдвое,
+     * заменяется бисекцией, поэтому сходимость гарантирована, а у гладкой функции квадратичная.
+     */
+    static Solution xirr(double[] times, double[] amounts, double guess) {
+        double lo = MIN_RATE;
+        double hi = Math.max(1, guess * 2);
+        double fLo = npv(times, amounts, lo)[0];
+        double fHi = npv(times, amounts, hi)[0];
+        // при больших r остаётся первый поток, при r → −1 доминируют поздние — ищем смену знака
+        while (Math.signum(fLo) == Math.signum(fHi) && hi < MAX_RATE) {
+            hi = hi * 10;
+            fHi = npv(times, amounts, hi)[0];
+        }
+        if (Double.isNaN(fLo) || Double.isNaN(fHi) || Math.signum(fLo) == Math.signum(fHi)) {
+            return null;
+        }
+        if (fLo == 0) {
+            return new Solution(lo, 0);
+        }
+        if (fHi == 0) {
+            return new Solution(hi, 0);
+        }
+
+        double rate = guess > lo && guess < hi ? guess : (lo + hi) / 2;
+        double previousResidual = Double.MAX_VALUE;
+        for (int i = 1; i <= MAX_ITERATIONS; i++) {
+            double[] fd = npv(times, amounts, rate);
+            double f = fd[0];
+            if (f == 0) {
+                return new Solution(rate, i);
+            }
+            if (Math.signum(f) == Math.signum(fLo)) {
+                lo = rate;
+                fLo = f;
+            } else {
+                hi = rate;
+            }
+            double next = fd[1] != 0 ? rate - f / fd[1] : Double.NaN;
+            if (!(next > lo && next < hi) || Math.abs(f) > previousResidual / 2) {
+                next = (lo + hi) / 2;
+            }
+            previousResidual = Math.abs(f);
+            if (Math.abs(next - rate) <= TOLERANCE * Math.max(1, Math.abs(rate))) {
+                return new Solution(next, i);
+            }
+            rate = next;
+        }
+        return new Solution(rate, MAX_ITERATIONS);
+    }
+
+    /** Значение и производная Σ a · (1 + r)^(−t) за один проход. */
+    private static double[] npv(double[] times, double[] amounts, double rate) {
+        double logBase = Math.log1p(rate);
+        double value = 0;
+        double derivative = 0;
+        for (int i = 0; i < times.length; i++) {
+            double discounted = amounts[i] * Math.exp(-times[i] * logBase);
+            value += discounted;
+            derivative -= times[i] * discounted / (1 + rate);
+        }
+        return new double[]{value, derivative};
+    }
+
+    /**
+     * Цепная доходность по дням: r = (V_t − c_t − V_{t−1}) / (V_{t−1} + max(c_t, 0)) —
+     * вложения считаются сделанными в начале дня, изъятия — в конце. Дни без базы пропускаются.
+     */
+    private static Double twr(List<NavEngine.Point> curve, TreeMap<LocalDate, DayFlow> days, Basis basis) {
+        double wealth = 1;
+        double previous = 0;
+        boolean any = false;
+        for (NavEngine.Point point : curve) {
+            double current = value(point, basis);
+            DayFlow flow = days.get(point.date());
+            double c = flow != null ? flow.contribution(basis) : 0;
+            double base = previous + Math.max(c, 0);
+            if (base > 0) {
+                wealth *= 1 + (current - c - previous) / base;
+                any = true;
+            }
+            previous = current;
+        }
+        return any ? wealth - 1 : null;
+    }
+
+    private static double value(NavEngine.Point point, Basis basis) {
+        return basis == Basis.CASH ? point.spotValue() + point.cash() : point.spotValue();
+    }
+
+    private static int apply(TreeMap<LocalDate, DayFlow> days, SpotLedgerRow row, int sign) {
+        if (row == null) {
+            return 0;
+        }
+        if (row.tradeDate() == null) {
+            return sign;
+        }
+        if (row.transactionType() == null) {
+            return 0;
+        }
+        DayFlow day = days.getOrDefault(row.tradeDate(), DayFlow.ZERO)
+                .plus(row.transactionType(), value(row.amount()).multiply(BigDecimal.valueOf(sign)));
+        if (day.isZero()) {
+            days.remove(row.tradeDate());
+        } else {
+            days.put(row.tradeDate(), day);
+        }
+        return 0;
+    }
+
+    private static double years(LocalDate from, LocalDate date) {
+        return ChronoUnit.DAYS.between(from, date) / DAYS_PER_YEAR;
+    }
+
+    private AtomicLong resetCounter(Long userId) {
+        return resets.computeIfAbsent(userId, id -> new AtomicLong());
+    }
+
+    private static BigDecimal value(BigDecimal v) {
+        return v != null ? v : BigDecimal.ZERO;
+    }
+}
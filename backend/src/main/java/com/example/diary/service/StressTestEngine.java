@@ -0,0 +1,329 @@
+package com.example.diary.service;
+
+import com.example.diary.model.Trade;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Стресс-тест: ценовые шоки по тикерам и рынкам и сдвиг ставки финансирования
+ * для всех открытых маржинальных лотов и спотовых позиций.
+ *
+ * Позиции один раз сворачиваются в компактный снимок ({@link Book}): тикеры пронумерованы,
+ * лоты — параллельные примитивные массивы. Сценарии считаются по снимку параллельно (fork-join),
+ * каждый — один проход по массивам, без обращений к БД.
+ */
+@Service
+public class StressTestEngine {
+
+    public static final int MAX_SCENARIOS = 1000;
+    public static final int MAX_HORIZON_DAYS = 3650;
+    private static final int SCENARIOS_PER_TASK = 4;
+
+    /** Группы тикеров для рыночных шоков; US — всё, что не торгуется на MOEX. */
+    public enum Market {
+        ALL, RU, US;
+
+        static Market of(String symbol) {
+            return PriceService.isRuTicker(symbol) ? RU : US;
+        }
+    }
+
+    /**
+     * Сценарий: шоки в процентах по рынкам и тикерам (шок тикера важнее рыночного, рыночный — важнее ALL),
+     * сдвиг ставки в базисных пунктах и горизонт, на котором считается доплата процентов.
+     */
+    public record Scenario(String name, Map<Market, Double> marketShocks, Map<String, Double> tickerShocks,
+                           double rateShiftBp, int horizonDays) {
+
+        /**
+         * Разбор сценария из запроса: {name?, shocks: {"RU": -20, "SBER": -30}, rateShiftBp?, horizonDays?}.
+         */
+        public static Scenario parse(Object value, int index) {
+            if (!(value instanceof Map<?, ?> map)) {
+                throw new IllegalArgumentException("Сценарий #" + (index + 1) + " должен быть объектом");
+            }
+            String name = map.get("name") != null ? map.get("name").toString() : "Сценарий " + (index + 1);
+            Map<Market, Double> markets = new HashMap<>();
+            Map<String, Double> tickers = new HashMap<>();
+            Object shocks = map.get("shocks");
+            if (shocks != null) {
+                if (!(shocks instanceof Map<?, ?> shockMap)) {
+                    throw new IllegalArgumentException(name + ": shocks должен быть объектом {тикер или рынок: %}");
+                }
+                for (Map.Entry<?, ?> e : shockMap.entrySet()) {
+                    if (!(e.getValue() instanceof Number pct) || pct.doubleValue() < -100) {
+                        throw new IllegalArgumentException(name + ": шок " + e.getKey() + " должен быть числом не меньше -100");
+                    }
+                    String key = e.getKey().toString().trim().toUpperCase(Locale.ROOT);
+                    try {
+                        markets.put(Market.valueOf(key), pct.doubleValue());
+                    } catch (IllegalArgumentException notMarket) {
+                        tickers.put(PriceService.canonicalTicker(key), pct.doubleValue());
+                    }
+                }
+            }
+            double rateShiftBp = map.get("rateShiftBp") instanceof Number n ? n.doubleValue() : 0;
+            int horizonDays = map.get("horizonDays") instanceof Number n ? n.intValue() : 30;
+            if (horizonDays < 0 || horizonDays > MAX_HORIZON_DAYS) {
+                throw new IllegalArgumentException(name + ": horizonDays должен быть от 0 до " + MAX_HORIZON_DAYS);
+            }
+            return new Scenario(name, markets, tickers, rateShiftBp, horizonDays);
+        }
+    }
+
+    /** Компактный снимок позиций для прогонов сценариев. */
+    public static final class Book {
+        final String[] symbols;
+        final Market[] markets;
+        final double[] basePrices;
+
+        final int[] lotSymbol;
+        final long[] lotTradeId;
+        final long[] lotPortfolioId;
+        final double[] lotQuantity;
+        final double[] lotPrincipal;
+        final double[] lotRate;
+        // NaN — поддерживающая маржа не задана
+        final double[] lotLiquidationPrice;
+
+        final int[] spotSymbol;
+        final double[] spotQuantity;
+
+        final double cash;
+        final double accruedInterest;
+        final double baseEquity;
+
+        // Тикер с ценой: портфели в разных валютах, пересчитанные в одну, дают тикеру разные цены
+        private record Instrument(String symbol, double price) {}
+
+        private Book(List<NavEngine.Exposure> exposures) {
+            Map<Instrument, Integer> index = new LinkedHashMap<>();
+            int lots = 0;
+            int spots = 0;
+            double cashSum = 0;
+            double accruedSum = 0;
+            for (NavEngine.Exposure exposure : exposures) {
+                lots += exposure.margin().size();
+                spots += exposure.spot().size();
+                cashSum += exposure.cash();
+                accruedSum += exposure.accruedInterest();
+                exposure.margin().forEach(m -> index.putIfAbsent(new Instrument(m.symbol(), m.price()), index.size()));
+                exposure.spot().forEach(s -> index.putIfAbsent(new Instrument(s.symbol(), s.price()), index.size()));
+            }
+            symbols = new String[index.size()];
+            markets = new Market[symbols.length];
+            basePrices = new double[symbols.length];
+            index.forEach((instrument, k) -> {
+                symbols[k] = instrument.symbol();
+                markets[k] = Market.of(instrument.symbol());
+                basePrices[k] = instrument.price();
+            });
+
+            lotSymbol = new int[lots];
+            lotTradeId = new long[lots];
+            lotPortfolioId = new long[lots];
+            lotQuantity = new double[lots];
+            lotPrincipal = new double[lots];
+            lotRate = new double[lots];
+            lotLiquidationPrice = new double[lots];
+            spotSymbol = new int[spots];
+            spotQuantity = new double[spots];
+            int i = 0;
+            int j = 0;
+            for (NavEngine.Exposure exposure : exposures) {
+                for (NavEngine.MarginExposure m : exposure.margin()) {
+                    lotSymbol[i] = index.get(new Instrument(m.symbol(), m.price()));
+                    lotTradeId[i] = m.tradeId();
+                    lotPortfolioId[i] = m.portfolioId();
+                    lotQuantity[i] = m.openQuantity();
+                    lotPrincipal[i] = m.principal();
+                    lotRate[i] = m.rate();
+                    Double liquidation = Trade.liquidationPrice(BigDecimal.valueOf(m.principal()),
+                            m.openQuantity(), m.maintenanceMargin());
+                    lotLiquidationPrice[i] = liquidation != null ? liquidation : Double.NaN;
+                    i++;
+                }
+                for (NavEngine.SpotExposure s : exposure.spot()) {
+                    spotSymbol[j] = index.get(new Instrument(s.symbol(), s.price()));
+                    spotQuantity[j] = s.quantity();
+                    j++;
+                }
+            }
+            cash = cashSum;
+            accruedInterest = accruedSum;
+
+            double equity = cash - accruedInterest;
+            for (int k = 0; k < lots; k++) {
+                equity += lotQuantity[k] * basePrices[lotSymbol[k]] - lotPrincipal[k];
+            }
+            for (int k = 0; k < spots; k++) {
+                equity += spotQuantity[k] * basePrices[spotSymbol[k]];
+            }
+            baseEquity = equity;
+        }
+
+        public static Book of(List<NavEngine.Exposure> exposures) {
+            return new Book(exposures);
+        }
+
+        public int lotCount() {
+            return lotSymbol.length;
+        }
+
+        public int spotCount() {
+            return spotSymbol.length;
+        }
+
+        public int tickerCount() {
+            return (int) Arrays.stream(symbols).distinct().count();
+        }
+    }
+
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final double warningPercent;
+
+    public StressTestEngine(@Value("${risk.monitor.warning-percent:10}") double warningPercent) {
+        this.warningPercent = warningPercent;
+    }
+
+    /**
+     * Базовое состояние (без шоков) и результат каждого сценария в порядке запроса.
+     */
+    public Map<String, Object> run(Book book, List<Scenario> scenarios) {
+        long started = System.nanoTime();
+        AtomicReferenceArray<Map<String, Object>> results = new AtomicReferenceArray<>(scenarios.size());
+        pool.invoke(new ScenarioTask(book, scenarios, results, 0, scenarios.size()));
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("positions", Map.of("marginLots", book.lotCount(), "spot", book.spotCount(),
+                "tickers", book.tickerCount()));
+        response.put("warningPercent", warningPercent);
+        response.put("base", evaluate(book, new Scenario("base", Map.of(), Map.of(), 0, 0)));
+        List<Map<String, Object>> scenarioResults = new ArrayList<>(results.length());
+        for (int s = 0; s < results.length(); s++) {
+            scenarioResults.add(results.get(s));
+        }
+        response.put("scenarios", scenarioResults);
+        response.put("elapsedMs", (System.nanoTime() - started) / 1_000_000);
+        return response;
+    }
+
+    private final class ScenarioTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Book book;
+        private final List<Scenario> scenarios;
+        private final AtomicReferenceArray<Map<String, Object>> results;
+        private final int from;
+        private final int to;
+
+        ScenarioTask(Book book, List<Scenario> scenarios, AtomicReferenceArray<Map<String, Object>> results,
+                     int from, int to) {
+            this.book = book;
+            this.scenarios = scenarios;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SCENARIOS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ScenarioTask(book, scenarios, results, from, middle),
+                        new ScenarioTask(book, scenarios, results, middle, to));
+                return;
+            }
+            for (int s = from; s < to; s++) {
+                results.set(s, evaluate(book, scenarios.get(s)));
+            }
+        }
+    }
+
+    private Map<String, Object> evaluate(Book book, Scenario scenario) {
+        double allShock = scenario.marketShocks().getOrDefault(Market.ALL, 0.0);
+        double[] prices = new double[book.symbols.length];
+        for (int k = 0; k < prices.length; k++) {
+            Double shock = scenario.tickerShocks().get(book.symbols[k]);
+            if (shock == null) {
+                shock = scenario.marketShocks().getOrDefault(book.markets[k], allShock);
+            }
+            prices[k] = Math.max(0, book.basePrices[k] * (1 + shock / 100.0));
+        }
+
+        double marginValue = 0;
+        double borrowed = 0;
+        double extraInterest = 0;
+        double shiftPercent = scenario.rateShiftBp() / 100.0;
+        int marginCalls = 0;
+        List<Map<String, Object>> liquidations = new ArrayList<>();
+        for (int i = 0; i < book.lotSymbol.length; i++) {
+            double price = prices[book.lotSymbol[i]];
+            marginValue += book.lotQuantity[i] * price;
+            borrowed += book.lotPrincipal[i];
+            // ставка не уходит ниже нуля, как в сценариях плавающей ставки
+            double shiftedRate = Math.max(0, book.lotRate[i] + shiftPercent);
+            extraInterest += book.lotPrincipal[i] * (shiftedRate - book.lotRate[i]) * scenario.horizonDays() / 36500.0;
+
+            double liquidationPrice = book.lotLiquidationPrice[i];
+            if (Double.isNaN(liquidationPrice)) {
+                continue;
+            }
+            if (price <= liquidationPrice) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("tradeId", book.lotTradeId[i]);
+                row.put("portfolioId", book.lotPortfolioId[i]);
+                row.put("symbol", book.symbols[book.lotSymbol[i]]);
+                row.put("quantity", book.lotQuantity[i]);
+                row.put("liquidationPrice", liquidationPrice);
+                row.put("price", round(price));
+                liquidations.add(row);
+            } else if (price <= liquidationPrice * (1 + warningPercent / 100.0)) {
+                marginCalls++;
+            }
+        }
+        double spotValue = 0;
+        for (int j = 0; j < book.spotSymbol.length; j++) {
+            spotValue += book.spotQuantity[j] * prices[book.spotSymbol[j]];
+        }
+
+        double baseEquity = book.baseEquity;
+        double equity = book.cash + spotValue + marginValue - borrowed - book.accruedInterest - extraInterest;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", scenario.name());
+        result.put("equity", round(equity));
+        result.put("change", round(equity - baseEquity));
+        result.put("changePercent", baseEquity > 0 ? round((equity - baseEquity) / baseEquity * 100) : null);
+        result.put("marginValue", round(marginValue));
+        result.put("spotValue", round(spotValue));
+        result.put("borrowed", round(borrowed));
+        result.put("extraInterest", round(extraInterest));
+        result.put("leverage", equity > 0 ? round((marginValue + spotValue) / equity) : null);
+        result.put("marginCalls", marginCalls);
+        result.put("liquidationCount", liquidations.size());
+        result.put("liquidations", liquidations);
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
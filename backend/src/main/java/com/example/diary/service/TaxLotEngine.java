@@ -0,0 +1,328 @@
+package com.example.diary.service;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.OpenTradeLot;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Очереди открытых лотов по (портфель, тикер) в памяти.
+ *
+ * Книга строится лениво одним запросом проекций и дальше не меняется: запись либо подменяет её
+ * обновлённой копией (закрытия через TradeService), либо сбрасывает (остальные записи, по событию).
+ * Выбор лотов для закрытия — FIFO, LIFO, HIFO или конкретные лоты — занимает O(k) по затронутым лотам
+ * и не обращается к БД.
+ *
+ * Кэш локален для процесса; запись из другого процесса ловится проверкой версии при закрытии.
+ */
+@Service
+public class TaxLotEngine {
+
+    public enum Method {
+        /** Сначала самые старые лоты. */
+        FIFO,
+        /** Сначала самые новые лоты. */
+        LIFO,
+        /** Сначала самые дорогие лоты — минимальная прибыль к налогу. */
+        HIFO,
+        /** Лоты и количества указаны явно. */
+        SPECIFIC;
+
+        public static Method parse(Object value) {
+            if (value == null || value.toString().isBlank()) {
+                return FIFO;
+            }
+            try {
+                return valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Неизвестный метод выбора лотов: " + value + " (FIFO, LIFO, HIFO, SPECIFIC)");
+            }
+        }
+    }
+
+    /**
+     * Разбор списка конкретных лотов из запроса: [{"tradeId": 1, "quantity": 5}, ...].
+     * Возвращает tradeId -> количество в порядке списка; null, если список не передан.
+     */
+    public static Map<Long, Integer> parseLots(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof List<?> list)) {
+            throw new IllegalArgumentException("lots должен быть списком {tradeId, quantity}");
+        }
+        Map<Long, Integer> lots = new LinkedHashMap<>();
+        for (Object item : list) {
+            if (!(item instanceof Map<?, ?> lot) || !(lot.get("tradeId") instanceof Number tradeId)
+                    || !(lot.get("quantity") instanceof Number qty)) {
+                throw new IllegalArgumentException("У каждого лота должны быть tradeId и quantity");
+            }
+            lots.merge(tradeId.longValue(), qty.intValue(), Integer::sum);
+        }
+        return lots;
+    }
+
+    public record Lot(long tradeId, LocalDate entryDate, BigDecimal entryPrice, int openQuantity) {}
+
+    /** Часть закрытия, приходящаяся на один лот. */
+    public record Allocation(long tradeId, LocalDate entryDate, BigDecimal entryPrice, int quantity) {}
+
+    /**
+     * Неизменяемая очередь лотов тикера. stamp — счётчик сбросов пользователя на момент построения.
+     */
+    public static final class LotBook {
+        private final Long userId;
+        private final Long portfolioId;
+        private final String symbol;
+        private final long stamp;
+        private final List<Lot> fifo;
+        private final List<Lot> byPriceDesc;
+        private final Map<Long, Lot> byTradeId;
+        private final int openQuantity;
+
+        private LotBook(Long userId, Long portfolioId, String symbol, long stamp, List<Lot> fifo) {
+            this.userId = userId;
+            this.portfolioId = portfolioId;
+            this.symbol = symbol;
+            this.stamp = stamp;
+            this.fifo = List.copyOf(fifo);
+            List<Lot> sorted = new ArrayList<>(fifo);
+            // при равной цене — FIFO (сортировка стабильная)
+            sorted.sort(Comparator.comparing(Lot::entryPrice, Comparator.nullsLast(Comparator.reverseOrder())));
+            this.byPriceDesc = List.copyOf(sorted);
+            Map<Long, Lot> index = new HashMap<>();
+            int total = 0;
+            for (Lot lot : fifo) {
+                index.put(lot.tradeId(), lot);
+                total += lot.openQuantity();
+            }
+            this.byTradeId = index;
+            this.openQuantity = total;
+        }
+
+        public List<Lot> lots() { return fifo; }
+
+        public int openQuantity() { return openQuantity; }
+
+        public String symbol() { return symbol; }
+
+        /** Копия книги после закрытий: tradeId -> закрытое количество. */
+        LotBook minus(Map<Long, Integer> closed, long newStamp) {
+            List<Lot> rest = new ArrayList<>(fifo.size());
+            for (Lot lot : fifo) {
+                int left = lot.openQuantity() - closed.getOrDefault(lot.tradeId(), 0);
+                if (left > 0) {
+                    rest.add(left == lot.openQuantity() ? lot
+                            : new Lot(lot.tradeId(), lot.entryDate(), lot.entryPrice(), left));
+                }
+            }
+            return new LotBook(userId, portfolioId, symbol, newStamp, rest);
+        }
+    }
+
+    private record BookKey(Long portfolioId, String symbol) {}
+
+    private final TradeRepository tradeRepository;
+
+    private final Map<BookKey, LotBook> books = new ConcurrentHashMap<>();
+    // Счётчик сбросов по пользователю: книга, построенная до сброса, в кэш не попадает
+    private final Map<Long, AtomicLong> resets = new ConcurrentHashMap<>();
+
+    public TaxLotEngine(TradeRepository tradeRepository) {
+        this.tradeRepository = tradeRepository;
+    }
+
+    /**
+     * Книга лотов тикера; при промахе строится из БД.
+     */
+    public LotBook book(Long userId, Long portfolioId, String symbol) {
+        BookKey key = new BookKey(portfolioId, symbol.toUpperCase(Locale.ROOT));
+        LotBook cached = books.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        AtomicLong counter = resetCounter(userId);
+        long stamp = counter.get();
+        List<Lot> lots = new ArrayList<>();
+        for (OpenTradeLot row : tradeRepository.findOpenLotsBySymbol(portfolioId, key.symbol())) {
+            lots.add(new Lot(row.id(), row.entryDate(), row.entryPrice(), row.openQuantity()));
+        }
+        LotBook loaded = new LotBook(userId, portfolioId, key.symbol(), stamp, lots);
+        synchronized (counter) {
+            // за время чтения была запись — прочитанное могло устареть, отдаём без кэширования
+            if (counter.get() == stamp) {
+                LotBook existing = books.putIfAbsent(key, loaded);
+                return existing != null ? existing : loaded;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Выбирает лоты под закрытие. Для SPECIFIC количество берётся из specificLots
+     * (tradeId -> количество, в порядке закрытия), quantity должно совпадать с их суммой.
+     * Если открытых лотов меньше, чем requested, выбирается всё, что есть.
+     */
+    public List<Allocation> select(LotBook book, int quantity, Method method, Map<Long, Integer> specificLots) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Количество должно быть > 0");
+        }
+        List<Allocation> allocations = new ArrayList<>();
+        if (method == Method.SPECIFIC) {
+            if (specificLots == null || specificLots.isEmpty()) {
+                throw new IllegalArgumentException("Для SPECIFIC нужен список лотов");
+            }
+            int total = 0;
+            for (Map.Entry<Long, Integer> requested : specificLots.entrySet()) {
+                Lot lot = book.byTradeId.get(requested.getKey());
+                if (lot == null) {
+                    throw new IllegalArgumentException("Лот " + requested.getKey() + " не открыт по тикеру " + book.symbol());
+                }
+                int qty = requested.getValue();
+                if (qty <= 0 || qty > lot.openQuantity()) {
+                    throw new IllegalArgumentException("В лоте " + lot.tradeId() + " открыто " + lot.openQuantity() + ", запрошено " + qty);
+                }
+                allocations.add(new Allocation(lot.tradeId(), lot.entryDate(), lot.entryPrice(), qty));
+                total += qty;
+            }
+            if (total != quantity) {
+                throw new IllegalArgumentException("Сумма по лотам (" + total + ") не равна количеству (" + quantity + ")");
+            }
+            return allocations;
+        }
+
+        int count = book.fifo.size();
+        int remaining = quantity;
+        for (int i = 0; i < count && remaining > 0; i++) {
+            Lot lot = switch (method) {
+                case LIFO -> book.fifo.get(count - 1 - i);
+                case HIFO -> book.byPriceDesc.get(i);
+                default -> book.fifo.get(i);
+            };
+            int portion = Math.min(remaining, lot.openQuantity());
+            allocations.add(new Allocation(lot.tradeId(), lot.entryDate(), lot.entryPrice(), portion));
+            remaining -= portion;
+        }
+        return allocations;
+    }
+
+    /**
+     * Что реализует закрытие: распределение по лотам, выручка, себестоимость и валовый результат.
+     * Лот без цены входа (импорт без цены) закрытие всё равно заберёт, поэтому он остаётся в распределении,
+     * но в себестоимость и результат не входит — как в сводках PnL; его количество — в unpricedQuantity.
+     */
+    public Map<String, Object> preview(LotBook book, int quantity, Method method, Map<Long, Integer> specificLots,
+                                       BigDecimal exitPrice, LocalDate exitDate) {
+        List<Allocation> allocations = select(book, quantity, method, specificLots);
+        int allocated = 0;
+        int unpriced = 0;
+        BigDecimal proceeds = BigDecimal.ZERO;
+        BigDecimal cost = BigDecimal.ZERO;
+        List<Map<String, Object>> rows = new ArrayList<>(allocations.size());
+        for (Allocation allocation : allocations) {
+            BigDecimal qty = BigDecimal.valueOf(allocation.quantity());
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("tradeId", allocation.tradeId());
+            row.put("entryDate", allocation.entryDate());
+            row.put("entryPrice", allocation.entryPrice());
+            row.put("quantity", allocation.quantity());
+            if (allocation.entryPrice() != null) {
+                BigDecimal lotCost = allocation.entryPrice().multiply(qty);
+                row.put("cost", lotCost);
+                if (exitPrice != null) {
+                    BigDecimal lotProceeds = exitPrice.multiply(qty);
+                    row.put("proceeds", lotProceeds);
+                    row.put("realizedPnL", lotProceeds.subtract(lotCost));
+                    proceeds = proceeds.add(lotProceeds);
+                }
+                cost = cost.add(lotCost);
+            } else {
+                unpriced += allocation.quantity();
+            }
+            if (allocation.entryDate() != null) {
+                row.put("holdingDays", ChronoUnit.DAYS.between(allocation.entryDate(), exitDate));
+            }
+            rows.add(row);
+            allocated += allocation.quantity();
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("symbol", book.symbol());
+        result.put("method", method);
+        result.put("requested", quantity);
+        result.put("closed", allocated);
+        result.put("leftover", quantity - allocated);
+        result.put("openQuantity", book.openQuantity());
+        result.put("unpricedQuantity", unpriced);
+        result.put("entryCost", cost);
+        if (exitPrice != null) {
+            result.put("grossProceeds", proceeds);
+            result.put("grossPnL", proceeds.subtract(cost));
+        }
+        result.put("allocations", rows);
+        return result;
+    }
+
+    /**
+     * Подменяет книгу копией после закрытий, если с момента её построения не было других записей
+     * (единственный сброс — от события самого закрытия). Иначе книга перестроится при следующем обращении.
+     */
+    public void applyClosures(LotBook base, Map<Long, Integer> closed) {
+        AtomicLong counter = resetCounter(base.userId);
+        synchronized (counter) {
+            long current = counter.get();
+            if (current != base.stamp + 1) {
+                return;
+            }
+            BookKey key = new BookKey(base.portfolioId, base.symbol);
+            LotBook updated = base.minus(closed, current);
+            books.compute(key, (k, cached) -> cached == null || cached == base ? updated : cached);
+        }
+    }
+
+    // После коммита: перестроенная книга должна увидеть записанное.
+    // Порядок — раньше синхронизации TradeService#closeLots, которая затем подставляет обновлённую книгу
+    @TransactionalEventListener(fallbackExecution = true)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onPortfolioDataChanged(PortfolioDataChangedEvent event) {
+        if (event.kind() == PortfolioDataChangedEvent.Kind.TRADES && event.userId() != null) {
+            evict(event.userId(), event.portfolioId(), event.symbol());
+        }
+    }
+
+    /**
+     * Сбрасывает книги пользователя: portfolioId/symbol = null — по всем портфелям/тикерам.
+     */
+    public void evict(Long userId, Long portfolioId, String symbol) {
+        AtomicLong counter = resetCounter(userId);
+        synchronized (counter) {
+            counter.incrementAndGet();
+            books.entrySet().removeIf(e -> {
+                LotBook book = e.getValue();
+                if (!userId.equals(book.userId)) return false;
+                if (portfolioId != null && !portfolioId.equals(book.portfolioId)) return false;
+                return symbol == null || symbol.equalsIgnoreCase(book.symbol);
+            });
+        }
+    }
+
+    private AtomicLong resetCounter(Long userId) {
+        return resets.computeIfAbsent(userId, id -> new AtomicLong());
+    }
+}
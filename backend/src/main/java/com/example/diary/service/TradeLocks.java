@@ -0,0 +1,43 @@
+package com.example.diary.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Полосатые блокировки по (портфель, тикер) для закрытий FIFO.
+ * Закрытия одного тикера в портфеле выполняются по очереди, разных тикеров — параллельно
+ * (кроме редких совпадений полосы). Это защита внутри одного процесса; между процессами
+ * согласованность обеспечивает @Version на Trade.
+ */
+@Component
+public class TradeLocks {
+
+    private static final int STRIPES = 64;
+
+    private final Lock[] stripes = new Lock[STRIPES];
+
+    public TradeLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public Lock forSymbol(Long portfolioId, String symbol) {
+        int hash = 31 * Long.hashCode(portfolioId) + symbol.toUpperCase(Locale.ROOT).hashCode();
+        // перемешивание старших бит, как в HashMap
+        hash ^= (hash >>> 16);
+        return stripes[Math.floorMod(hash, STRIPES)];
+    }
+
+    /**
+     * Все полосы в фиксированном порядке — для операций над портфелем целиком (пересборка сводок).
+     * Брать по порядку и не держать при этом отдельную полосу, иначе возможна взаимная блокировка.
+     */
+    public List<Lock> all() {
+        return List.of(stripes);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.diary.service;
+
+import com.example.diary.repository.TradeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Заполняет open_quantity/closed_quantity и version у сделок, созданных до появления этих колонок.
+ * После первого запуска UPDATE-команды ничего не находят.
+ */
+@Component
+public class TradeQuantityBackfill {
+
+    private static final Logger logger = LoggerFactory.getLogger(TradeQuantityBackfill.class);
+
+    private final TradeRepository tradeRepository;
+
+    public TradeQuantityBackfill(TradeRepository tradeRepository) {
+        this.tradeRepository = tradeRepository;
+    }
+
+    // Раньше остальных слушателей старта: монитор ликвидаций и возобновление импорта читают open_quantity
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @Transactional
+    public void backfill() {
+        int closed = tradeRepository.backfillClosedQuantity();
+        int open = tradeRepository.backfillOpenQuantity();
+        if (closed > 0 || open > 0) {
+            logger.info("Заполнены остатки по сделкам: closed_quantity={}, open_quantity={}", closed, open);
+        }
+        int versioned = tradeRepository.backfillVersion();
+        if (versioned > 0) {
+            logger.info("Заполнена версия у {} сделок", versioned);
+        }
+    }
+}
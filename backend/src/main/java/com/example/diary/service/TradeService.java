@@ -1,12 +1,26 @@
 package com.example.diary.service;
 
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.model.FinancingEvent;
 import com.example.diary.model.Portfolio;
 import com.example.diary.model.Trade;
 import com.example.diary.model.TradeClosure;
+import com.example.diary.repository.FinancingEventRepository;
 import com.example.diary.repository.TradeClosureRepository;
 import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.RateChangePoint;
 import com.example.diary.model.User;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
@@ -15,15 +29,42 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 
 @Service
 public class TradeService {
+    @PersistenceContext
+    private EntityManager entityManager;
+
     private final TradeRepository tradeRepository;
     private final TradeClosureRepository tradeClosureRepository;
+    private final FinancingEventRepository financingEventRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TradeLocks tradeLocks;
+    private final TaxLotEngine taxLotEngine;
+    private final PnlRollupService pnlRollupService;
+    private final TransactionTemplate transactionTemplate;
+
+    private static final int MAX_ATTEMPTS = 3;
 
-    public TradeService(TradeRepository tradeRepository, TradeClosureRepository tradeClosureRepository) {
+    public TradeService(TradeRepository tradeRepository, TradeClosureRepository tradeClosureRepository,
+                        FinancingEventRepository financingEventRepository,
+                        ApplicationEventPublisher eventPublisher,
+                        TradeLocks tradeLocks,
+                        TaxLotEngine taxLotEngine,
+                        PnlRollupService pnlRollupService,
+                        PlatformTransactionManager transactionManager) {
         this.tradeRepository = tradeRepository;
         this.tradeClosureRepository = tradeClosureRepository;
+        this.financingEventRepository = financingEventRepository;
+        this.eventPublisher = eventPublisher;
+        this.tradeLocks = tradeLocks;
+        this.taxLotEngine = taxLotEngine;
+        this.pnlRollupService = pnlRollupService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
     /**
@@ -31,6 +72,9 @@ public class TradeService {
      */
     public Trade openTrade(Trade trade, Portfolio portfolio) {
         trade.setPortfolio(portfolio);
+        // остатки всегда считаются на сервере
+        trade.setOpenQuantity(null);
+        trade.setClosedQuantity(null);
 
         if (trade.getEntryDate() == null) {
             trade.setEntryDate(LocalDate.now());
@@ -77,63 +121,333 @@ public class TradeService {
             trade.setFinancingCurrency(portfolio.getCurrency());
         }
 
-        return tradeRepository.save(trade);
+        Trade saved = transactionTemplate.execute(status -> {
+            Trade persisted = tradeRepository.save(trade);
+            if (persisted.getExitDate() != null) {
+                // сделка заведена сразу закрытой — реализация попадает в сводки PnL
+                PnlRollupService.Delta rollups = new PnlRollupService.Delta();
+                pnlRollupService.addTrade(rollups, persisted, 1);
+                pnlRollupService.apply(rollups);
+            }
+            return persisted;
+        });
+        publishChanged(portfolio, saved.getSymbol());
+        return saved;
     }
 
     /**
-     * FIFO закрытие по тикеру.
+     * FIFO закрытие по тикеру. Закрытия одного тикера в портфеле идут по очереди, разных — параллельно.
      */
     public Map<String, Object> fifoClose(User user, Portfolio portfolio, String symbol, int qtyToClose, BigDecimal exitPrice, LocalDate exitDate, String notes) {
-        List<Trade> openTrades = tradeRepository
-                .findByPortfolioUserAndSymbolAndExitDateIsNullOrderByEntryDateAsc(user, symbol);
-        if (openTrades.isEmpty()) {
-            throw new IllegalArgumentException("Нет открытых сделок по тикеру " + symbol);
-        }
+        return closeLots(user, portfolio, symbol, qtyToClose, TaxLotEngine.Method.FIFO, null, exitPrice, exitDate, notes);
+    }
+
+    /**
+     * Закрытие по тикеру с выбором лотов (FIFO, LIFO, HIFO или конкретные лоты).
+     * Лоты выбираются по очереди из TaxLotEngine без чтения всего тикера; из БД загружаются только затронутые сделки.
+     */
+    public Map<String, Object> closeLots(User user, Portfolio portfolio, String symbol, int qtyToClose,
+                                         TaxLotEngine.Method method, Map<Long, Integer> specificLots,
+                                         BigDecimal exitPrice, LocalDate exitDate, String notes) {
+        return underSymbolLock(portfolio.getId(), symbol, () -> {
+            TaxLotEngine.LotBook book = taxLotEngine.book(user.getId(), portfolio.getId(), symbol);
+            List<TaxLotEngine.Allocation> allocations = taxLotEngine.select(book, qtyToClose, method, specificLots);
+            if (allocations.isEmpty()) {
+                throw new IllegalArgumentException("Нет открытых сделок по тикеру " + symbol);
+            }
 
-        int remaining = qtyToClose;
-        int closedLots = 0;
-        List<Long> affected = new ArrayList<>();
-        BigDecimal totalProceeds = BigDecimal.ZERO;
-        BigDecimal totalCost = BigDecimal.ZERO;
+            Map<Long, Trade> trades = new HashMap<>();
+            for (Trade trade : tradeRepository.findAllById(allocations.stream().map(TaxLotEngine.Allocation::tradeId).toList())) {
+                trades.put(trade.getId(), trade);
+            }
+
+            String label = notes == null || notes.isEmpty() ? method.name() : method.name() + ": " + notes;
+            int closedLots = 0;
+            List<Long> affected = new ArrayList<>();
+            List<TradeClosure> closures = new ArrayList<>();
+            Map<Long, Integer> closedByTrade = new HashMap<>();
+            BigDecimal totalProceeds = BigDecimal.ZERO;
+            BigDecimal totalCost = BigDecimal.ZERO;
+
+            for (TaxLotEngine.Allocation allocation : allocations) {
+                Trade trade = trades.get(allocation.tradeId());
+                if (trade == null || !trade.getPortfolio().getId().equals(portfolio.getId())
+                        || trade.getOpenQuantity() == null || trade.getOpenQuantity() < allocation.quantity()) {
+                    // очередь в памяти разошлась с БД (запись из другого процесса) — перестроим и повторим
+                    taxLotEngine.evict(user.getId(), portfolio.getId(), symbol);
+                    throw new ObjectOptimisticLockingFailureException(Trade.class, allocation.tradeId());
+                }
+                int portion = allocation.quantity();
+                closures.add(recordClosure(trade, portion, exitPrice, exitDate, label));
+
+                closedLots += portion;
+                closedByTrade.put(trade.getId(), portion);
+                affected.add(trade.getId());
+                totalProceeds = totalProceeds.add(exitPrice.multiply(BigDecimal.valueOf(portion)));
+                totalCost = totalCost.add(trade.getEntryPrice().multiply(BigDecimal.valueOf(portion)));
+            }
+            // закрытия — одним батчем вставок, сделки — батчем версионированных UPDATE при flush
+            tradeClosureRepository.saveAll(closures);
+            tradeRepository.flush();
+            applyRealized(closures, 1);
 
-        for (Trade trade : openTrades) {
-            if (remaining <= 0) break;
+            eventPublisher.publishEvent(PortfolioDataChangedEvent.trades(user.getId(), portfolio.getId(), symbol));
+            // после коммита книга заменится копией с уменьшенными остатками, без перечитывания тикера
+            // (afterCompletion, как и слушатели AFTER_COMMIT; сброс книги событием идёт раньше — см. TaxLotEngine)
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) {
+                        taxLotEngine.applyClosures(book, closedByTrade);
+                    }
+                }
+            });
+
+            int remaining = qtyToClose - closedLots;
+            Map<String, Object> response = new HashMap<>();
+            response.put("method", method);
+            response.put("requested", qtyToClose);
+            response.put("closed", closedLots);
+            response.put("leftover", remaining);
+            response.put("affectedTrades", affected);
+            response.put("grossProceeds", totalProceeds);
+            response.put("entryCost", totalCost);
+            response.put("grossPnL", totalProceeds.subtract(totalCost));
+            response.put("message", remaining > 0
+                    ? "Закрыто не полностью: не хватило открытых лотов"
+                    : "Закрытие " + method.name() + " выполнено");
+            return response;
+        });
+    }
+
+    /**
+     * Частичное закрытие конкретной сделки; сериализуется с FIFO-закрытиями того же тикера.
+     */
+    public Trade closePart(User user, Long tradeId, int qty, BigDecimal exitPrice, LocalDate exitDate, String notes) {
+        Trade current = findOwnedTrade(user, tradeId);
+        return underSymbolLock(current.getPortfolio().getId(), current.getSymbol(), () -> {
+            Trade trade = reloadOwnedTrade(user, tradeId);
             Integer openQty = trade.getOpenQuantity();
-            if (openQty == null || openQty <= 0) continue;
-
-            int portion = Math.min(remaining, openQty);
-            TradeClosure closure = new TradeClosure();
-            closure.setTrade(trade);
-            closure.setClosedQuantity(portion);
-            closure.setExitPrice(exitPrice);
-            closure.setExitDate(exitDate);
-            closure.setNotes(notes == null || notes.isEmpty() ? "FIFO" : "FIFO: " + notes);
-            tradeClosureRepository.save(closure);
-
-            remaining -= portion;
-            closedLots += portion;
-            affected.add(trade.getId());
-            totalProceeds = totalProceeds.add(exitPrice.multiply(BigDecimal.valueOf(portion)));
-            totalCost = totalCost.add(trade.getEntryPrice().multiply(BigDecimal.valueOf(portion)));
-
-            if (portion == openQty) {
-                trade.setExitPrice(exitPrice);
-                trade.setExitDate(exitDate);
-                tradeRepository.save(trade);
+            if (openQty == null || qty > openQty) {
+                throw new IllegalArgumentException("Недостаточно открытых лотов для закрытия");
+            }
+            TradeClosure closure = tradeClosureRepository.save(recordClosure(trade, qty, exitPrice, exitDate, notes));
+            tradeRepository.flush();
+            applyRealized(List.of(closure), 1);
+            publishChanged(trade.getPortfolio(), trade.getSymbol());
+            return trade;
+        });
+    }
+
+    /**
+     * Удаление частичного закрытия: возвращает количество в открытый остаток сделки.
+     */
+    public Trade deleteClosure(User user, Long tradeId, Long closureId) {
+        Trade current = findOwnedTrade(user, tradeId);
+        return underSymbolLock(current.getPortfolio().getId(), current.getSymbol(), () -> {
+            Trade trade = reloadOwnedTrade(user, tradeId);
+            TradeClosure closure = tradeClosureRepository.findById(closureId)
+                    .filter(c -> c.getTrade().getId().equals(trade.getId()))
+                    .orElseThrow(() -> new IllegalArgumentException("Закрытие не найдено"));
+
+            trade.getClosures().remove(closure);
+            tradeClosureRepository.delete(closure);
+            applyRealized(List.of(closure), -1);
+            trade.applyClosedQuantity(-closure.getClosedQuantity());
+            if (trade.getOpenQuantity() > 0 && trade.getExitDate() != null) {
+                trade.setExitDate(null);
+                trade.setExitPrice(null);
+            }
+            Trade saved = tradeRepository.saveAndFlush(trade);
+            publishChanged(trade.getPortfolio(), trade.getSymbol());
+            return saved;
+        });
+    }
+
+    /**
+     * Удаление сделки вместе с её закрытиями; реализации сделки вычитаются из сводок PnL.
+     */
+    public void deleteTrade(User user, Long tradeId) {
+        Trade current = findOwnedTrade(user, tradeId);
+        underSymbolLock(current.getPortfolio().getId(), current.getSymbol(), () -> {
+            Trade trade = reloadOwnedTrade(user, tradeId);
+            PnlRollupService.Delta rollups = new PnlRollupService.Delta();
+            pnlRollupService.addTrade(rollups, trade, -1);
+            pnlRollupService.apply(rollups);
+            tradeRepository.delete(trade);
+            publishChanged(trade.getPortfolio(), trade.getSymbol());
+            return null;
+        });
+    }
+
+    /**
+     * Событие финансирования по сделке (смена ставки, погашение займа, пополнение залога)
+     * и его применение к условиям сделки. Условия влияют на проценты уже реализованной части,
+     * поэтому вклад сделки в сводки PnL пересчитывается: до изменения вычитается, после — добавляется.
+     */
+    public FinancingEvent addFinancingEvent(User user, Long tradeId, FinancingEvent event) {
+        Trade current = findOwnedTrade(user, tradeId);
+        return underSymbolLock(current.getPortfolio().getId(), current.getSymbol(), () -> {
+            Trade trade = reloadOwnedTrade(user, tradeId);
+            PnlRollupService.Delta rollups = new PnlRollupService.Delta();
+            pnlRollupService.addTrade(rollups, trade, -1);
+
+            event.setTrade(trade);
+            FinancingEvent saved = financingEventRepository.save(event);
+
+            if (event.getEventType() == FinancingEvent.EventType.REPAYMENT && event.getAmountChange() != null) {
+                BigDecimal borrowed = trade.getBorrowedAmount() == null ? BigDecimal.ZERO : trade.getBorrowedAmount();
+                BigDecimal updated = borrowed.subtract(event.getAmountChange());
+                if (updated.compareTo(BigDecimal.ZERO) < 0) updated = BigDecimal.ZERO;
+                trade.setBorrowedAmount(updated.setScale(2, RoundingMode.HALF_UP));
+            } else if (event.getEventType() == FinancingEvent.EventType.COLLATERAL_TOPUP && event.getAmountChange() != null) {
+                BigDecimal collateral = trade.getCollateralAmount() == null ? BigDecimal.ZERO : trade.getCollateralAmount();
+                BigDecimal updated = collateral.add(event.getAmountChange());
+                trade.setCollateralAmount(updated.setScale(2, RoundingMode.HALF_UP));
+            } else if (event.getEventType() == FinancingEvent.EventType.RATE_CHANGE && event.getRate() != null) {
+                trade.setMarginAmount(event.getRate().setScale(4, RoundingMode.HALF_UP));
+            }
+            tradeRepository.saveAndFlush(trade);
+
+            pnlRollupService.addTrade(rollups, trade, 1);
+            pnlRollupService.apply(rollups);
+            publishChanged(trade.getPortfolio(), trade.getSymbol());
+            return saved;
+        });
+    }
+
+    /**
+     * Добавляет (sign = 1) или вычитает (sign = -1) закрытия в сводках PnL в текущей транзакции.
+     */
+    private void applyRealized(List<TradeClosure> closures, int sign) {
+        Map<Long, List<RateChangePoint>> rates = pnlRollupService.rateChanges(
+                closures.stream().map(c -> c.getTrade().getId()).distinct().toList());
+        PnlRollupService.Delta rollups = new PnlRollupService.Delta();
+        for (TradeClosure closure : closures) {
+            Trade trade = closure.getTrade();
+            rollups.add(trade.getPortfolio().getId(), PnlRollupService.lotOf(trade),
+                    rates.getOrDefault(trade.getId(), List.of()),
+                    closure.getClosedQuantity(), closure.getExitPrice(), closure.getExitDate(), sign);
+        }
+        pnlRollupService.apply(rollups);
+    }
+
+    private Trade findOwnedTrade(User user, Long tradeId) {
+        return tradeRepository.findByIdAndPortfolioUser(tradeId, user)
+                .orElseThrow(() -> new IllegalArgumentException("Сделка не найдена"));
+    }
+
+    // Контроллер мог загрузить сделку до взятия блокировки — перечитываем остаток и версию из БД
+    private Trade reloadOwnedTrade(User user, Long tradeId) {
+        Trade trade = findOwnedTrade(user, tradeId);
+        entityManager.refresh(trade);
+        return trade;
+    }
+
+    /**
+     * Применяет изменения ставки к открытым сделкам пользователя (или одного портфеля):
+     * по каждому изменению — UPDATE уже записанных на эту дату событий RATE_CHANGE и INSERT ... SELECT
+     * недостающих. Базовая ставка сделки (marginAmount) не меняется: она действует от даты входа
+     * до первого RATE_CHANGE, поэтому проценты до даты изменения остаются прежними.
+     * Число запросов не зависит от количества сделок.
+     *
+     * @param rateChanges дата изменения -> новая ставка
+     */
+    @Transactional
+    public Map<String, Object> applyRateChanges(User user, Long portfolioId, SortedMap<LocalDate, BigDecimal> rateChanges) {
+        String notes = "Изменение ставки по открытым сделкам";
+        int recordedEvents = 0;
+        int correctedEvents = 0;
+        int updatedTrades = 0;
+        for (Map.Entry<LocalDate, BigDecimal> change : rateChanges.entrySet()) {
+            int corrected = financingEventRepository.updateRateChanges(user, portfolioId, change.getKey(),
+                    FinancingEvent.EventType.RATE_CHANGE, change.getValue(), notes);
+            int recorded = financingEventRepository.insertRateChanges(user, portfolioId, change.getKey(),
+                    FinancingEvent.EventType.RATE_CHANGE, change.getValue(), notes);
+            correctedEvents += corrected;
+            recordedEvents += recorded;
+            // сделки, у которых поменялась действующая (последняя) ставка
+            if (change.getKey().equals(rateChanges.lastKey())) {
+                updatedTrades = corrected + recorded;
             }
         }
+        LocalDate effectiveDate = rateChanges.lastKey();
+        BigDecimal newRate = rateChanges.get(effectiveDate);
+
+        eventPublisher.publishEvent(PortfolioDataChangedEvent.trades(user.getId(), portfolioId));
+        // ставка меняет проценты уже реализованных частей открытых сделок — сводки пересобираются после коммита
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                pnlRollupService.rebuildPortfolios(user.getId(), portfolioId);
+            }
+        });
 
         Map<String, Object> response = new HashMap<>();
-        response.put("requested", qtyToClose);
-        response.put("closed", closedLots);
-        response.put("leftover", remaining);
-        response.put("affectedTrades", affected);
-        response.put("grossProceeds", totalProceeds);
-        response.put("entryCost", totalCost);
-        response.put("grossPnL", totalProceeds.subtract(totalCost));
-        response.put("message", remaining > 0
-                ? "Закрыто не полностью: не хватило открытых лотов"
-                : "Закрытие FIFO выполнено");
+        response.put("updatedTrades", updatedTrades);
+        response.put("recordedEvents", recordedEvents);
+        response.put("correctedEvents", correctedEvents);
+        response.put("newRate", newRate);
+        response.put("effectiveDate", effectiveDate);
         return response;
     }
+
+    private void publishChanged(Portfolio portfolio, String symbol) {
+        eventPublisher.publishEvent(PortfolioDataChangedEvent.trades(portfolio.getUser().getId(), portfolio.getId(), symbol));
+    }
+
+    /**
+     * Выполняет операцию в транзакции под блокировкой полосы (портфель, тикер); блокировка держится до коммита.
+     * Конфликт @Version (запись из другого процесса) повторяется в новой транзакции:
+     * откат очищает контекст персистентности, поэтому повтор перечитывает актуальные лоты.
+     */
+    private <T> T underSymbolLock(Long portfolioId, String symbol, Supplier<T> operation) {
+        Lock lock = tradeLocks.forSymbol(portfolioId, symbol);
+        lock.lock();
+        try {
+            return withOptimisticRetry(() -> transactionTemplate.execute(status -> operation.get()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> T withOptimisticRetry(Supplier<T> operation) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return operation.get();
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw new IllegalStateException("Сделка изменена параллельно, повторите операцию", e);
+                }
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(5, 20L * attempt));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Операция прервана", ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Создаёт закрытие и синхронно двигает open/closed quantity сделки; сохраняет закрытие вызывающий.
+     * Лот, закрытый целиком, получает цену и дату выхода последнего закрытия.
+     */
+    private TradeClosure recordClosure(Trade trade, int qty, BigDecimal exitPrice, LocalDate exitDate, String notes) {
+        TradeClosure closure = new TradeClosure();
+        closure.setTrade(trade);
+        closure.setClosedQuantity(qty);
+        closure.setExitPrice(exitPrice);
+        closure.setExitDate(exitDate);
+        closure.setNotes(notes);
+        // inverse-коллекция не инициализируется при add — closures не подгружаются
+        trade.getClosures().add(closure);
+
+        trade.applyClosedQuantity(qty);
+        if (trade.getOpenQuantity() == 0) {
+            trade.setExitPrice(exitPrice);
+            trade.setExitDate(exitDate);
+        }
+        return closure;
+    }
 }
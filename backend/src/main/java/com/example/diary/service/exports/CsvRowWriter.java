@@ -0,0 +1,67 @@
+package com.example.diary.service.exports;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * CSV через запятую, UTF-8 с BOM (чтобы Excel узнал кодировку; импорт BOM отбрасывает).
+ * Переносы строк внутри значений заменяются пробелом: ImportRowReader их не поддерживает,
+ * а выгрузка должна загружаться обратно.
+ */
+class CsvRowWriter implements RowWriter {
+
+    private final Writer writer;
+
+    CsvRowWriter(OutputStream out) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16 * 1024);
+        writer.write('\uFEFF');
+    }
+
+    @Override
+    public void header(List<String> columns) throws IOException {
+        row(columns.toArray());
+    }
+
+    @Override
+    public void row(Object... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeValue(values[i]);
+        }
+        writer.write("\r\n");
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        String text = value instanceof BigDecimal decimal ? decimal.toPlainString() : value.toString();
+        text = text.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ');
+        if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf(';') >= 0
+                || text.indexOf('\t') >= 0) {
+            writer.write('"');
+            writer.write(text.replace("\"", "\"\""));
+            writer.write('"');
+        } else {
+            writer.write(text);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
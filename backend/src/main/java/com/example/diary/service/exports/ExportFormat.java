@@ -0,0 +1,43 @@
+package com.example.diary.service.exports;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Формат потоковой выгрузки.
+ */
+public enum ExportFormat {
+    CSV("text/csv; charset=UTF-8"),
+    XLSX("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+
+    private final String contentType;
+
+    ExportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /** По умолчанию — CSV. */
+    public static ExportFormat resolve(String format) {
+        if (format == null || format.isBlank()) {
+            return CSV;
+        }
+        return switch (format.trim().toLowerCase(Locale.ROOT)) {
+            case "csv" -> CSV;
+            case "xlsx", "excel" -> XLSX;
+            default -> throw new IllegalArgumentException("Неизвестный формат выгрузки: " + format);
+        };
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+
+    public String fileExtension() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    RowWriter open(OutputStream out, String sheetName) throws IOException {
+        return this == XLSX ? new XlsxRowWriter(out, sheetName) : new CsvRowWriter(out);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.diary.service.exports;
+
+import com.example.diary.model.User;
+import com.example.diary.repository.SpotTransactionRepository;
+import com.example.diary.repository.TradeClosureRepository;
+import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.projection.ClosureExportRow;
+import com.example.diary.repository.projection.SpotExportRow;
+import com.example.diary.repository.projection.TradeExportRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Потоковая выгрузка журналов. Строки читаются курсором (forward-only, fetch size из подсказки запроса)
+ * и сразу пишутся в ответ, так что память не зависит от длины истории, а первые байты уходят
+ * клиенту до окончания чтения. Вызывается из потока StreamingResponseBody, поэтому транзакция
+ * открывается здесь же.
+ */
+@Service
+public class ExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportService.class);
+
+    /** Через сколько строк сбрасывать буфер в сокет */
+    private static final int FLUSH_EVERY = 500;
+
+    static final List<String> TRADE_COLUMNS = List.of(
+            "id", "portfolioId", "symbol", "entryDate", "entryPrice", "quantity", "openQuantity",
+            "exitDate", "exitPrice", "marginAmount", "borrowedAmount", "maintenanceMargin", "notes");
+
+    static final List<String> CLOSURE_COLUMNS = List.of(
+            "id", "tradeId", "portfolioId", "symbol", "closedQuantity", "exitPrice", "exitDate", "notes");
+
+    static final List<String> SPOT_COLUMNS = List.of(
+            "id", "portfolioId", "transactionDate", "transactionType", "ticker", "company",
+            "price", "quantity", "amount", "note");
+
+    private final TradeRepository tradeRepository;
+    private final TradeClosureRepository tradeClosureRepository;
+    private final SpotTransactionRepository spotTransactionRepository;
+    private final TransactionTemplate readOnlyTransaction;
+
+    public ExportService(TradeRepository tradeRepository,
+                         TradeClosureRepository tradeClosureRepository,
+                         SpotTransactionRepository spotTransactionRepository,
+                         PlatformTransactionManager transactionManager) {
+        this.tradeRepository = tradeRepository;
+        this.tradeClosureRepository = tradeClosureRepository;
+        this.spotTransactionRepository = spotTransactionRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+    }
+
+    public void exportTrades(User user, Long portfolioId, ExportFormat format, OutputStream out) throws IOException {
+        write(format, out, "Trades", TRADE_COLUMNS,
+                () -> tradeRepository.streamExportRows(user, portfolioId),
+                (TradeExportRow r) -> new Object[] {
+                        r.id(), r.portfolioId(), r.symbol(), r.entryDate(), r.entryPrice(), r.quantity(),
+                        r.openQuantity(), r.exitDate(), r.exitPrice(), r.marginAmount(), r.borrowedAmount(),
+                        r.maintenanceMargin(), r.notes()});
+    }
+
+    public void exportClosures(User user, Long portfolioId, ExportFormat format, OutputStream out) throws IOException {
+        write(format, out, "Closures", CLOSURE_COLUMNS,
+                () -> tradeClosureRepository.streamExportRows(user, portfolioId),
+                (ClosureExportRow r) -> new Object[] {
+                        r.id(), r.tradeId(), r.portfolioId(), r.symbol(), r.closedQuantity(), r.exitPrice(),
+                        r.exitDate(), r.notes()});
+    }
+
+    public void exportSpotTransactions(User user, Long portfolioId, ExportFormat format, OutputStream out) throws IOException {
+        write(format, out, "Spot", SPOT_COLUMNS,
+                () -> spotTransactionRepository.streamExportRows(user, portfolioId),
+                (SpotExportRow r) -> new Object[] {
+                        r.id(), r.portfolioId(), r.tradeDate(),
+                        r.transactionType() != null ? r.transactionType().name() : null,
+                        r.ticker(), r.company(), r.price(), r.quantity(), r.amount(), r.note()});
+    }
+
+    private <T> void write(ExportFormat format, OutputStream out, String sheetName, List<String> columns,
+                           Supplier<Stream<T>> query, Function<T, Object[]> toCells) throws IOException {
+        long started = System.currentTimeMillis();
+        long[] rows = {0};
+        try (RowWriter writer = format.open(out, sheetName)) {
+            writer.header(columns);
+            // заголовок уходит сразу, до выполнения запроса
+            writer.flush();
+            readOnlyTransaction.executeWithoutResult(status -> {
+                try (Stream<T> stream = query.get()) {
+                    Iterator<T> it = stream.iterator();
+                    while (it.hasNext()) {
+                        writer.row(toCells.apply(it.next()));
+                        if (++rows[0] % FLUSH_EVERY == 0) {
+                            writer.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        logger.debug("Выгрузка {} ({}): {} строк за {} мс", sheetName, format, rows[0],
+                System.currentTimeMillis() - started);
+    }
+}
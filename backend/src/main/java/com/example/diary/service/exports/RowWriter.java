@@ -0,0 +1,19 @@
+package com.example.diary.service.exports;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Запись таблицы строка за строкой. Значения — String, Number, LocalDate или null;
+ * всё прочее пишется через toString().
+ */
+interface RowWriter extends Closeable {
+
+    void header(List<String> columns) throws IOException;
+
+    void row(Object... values) throws IOException;
+
+    /** Отдаёт накопленное клиенту, не завершая документ. */
+    void flush() throws IOException;
+}
@@ -0,0 +1,195 @@
+package com.example.diary.service.imports;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Общий цикл импорта: читает записи, копит их и пишет чанками, каждый чанк — отдельная транзакция.
+ * Следующий чанк читается только после коммита предыдущего, поэтому в памяти не больше chunkSize записей.
+ * Если чанк не прошёл, он делится пополам до ошибочных строк, чтобы в отчёте остались ошибки по строкам.
+ *
+ * @param <R> типизированная строка импорта
+ */
+public class ChunkedImport<R> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedImport.class);
+
+    /** Разбор полей записи в типизированную строку; IllegalArgumentException — ошибка строки. */
+    @FunctionalInterface
+    public interface RowParser<R> {
+        R parse(int rowNumber, Map<String, Object> fields);
+    }
+
+    /**
+     * Фиксирует позицию импорта. Вызывается внутри транзакции чанка,
+     * так что записанные строки и позиция коммитятся вместе.
+     *
+     * @param position сколько записей входа обработано
+     * @param progress итог с учётом коммитящегося чанка
+     */
+    @FunctionalInterface
+    public interface Checkpoint {
+        void save(long position, ImportResult progress);
+    }
+
+    private record Entry<R>(long position, int rowNumber, R row, String error) {}
+
+    private final TransactionTemplate transactionTemplate;
+    private final Consumer<List<R>> writer;
+    private final Checkpoint checkpoint;
+    private final int chunkSize;
+    private final List<Entry<R>> pending = new ArrayList<>();
+    private ImportResult result;
+    private long checkpointedPosition;
+
+    /**
+     * @param writer     сохраняет строки; вызывается внутри транзакции
+     * @param checkpoint может быть null для синхронного импорта
+     */
+    public ChunkedImport(TransactionTemplate transactionTemplate, Consumer<List<R>> writer,
+                         Checkpoint checkpoint, int chunkSize, ImportResult initial) {
+        this.transactionTemplate = transactionTemplate;
+        this.writer = writer;
+        this.checkpoint = checkpoint;
+        this.chunkSize = chunkSize;
+        this.result = initial != null ? initial : new ImportResult();
+    }
+
+    /**
+     * Читает вход до конца, пропуская первые resumeAfter записей (уже закоммиченных ранее).
+     *
+     * @param defaults значения для отсутствующих полей (например, marginAmount для CSV без такой колонки)
+     */
+    public ImportResult run(ImportRowReader reader, RowParser<R> parser, Map<String, Object> defaults,
+                            long resumeAfter) throws IOException {
+        ImportRowReader.Record record;
+        while ((record = reader.next()) != null) {
+            long position = reader.getPosition();
+            if (position <= resumeAfter) {
+                continue;
+            }
+            if (record.error() != null) {
+                addError(position, record.rowNumber(), record.error());
+                continue;
+            }
+            Map<String, Object> fields = record.fields();
+            defaults.forEach(fields::putIfAbsent);
+            try {
+                addRow(position, record.rowNumber(), parser.parse(record.rowNumber(), fields));
+            } catch (Exception e) {
+                addError(position, record.rowNumber(), e.getMessage());
+            }
+        }
+        return finish();
+    }
+
+    public void addRow(long position, int rowNumber, R row) {
+        add(new Entry<>(position, rowNumber, row, null));
+    }
+
+    public void addError(long position, int rowNumber, String message) {
+        add(new Entry<>(position, rowNumber, null, message));
+    }
+
+    /** Дописывает накопленный хвост и возвращает итог. */
+    public ImportResult finish() {
+        flush();
+        return result;
+    }
+
+    private void add(Entry<R> entry) {
+        pending.add(entry);
+        if (pending.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        writeRange(pending, true);
+        long lastPosition = pending.get(pending.size() - 1).position();
+        // хвост чанка мог состоять из ошибок — фиксируем позицию конца чанка
+        if (checkpoint != null && checkpointedPosition < lastPosition) {
+            ImportResult finalResult = result;
+            transactionTemplate.executeWithoutResult(status -> checkpoint.save(lastPosition, finalResult));
+            checkpointedPosition = lastPosition;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Пишет диапазон одной транзакцией; при ошибке делит его пополам, пока не останется
+     * одна проблемная строка. Для k плохих строк в чанке это O(k·log n) транзакций вместо n.
+     */
+    private void writeRange(List<Entry<R>> range, boolean wholeChunk) {
+        List<R> rows = new ArrayList<>(range.size());
+        ImportResult projected = result.copy();
+        for (Entry<R> entry : range) {
+            if (entry.error() != null) {
+                projected.addError(entry.rowNumber(), entry.error());
+            } else {
+                rows.add(entry.row());
+            }
+        }
+        if (rows.isEmpty()) {
+            result = projected;
+            return;
+        }
+        projected.addImported(rows.size());
+        long lastPosition = range.get(range.size() - 1).position();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                writer.accept(rows);
+                saveCheckpoint(lastPosition, projected);
+            });
+            result = projected;
+            checkpointedPosition = lastPosition;
+        } catch (Exception e) {
+            if (wholeChunk) {
+                logger.warn("Чанк из {} строк (с {}) не записан, ищем ошибочные строки: {}",
+                        range.size(), range.get(0).rowNumber(), e.getMessage());
+            }
+            if (rows.size() == 1) {
+                for (Entry<R> entry : range) {
+                    result.addError(entry.rowNumber(), entry.error() != null ? entry.error() : rootMessage(e));
+                }
+                return;
+            }
+            int middle = range.size() / 2;
+            writeRange(range.subList(0, middle), false);
+            writeRange(range.subList(middle, range.size()), false);
+        }
+    }
+
+    private void saveCheckpoint(long position, ImportResult progress) {
+        if (checkpoint != null) {
+            checkpoint.save(position, progress);
+        }
+    }
+
+    static String rootMessage(Throwable e) {
+        // нарушения bean validation отдаём их собственными сообщениями, без служебного текста
+        if (e instanceof ConstraintViolationException cve && !cve.getConstraintViolations().isEmpty()) {
+            return cve.getConstraintViolations().stream()
+                    .map(ConstraintViolation::getMessage)
+                    .collect(Collectors.joining("; "));
+        }
+        Throwable cause = e;
+        while (cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        return cause.getMessage() != null ? cause.getMessage() : e.getMessage();
+    }
+}
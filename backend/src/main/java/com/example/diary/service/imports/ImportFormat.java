@@ -0,0 +1,45 @@
+package com.example.diary.service.imports;
+
+import java.util.Locale;
+
+/**
+ * Формат потокового импорта.
+ */
+public enum ImportFormat {
+    CSV,
+    /** JSON-объект на строку */
+    NDJSON,
+    /** JSON-массив записей или объект с массивом, как тело /trades/bulk-import */
+    JSON;
+
+    /**
+     * Явный параметр format имеет приоритет, иначе формат определяется по Content-Type.
+     * Всё, что не похоже на JSON, читается как CSV.
+     */
+    public static ImportFormat resolve(String format, String contentType) {
+        if (format != null && !format.isBlank()) {
+            String value = format.trim().toLowerCase(Locale.ROOT);
+            return switch (value) {
+                case "csv" -> CSV;
+                case "ndjson", "jsonl" -> NDJSON;
+                case "json" -> JSON;
+                default -> throw new IllegalArgumentException("Неизвестный формат импорта: " + format);
+            };
+        }
+        if (contentType != null) {
+            String type = contentType.toLowerCase(Locale.ROOT);
+            if (type.contains("ndjson") || type.contains("jsonl")) {
+                return NDJSON;
+            }
+            if (type.contains("json")) {
+                return JSON;
+            }
+        }
+        return CSV;
+    }
+
+    /** Расширение файла для сохранённого тела задания импорта. */
+    public String fileExtension() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
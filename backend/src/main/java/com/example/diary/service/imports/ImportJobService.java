@@ -0,0 +1,298 @@
+package com.example.diary.service.imports;
+
+import com.example.diary.model.ImportJob;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.User;
+import com.example.diary.repository.ImportJobRepository;
+import com.example.diary.repository.PortfolioRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Фоновые задания импорта сделок и спотовых транзакций.
+ * Тело запроса сохраняется в файл, задание выполняется в отдельном потоке через
+ * {@link TradeImportService}/{@link SpotImportService}, а позиция во входе коммитится вместе с каждым чанком.
+ * Незавершённые задания продолжаются при старте приложения или по запросу.
+ */
+@Service
+public class ImportJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportJobService.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<List<Map<String, String>>> ERRORS_TYPE = new TypeReference<>() {};
+
+    private final ImportJobRepository jobRepository;
+    private final PortfolioRepository portfolioRepository;
+    private final TradeImportService tradeImportService;
+    private final SpotImportService spotImportService;
+    private final Path jobDir;
+    private final ExecutorService executor;
+    // задания, которые уже стоят в очереди или выполняются в этом процессе
+    private final Set<Long> active = ConcurrentHashMap.newKeySet();
+
+    public ImportJobService(ImportJobRepository jobRepository,
+                            PortfolioRepository portfolioRepository,
+                            TradeImportService tradeImportService,
+                            SpotImportService spotImportService,
+                            @Value("${imports.jobs.dir:./data/imports}") String jobDir,
+                            @Value("${imports.jobs.threads:2}") int threads) {
+        this.jobRepository = jobRepository;
+        this.portfolioRepository = portfolioRepository;
+        this.tradeImportService = tradeImportService;
+        this.spotImportService = spotImportService;
+        this.jobDir = Paths.get(jobDir);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "import-job");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Сохраняет тело запроса на диск и ставит задание в очередь.
+     * Файл пишется в UTF-8 независимо от кодировки запроса.
+     */
+    public ImportJob submit(User user, Portfolio portfolio, ImportJob.Kind kind, ImportFormat format,
+                            InputStream body, Charset charset, String defaultMargin) throws IOException {
+        ImportJob job = new ImportJob();
+        job.setUser(user);
+        job.setPortfolio(portfolio);
+        job.setKind(kind);
+        job.setFormat(format);
+        job.setDefaultMargin(defaultMargin);
+        job = jobRepository.save(job);
+
+        Files.createDirectories(jobDir);
+        Path payload = jobDir.resolve("job-" + job.getId() + "." + format.fileExtension());
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(body, charset));
+             BufferedWriter out = Files.newBufferedWriter(payload, StandardCharsets.UTF_8)) {
+            in.transferTo(out);
+        }
+        job.setPayloadPath(payload.toAbsolutePath().toString());
+        try {
+            job.setTotalRows(countRecords(payload, kind, format));
+        } catch (Exception e) {
+            // заголовок или структура не читаются — задание всё равно упадёт с понятной ошибкой
+            job.setTotalRows(null);
+        }
+        job = jobRepository.save(job);
+        schedule(job.getId());
+        return job;
+    }
+
+    /**
+     * Повторный запуск упавшего или прерванного задания с последнего checkpoint'а.
+     */
+    public ImportJob resume(ImportJob job) {
+        if (job.getStatus() == ImportJob.Status.COMPLETED) {
+            throw new IllegalStateException("Задание уже завершено");
+        }
+        if (active.contains(job.getId())) {
+            throw new IllegalStateException("Задание уже выполняется");
+        }
+        job.setStatus(ImportJob.Status.QUEUED);
+        job.setMessage(null);
+        job = jobRepository.save(job);
+        schedule(job.getId());
+        return job;
+    }
+
+    /** После рестарта продолжаем всё, что стояло в очереди или выполнялось. */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinished() {
+        List<ImportJob> unfinished = jobRepository.findByStatusInOrderByIdAsc(
+                EnumSet.of(ImportJob.Status.QUEUED, ImportJob.Status.RUNNING));
+        for (ImportJob job : unfinished) {
+            logger.info("Продолжаем задание импорта {} с позиции {}", job.getId(), job.getProcessedRows());
+            schedule(job.getId());
+        }
+    }
+
+    private void schedule(Long jobId) {
+        if (active.add(jobId)) {
+            executor.submit(() -> {
+                try {
+                    run(jobId);
+                } finally {
+                    active.remove(jobId);
+                }
+            });
+        }
+    }
+
+    private void run(Long jobId) {
+        ImportJob job = jobRepository.findById(jobId).orElse(null);
+        if (job == null || job.getStatus() == ImportJob.Status.COMPLETED) {
+            return;
+        }
+        try {
+            Portfolio portfolio = portfolioRepository.findById(job.getPortfolio().getId())
+                    .orElseThrow(() -> new IllegalStateException("Портфель задания не найден"));
+            if (job.getPayloadPath() == null) {
+                throw new IllegalStateException("Тело задания не было сохранено");
+            }
+            Path payload = Paths.get(job.getPayloadPath());
+            if (!Files.exists(payload)) {
+                throw new IllegalStateException("Файл задания не найден: " + payload);
+            }
+
+            job.setStatus(ImportJob.Status.RUNNING);
+            if (job.getStartedAt() == null) {
+                job.setStartedAt(LocalDateTime.now());
+            }
+            job.setUpdatedAt(LocalDateTime.now());
+            job = jobRepository.save(job);
+
+            ImportResult initial = new ImportResult(job.getImportedCount(), job.getErrorCount(),
+                    readErrors(job.getErrorsJson()));
+            ChunkedImport.Checkpoint checkpoint = (position, progress) -> jobRepository.saveCheckpoint(jobId,
+                    position, progress.getImportedCount(), progress.getErrorCount(),
+                    writeErrors(progress.getErrors()), LocalDateTime.now());
+
+            ImportResult result;
+            try (InputStream in = Files.newInputStream(payload);
+                 ImportRowReader reader = openReader(in, job.getKind(), job.getFormat())) {
+                if (job.getKind() == ImportJob.Kind.TRADES) {
+                    Map<String, Object> defaults = new LinkedHashMap<>();
+                    if (job.getDefaultMargin() != null) {
+                        defaults.put("marginAmount", job.getDefaultMargin());
+                    }
+                    result = tradeImportService.importStream(portfolio, reader, defaults,
+                            job.getProcessedRows(), initial, checkpoint);
+                } else {
+                    result = spotImportService.importStream(portfolio, reader,
+                            job.getProcessedRows(), initial, checkpoint);
+                }
+            }
+
+            // счётчики обновлялись checkpoint'ами — перечитываем, чтобы не затереть их
+            job = jobRepository.findById(jobId).orElseThrow();
+            job.setStatus(ImportJob.Status.COMPLETED);
+            job.setFinishedAt(LocalDateTime.now());
+            job.setUpdatedAt(job.getFinishedAt());
+            if (job.getTotalRows() == null) {
+                job.setTotalRows(job.getProcessedRows());
+            }
+            jobRepository.save(job);
+            Files.deleteIfExists(payload);
+            logger.info("Задание импорта {} завершено: записано {}, ошибок {}",
+                    jobId, result.getImportedCount(), result.getErrorCount());
+        } catch (Exception e) {
+            logger.error("Задание импорта {} прервано", jobId, e);
+            jobRepository.findById(jobId).ifPresent(failed -> {
+                failed.setStatus(ImportJob.Status.FAILED);
+                failed.setMessage(truncate(e.getMessage()));
+                failed.setUpdatedAt(LocalDateTime.now());
+                jobRepository.save(failed);
+            });
+        }
+    }
+
+    /** Представление задания для API. */
+    public Map<String, Object> toView(ImportJob job) {
+        Map<String, Object> view = new LinkedHashMap<>();
+        view.put("id", job.getId());
+        view.put("kind", job.getKind());
+        view.put("format", job.getFormat());
+        view.put("status", job.getStatus());
+        view.put("portfolioId", job.getPortfolio().getId());
+        view.put("totalRows", job.getTotalRows());
+        view.put("processedRows", job.getProcessedRows());
+        Double progress = null;
+        if (job.getTotalRows() != null && job.getTotalRows() > 0) {
+            progress = Math.min(100.0, Math.round(job.getProcessedRows() * 1000.0 / job.getTotalRows()) / 10.0);
+        } else if (job.getStatus() == ImportJob.Status.COMPLETED) {
+            progress = 100.0;
+        }
+        view.put("progress", progress);
+        view.put("importedCount", job.getImportedCount());
+        view.put("errorCount", job.getErrorCount());
+        view.put("errors", readErrors(job.getErrorsJson()));
+        view.put("message", job.getMessage());
+        view.put("createdAt", job.getCreatedAt());
+        view.put("startedAt", job.getStartedAt());
+        view.put("updatedAt", job.getUpdatedAt());
+        view.put("finishedAt", job.getFinishedAt());
+        return view;
+    }
+
+    private static ImportRowReader openReader(InputStream in, ImportJob.Kind kind, ImportFormat format) {
+        return kind == ImportJob.Kind.TRADES
+                ? ImportRowReader.forTrades(in, StandardCharsets.UTF_8, format)
+                : ImportRowReader.forSpot(in, StandardCharsets.UTF_8, format);
+    }
+
+    /** Предварительный проход по файлу: число записей для расчёта прогресса. */
+    private static long countRecords(Path payload, ImportJob.Kind kind, ImportFormat format) throws IOException {
+        try (InputStream in = Files.newInputStream(payload);
+             ImportRowReader reader = openReader(in, kind, format)) {
+            while (reader.next() != null) {
+                // только считаем
+            }
+            return reader.getPosition();
+        }
+    }
+
+    private static List<Map<String, String>> readErrors(String json) {
+        if (json == null || json.isEmpty()) {
+            return List.of();
+        }
+        try {
+            return MAPPER.readValue(json, ERRORS_TYPE);
+        } catch (JsonProcessingException e) {
+            return List.of();
+        }
+    }
+
+    private static String writeErrors(List<Map<String, String>> errors) {
+        if (errors.isEmpty()) {
+            return null;
+        }
+        try {
+            return MAPPER.writeValueAsString(errors);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String truncate(String message) {
+        if (message == null) {
+            return null;
+        }
+        return message.length() > 2000 ? message.substring(0, 2000) : message;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // прерванное задание останется RUNNING и продолжится при следующем старте
+        executor.shutdownNow();
+    }
+}
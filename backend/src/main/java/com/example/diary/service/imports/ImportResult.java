@@ -0,0 +1,65 @@
+package com.example.diary.service.imports;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Итог импорта: число записанных строк и построчные ошибки.
+ */
+public class ImportResult {
+
+    // Отчёт не должен расти без ограничений на файлах в сотни тысяч строк
+    private static final int MAX_REPORTED_ERRORS = 1000;
+
+    private int importedCount;
+    private int errorCount;
+    private final List<Map<String, String>> errors = new ArrayList<>();
+
+    public ImportResult() {
+    }
+
+    /** Восстановление из сохранённого checkpoint'а задания. */
+    public ImportResult(int importedCount, int errorCount, List<Map<String, String>> errors) {
+        this.importedCount = importedCount;
+        this.errorCount = errorCount;
+        if (errors != null) {
+            this.errors.addAll(errors);
+        }
+    }
+
+    public ImportResult copy() {
+        return new ImportResult(importedCount, errorCount, errors);
+    }
+
+    public void addImported(int count) {
+        importedCount += count;
+    }
+
+    public void addError(int rowNumber, String message) {
+        errorCount++;
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            Map<String, String> error = new HashMap<>();
+            error.put("row", String.valueOf(rowNumber));
+            error.put("message", message);
+            errors.add(error);
+        }
+    }
+
+    public int getImportedCount() { return importedCount; }
+
+    public int getErrorCount() { return errorCount; }
+
+    public List<Map<String, String>> getErrors() { return errors; }
+
+    public Map<String, Object> toResponse() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("importedCount", importedCount);
+        response.put("errorCount", errorCount);
+        if (!errors.isEmpty()) {
+            response.put("errors", errors);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.diary.service.imports;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Построчное чтение импорта (CSV, NDJSON или JSON-массив): в памяти держится только текущая запись.
+ * Каждая запись превращается в Map с ключами JSON-формата, поэтому валидация общая
+ * для всех форматов ({@link TradeImportRow#fromMap}, {@link SpotImportRow#fromMap}).
+ *
+ * CSV: первая строка — заголовок, разделитель (запятая, точка с запятой или табуляция)
+ * определяется по ней, имена колонок переводятся через таблицу синонимов.
+ * Поля в кавычках поддерживаются, но без переносов строк внутри.
+ */
+public class ImportRowReader implements Closeable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {};
+
+    /**
+     * Очередная запись: либо поля, либо ошибка разбора.
+     *
+     * @param rowNumber номер строки файла (для CSV заголовок — строка 1), для JSON — номер элемента массива
+     */
+    public record Record(int rowNumber, Map<String, Object> fields, String error) {}
+
+    private final BufferedReader reader;
+    private final ImportFormat format;
+    private final Map<String, String> headerAliases;
+    private final String requiredColumn;
+    private JsonParser jsonParser;
+    private String[] columns;
+    private char delimiter = ',';
+    private int lineNumber;
+    private long position;
+
+    /**
+     * @param headerAliases  синонимы заголовков CSV в нижнем регистре -> ключ записи
+     * @param requiredColumn ключ, без которого CSV-заголовок считается ошибочным
+     */
+    public ImportRowReader(InputStream in, Charset charset, ImportFormat format,
+                           Map<String, String> headerAliases, String requiredColumn) {
+        this.reader = new BufferedReader(new InputStreamReader(in, charset), 64 * 1024);
+        this.format = format;
+        this.headerAliases = headerAliases;
+        this.requiredColumn = requiredColumn;
+    }
+
+    public static ImportRowReader forTrades(InputStream in, Charset charset, ImportFormat format) {
+        return new ImportRowReader(in, charset, format, TradeImportRow.HEADER_ALIASES, "symbol");
+    }
+
+    public static ImportRowReader forSpot(InputStream in, Charset charset, ImportFormat format) {
+        return new ImportRowReader(in, charset, format, SpotImportRow.HEADER_ALIASES, "ticker");
+    }
+
+    /** Сколько записей (включая ошибочные) уже выдано — позиция для возобновления. */
+    public long getPosition() {
+        return position;
+    }
+
+    /** Следующая запись или null в конце потока. */
+    public Record next() throws IOException {
+        Record record = format == ImportFormat.JSON ? nextJson() : nextLine();
+        if (record != null) {
+            position++;
+        }
+        return record;
+    }
+
+    private Record nextLine() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (lineNumber == 1 && !line.isEmpty() && line.charAt(0) == '\uFEFF') {
+                line = line.substring(1);
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+            if (format == ImportFormat.NDJSON) {
+                try {
+                    return new Record(lineNumber, MAPPER.readValue(line, MAP_TYPE), null);
+                } catch (JsonProcessingException e) {
+                    return new Record(lineNumber, null, "Некорректный JSON: " + e.getOriginalMessage());
+                }
+            }
+            if (columns == null) {
+                readHeader(line);
+                continue;
+            }
+            List<String> values = split(line, delimiter);
+            Map<String, Object> fields = new HashMap<>();
+            for (int i = 0; i < columns.length && i < values.size(); i++) {
+                if (columns[i] != null && !values.get(i).isEmpty()) {
+                    fields.put(columns[i], normalizeNumber(values.get(i)));
+                }
+            }
+            return new Record(lineNumber, fields, null);
+        }
+        if (format == ImportFormat.CSV && columns == null) {
+            throw new IllegalArgumentException("Файл пуст: нет строки заголовка");
+        }
+        return null;
+    }
+
+    /**
+     * JSON-документ: массив записей или объект с массивом внутри
+     * (как тело /trades/bulk-import: {"trades": [...]}).
+     */
+    private Record nextJson() throws IOException {
+        if (jsonParser == null) {
+            jsonParser = MAPPER.getFactory().createParser(reader);
+            JsonToken token = jsonParser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                while ((token = jsonParser.nextToken()) == JsonToken.FIELD_NAME) {
+                    if (jsonParser.nextToken() == JsonToken.START_ARRAY) {
+                        break;
+                    }
+                    jsonParser.skipChildren();
+                }
+            }
+            if (jsonParser.currentToken() != JsonToken.START_ARRAY) {
+                throw new IllegalArgumentException("Ожидался JSON-массив записей");
+            }
+        }
+        JsonToken token = jsonParser.nextToken();
+        if (token == null || token == JsonToken.END_ARRAY) {
+            return null;
+        }
+        lineNumber++;
+        if (token != JsonToken.START_OBJECT) {
+            jsonParser.skipChildren();
+            return new Record(lineNumber, null, "Ожидался объект");
+        }
+        return new Record(lineNumber, jsonParser.readValueAs(MAP_TYPE), null);
+    }
+
+    private void readHeader(String line) {
+        delimiter = detectDelimiter(line);
+        List<String> names = split(line, delimiter);
+        columns = new String[names.size()];
+        boolean hasRequired = false;
+        for (int i = 0; i < names.size(); i++) {
+            String key = headerAliases.get(names.get(i).trim().toLowerCase(Locale.ROOT));
+            columns[i] = key;
+            hasRequired |= requiredColumn.equals(key);
+        }
+        if (!hasRequired) {
+            throw new IllegalArgumentException("В заголовке CSV нет колонки " + requiredColumn);
+        }
+    }
+
+    private static char detectDelimiter(String header) {
+        if (header.indexOf(';') >= 0) {
+            return ';';
+        }
+        if (header.indexOf('\t') >= 0) {
+            return '\t';
+        }
+        return ',';
+    }
+
+    /**
+     * При разделителе ";" числа обычно пишут с десятичной запятой и пробелами между разрядами.
+     * Текстовые поля при этом не трогаем: нормализуется только то, что после чистки похоже на число.
+     */
+    private String normalizeNumber(String value) {
+        if (delimiter == ',') {
+            return value;
+        }
+        String compact = value.replaceAll("[\\s\\u00A0\\u202F]", "").replace(',', '.');
+        return compact.matches("-?\\d+(\\.\\d+)?") ? compact : value;
+    }
+
+    static List<String> split(String line, char delimiter) {
+        List<String> values = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        current.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                values.add(current.toString().trim());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        values.add(current.toString().trim());
+        return values;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (jsonParser != null) {
+            jsonParser.close();
+        }
+        reader.close();
+    }
+}
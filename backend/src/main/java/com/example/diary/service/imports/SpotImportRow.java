@@ -0,0 +1,121 @@
+package com.example.diary.service.imports;
+
+import com.example.diary.model.SpotTransaction.TransactionType;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Провалидированная строка импорта спотовой транзакции.
+ * Ключи совпадают с JSON /spot-transactions (transactionDate, ticker, transactionType, price, quantity, note).
+ *
+ * @param rowNumber номер строки во входных данных — для отчёта об ошибках
+ */
+public record SpotImportRow(
+        int rowNumber,
+        String company,
+        String ticker,
+        TransactionType transactionType,
+        BigDecimal price,
+        BigDecimal quantity,
+        LocalDate tradeDate,
+        String note) {
+
+    /** Синонимы заголовков CSV (в нижнем регистре) -> ключи {@link #fromMap}. */
+    static final Map<String, String> HEADER_ALIASES = Map.ofEntries(
+            Map.entry("ticker", "ticker"), Map.entry("symbol", "ticker"), Map.entry("тикер", "ticker"),
+            Map.entry("company", "company"), Map.entry("компания", "company"), Map.entry("эмитент", "company"),
+            Map.entry("transactiontype", "transactionType"), Map.entry("type", "transactionType"),
+            Map.entry("тип", "transactionType"), Map.entry("операция", "transactionType"),
+            Map.entry("price", "price"), Map.entry("цена", "price"),
+            Map.entry("quantity", "quantity"), Map.entry("qty", "quantity"), Map.entry("количество", "quantity"),
+            Map.entry("кол-во", "quantity"),
+            Map.entry("transactiondate", "transactionDate"), Map.entry("tradedate", "transactionDate"),
+            Map.entry("date", "transactionDate"), Map.entry("дата", "transactionDate"),
+            Map.entry("note", "note"), Map.entry("notes", "note"), Map.entry("comment", "note"),
+            Map.entry("комментарий", "note")
+    );
+
+    /**
+     * Названия операций из выписок брокера (в нижнем регистре) -> тип. Кроме них принимаются
+     * имя константы (BUY) и её displayName (Покупка) в любом регистре.
+     */
+    static final Map<String, TransactionType> TYPE_ALIASES = Map.ofEntries(
+            Map.entry("поступление средств", TransactionType.DEPOSIT), Map.entry("пополнение", TransactionType.DEPOSIT),
+            Map.entry("ввод средств", TransactionType.DEPOSIT),
+            Map.entry("вывод", TransactionType.WITHDRAW), Map.entry("вывод средств", TransactionType.WITHDRAW),
+            Map.entry("снятие средств", TransactionType.WITHDRAW),
+            Map.entry("дивиденд", TransactionType.DIVIDEND), Map.entry("купон", TransactionType.DIVIDEND)
+    );
+
+    /**
+     * Знак суммы задаёт тип операции (см. SpotTransaction#calculateAmount), поэтому цена и количество
+     * приводятся к модулю: выписки, где продажа записана отрицательным количеством, дают те же суммы,
+     * что и ввод через форму.
+     *
+     * @throws IllegalArgumentException с сообщением для отчёта, если строка некорректна
+     */
+    public static SpotImportRow fromMap(int rowNumber, Map<String, Object> data) {
+        String ticker = text(data.get("ticker"));
+        if (ticker == null) {
+            throw new IllegalArgumentException("Тикер не может быть пустым");
+        }
+
+        String typeValue = text(data.get("transactionType"));
+        if (typeValue == null) {
+            throw new IllegalArgumentException("Тип операции не может быть пустым");
+        }
+        TransactionType type = transactionType(typeValue);
+
+        BigDecimal price = decimal(data.get("price"), "Цена не может быть пустой", "Неверный формат цены").abs();
+        BigDecimal quantity = decimal(data.get("quantity"), "Количество не может быть пустым", "Неверный формат количества").abs();
+
+        Object dateValue = data.containsKey("transactionDate") ? data.get("transactionDate") : data.get("tradeDate");
+        String date = text(dateValue);
+        if (date == null) {
+            throw new IllegalArgumentException("Дата операции не может быть пустой");
+        }
+        LocalDate tradeDate = LocalDate.parse(date);
+
+        return new SpotImportRow(rowNumber, text(data.get("company")), ticker.toUpperCase(Locale.ROOT), type,
+                price, quantity, tradeDate, text(data.get("note")));
+    }
+
+    static TransactionType transactionType(String value) {
+        String key = value.trim().toLowerCase(Locale.ROOT);
+        TransactionType alias = TYPE_ALIASES.get(key);
+        if (alias != null) {
+            return alias;
+        }
+        for (TransactionType type : TransactionType.values()) {
+            if (type.name().equalsIgnoreCase(key) || type.getDisplayName().equalsIgnoreCase(key)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Неизвестный тип операции: " + value);
+    }
+
+    private static String text(Object value) {
+        if (value == null) {
+            return null;
+        }
+        String str = value.toString().trim();
+        return str.isEmpty() ? null : str;
+    }
+
+    private static BigDecimal decimal(Object value, String missingMessage, String formatMessage) {
+        if (value == null) {
+            throw new IllegalArgumentException(missingMessage);
+        }
+        if (value instanceof Number num) {
+            return new BigDecimal(num.toString());
+        }
+        try {
+            return new BigDecimal(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(formatMessage + ": " + value);
+        }
+    }
+}
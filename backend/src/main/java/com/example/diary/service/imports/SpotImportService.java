@@ -0,0 +1,106 @@
+package com.example.diary.service.imports;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.SpotTransaction;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Массовый импорт спотовых транзакций чанками, см. {@link ChunkedImport}.
+ */
+@Service
+public class SpotImportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpotImportService.class);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int chunkSize;
+
+    public SpotImportService(PlatformTransactionManager transactionManager,
+                             ApplicationEventPublisher eventPublisher,
+                             @Value("${trades.import.chunk-size:1000}") int chunkSize) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /** Потоковый импорт CSV/NDJSON/JSON из тела запроса, без задания и продолжения. */
+    public ImportResult importStream(Portfolio portfolio, ImportRowReader reader) throws IOException {
+        return importStream(portfolio, reader, 0, null, null);
+    }
+
+    /**
+     * Потоковый импорт с продолжением: первые resumeAfter записей пропускаются,
+     * позиция фиксируется checkpoint'ом в транзакции каждого чанка.
+     */
+    public ImportResult importStream(Portfolio portfolio, ImportRowReader reader,
+                                     long resumeAfter, ImportResult initial, ChunkedImport.Checkpoint checkpoint)
+            throws IOException {
+        Long portfolioId = portfolio.getId();
+        // самая ранняя дата записанных транзакций: контрольные точки спотового журнала до неё не сбрасываются
+        EarliestDate earliest = new EarliestDate();
+        ChunkedImport<SpotImportRow> chunked = new ChunkedImport<>(transactionTemplate,
+                rows -> persist(portfolioId, rows, earliest), checkpoint, chunkSize, initial);
+        ImportResult result = chunked.run(reader, SpotImportRow::fromMap, Map.of(), resumeAfter);
+        if (result.getImportedCount() > 0) {
+            eventPublisher.publishEvent(PortfolioDataChangedEvent.spot(portfolio.getUser().getId(), portfolioId,
+                    earliest.value()));
+        }
+        logger.info("Импорт спотовых транзакций в портфель {}: записано {}, ошибок {}",
+                portfolioId, result.getImportedCount(), result.getErrorCount());
+        return result;
+    }
+
+    private void persist(Long portfolioId, List<SpotImportRow> rows, EarliestDate earliest) {
+        Portfolio portfolioRef = entityManager.getReference(Portfolio.class, portfolioId);
+        for (SpotImportRow row : rows) {
+            earliest.add(row.tradeDate());
+            SpotTransaction transaction = new SpotTransaction(row.company(), row.ticker(), row.transactionType(),
+                    row.price(), row.quantity(), row.tradeDate(), row.note());
+            transaction.setPortfolio(portfolioRef);
+            entityManager.persist(transaction);
+        }
+        // id из последовательности, поэтому вставки чанка уходят JDBC-батчами
+        entityManager.flush();
+        entityManager.clear();
+    }
+
+    /** Минимальная дата среди записанных; транзакция без даты делает её неизвестной (null). */
+    private static final class EarliestDate {
+        private boolean any;
+        private boolean undated;
+        private LocalDate min;
+
+        void add(LocalDate date) {
+            any = true;
+            if (date == null) {
+                undated = true;
+            } else if (min == null || date.isBefore(min)) {
+                min = date;
+            }
+        }
+
+        LocalDate value() {
+            return any && !undated ? min : null;
+        }
+    }
+}
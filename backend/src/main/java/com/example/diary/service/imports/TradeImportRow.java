@@ -0,0 +1,134 @@
+package com.example.diary.service.imports;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Провалидированная строка импорта маржинальной сделки.
+ *
+ * @param rowNumber номер строки во входных данных (с 1) — для отчёта об ошибках
+ */
+public record TradeImportRow(
+        int rowNumber,
+        String symbol,
+        BigDecimal entryPrice,
+        Integer quantity,
+        BigDecimal marginAmount,
+        LocalDate entryDate,
+        LocalDate exitDate,
+        BigDecimal exitPrice,
+        String notes) {
+
+    /** Синонимы заголовков CSV (в нижнем регистре) -> ключи {@link #fromMap}. */
+    static final Map<String, String> HEADER_ALIASES = Map.ofEntries(
+            Map.entry("symbol", "symbol"), Map.entry("ticker", "symbol"), Map.entry("тикер", "symbol"),
+            Map.entry("инструмент", "symbol"),
+            Map.entry("entryprice", "entryPrice"), Map.entry("price", "entryPrice"), Map.entry("цена", "entryPrice"),
+            Map.entry("цена входа", "entryPrice"),
+            Map.entry("quantity", "quantity"), Map.entry("qty", "quantity"), Map.entry("количество", "quantity"),
+            Map.entry("кол-во", "quantity"),
+            Map.entry("marginamount", "marginAmount"), Map.entry("margin", "marginAmount"),
+            Map.entry("rate", "marginAmount"), Map.entry("ставка", "marginAmount"), Map.entry("маржа", "marginAmount"),
+            Map.entry("entrydate", "entryDate"), Map.entry("transactiondate", "entryDate"),
+            Map.entry("date", "entryDate"), Map.entry("дата", "entryDate"), Map.entry("дата входа", "entryDate"),
+            Map.entry("exitdate", "exitDate"), Map.entry("дата выхода", "exitDate"),
+            Map.entry("exitprice", "exitPrice"), Map.entry("цена выхода", "exitPrice"),
+            Map.entry("notes", "notes"), Map.entry("note", "notes"), Map.entry("comment", "notes"),
+            Map.entry("заметки", "notes"), Map.entry("комментарий", "notes"),
+            Map.entry("transactiontype", "transactionType"), Map.entry("type", "transactionType"),
+            Map.entry("тип", "transactionType")
+    );
+
+    /**
+     * Разбор строки из JSON-запроса /trades/bulk-import: значения приходят строками или числами.
+     *
+     * @throws IllegalArgumentException с сообщением для отчёта, если строка некорректна
+     */
+    public static TradeImportRow fromMap(int rowNumber, Map<String, Object> tradeData) {
+        // Раскладка со столбцом типа операции (как rus_spot_import.csv): сделкой считается только покупка
+        Object typeObj = tradeData.get("transactionType");
+        if (typeObj != null && !typeObj.toString().isBlank() && !"BUY".equalsIgnoreCase(typeObj.toString().trim())) {
+            throw new IllegalArgumentException("Операция " + typeObj + " не является покупкой и не импортируется как сделка");
+        }
+
+        // Обязательные поля
+        Object symbolObj = tradeData.get("symbol");
+        String symbol = symbolObj != null ? symbolObj.toString() : null;
+        if (symbol == null || symbol.trim().isEmpty()) {
+            throw new IllegalArgumentException("Тикер не может быть пустым");
+        }
+
+        BigDecimal entryPrice = toDecimal(tradeData.get("entryPrice"),
+                "Цена входа не может быть пустой", "Неверный формат цены входа");
+
+        // Количество
+        Object quantityObj = tradeData.get("quantity");
+        if (quantityObj == null) {
+            throw new IllegalArgumentException("Количество не может быть пустым");
+        }
+        Integer quantity;
+        if (quantityObj instanceof String str) {
+            // выгрузки брокеров пишут количество как "10.0"
+            try {
+                quantity = new BigDecimal(str.trim()).intValueExact();
+            } catch (ArithmeticException | NumberFormatException e) {
+                throw new IllegalArgumentException("Неверный формат количества: " + str);
+            }
+        } else if (quantityObj instanceof Number num) {
+            quantity = num.intValue();
+        } else {
+            throw new IllegalArgumentException("Неверный формат количества");
+        }
+
+        BigDecimal marginAmount = toDecimal(tradeData.get("marginAmount"),
+                "Процент маржи не может быть пустым", "Неверный формат процента маржи");
+
+        // Дата входа
+        Object entryDateObj = tradeData.get("entryDate");
+        if (entryDateObj == null) {
+            throw new IllegalArgumentException("Дата входа не может быть пустой");
+        }
+        if (!(entryDateObj instanceof String entryDateStr)) {
+            throw new IllegalArgumentException("Неверный формат даты входа");
+        }
+        LocalDate entryDate = LocalDate.parse(entryDateStr.trim());
+
+        // Опциональные поля
+        String notes = tradeData.get("notes") != null ? tradeData.get("notes").toString() : null;
+
+        // Дата и цена выхода (цена учитывается только вместе с датой)
+        LocalDate exitDate = null;
+        BigDecimal exitPrice = null;
+        Object exitDateObj = tradeData.get("exitDate");
+        if (exitDateObj != null && !exitDateObj.toString().isEmpty()) {
+            exitDate = LocalDate.parse(exitDateObj.toString().trim());
+            Object exitPriceObj = tradeData.get("exitPrice");
+            if (exitPriceObj instanceof Number num) {
+                exitPrice = BigDecimal.valueOf(num.doubleValue());
+            } else if (exitPriceObj instanceof String str && !str.isEmpty()) {
+                exitPrice = new BigDecimal(str.trim());
+            }
+        }
+
+        return new TradeImportRow(rowNumber, symbol.trim().toUpperCase(), entryPrice, quantity, marginAmount,
+                entryDate, exitDate, exitPrice, notes);
+    }
+
+    private static BigDecimal toDecimal(Object value, String missingMessage, String formatMessage) {
+        if (value == null) {
+            throw new IllegalArgumentException(missingMessage);
+        }
+        if (value instanceof String str) {
+            try {
+                return new BigDecimal(str.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(formatMessage + ": " + str);
+            }
+        }
+        if (value instanceof Number num) {
+            return BigDecimal.valueOf(num.doubleValue());
+        }
+        throw new IllegalArgumentException(formatMessage);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.diary.service.imports;
+
+import com.example.diary.event.PortfolioDataChangedEvent;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.Trade;
+import com.example.diary.service.PnlRollupService;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Массовый импорт маржинальных сделок.
+ * Строки пишутся JDBC-батчами (hibernate.jdbc.batch_size) и коммитятся чанками, см. {@link ChunkedImport}.
+ */
+@Service
+public class TradeImportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TradeImportService.class);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+    private final PnlRollupService pnlRollupService;
+    private final int chunkSize;
+
+    public TradeImportService(PlatformTransactionManager transactionManager,
+                              ApplicationEventPublisher eventPublisher,
+                              PnlRollupService pnlRollupService,
+                              @Value("${trades.import.chunk-size:1000}") int chunkSize) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // каждый чанк — отдельная транзакция, даже если вызывающий код уже в транзакции
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.eventPublisher = eventPublisher;
+        this.pnlRollupService = pnlRollupService;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Импорт строк из JSON-запроса. Разбор и валидация выполняются до записи,
+     * некорректные строки сразу попадают в отчёт.
+     */
+    public ImportResult importRows(Portfolio portfolio, List<Map<String, Object>> rows) {
+        ChunkedImport<TradeImportRow> chunked = newImport(portfolio, null, null);
+        for (int i = 0; i < rows.size(); i++) {
+            try {
+                chunked.addRow(i + 1, i + 1, TradeImportRow.fromMap(i + 1, rows.get(i)));
+            } catch (Exception e) {
+                chunked.addError(i + 1, i + 1, e.getMessage());
+            }
+        }
+        return finish(portfolio, chunked.finish());
+    }
+
+    /**
+     * Потоковый импорт CSV/NDJSON/JSON.
+     *
+     * @param defaults значения для отсутствующих колонок (например, marginAmount)
+     */
+    public ImportResult importStream(Portfolio portfolio, ImportRowReader reader, Map<String, Object> defaults)
+            throws IOException {
+        return importStream(portfolio, reader, defaults, 0, null, null);
+    }
+
+    /**
+     * Потоковый импорт с продолжением: первые resumeAfter записей пропускаются,
+     * позиция фиксируется checkpoint'ом в транзакции каждого чанка.
+     */
+    public ImportResult importStream(Portfolio portfolio, ImportRowReader reader, Map<String, Object> defaults,
+                                     long resumeAfter, ImportResult initial, ChunkedImport.Checkpoint checkpoint)
+            throws IOException {
+        ChunkedImport<TradeImportRow> chunked = newImport(portfolio, initial, checkpoint);
+        return finish(portfolio, chunked.run(reader, TradeImportRow::fromMap, defaults, resumeAfter));
+    }
+
+    private ChunkedImport<TradeImportRow> newImport(Portfolio portfolio, ImportResult initial,
+                                                    ChunkedImport.Checkpoint checkpoint) {
+        Long portfolioId = portfolio.getId();
+        return new ChunkedImport<>(transactionTemplate, rows -> persist(portfolioId, rows), checkpoint, chunkSize, initial);
+    }
+
+    /** Оповещает кэши аналитики, если что-то записано. */
+    private ImportResult finish(Portfolio portfolio, ImportResult result) {
+        if (result.getImportedCount() > 0) {
+            eventPublisher.publishEvent(PortfolioDataChangedEvent.trades(portfolio.getUser().getId(), portfolio.getId()));
+        }
+        logger.info("Импорт сделок в портфель {}: записано {}, ошибок {}",
+                portfolio.getId(), result.getImportedCount(), result.getErrorCount());
+        return result;
+    }
+
+    private void persist(Long portfolioId, List<TradeImportRow> rows) {
+        Portfolio portfolioRef = entityManager.getReference(Portfolio.class, portfolioId);
+        // закрытые сделки из файла попадают в сводки PnL в транзакции своего чанка
+        PnlRollupService.Delta rollups = new PnlRollupService.Delta();
+        for (TradeImportRow row : rows) {
+            Trade trade = toTrade(row, portfolioRef);
+            entityManager.persist(trade);
+            if (trade.getExitDate() != null) {
+                rollups.add(portfolioId, PnlRollupService.lotOf(trade), List.of(),
+                        trade.getQuantity(), trade.getExitPrice(), trade.getExitDate(), 1);
+            }
+        }
+        // сбрасываем батч и отпускаем сущности, чтобы контекст не рос на больших файлах
+        entityManager.flush();
+        pnlRollupService.apply(rollups);
+        entityManager.clear();
+    }
+
+    private static Trade toTrade(TradeImportRow row, Portfolio portfolio) {
+        Trade trade = new Trade();
+        trade.setPortfolio(portfolio);
+        trade.setSymbol(row.symbol());
+        trade.setEntryPrice(row.entryPrice());
+        trade.setQuantity(row.quantity());
+        trade.setMarginAmount(row.marginAmount());
+        trade.setEntryDate(row.entryDate());
+        trade.setNotes(row.notes());
+        trade.setExitDate(row.exitDate());
+        trade.setExitPrice(row.exitPrice());
+        return trade;
+    }
+}
@@ -0,0 +1,158 @@
+-- Базовая схема: то, что до перехода на миграции создавал hibernate (ddl-auto=update).
+-- Все команды идемпотентны, поэтому скрипт применяется и к пустой базе, и к уже существующей.
+-- CREATE TABLE IF NOT EXISTS старую таблицу не трогает: колонки, которых в ней ещё нет,
+-- и переход с IDENTITY на последовательности догоняются отдельными ALTER ниже, до индексов.
+
+CREATE SEQUENCE IF NOT EXISTS trades_seq START WITH 1 INCREMENT BY 50;
+CREATE SEQUENCE IF NOT EXISTS trade_closures_seq START WITH 1 INCREMENT BY 50;
+CREATE SEQUENCE IF NOT EXISTS nav_snapshots_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS users (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    created_at TIMESTAMP(6),
+    email VARCHAR(255) NOT NULL,
+    enabled BOOLEAN NOT NULL,
+    first_name VARCHAR(255),
+    last_name VARCHAR(255),
+    password VARCHAR(255) NOT NULL,
+    username VARCHAR(255) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS portfolios (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    created_at TIMESTAMP(6),
+    currency VARCHAR(3) NOT NULL,
+    description VARCHAR(255),
+    is_active BOOLEAN,
+    name VARCHAR(255) NOT NULL,
+    portfolio_type VARCHAR(255) NOT NULL CHECK (portfolio_type IN ('MARGIN', 'SPOT')),
+    user_id BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS trades (
+    id BIGINT NOT NULL PRIMARY KEY,
+    borrowed_amount NUMERIC(19, 6),
+    closed_quantity INTEGER,
+    collateral_amount NUMERIC(19, 6),
+    daily_interest VARCHAR,
+    entry_date DATE NOT NULL,
+    entry_price NUMERIC(38, 2) NOT NULL,
+    exit_date DATE,
+    exit_price NUMERIC(38, 2),
+    financing_currency VARCHAR(5),
+    financing_rate_type VARCHAR(255) CHECK (financing_rate_type IN ('FIXED', 'FLOATING')),
+    leverage NUMERIC(10, 2),
+    maintenance_margin NUMERIC(10, 4),
+    margin_amount NUMERIC(38, 2) NOT NULL,
+    notes VARCHAR,
+    open_quantity INTEGER,
+    quantity INTEGER NOT NULL CHECK (quantity >= 1),
+    symbol VARCHAR(10) NOT NULL,
+    version BIGINT,
+    portfolio_id BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS trade_closures (
+    id BIGINT NOT NULL PRIMARY KEY,
+    closed_quantity INTEGER NOT NULL CHECK (closed_quantity >= 1),
+    exit_date DATE NOT NULL,
+    exit_price NUMERIC(38, 2) NOT NULL,
+    notes VARCHAR,
+    trade_id BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS financing_events (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    amount_change NUMERIC(19, 6),
+    event_date DATE NOT NULL,
+    event_type VARCHAR(255) NOT NULL CHECK (event_type IN ('RATE_CHANGE', 'REPAYMENT', 'COLLATERAL_TOPUP')),
+    notes VARCHAR,
+    rate NUMERIC(10, 4),
+    trade_id BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS spot_transactions (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    amount NUMERIC(19, 6),
+    company VARCHAR(255),
+    note VARCHAR(255),
+    price NUMERIC(19, 6),
+    quantity NUMERIC(19, 6),
+    ticker VARCHAR(255),
+    trade_date DATE,
+    transaction_type VARCHAR(255) CHECK (transaction_type IN ('DEPOSIT', 'WITHDRAW', 'BUY', 'SELL', 'DIVIDEND')),
+    portfolio_id BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS import_jobs (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    created_at TIMESTAMP(6) NOT NULL,
+    default_margin VARCHAR(255),
+    error_count INTEGER NOT NULL,
+    errors_json CLOB,
+    finished_at TIMESTAMP(6),
+    format VARCHAR(255) NOT NULL CHECK (format IN ('CSV', 'NDJSON', 'JSON')),
+    imported_count INTEGER NOT NULL,
+    kind VARCHAR(255) NOT NULL CHECK (kind IN ('TRADES', 'SPOT')),
+    message VARCHAR(2000),
+    payload_path VARCHAR(1000),
+    processed_rows BIGINT NOT NULL,
+    started_at TIMESTAMP(6),
+    status VARCHAR(255) NOT NULL CHECK (status IN ('QUEUED', 'RUNNING', 'COMPLETED', 'FAILED')),
+    total_rows BIGINT,
+    updated_at TIMESTAMP(6),
+    portfolio_id BIGINT NOT NULL,
+    user_id BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS price_history (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    close_price NUMERIC(19, 6) NOT NULL,
+    price_date DATE NOT NULL,
+    source VARCHAR(16),
+    symbol VARCHAR(32) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS nav_snapshots (
+    id BIGINT NOT NULL PRIMARY KEY,
+    accrued_interest NUMERIC(19, 2) NOT NULL,
+    borrowed NUMERIC(19, 2) NOT NULL,
+    cash NUMERIC(19, 2) NOT NULL,
+    margin_value NUMERIC(19, 2) NOT NULL,
+    nav NUMERIC(19, 2) NOT NULL,
+    net_flow NUMERIC(19, 2) NOT NULL,
+    portfolio_id BIGINT NOT NULL,
+    snapshot_date DATE NOT NULL,
+    spot_value NUMERIC(19, 2) NOT NULL
+);
+
+-- Существующая база: сделки до миграций не знали версий и остатков по частичным закрытиям.
+-- Значения заполняет TradeQuantityBackfill при старте.
+ALTER TABLE trades ADD COLUMN IF NOT EXISTS version BIGINT;
+ALTER TABLE trades ADD COLUMN IF NOT EXISTS open_quantity INTEGER;
+ALTER TABLE trades ADD COLUMN IF NOT EXISTS closed_quantity INTEGER;
+
+-- Сделки и закрытия переходят с IDENTITY на pooled-последовательности (как spot_transactions в V5);
+-- значения trades_seq и trade_closures_seq подтягивает к max(id) SequenceAligner.
+ALTER TABLE trades ALTER COLUMN id DROP IDENTITY;
+ALTER TABLE trade_closures ALTER COLUMN id DROP IDENTITY;
+
+-- Имена ограничений те же, что генерировал hibernate: в существующей базе они уже есть и пропускаются
+ALTER TABLE users ADD CONSTRAINT IF NOT EXISTS uk_r43af9ap4edm43mmtq01oddj6 UNIQUE (username);
+ALTER TABLE users ADD CONSTRAINT IF NOT EXISTS uk_6dotkott2kjsp8vw4d0m25fb7 UNIQUE (email);
+ALTER TABLE price_history ADD CONSTRAINT IF NOT EXISTS uk_price_history_symbol_date UNIQUE (symbol, price_date);
+ALTER TABLE nav_snapshots ADD CONSTRAINT IF NOT EXISTS uk_nav_snapshots_portfolio_date UNIQUE (portfolio_id, snapshot_date);
+
+ALTER TABLE portfolios ADD CONSTRAINT IF NOT EXISTS fk9xt36kgm9cxsf79r2me0d9f6u FOREIGN KEY (user_id) REFERENCES users (id);
+ALTER TABLE trades ADD CONSTRAINT IF NOT EXISTS fk9e3iesepjp78aoq0bt2woniwt FOREIGN KEY (portfolio_id) REFERENCES portfolios (id);
+ALTER TABLE trade_closures ADD CONSTRAINT IF NOT EXISTS fks4tpujjlek041av3jvkm19bfd FOREIGN KEY (trade_id) REFERENCES trades (id);
+ALTER TABLE financing_events ADD CONSTRAINT IF NOT EXISTS fk51frgvgrmmly2xwcbsq6642fk FOREIGN KEY (trade_id) REFERENCES trades (id);
+ALTER TABLE spot_transactions ADD CONSTRAINT IF NOT EXISTS fkqfgrca22o71ef4y34tmo4dp4v FOREIGN KEY (portfolio_id) REFERENCES portfolios (id);
+ALTER TABLE import_jobs ADD CONSTRAINT IF NOT EXISTS fkin4lp3wiydlw8xxvc9usvm0k0 FOREIGN KEY (portfolio_id) REFERENCES portfolios (id);
+ALTER TABLE import_jobs ADD CONSTRAINT IF NOT EXISTS fko5dvhggkn12ksklf4643js2vs FOREIGN KEY (user_id) REFERENCES users (id);
+
+CREATE INDEX IF NOT EXISTS idx_trades_portfolio_entry ON trades (portfolio_id, entry_date, id);
+CREATE INDEX IF NOT EXISTS idx_trades_portfolio_symbol_entry ON trades (portfolio_id, symbol, entry_date, id);
+CREATE INDEX IF NOT EXISTS idx_trades_portfolio_symbol_open ON trades (portfolio_id, symbol, open_quantity);
+CREATE INDEX IF NOT EXISTS idx_import_jobs_user ON import_jobs (user_id, id);
+CREATE INDEX IF NOT EXISTS idx_import_jobs_status ON import_jobs (status);
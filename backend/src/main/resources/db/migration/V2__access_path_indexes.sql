@@ -0,0 +1,20 @@
+-- Составные индексы под горячие выборки (раньше были только PK и индексы внешних ключей).
+
+-- спот по тикеру внутри портфеля: findByPortfolioIdAndTickerOrderByTradeDateDesc
+CREATE INDEX IF NOT EXISTS idx_spot_portfolio_ticker_date ON spot_transactions (portfolio_id, ticker, trade_date);
+-- проход по журналу спота: WHERE portfolio_id = ? ORDER BY trade_date, id (NavEngine, позиции)
+CREATE INDEX IF NOT EXISTS idx_spot_portfolio_date ON spot_transactions (portfolio_id, trade_date, id);
+-- фильтр по типу операции: findByPortfolioIdAndTransactionTypeOrderByTradeDateDesc
+CREATE INDEX IF NOT EXISTS idx_spot_portfolio_type_date ON spot_transactions (portfolio_id, transaction_type, trade_date);
+
+-- диапазоны по дате выхода: findByExitDateBetween, прибыль по тикерам и по месяцам
+CREATE INDEX IF NOT EXISTS idx_trades_exit_date ON trades (exit_date, portfolio_id);
+
+-- закрытия сделки по дате: журнал закрытий и леджер NAV
+CREATE INDEX IF NOT EXISTS idx_trade_closures_trade_exit ON trade_closures (trade_id, exit_date, id);
+
+-- события сделки по дате: findByTradeIdAndUser, история ставок
+CREATE INDEX IF NOT EXISTS idx_financing_events_trade_date ON financing_events (trade_id, event_date);
+
+-- активные портфели пользователя: findByUserAndIsActiveTrue
+CREATE INDEX IF NOT EXISTS idx_portfolios_user_active ON portfolios (user_id, is_active);
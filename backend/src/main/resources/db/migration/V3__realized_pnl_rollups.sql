@@ -0,0 +1,32 @@
+-- Сводки реализованного результата маржинальных сделок: по месяцам и по тикерам внутри месяца.
+-- Ведутся приращениями в транзакциях закрытий, пересобираются POST /trades/analytics/rollups/rebuild.
+
+CREATE SEQUENCE IF NOT EXISTS pnl_monthly_rollups_seq START WITH 1 INCREMENT BY 50;
+CREATE SEQUENCE IF NOT EXISTS pnl_symbol_rollups_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS pnl_monthly_rollups (
+    id BIGINT NOT NULL PRIMARY KEY,
+    portfolio_id BIGINT NOT NULL,
+    month_start DATE NOT NULL,
+    realized_pnl NUMERIC(19, 6) NOT NULL,
+    gross_pnl NUMERIC(19, 6) NOT NULL,
+    interest_paid NUMERIC(19, 6) NOT NULL,
+    closed_quantity BIGINT NOT NULL,
+    close_count INTEGER NOT NULL,
+    winning_count INTEGER NOT NULL,
+    CONSTRAINT uk_pnl_monthly_portfolio_month UNIQUE (portfolio_id, month_start)
+);
+
+CREATE TABLE IF NOT EXISTS pnl_symbol_rollups (
+    id BIGINT NOT NULL PRIMARY KEY,
+    portfolio_id BIGINT NOT NULL,
+    symbol VARCHAR(32) NOT NULL,
+    month_start DATE NOT NULL,
+    realized_pnl NUMERIC(19, 6) NOT NULL,
+    gross_pnl NUMERIC(19, 6) NOT NULL,
+    interest_paid NUMERIC(19, 6) NOT NULL,
+    closed_quantity BIGINT NOT NULL,
+    close_count INTEGER NOT NULL,
+    winning_count INTEGER NOT NULL,
+    CONSTRAINT uk_pnl_symbol_portfolio_symbol_month UNIQUE (portfolio_id, symbol, month_start)
+);
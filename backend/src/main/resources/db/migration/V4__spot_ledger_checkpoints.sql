@@ -0,0 +1,23 @@
+-- Контрольные точки спотового журнала: состояние свёртки после transaction_seq транзакций
+-- (порядок — дата сделки, id). Построение журнала продолжается от ближайшей точки,
+-- правка задним числом удаляет точки начиная с даты правки.
+
+CREATE SEQUENCE IF NOT EXISTS spot_ledger_checkpoints_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS spot_ledger_checkpoints (
+    id BIGINT NOT NULL PRIMARY KEY,
+    portfolio_id BIGINT NOT NULL,
+    transaction_seq INTEGER NOT NULL,
+    as_of_date DATE NOT NULL,
+    as_of_id BIGINT NOT NULL,
+    cash NUMERIC(19, 6) NOT NULL,
+    invested NUMERIC(19, 6) NOT NULL,
+    received NUMERIC(19, 6) NOT NULL,
+    dividends NUMERIC(19, 6) NOT NULL,
+    sells INTEGER NOT NULL,
+    positions_json CLOB NOT NULL,
+    created_at TIMESTAMP NOT NULL,
+    CONSTRAINT uk_spot_checkpoints_portfolio_seq UNIQUE (portfolio_id, transaction_seq)
+);
+
+CREATE INDEX IF NOT EXISTS idx_spot_checkpoints_portfolio_date ON spot_ledger_checkpoints (portfolio_id, as_of_date);
@@ -0,0 +1,14 @@
+-- Спотовые транзакции переходят с IDENTITY на pooled-последовательность, чтобы вставки импорта
+-- шли JDBC-батчами. Значение последовательности подтягивает к max(id) SequenceAligner.
+
+CREATE SEQUENCE IF NOT EXISTS spot_transactions_seq START WITH 1 INCREMENT BY 50;
+
+ALTER TABLE spot_transactions ALTER COLUMN id DROP IDENTITY;
+
+-- Разовое выравнивание знаков: покупки и выводы уменьшают кэш. Новые строки получают знак
+-- при записи (SpotTransaction#calculateAmount), поэтому прежние UPDATE-исправления больше не нужны.
+UPDATE spot_transactions SET amount = -ABS(amount)
+WHERE transaction_type IN ('BUY', 'WITHDRAW') AND amount > 0;
+
+-- суммы могли измениться — контрольные точки журнала пересчитаются при следующем построении
+DELETE FROM spot_ledger_checkpoints;
@@ -0,0 +1,15 @@
+-- Локальная история курсов валют ЦБ: рубли за одну единицу валюты на дату.
+-- Пополняется FxRateService по мере запросов; курсы заглушки (source = offline) сюда не пишутся.
+
+CREATE TABLE IF NOT EXISTS fx_rates (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    currency VARCHAR(5) NOT NULL,
+    rate_date DATE NOT NULL,
+    rate NUMERIC(19, 8) NOT NULL,
+    source VARCHAR(16),
+    CONSTRAINT uk_fx_rates_currency_date UNIQUE (currency, rate_date)
+);
+
+-- Дивиденды и зачисления с тикером-валютой (USD, RUB) больше не заводят позицию в спотовом журнале:
+-- сохранённые точки могли её содержать, журнал пересчитается при следующем построении
+DELETE FROM spot_ledger_checkpoints;
@@ -0,0 +1,9 @@
+-- Индексы журнала сделок пересоздаются убывающими: страница читается от новых к старым,
+-- а H2 не обходит индекс в обратном порядке, поэтому с возрастающим индексом ORDER BY ... DESC
+-- сортировал все строки портфеля. Порядок колонок прежний.
+
+DROP INDEX IF EXISTS idx_trades_portfolio_entry;
+CREATE INDEX idx_trades_portfolio_entry ON trades (portfolio_id DESC, entry_date DESC, id DESC);
+
+DROP INDEX IF EXISTS idx_trades_portfolio_symbol_entry;
+CREATE INDEX idx_trades_portfolio_symbol_entry ON trades (portfolio_id DESC, symbol DESC, entry_date DESC, id DESC);
@@ -0,0 +1,188 @@
+package com.example.diary.service;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Миграции на пустой и на существующей (до перехода на миграции) базе,
+ * планы горячих выборок на заполненной базе.
+ */
+class SchemaMigrationsTest {
+
+    private static final int PORTFOLIOS = 20;
+    private static final int SYMBOLS = 50;
+    private static final int TRADES = 100_000;
+    private static final int SPOT_TRANSACTIONS = 50_000;
+
+    private JdbcDataSource dataSource;
+    private JdbcTemplate jdbc;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        jdbc = new JdbcTemplate(dataSource);
+    }
+
+    private void migrate() throws Exception {
+        new SchemaMigrations(dataSource, "classpath:db/migration").migrate();
+    }
+
+    @Test
+    void upgradesSchemaCreatedByHibernateBeforeMigrations() throws Exception {
+        // таблицы в том виде, в каком их оставлял ddl-auto=update до перехода на миграции
+        jdbc.execute("CREATE TABLE users (id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                "created_at TIMESTAMP(6), email VARCHAR(255) NOT NULL, enabled BOOLEAN NOT NULL, " +
+                "first_name VARCHAR(255), last_name VARCHAR(255), password VARCHAR(255) NOT NULL, " +
+                "username VARCHAR(255) NOT NULL)");
+        jdbc.execute("CREATE TABLE portfolios (id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                "created_at TIMESTAMP(6), currency VARCHAR(3) NOT NULL, description VARCHAR(255), " +
+                "is_active BOOLEAN, name VARCHAR(255) NOT NULL, portfolio_type VARCHAR(255) NOT NULL, " +
+                "user_id BIGINT NOT NULL)");
+        jdbc.execute("CREATE TABLE trades (id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                "daily_interest VARCHAR, entry_date DATE NOT NULL, entry_price NUMERIC(38, 2) NOT NULL, " +
+                "exit_date DATE, exit_price NUMERIC(38, 2), margin_amount NUMERIC(38, 2) NOT NULL, " +
+                "notes VARCHAR, quantity INTEGER NOT NULL, symbol VARCHAR(10) NOT NULL, portfolio_id BIGINT NOT NULL, " +
+                "borrowed_amount NUMERIC(19, 6), collateral_amount NUMERIC(19, 6), financing_currency VARCHAR(5), " +
+                "financing_rate_type VARCHAR(255), leverage NUMERIC(10, 2), maintenance_margin NUMERIC(10, 4))");
+        jdbc.execute("CREATE TABLE trade_closures (id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                "closed_quantity INTEGER NOT NULL, exit_date DATE NOT NULL, exit_price NUMERIC(38, 2) NOT NULL, " +
+                "notes VARCHAR, trade_id BIGINT NOT NULL)");
+        jdbc.update("INSERT INTO users (email, enabled, password, username) VALUES ('a@b.c', TRUE, 'x', 'a')");
+        jdbc.update("INSERT INTO portfolios (currency, name, portfolio_type, user_id) VALUES ('RUB', 'p', 'MARGIN', 1)");
+        jdbc.update("INSERT INTO trades (entry_date, entry_price, margin_amount, quantity, symbol, portfolio_id) " +
+                "VALUES (DATE '2024-01-10', 100, 15, 10, 'SBER', 1)");
+
+        migrate();
+
+        assertThat(columns("TRADES")).contains("VERSION", "OPEN_QUANTITY", "CLOSED_QUANTITY");
+        assertThat(identityColumns()).doesNotContain("TRADES", "TRADE_CLOSURES", "SPOT_TRANSACTIONS");
+        assertThat(indexes()).contains("IDX_TRADES_PORTFOLIO_SYMBOL_OPEN", "IDX_TRADES_PORTFOLIO_ENTRY");
+        assertThat(jdbc.queryForObject("SELECT COUNT(*) FROM trades", Integer.class)).isEqualTo(1);
+        assertThat(jdbc.queryForObject("SELECT COUNT(*) FROM schema_history", Integer.class))
+                .isEqualTo(jdbc.queryForObject("SELECT MAX(version) FROM schema_history", Integer.class));
+
+        // повторный запуск ничего не применяет и не падает на контрольных суммах
+        migrate();
+    }
+
+    @Test
+    void hotLookupsUseAccessPathIndexes() throws Exception {
+        migrate();
+        seed();
+        jdbc.execute("ANALYZE");
+
+        // FIFO-очередь тикера: TradeRepository#findOpenLotsBySymbol
+        assertThat(plan("SELECT id, quantity, open_quantity, entry_price FROM trades " +
+                "WHERE portfolio_id = 7 AND symbol = 'S17' AND open_quantity > 0 ORDER BY entry_date, id"))
+                .contains("IDX_TRADES_PORTFOLIO_SYMBOL_OPEN");
+        // диапазон по дате выхода: TradeRepository#findByExitDateBetween
+        assertThat(plan("SELECT * FROM trades WHERE exit_date BETWEEN DATE '2023-01-01' AND DATE '2023-01-31' " +
+                "ORDER BY exit_date DESC"))
+                .contains("IDX_TRADES_EXIT_DATE");
+        // журнал спота после контрольной точки: SpotTransactionRepository#findBookRowsAfter
+        assertThat(plan("SELECT id, ticker, transaction_type, price, quantity, amount, trade_date " +
+                "FROM spot_transactions WHERE portfolio_id = 3 AND trade_date >= DATE '2022-01-01' " +
+                "AND (trade_date > DATE '2022-01-01' OR id > 100) ORDER BY trade_date, id"))
+                .contains("IDX_SPOT_PORTFOLIO_DATE: PORTFOLIO_ID = CAST(3 AS BIGINT) AND TRADE_DATE >= DATE '2022-01-01' */");
+        // пересвёртка одного тикера: SpotTransactionRepository#findBookRowsByTicker
+        assertThat(plan("SELECT id, transaction_type, price, quantity, amount, trade_date " +
+                "FROM spot_transactions WHERE portfolio_id = 3 AND ticker = 'S5' ORDER BY trade_date NULLS FIRST, id"))
+                .contains("IDX_SPOT_PORTFOLIO_TICKER_DATE");
+        // фильтр по типу: findByPortfolioIdAndTransactionTypeOrderByTradeDateDesc
+        assertThat(plan("SELECT * FROM spot_transactions WHERE portfolio_id = 3 AND transaction_type = 'BUY' " +
+                "ORDER BY trade_date DESC"))
+                .contains("IDX_SPOT_PORTFOLIO_TYPE_DATE");
+        // активные портфели пользователя: findByUserAndIsActiveTrue
+        assertThat(plan("SELECT * FROM portfolios WHERE user_id = 1 AND is_active = TRUE"))
+                .contains("IDX_PORTFOLIOS_USER_ACTIVE");
+    }
+
+    @Test
+    void journalPagesReadIndexInOrder() throws Exception {
+        migrate();
+        seed();
+        jdbc.execute("ANALYZE");
+
+        // запросы TradeJournalRepositoryImpl в том виде, в каком их строит Hibernate (ORDER BY по номерам колонок)
+        String select = "SELECT id, portfolio_id, symbol, entry_date, open_quantity FROM trades ";
+        assertThat(plan(select + "WHERE portfolio_id = 7 ORDER BY 2 DESC, 4 DESC, 1 DESC FETCH FIRST 51 ROWS ONLY"))
+                .contains("IDX_TRADES_PORTFOLIO_ENTRY: PORTFOLIO_ID = CAST(7 AS BIGINT) */")
+                .contains("/* index sorted */");
+        assertThat(plan(select + "WHERE portfolio_id = 7 AND entry_date <= DATE '2022-06-01' " +
+                "AND (entry_date < DATE '2022-06-01' OR id < 5000) " +
+                "ORDER BY 2 DESC, 4 DESC, 1 DESC FETCH FIRST 51 ROWS ONLY"))
+                .contains("IDX_TRADES_PORTFOLIO_ENTRY: PORTFOLIO_ID = CAST(7 AS BIGINT) AND ENTRY_DATE <= DATE '2022-06-01' */")
+                .contains("/* index sorted */");
+        assertThat(plan(select + "WHERE portfolio_id = 7 AND symbol = 'S17' AND open_quantity > 0 " +
+                "AND entry_date <= DATE '2022-06-01' AND (entry_date < DATE '2022-06-01' OR id < 5000) " +
+                "ORDER BY 2 DESC, 3 DESC, 4 DESC, 1 DESC FETCH FIRST 51 ROWS ONLY"))
+                .contains("IDX_TRADES_PORTFOLIO_SYMBOL_ENTRY")
+                .contains("/* index sorted */");
+    }
+
+    private void seed() {
+        jdbc.update("INSERT INTO users (email, enabled, password, username) VALUES ('a@b.c', TRUE, 'x', 'a')");
+        for (int p = 1; p <= PORTFOLIOS; p++) {
+            jdbc.update("INSERT INTO portfolios (id, currency, is_active, name, portfolio_type, user_id) " +
+                    "VALUES (?, 'RUB', TRUE, ?, ?, 1)", p, "p" + p, p % 2 == 0 ? "SPOT" : "MARGIN");
+        }
+
+        LocalDate start = LocalDate.of(2020, 1, 1);
+        List<Object[]> trades = new ArrayList<>();
+        List<Object[]> closures = new ArrayList<>();
+        for (int i = 1; i <= TRADES; i++) {
+            LocalDate entry = start.plusDays(i % 1500);
+            boolean closed = i % 3 == 0;
+            trades.add(new Object[] {i, 1 + i % PORTFOLIOS, "S" + i % SYMBOLS, Date.valueOf(entry),
+                    closed ? Date.valueOf(entry.plusDays(30)) : null, 10, closed ? 0 : 10, closed ? 10 : 0});
+            if (closed) {
+                closures.add(new Object[] {i, i, Date.valueOf(entry.plusDays(30))});
+            }
+        }
+        jdbc.batchUpdate("INSERT INTO trades (id, portfolio_id, symbol, entry_date, exit_date, quantity, " +
+                "open_quantity, closed_quantity, entry_price, margin_amount, version) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, 100, 15, 0)", trades);
+        jdbc.batchUpdate("INSERT INTO trade_closures (id, trade_id, exit_date, closed_quantity, exit_price) " +
+                "VALUES (?, ?, ?, 10, 110)", closures);
+
+        List<Object[]> spot = new ArrayList<>();
+        for (int i = 1; i <= SPOT_TRANSACTIONS; i++) {
+            spot.add(new Object[] {i, 1 + i % PORTFOLIOS, "S" + i % SYMBOLS, Date.valueOf(start.plusDays(i % 1500)),
+                    i % 2 == 0 ? "BUY" : "SELL"});
+        }
+        jdbc.batchUpdate("INSERT INTO spot_transactions (id, portfolio_id, ticker, trade_date, transaction_type, " +
+                "quantity, price, amount) VALUES (?, ?, ?, ?, ?, 1, 100, 100)", spot);
+    }
+
+    private String plan(String sql) {
+        // план с комментарием /* индекс: условия */ перед WHERE, пробелы схлопнуты
+        return jdbc.queryForObject("EXPLAIN " + sql, String.class).replaceAll("\\s+", " ");
+    }
+
+    private List<String> columns(String table) {
+        return jdbc.queryForList("SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS " +
+                "WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = ?", String.class, table);
+    }
+
+    private List<String> identityColumns() {
+        return jdbc.queryForList("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.COLUMNS " +
+                "WHERE TABLE_SCHEMA = 'PUBLIC' AND IS_IDENTITY = 'YES'", String.class);
+    }
+
+    private List<String> indexes() {
+        return jdbc.queryForList("SELECT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES " +
+                "WHERE TABLE_SCHEMA = 'PUBLIC'", String.class);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.diary.service;
+
+import com.example.diary.model.FinancingEvent;
+import com.example.diary.model.Portfolio;
+import com.example.diary.model.Trade;
+import com.example.diary.model.User;
+import com.example.diary.repository.FinancingEventRepository;
+import com.example.diary.repository.PortfolioRepository;
+import com.example.diary.repository.TradeRepository;
+import com.example.diary.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+/**
+ * Изменения ставки по открытым сделкам: события RATE_CHANGE вместо перезаписи базовой ставки.
+ */
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:rate-changes;DB_CLOSE_DELAY=-1",
+        "fx.source=offline",
+        "risk.monitor.refresh-seconds=0",
+        "imports.jobs.dir=target/test-imports"
+})
+class TradeServiceRateChangesTest {
+
+    private static final LocalDate ENTRY = LocalDate.of(2024, 1, 1);
+    private static final LocalDate CHANGE = LocalDate.of(2024, 2, 1);
+
+    @Autowired
+    private TradeService tradeService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private PortfolioRepository portfolioRepository;
+
+    @Autowired
+    private TradeRepository tradeRepository;
+
+    @Autowired
+    private FinancingEventRepository financingEventRepository;
+
+    private User user;
+    private Portfolio portfolio;
+
+    @BeforeEach
+    void setUp() {
+        String name = "u" + UUID.randomUUID().toString().substring(0, 8);
+        user = userRepository.save(new User(name, name + "@test", "x"));
+        portfolio = portfolioRepository.save(new Portfolio("margin", Portfolio.PortfolioType.MARGIN, user));
+    }
+
+    @Test
+    void interestBeforeChangeDateStaysTheSame() {
+        Trade before = tradeRepository.save(trade(ENTRY, "20"));
+        Trade after = tradeRepository.save(trade(CHANGE.plusDays(10), "18"));
+        double interestBefore = interestUntil(before, CHANGE);
+
+        Map<String, Object> response = tradeService.applyRateChanges(user, portfolio.getId(),
+                new TreeMap<>(Map.of(CHANGE, new BigDecimal("25.0000"))));
+
+        assertThat(response.get("recordedEvents")).isEqualTo(1);
+        assertThat(response.get("updatedTrades")).isEqualTo(1);
+        // базовые ставки не переписаны, сделка после даты изменения события не получила
+        assertThat(tradeRepository.findById(before.getId()).orElseThrow().getMarginAmount()).isEqualByComparingTo("20");
+        assertThat(tradeRepository.findById(after.getId()).orElseThrow().getMarginAmount()).isEqualByComparingTo("18");
+        assertThat(events(after)).isEmpty();
+        assertThat(interestUntil(before, CHANGE)).isEqualTo(interestBefore);
+        // 1 000 000 * 20% / 365 * 31 день
+        assertThat(interestBefore).isEqualTo(16986.30);
+        // после даты изменения действует новая ставка: 1 000 000 * 25% / 365 * 10 дней
+        assertThat(interestUntil(before, CHANGE.plusDays(10)) - interestBefore).isCloseTo(6849.32, offset(0.01));
+    }
+
+    @Test
+    void resubmittedDateCorrectsRecordedRate() {
+        Trade trade = tradeRepository.save(trade(ENTRY, "20"));
+        tradeService.applyRateChanges(user, portfolio.getId(), new TreeMap<>(Map.of(CHANGE, new BigDecimal("25.0000"))));
+
+        Map<String, Object> response = tradeService.applyRateChanges(user, portfolio.getId(),
+                new TreeMap<>(Map.of(CHANGE, new BigDecimal("22.0000"))));
+
+        assertThat(response.get("recordedEvents")).isEqualTo(0);
+        assertThat(response.get("correctedEvents")).isEqualTo(1);
+        List<FinancingEvent> events = events(trade);
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).getRate()).isEqualByComparingTo("22");
+        assertThat(tradeRepository.findById(trade.getId()).orElseThrow().getMarginAmount()).isEqualByComparingTo("20");
+    }
+
+    private Trade trade(LocalDate entryDate, String rate) {
+        Trade trade = new Trade();
+        trade.setPortfolio(portfolio);
+        trade.setSymbol("SBER");
+        trade.setEntryDate(entryDate);
+        trade.setEntryPrice(new BigDecimal("100"));
+        trade.setQuantity(10000);
+        trade.setBorrowedAmount(new BigDecimal("1000000"));
+        trade.setMarginAmount(new BigDecimal(rate));
+        return trade;
+    }
+
+    private List<FinancingEvent> events(Trade trade) {
+        return financingEventRepository.findByTradeIdAndUser(trade.getId(), user);
+    }
+
+    // Проценты сделки по [дата входа, until) — по сохранённой базовой ставке и записанным событиям
+    private double interestUntil(Trade saved, LocalDate until) {
+        Trade trade = tradeRepository.findById(saved.getId()).orElseThrow();
+        Trade copy = trade(trade.getEntryDate(), trade.getMarginAmount().toPlainString());
+        copy.setExitDate(until);
+        copy.setFinancingEvents(events(saved));
+        return copy.getTotalInterest();
+    }
+}
@@ -579,14 +579,15 @@ function AllTransactions() {
         return;
       }
 
-      // Import each transaction
-      for (const transaction of transactions) {
-        await axios.post('/api/spot-transactions', transaction, {
-          headers: {
-            'X-Portfolio-ID': currentPortfolio.id
-          }
-        });
-      }
+      // Все транзакции одним запросом: бэк пишет их батчами и возвращает ошибки по строкам
+      const payload = transactions.map(t => JSON.stringify(t)).join('\n');
+      const importResp = await axios.post('/api/spot-transactions/import', payload, {
+        headers: {
+          'X-Portfolio-ID': currentPortfolio.id,
+          'Content-Type': 'application/x-ndjson'
+        }
+      });
+      const { importedCount = 0, errorCount = 0 } = importResp.data || {};
 
       setShowImport(false);
       setImportData('');
@@ -597,7 +598,7 @@ function AllTransactions() {
         refreshData();
       }, 100);
 
-      alert(`Успешно импортировано ${transactions.length} транзакций`);
+      alert(`Успешно импортировано ${importedCount} транзакций` + (errorCount ? `, с ошибками: ${errorCount}` : ''));
     } catch (error) {
       console.error('Error importing transactions:', error);
       setError('Ошибка импорта транзакций: ' + error.message);
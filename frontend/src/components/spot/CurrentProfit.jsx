@@ -3,7 +3,6 @@ import axios from 'axios';
 import { usePortfolio } from '../../contexts/PortfolioContext';
 import { formatPortfolioCurrency } from '../../utils/currencyFormatter';
 import SpotPageShell from './SpotPageShell';
-import { fetchPricesMap } from '../../utils/priceClient';
 
 function CurrentProfit() {
   const { currentPortfolio, refreshTrigger } = usePortfolio();
@@ -22,20 +21,20 @@ function CurrentProfit() {
     }
 
     try {
-      const posResp = await axios.get('/api/spot-transactions/positions/open', {
+      // Оценка по текущим ценам считается на бэке одним запросом
+      const resp = await axios.get('/api/spot-transactions/positions/valuation', {
         headers: { 'X-Portfolio-ID': currentPortfolio.id }
       });
 
-      const rawPositions = Array.isArray(posResp.data) ? posResp.data : [];
-      const priceMap = await fetchPricesMap(rawPositions.map(p => p.ticker));
-
+      const rawPositions = Array.isArray(resp.data?.positions) ? resp.data.positions : [];
       const enriched = rawPositions.map(pos => {
         const quantity = Number(pos.quantity || 0);
-        const avgPrice = pos.avgPrice ?? pos.averagePrice ?? 0;
-        const currentPrice = priceMap[pos.ticker] || avgPrice || 0;
-        const currentValue = quantity * currentPrice;
+        const avgPrice = pos.avgPrice ?? 0;
         const invested = pos.invested ?? quantity * avgPrice;
-        const unrealizedProfit = currentValue - invested;
+        // без котировки позиция показывается по цене входа
+        const currentPrice = pos.price ?? avgPrice;
+        const currentValue = pos.marketValue ?? invested;
+        const unrealizedProfit = pos.unrealizedPnL ?? 0;
         return { ...pos, quantity, averagePrice: avgPrice, currentPrice, currentValue, unrealizedProfit, invested };
       });
 
@@ -66,7 +66,9 @@ SPOT_RESPONSE=$(curl -s -X POST http://localhost:8081/api/portfolios \
 SPOT_ID=$(echo "$SPOT_RESPONSE" | grep -o '"id":[0-9]*' | cut -d':' -f2)
 echo "✅ Спотовый портфель создан (ID: $SPOT_ID)"
 
-# Функция добавления спотовой транзакции
+# Транзакции собираются в NDJSON и отправляются одним фоновым заданием импорта
+SPOT_PAYLOAD=$(mktemp)
+
 add_spot() {
     local ticker="$1"
     local type="$2"
@@ -74,14 +76,8 @@ add_spot() {
     local price="$4"
     local date="$5"
     local notes="$6"
-    
-    curl -s -X POST http://localhost:8081/api/spot-transactions \
-      -H "Content-Type: application/json" \
-      -H "Authorization: Bearer $TOKEN" \
-      -H "X-Portfolio-ID: $SPOT_ID" \
-      -d "{\"ticker\": \"$ticker\", \"transactionType\": \"$type\", \"quantity\": $qty, \"price\": $price, \"transactionDate\": \"$date\", \"note\": \"$notes\"}" > /dev/null
-    
-    echo "  ✓ $ticker $type $qty @ $price ($date)"
+
+    echo "{\"ticker\": \"$ticker\", \"transactionType\": \"$type\", \"quantity\": $qty, \"price\": $price, \"transactionDate\": \"$date\", \"note\": \"$notes\"}" >> "$SPOT_PAYLOAD"
 }
 
 echo "📈 Загрузка 77 спотовых транзакций с правильными датами..."
@@ -165,6 +161,46 @@ add_spot "USD" "WITHDRAW" 1000 1.00 "2024-08-26" "Вывод"
 add_spot "USD" "WITHDRAW" 10000 1.00 "2024-08-26" "Вывод"
 add_spot "USD" "WITHDRAW" 44989 1.00 "2024-09-01" "Вывод"
 
+JOB_RESPONSE=$(curl -s -X POST http://localhost:8081/api/imports/spot \
+  -H "Content-Type: application/x-ndjson" \
+  -H "Authorization: Bearer $TOKEN" \
+  -H "X-Portfolio-ID: $SPOT_ID" \
+  --data-binary @"$SPOT_PAYLOAD")
+rm -f "$SPOT_PAYLOAD"
+JOB_ID=$(echo "$JOB_RESPONSE" | grep -o '"id":[0-9]*' | head -1 | cut -d':' -f2)
+
+if [ -z "$JOB_ID" ]; then
+    echo "❌ Не удалось создать задание импорта: $JOB_RESPONSE"
+    exit 1
+fi
+
+# Ждём завершения задания не дольше IMPORT_TIMEOUT секунд; пустой или неизвестный статус
+# и ошибка HTTP считаются сбоем — задание остаётся на сервере, и его можно продолжить
+IMPORT_TIMEOUT=${IMPORT_TIMEOUT:-600}
+DEADLINE=$((SECONDS + IMPORT_TIMEOUT))
+JOB_STATUS=""
+while true; do
+    sleep 1
+    JOB_RESPONSE=$(curl -s -w "\n%{http_code}" -H "Authorization: Bearer $TOKEN" http://localhost:8081/api/imports/$JOB_ID)
+    HTTP_CODE=$(echo "$JOB_RESPONSE" | tail -n 1)
+    JOB_STATUS=$(echo "$JOB_RESPONSE" | sed '$d' | grep -o '"status":"[A-Z]*"' | cut -d'"' -f4)
+    echo "  ⏳ Задание импорта $JOB_ID: ${JOB_STATUS:-нет статуса} (HTTP $HTTP_CODE)"
+    case "$JOB_STATUS" in
+        COMPLETED|FAILED) break ;;
+        QUEUED|RUNNING) ;;
+        *) JOB_STATUS="FAILED"; break ;;
+    esac
+    if [ "$HTTP_CODE" != "200" ] || [ $SECONDS -ge $DEADLINE ]; then
+        JOB_STATUS="FAILED"
+        break
+    fi
+done
+
+if [ "$JOB_STATUS" = "FAILED" ]; then
+    echo "❌ Импорт не завершён, продолжить: POST /api/imports/$JOB_ID/resume"
+    exit 1
+fi
+
 echo "✅ Все 77 спотовых транзакций загружены!"
 
 # Запуск frontend
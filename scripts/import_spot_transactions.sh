@@ -26,17 +26,16 @@ fi
 
 echo "📂 Спотовый портфель найден (ID: $PORTFOLIO_ID)"
 
+# Транзакции собираются в NDJSON и отправляются одним фоновым заданием импорта
+PAYLOAD=$(mktemp)
+trap 'rm -f "$PAYLOAD"' EXIT
+
 auto_post() {
   local ticker="$1"; local type="$2"; local qty="$3"; local price="$4"; local date="$5"; local note="$6"
-  curl -s -X POST http://localhost:8081/api/spot-transactions \
-    -H "Authorization: Bearer $TOKEN" \
-    -H "Content-Type: application/json" \
-    -H "X-Portfolio-ID: $PORTFOLIO_ID" \
-    -d "{\"ticker\":\"$ticker\",\"transactionType\":\"$type\",\"quantity\":$qty,\"price\":$price,\"transactionDate\":\"$date\",\"note\":\"$note\"}" >/dev/null
-  echo "✔ $ticker $type $qty @$price ($date)"
+  echo "{\"ticker\":\"$ticker\",\"transactionType\":\"$type\",\"quantity\":$qty,\"price\":$price,\"transactionDate\":\"$date\",\"note\":\"$note\"}" >> "$PAYLOAD"
 }
 
-echo "🚀 Загружаю сделки..."
+echo "🚀 Готовлю сделки..."
 
 # === Ниже полный список 77 транзакций ===
 auto_post "USD" "DEPOSIT" 100000 1.00 "2019-05-06" "Поступление"
@@ -117,5 +116,45 @@ auto_post "USD" "WITHDRAW" 1000 1.00 "2024-08-26" "Вывод"
 auto_post "USD" "WITHDRAW" 10000 1.00 "2024-08-26" "Вывод"
 auto_post "USD" "WITHDRAW" 44989 1.00 "2024-09-01" "Вывод"
 
-echo "🎉 Импорт завершён!" 
+echo "📤 Отправляю $(wc -l < "$PAYLOAD" | tr -d ' ') транзакций одним заданием..."
+JOB_ID=$(curl -s -X POST http://localhost:8081/api/imports/spot \
+  -H "Authorization: Bearer $TOKEN" \
+  -H "Content-Type: application/x-ndjson" \
+  -H "X-Portfolio-ID: $PORTFOLIO_ID" \
+  --data-binary @"$PAYLOAD" | jq -r '.id')
+
+if [[ -z "$JOB_ID" || "$JOB_ID" == "null" ]]; then
+  echo "❌ Не удалось создать задание импорта"
+  exit 1
+fi
+
+# Ждём завершения задания не дольше IMPORT_TIMEOUT секунд; пустой или неизвестный статус
+# и ошибка HTTP считаются сбоем. Задание остаётся на сервере: POST /api/imports/$JOB_ID/resume
+IMPORT_TIMEOUT=${IMPORT_TIMEOUT:-600}
+DEADLINE=$((SECONDS + IMPORT_TIMEOUT))
+while true; do
+  RESPONSE=$(curl -s -w "\n%{http_code}" -H "Authorization: Bearer $TOKEN" http://localhost:8081/api/imports/$JOB_ID || true)
+  HTTP_CODE=$(echo "$RESPONSE" | tail -n 1)
+  JOB=$(echo "$RESPONSE" | sed '$d')
+  STATUS=$(echo "$JOB" | jq -r '.status // empty' 2>/dev/null || true)
+  echo "⏳ Задание $JOB_ID: ${STATUS:-нет статуса} (HTTP $HTTP_CODE), обработано $(echo "$JOB" | jq -r '.processedRows' 2>/dev/null) из $(echo "$JOB" | jq -r '.totalRows' 2>/dev/null)"
+  [[ "$STATUS" == "COMPLETED" || "$STATUS" == "FAILED" ]] && break
+  if [[ "$HTTP_CODE" != "200" || ( "$STATUS" != "QUEUED" && "$STATUS" != "RUNNING" ) ]]; then
+    echo "❌ Не удалось получить статус задания, продолжить: POST /api/imports/$JOB_ID/resume"
+    exit 1
+  fi
+  if (( SECONDS >= DEADLINE )); then
+    echo "❌ Задание не завершилось за ${IMPORT_TIMEOUT} с, продолжить: POST /api/imports/$JOB_ID/resume"
+    exit 1
+  fi
+  sleep 1
+done
+
+if [[ "$STATUS" == "FAILED" ]]; then
+  echo "❌ Задание прервано: $(echo "$JOB" | jq -r '.message'), продолжить: POST /api/imports/$JOB_ID/resume"
+  exit 1
+fi
+
+echo "🎉 Импорт завершён! Записано: $(echo "$JOB" | jq -r '.importedCount'), ошибок: $(echo "$JOB" | jq -r '.errorCount')"
+
  
\ No newline at end of file